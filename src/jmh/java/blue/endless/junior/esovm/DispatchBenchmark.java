@@ -0,0 +1,104 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of dispatching one instruction, for each class of opcode. The thread runs a loop of nothing but instructions of
+ * that class, which never halts, so every call dispatches the same kind of instruction (give or take the jump closing the
+ * loop). {@link #cycle()} goes through {@link VMThread#cycle()} a single instruction at a time; {@link #run()} shows what the
+ * instructions cost inside the dispatch loop, without the cost of getting in and out of it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	private static final int REPEATS = 64;
+	private static final int RUN_CYCLES = 10_000;
+	
+	@Param({ "load", "store", "arithmetic", "memory", "convert", "push_pop", "test_cjump", "jump" })
+	public String opcodes;
+	
+	/** checked is the bounds-checked loop every thread starts in; verified is the one verify() switches to. */
+	@Param({ "checked", "verified" })
+	public String tier;
+	
+	private VMThread thread;
+	
+	@Setup
+	public void setup() throws VMException {
+		Programs program = new Programs()
+				.instruction(OPCODE_LOAD, DATA_INT32, OPERAND_IMMEDIATE, 0, 0, 1)
+				.instruction(OPCODE_ALLOCATE, DATA_WORD, OPERAND_IMMEDIATE, 0, 0, 64);
+		int top = program.here();
+		for(int i=0; i<REPEATS; i++) {
+			switch(opcodes) {
+			case "load":
+				program.instruction(OPCODE_LOAD, DATA_INT32, OPERAND_IMMEDIATE, 0, 1, i);
+				break;
+			case "store":
+				program.instruction(OPCODE_STORE, DATA_INT32, OPERAND_REGISTER, 0, 0, 1);
+				break;
+			case "arithmetic":
+				program.instruction(OPCODE_ADD, DATA_INT32, OPERAND_REGISTER, 1, 1, 0);
+				break;
+			case "memory":
+				program.instruction(OPCODE_STORE, DATA_INT32, OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET, 0, 0, 4);
+				break;
+			case "convert":
+				program.instruction(OPCODE_CONVERT, DATA_INT32, DATA_FLOAT64, 0, 0, 0);
+				break;
+			case "push_pop":
+				program.instruction((i % 2==0) ? OPCODE_PUSH : OPCODE_POP, DATA_INT32, 0, 0, i % 2, 0);
+				break;
+			case "test_cjump":
+				if (i % 2==0) {
+					program.instruction(OPCODE_TEST, DATA_INT32, 0, 0, 0, 0);
+				} else {
+					program.instruction(OPCODE_CJUMP, 0, 0, 0, CONDITION_ZERO, program.here() + 8);
+				}
+				break;
+			case "jump":
+				program.instruction(OPCODE_JUMP, 0, 0, 0, 0, program.here() + 8);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown opcode class "+opcodes);
+			}
+		}
+		program.instruction(OPCODE_JUMP, 0, 0, 0, 0, top);
+		
+		thread = new VMThread(program.toByteArray(), 0, StackFrame.lvtInfo(1, 0, 1, 2, 0, 0, 0, 0));
+		//Compiled code would take over from either loop before long
+		thread.setJitThreshold(0);
+		if (tier.equals("verified")) thread.verify();
+		thread.run(2);
+	}
+	
+	@Benchmark
+	public void cycle() throws VMException {
+		thread.cycle();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(RUN_CYCLES)
+	public RunResult run() {
+		return thread.run(RUN_CYCLES);
+	}
+}
@@ -0,0 +1,81 @@
+package blue.endless.junior.esovm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole programs, from creating the thread to reading the answer: the arithmetic example from docs/ir_isa.md, a counting loop,
+ * and a recursive Fibonacci, which is mostly calls and returns.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgramBenchmark {
+	private static final long TWO_INT32 = 2L << 32;
+	private static final byte[] EXAMPLE = Programs.example();
+	private static final byte[] LOOP = Programs.loop(100_000);
+	
+	/** checked never verifies; verified does, but never compiles; jit compiles hot loops to JVM bytecode. */
+	@Param({ "checked", "verified", "jit" })
+	public String tier;
+	
+	private Module example;
+	private Module loop;
+	private Module fibonacci;
+	
+	@Setup
+	public void setup() throws VMException {
+		example = Module.of(EXAMPLE, new ConstantPool(), 0, TWO_INT32);
+		loop = Module.of(LOOP, new ConstantPool(), 0, TWO_INT32);
+		fibonacci = Programs.fibonacci(20);
+	}
+	
+	/** The example, including decoding it, as if it had just been loaded. */
+	@Benchmark
+	public int exampleFromBytes() throws VMException {
+		VMThread thread = new VMThread(EXAMPLE, 0, TWO_INT32);
+		return run(thread).getStack().currentStackFrame().getInt32(0);
+	}
+	
+	@Benchmark
+	public int example() throws VMException {
+		VMThread thread = new VMThread(example, example.getFunction("main"));
+		return run(thread).getStack().currentStackFrame().getInt32(0);
+	}
+	
+	@Benchmark
+	public int loop() throws VMException {
+		VMThread thread = new VMThread(loop, loop.getFunction("main"));
+		return run(thread).getStack().currentStackFrame().getInt32(0);
+	}
+	
+	@Benchmark
+	public int fibonacci() throws VMException {
+		VMThread thread = new VMThread(fibonacci, fibonacci.getExport("main"));
+		return run(thread).getStack().popInt32();
+	}
+	
+	private VMThread run(VMThread thread) throws VMException {
+		if (!tier.equals("checked")) {
+			if (tier.equals("verified")) thread.setJitThreshold(0);
+			thread.verify();
+		}
+		RunResult result = thread.run(Long.MAX_VALUE);
+		if (result.getStatus()!=RunResult.Status.HALTED) throw new VMException("The benchmark didn't halt: "+result);
+		return thread;
+	}
+}
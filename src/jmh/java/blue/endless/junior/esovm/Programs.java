@@ -0,0 +1,106 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/** Assembles the small programs the benchmarks run, one instruction at a time. */
+final class Programs {
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	
+	Programs instruction(int opcode, int dataType, int operand2Type, int destination, int operand1, int operand2) {
+		out.write(opcode);
+		out.write((dataType << 4) | operand2Type);
+		out.write(destination);
+		out.write(operand1);
+		out.write(operand2 >>> 24);
+		out.write(operand2 >>> 16);
+		out.write(operand2 >>> 8);
+		out.write(operand2);
+		return this;
+	}
+	
+	/** Returns the address the next instruction will be at. */
+	int here() {
+		return out.size();
+	}
+	
+	byte[] toByteArray() {
+		return out.toByteArray();
+	}
+	
+	/**
+	 * The example from docs/ir_isa.md: computes (3 + 2) * 4 + (12 * 6) into int32 register 0, and halts. Needs two int32
+	 * registers.
+	 */
+	static byte[] example() {
+		return new Programs()
+				.instruction(OPCODE_LOAD, DATA_INT32, OPERAND_IMMEDIATE, 0, 0, 3)
+				.instruction(OPCODE_ADD,  DATA_INT32, OPERAND_IMMEDIATE, 0, 0, 2)
+				.instruction(OPCODE_MUL,  DATA_INT32, OPERAND_IMMEDIATE, 0, 0, 4)
+				.instruction(OPCODE_LOAD, DATA_INT32, OPERAND_IMMEDIATE, 0, 1, 12)
+				.instruction(OPCODE_MUL,  DATA_INT32, OPERAND_IMMEDIATE, 1, 1, 6)
+				.instruction(OPCODE_ADD,  DATA_INT32, OPERAND_REGISTER,  0, 0, 1)
+				.instruction(OPCODE_HALT, 0, 0, 0, 0, 0)
+				.toByteArray();
+	}
+	
+	/** Adds 1 through n into int32 register 0, counting down in register 1, and halts. Needs two int32 registers. */
+	static byte[] loop(int n) {
+		Programs program = new Programs()
+				.instruction(OPCODE_LOAD, DATA_INT32, OPERAND_IMMEDIATE, 0, 0, 0)
+				.instruction(OPCODE_LOAD, DATA_INT32, OPERAND_IMMEDIATE, 0, 1, n);
+		int top = program.here();
+		return program
+				.instruction(OPCODE_ADD,   DATA_INT32, OPERAND_REGISTER,  0, 0, 1)
+				.instruction(OPCODE_SUB,   DATA_INT32, OPERAND_IMMEDIATE, 1, 1, 1)
+				.instruction(OPCODE_TEST,  DATA_INT32, 0, 0, 1, 0)
+				.instruction(OPCODE_CJUMP, 0, 0, 0, CONDITION_NOT_ZERO, top)
+				.instruction(OPCODE_HALT, 0, 0, 0, 0, 0)
+				.toByteArray();
+	}
+	
+	/**
+	 * A module with a "main" function, which returns the nth Fibonacci number, and "fib", which works it out the slow way, by
+	 * calling itself twice.
+	 */
+	static Module fibonacci(int n) throws VMException {
+		ConstantPool constants = new ConstantPool();
+		int fib = constants.addString("fib");
+		
+		Programs program = new Programs()
+				.instruction(OPCODE_LOAD,   DATA_INT32, OPERAND_IMMEDIATE, 0, 0, n)
+				.instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 0, 0)
+				.instruction(OPCODE_CALL,   0, 0, 0, 0, fib)
+				.instruction(OPCODE_RETURN, 0, 0, 0, 0, 0);
+		int start = program.here();
+		//Where the base case starts, after the 15 instructions of the recursive case
+		int base = start + 15*8;
+		program
+				.instruction(OPCODE_POP,    DATA_INT32, 0, 0, 0, 0)
+				.instruction(OPCODE_SUB,    DATA_INT32, OPERAND_IMMEDIATE, 1, 0, 2)
+				.instruction(OPCODE_TEST,   DATA_INT32, 0, 0, 1, 0)
+				.instruction(OPCODE_CJUMP,  0, 0, 0, CONDITION_NEGATIVE, base)
+				.instruction(OPCODE_SUB,    DATA_INT32, OPERAND_IMMEDIATE, 1, 0, 1)
+				.instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 1, 0)
+				.instruction(OPCODE_CALL,   0, 0, 0, 0, fib)
+				.instruction(OPCODE_SUB,    DATA_INT32, OPERAND_IMMEDIATE, 1, 0, 2)
+				.instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 1, 0)
+				.instruction(OPCODE_CALL,   0, 0, 0, 0, fib)
+				.instruction(OPCODE_POP,    DATA_INT32, 0, 0, 1, 0)
+				.instruction(OPCODE_POP,    DATA_INT32, 0, 0, 0, 0)
+				.instruction(OPCODE_ADD,    DATA_INT32, OPERAND_REGISTER, 0, 0, 1)
+				.instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 0, 0)
+				.instruction(OPCODE_RETURN, 0, 0, 0, 0, 0);
+		program
+				.instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 0, 0)
+				.instruction(OPCODE_RETURN, 0, 0, 0, 0, 0);
+		int end = program.here();
+		
+		long lvtInfo = StackFrame.lvtInfo(0, 0, 0, 2, 0, 0, 0, 0);
+		return new Module(program.toByteArray(), constants, Arrays.asList(
+				new Module.Function("main", 0, start, 0, lvtInfo, 0, 4, Module.FLAG_EXPORTED),
+				new Module.Function("fib", start, end, start, lvtInfo, 4, 4, 0)));
+	}
+}
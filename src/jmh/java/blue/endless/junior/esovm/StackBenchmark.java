@@ -0,0 +1,121 @@
+package blue.endless.junior.esovm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Operand stack pushes and pops, for each width, and stack frames: pushing and popping them, with and without arguments and
+ * results, and reading and writing their LVTs with and without bounds checks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StackBenchmark {
+	/** Four LVT entries of each type. */
+	private static final long LVT_INFO = 0x0404040404040404L;
+	
+	private Stack stack;
+	private StackFrame frame;
+	private int index = 0;
+	
+	@Setup
+	public void setup() throws VMException {
+		stack = new Stack(65535);
+		stack.pushStackFrame("main", LVT_INFO);
+		frame = stack.currentStackFrame();
+	}
+	
+	@Benchmark
+	public byte pushPopInt8() throws VMException {
+		stack.pushInt8(42);
+		return stack.popInt8();
+	}
+	
+	@Benchmark
+	public short pushPopInt16() throws VMException {
+		stack.pushInt16(42);
+		return stack.popInt16();
+	}
+	
+	@Benchmark
+	public int pushPopInt32() throws VMException {
+		stack.pushInt32(42);
+		return stack.popInt32();
+	}
+	
+	@Benchmark
+	public long pushPopInt64() throws VMException {
+		stack.pushInt64(42L);
+		return stack.popInt64();
+	}
+	
+	@Benchmark
+	public float pushPopFloat32() throws VMException {
+		stack.pushFloat32(42f);
+		return stack.popFloat32();
+	}
+	
+	@Benchmark
+	public double pushPopFloat64() throws VMException {
+		stack.pushFloat64(42.0);
+		return stack.popFloat64();
+	}
+	
+	@Benchmark
+	public int frameChurn() throws VMException {
+		stack.pushStackFrame("callee", LVT_INFO);
+		return stack.popStackFrame();
+	}
+	
+	/** A frame the way a CALL pushes one: taking two int32 arguments, and leaving one int32 result. */
+	@Benchmark
+	public int callChurn() throws VMException {
+		stack.pushInt32(3);
+		stack.pushInt32(4);
+		stack.pushStackFrame("callee", LVT_INFO, 0, 8);
+		stack.pushInt32(7);
+		stack.popStackFrame(4);
+		return stack.popInt32();
+	}
+	
+	@Benchmark
+	public int lvtInt32() throws VMException {
+		index = (index + 1) & 3;
+		frame.putInt32(index, frame.getInt32(index ^ 1) + 1);
+		return frame.getInt32(index);
+	}
+	
+	@Benchmark
+	public long lvtInt64() throws VMException {
+		index = (index + 1) & 3;
+		frame.putInt64(index, frame.getInt64(index ^ 1) + 1);
+		return frame.getInt64(index);
+	}
+	
+	@Benchmark
+	public double lvtFloat64() throws VMException {
+		index = (index + 1) & 3;
+		frame.putFloat64(index, frame.getFloat64(index ^ 1) + 1.0);
+		return frame.getFloat64(index);
+	}
+	
+	@Benchmark
+	public int lvtInt32Unchecked() {
+		index = (index + 1) & 3;
+		frame.putInt32Unchecked(index, frame.getInt32Unchecked(index ^ 1) + 1);
+		return frame.getInt32Unchecked(index);
+	}
+}
@@ -1,25 +1,68 @@
 package blue.endless.junior;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Set;
 
-import blue.endless.junior.ast.Instruction;
+import blue.endless.junior.esovm.Module;
+import blue.endless.junior.esovm.VMException;
+import blue.endless.junior.esovm.aot.AotCompiler;
+import blue.endless.junior.esovm.aot.ElfFile;
 
+/**
+ * Assembles EsoVM modules into static x86-64 Linux executables, so a program can run without an interpreter or a JVM.
+ * See {@link AotCompiler} for what the executables do and which code can be compiled.
+ *
+ * <p>Functions are compiled in parallel, and the executable is written straight from the compiled code, so nothing the
+ * size of the whole program is ever copied.
+ */
 public class Assembler {
-	public void assemble(List<Instruction> compiledBlock) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream(baos);
-		
-		//header
-		out.writeInt(0xCAFEBABE);
-		
-		
-		
-		for(Instruction instruction : compiledBlock) {
-			
+	private long stackSize = AotCompiler.DEFAULT_STACK_SIZE;
+	
+	/** Returns the size, in bytes, of the operand stack executables get. */
+	public long getStackSize() {
+		return stackSize;
+	}
+	
+	public void setStackSize(long stackSize) {
+		this.stackSize = stackSize;
+	}
+	
+	/** Writes an executable which runs the named function of module, which must take no arguments, to out. */
+	public void assemble(Module module, String entry, OutputStream out) throws IOException, VMException {
+		AotCompiler.compile(module, entry, stackSize).write(out);
+	}
+	
+	public byte[] assemble(Module module, String entry) throws VMException {
+		ElfFile file = AotCompiler.compile(module, entry, stackSize);
+		ByteBuffer buffer = ByteBuffer.allocate((int) file.size());
+		file.write(buffer);
+		return buffer.array();
+	}
+	
+	/** Writes an executable to path, and marks it executable if the filesystem has POSIX permissions. */
+	public void assemble(Module module, String entry, Path path) throws IOException, VMException {
+		ElfFile file = AotCompiler.compile(module, entry, stackSize);
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			file.write(channel);
+		}
+		try {
+			//Not EnumSet.copyOf, which throws on a file with no permissions at all
+			Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+			permissions.addAll(Files.getPosixFilePermissions(path));
+			permissions.add(PosixFilePermission.OWNER_EXECUTE);
+			permissions.add(PosixFilePermission.GROUP_EXECUTE);
+			permissions.add(PosixFilePermission.OTHERS_EXECUTE);
+			Files.setPosixFilePermissions(path, permissions);
+		} catch (UnsupportedOperationException ex) {
+			//Not a POSIX filesystem
 		}
 	}
 }
@@ -0,0 +1,166 @@
+package blue.endless.junior.ast;
+
+import blue.endless.junior.ast.BinaryOperation.Operator;
+
+/**
+ * What operators and conversions do to values, boxed as {@link Constant} describes. This is the one definition of it, shared
+ * by everything which runs or folds ASTs, and it matches what EsoVM's instructions do to values of the same type.
+ */
+public final class Arithmetic {
+	private Arithmetic() {}
+	
+	/** Returns the data type of a boxed value, or null if it isn't a box any data type uses. Words come back as i64. */
+	public static DataType typeOf(Object value) {
+		if (value instanceof Integer) return DataType.I32;
+		if (value instanceof Long)    return DataType.I64;
+		if (value instanceof Double)  return DataType.F64;
+		if (value instanceof Float)   return DataType.F32;
+		if (value instanceof Short)   return DataType.I16;
+		if (value instanceof Byte)    return DataType.I8;
+		return null;
+	}
+	
+	/** Returns whichever type is wider, which is the type an operator on values of both types works in. */
+	public static DataType wider(DataType a, DataType b) {
+		return (rank(a)>=rank(b)) ? a : b;
+	}
+	
+	private static int rank(DataType type) {
+		switch(type) {
+		case I8:  return 0;
+		case I16: return 1;
+		case I32: return 2;
+		case F16: return 4;
+		case F32: return 5;
+		case F64: return 6;
+		default:  return 3;
+		}
+	}
+	
+	/**
+	 * Applies an operator. Integer division or remainder by zero throws an ArithmeticException, and operators which don't
+	 * apply to the values' type, like shifting floating point values, throw an IllegalArgumentException.
+	 */
+	public static Number apply(Operator operator, Number left, Number right) {
+		DataType type = wider(check(left), check(right));
+		switch(type) {
+		case F64:
+			if (operator.isComparison()) return compare(operator, left.doubleValue(), right.doubleValue()) ? 1 : 0;
+			return float64(operator, left.doubleValue(), right.doubleValue());
+		case F32:
+			if (operator.isComparison()) return compare(operator, left.floatValue(), right.floatValue()) ? 1 : 0;
+			return (float) float64(operator, left.floatValue(), right.floatValue());
+		case I64:
+			if (operator.isComparison()) return compare(operator, left.longValue(), right.longValue()) ? 1 : 0;
+			return int64(operator, left.longValue(), right.longValue());
+		case I32:
+			return int32(operator, left.intValue(), right.intValue());
+		case I16: {
+			//Logical shifts of narrow types have to start from just their own bits
+			int value = (operator==Operator.SHR) ? left.intValue() & 0xFFFF : left.intValue();
+			int result = int32(operator, value, right.intValue());
+			return (operator.isComparison()) ? (Number) result : (Number) (short) result;
+		}
+		default: {
+			int value = (operator==Operator.SHR) ? left.intValue() & 0xFF : left.intValue();
+			int result = int32(operator, value, right.intValue());
+			return (operator.isComparison()) ? (Number) result : (Number) (byte) result;
+		}
+		}
+	}
+	
+	/**
+	 * Converts a value to another type the way CONVERT does: floating point values are rounded toward zero to an i64 first
+	 * when converting them to integers, then integers are truncated or sign-extended to fit, and integers become f64s before
+	 * becoming f32s.
+	 */
+	public static Number convert(Number value, DataType type) {
+		check(value);
+		switch(type) {
+		case I8:   return (byte) value.longValue();
+		case I16:  return (short) value.longValue();
+		case I32:  return (int) value.longValue();
+		case I64:
+		case WORD: return value.longValue();
+		case F32:  return (float) value.doubleValue();
+		case F64:  return value.doubleValue();
+		default: throw new IllegalArgumentException("Values of type "+type+" aren't supported yet");
+		}
+	}
+	
+	/** Returns whether a value counts as true, which is whenever it isn't zero. */
+	public static boolean isTrue(Number value) {
+		return (check(value).isFloat()) ? value.doubleValue()!=0.0 : value.longValue()!=0L;
+	}
+	
+	public static int int32(Operator operator, int a, int b) {
+		switch(operator) {
+		case ADD: return a + b;
+		case SUB: return a - b;
+		case MUL: return a * b;
+		case DIV: return a / b;
+		case MOD: return a % b;
+		case SHL: return a << b;
+		case SHR: return a >>> b;
+		case ASR: return a >> b;
+		default:  return compare(operator, a, b) ? 1 : 0;
+		}
+	}
+	
+	/** Only for arithmetic; comparisons produce an i32, from {@link #compare(Operator, long, long)}. */
+	public static long int64(Operator operator, long a, long b) {
+		switch(operator) {
+		case ADD: return a + b;
+		case SUB: return a - b;
+		case MUL: return a * b;
+		case DIV: return a / b;
+		case MOD: return a % b;
+		case SHL: return a << b;
+		case SHR: return a >>> b;
+		case ASR: return a >> b;
+		default:  throw new IllegalArgumentException(operator+" is a comparison");
+		}
+	}
+	
+	/** Only for arithmetic; comparisons produce an i32, from {@link #compare(Operator, double, double)}. */
+	public static double float64(Operator operator, double a, double b) {
+		switch(operator) {
+		case ADD: return a + b;
+		case SUB: return a - b;
+		case MUL: return a * b;
+		case DIV: return a / b;
+		case MOD: return a % b;
+		default:  throw new IllegalArgumentException("Can't use "+operator.getSymbol()+" on floating point values");
+		}
+	}
+	
+	public static boolean compare(Operator operator, long a, long b) {
+		switch(operator) {
+		case EQUAL:            return a==b;
+		case NOT_EQUAL:        return a!=b;
+		case LESS:             return a<b;
+		case LESS_OR_EQUAL:    return a<=b;
+		case GREATER:          return a>b;
+		case GREATER_OR_EQUAL: return a>=b;
+		default: throw new IllegalArgumentException(operator+" isn't a comparison");
+		}
+	}
+	
+	public static boolean compare(Operator operator, double a, double b) {
+		switch(operator) {
+		case EQUAL:            return a==b;
+		case NOT_EQUAL:        return a!=b;
+		case LESS:             return a<b;
+		case LESS_OR_EQUAL:    return a<=b;
+		case GREATER:          return a>b;
+		case GREATER_OR_EQUAL: return a>=b;
+		default: throw new IllegalArgumentException(operator+" isn't a comparison");
+		}
+	}
+	
+	private static DataType check(Number value) {
+		DataType type = typeOf(value);
+		if (type==null) throw new IllegalArgumentException((value==null) ? "Missing value" : "Can't use a "+value.getClass().getSimpleName()+" as a value");
+		return type;
+	}
+}
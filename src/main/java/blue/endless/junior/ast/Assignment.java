@@ -0,0 +1,27 @@
+package blue.endless.junior.ast;
+
+/**
+ * Stores a value in a local variable. If the variable was declared, the value is converted to its declared type first.
+ */
+public class Assignment implements Statement {
+	protected final String variable;
+	protected final Expression value;
+	
+	public Assignment(String variable, Expression value) {
+		this.variable = variable;
+		this.value = value;
+	}
+	
+	public String getVariable() {
+		return variable;
+	}
+	
+	public Expression getValue() {
+		return value;
+	}
+	
+	@Override
+	public String toString() {
+		return variable+" = "+value;
+	}
+}
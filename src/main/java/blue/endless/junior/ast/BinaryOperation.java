@@ -0,0 +1,68 @@
+package blue.endless.junior.ast;
+
+/**
+ * An operator with two operands. Arithmetic is done in whichever operand type is wider, floating point types being wider
+ * than integer ones, and wraps around at that type's width. Comparisons produce an i32 which is 1 if they hold and 0 if
+ * they don't.
+ */
+public class BinaryOperation extends Expression {
+	public enum Operator {
+		ADD("+"),
+		SUB("-"),
+		MUL("*"),
+		DIV("/"),
+		MOD("%"),
+		SHL("<<"),
+		/** Shifts right, filling with zeroes. */
+		SHR(">>>"),
+		/** Shifts right, filling with copies of the sign bit. */
+		ASR(">>"),
+		EQUAL("=="),
+		NOT_EQUAL("!="),
+		LESS("<"),
+		LESS_OR_EQUAL("<="),
+		GREATER(">"),
+		GREATER_OR_EQUAL(">=");
+		
+		private final String symbol;
+		
+		Operator(String symbol) {
+			this.symbol = symbol;
+		}
+		
+		public String getSymbol() {
+			return symbol;
+		}
+		
+		public boolean isComparison() {
+			return ordinal()>=EQUAL.ordinal();
+		}
+	}
+	
+	protected final Operator operator;
+	protected final Expression left;
+	protected final Expression right;
+	
+	public BinaryOperation(Operator operator, Expression left, Expression right) {
+		this.operator = operator;
+		this.left = left;
+		this.right = right;
+	}
+	
+	public Operator getOperator() {
+		return operator;
+	}
+	
+	public Expression getLeft() {
+		return left;
+	}
+	
+	public Expression getRight() {
+		return right;
+	}
+	
+	@Override
+	public String toString() {
+		return "("+left+" "+operator.symbol+" "+right+")";
+	}
+}
@@ -0,0 +1,36 @@
+package blue.endless.junior.ast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Calls a function by name. As an expression its value is the function's result; as a statement the result is discarded.
+ */
+public class Call extends Expression implements Statement {
+	protected final String function;
+	protected final List<Expression> arguments;
+	
+	public Call(String function, List<Expression> arguments) {
+		this.function = function;
+		this.arguments = Collections.unmodifiableList(new ArrayList<>(arguments));
+	}
+	
+	public String getFunction() {
+		return function;
+	}
+	
+	public List<Expression> getArguments() {
+		return arguments;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder(function).append('(');
+		for(int i=0; i<arguments.size(); i++) {
+			if (i>0) result.append(", ");
+			result.append(arguments.get(i));
+		}
+		return result.append(')').toString();
+	}
+}
@@ -1,7 +1,9 @@
 package blue.endless.junior.ast;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Represents the body of a method, lambda, "if" or "else" statement, anonymous block, etc. Basically
@@ -9,7 +11,26 @@ import java.util.Iterator;
  */
 public class CodeBlock implements Iterable<Statement> {
 	protected ArrayList<Statement> statements = new ArrayList<>();
-
+	
+	public CodeBlock() {}
+	
+	public CodeBlock(List<? extends Statement> statements) {
+		this.statements.addAll(statements);
+	}
+	
+	public CodeBlock add(Statement statement) {
+		statements.add(statement);
+		return this;
+	}
+	
+	public List<Statement> getStatements() {
+		return Collections.unmodifiableList(statements);
+	}
+	
+	public int size() {
+		return statements.size();
+	}
+	
 	@Override
 	public Iterator<Statement> iterator() {
 		return statements.iterator();
@@ -0,0 +1,49 @@
+package blue.endless.junior.ast;
+
+/**
+ * A value written directly into the program. The value is always boxed as the Java type which holds its data type exactly:
+ * Byte for i8, Short for i16, Integer for i32, Long for i64 and word, Float for f32 and Double for f64.
+ */
+public class Constant extends Expression {
+	protected final DataType type;
+	protected final Number value;
+	
+	public Constant(DataType type, Number value) {
+		this.type = type;
+		switch(type) {
+		case I8:   this.value = value.byteValue(); break;
+		case I16:  this.value = value.shortValue(); break;
+		case I32:  this.value = value.intValue(); break;
+		case I64:
+		case WORD: this.value = value.longValue(); break;
+		case F32:  this.value = value.floatValue(); break;
+		case F64:  this.value = value.doubleValue(); break;
+		default: throw new IllegalArgumentException("Constants of type "+type+" aren't supported yet");
+		}
+	}
+	
+	public static Constant of(int value) {
+		return new Constant(DataType.I32, value);
+	}
+	
+	public static Constant of(long value) {
+		return new Constant(DataType.I64, value);
+	}
+	
+	public static Constant of(double value) {
+		return new Constant(DataType.F64, value);
+	}
+	
+	public DataType getType() {
+		return type;
+	}
+	
+	public Number getValue() {
+		return value;
+	}
+	
+	@Override
+	public String toString() {
+		return value.toString();
+	}
+}
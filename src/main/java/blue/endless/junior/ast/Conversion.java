@@ -0,0 +1,28 @@
+package blue.endless.junior.ast;
+
+/**
+ * Converts a value to another data type, like EsoVM's convert instruction: floating point values are rounded toward zero
+ * when converted to integers, and integers are truncated or sign-extended to fit.
+ */
+public class Conversion extends Expression {
+	protected final DataType type;
+	protected final Expression operand;
+	
+	public Conversion(DataType type, Expression operand) {
+		this.type = type;
+		this.operand = operand;
+	}
+	
+	public DataType getType() {
+		return type;
+	}
+	
+	public Expression getOperand() {
+		return operand;
+	}
+	
+	@Override
+	public String toString() {
+		return type+" convert "+operand;
+	}
+}
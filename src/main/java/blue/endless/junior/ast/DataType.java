@@ -0,0 +1,56 @@
+package blue.endless.junior.ast;
+
+/**
+ * The data types values can have. These are the same types, in the same order, as EsoVM's; see docs/ir_isa.md.
+ */
+public enum DataType {
+	I8("i8", 1),
+	I16("i16", 2),
+	I32("i32", 4),
+	I64("i64", 8),
+	F16("f16", 2),
+	F32("f32", 4),
+	F64("f64", 8),
+	/** The target's general and address register size. Outside of EsoVM it's always 64 bits. */
+	WORD("word", 8);
+	
+	private final String name;
+	private final int width;
+	
+	DataType(String name, int width) {
+		this.name = name;
+		this.width = width;
+	}
+	
+	/** Returns the name used for this type in source text, like "i32". */
+	public String getName() {
+		return name;
+	}
+	
+	/** Returns this type's size in bytes. */
+	public int getWidth() {
+		return width;
+	}
+	
+	/** Returns EsoVM's number for this type, which is the one stored in an instruction's data type bits. */
+	public int getId() {
+		return ordinal();
+	}
+	
+	public boolean isFloat() {
+		return this==F16 || this==F32 || this==F64;
+	}
+	
+	/** Returns the type named name in source text, or null if there isn't one. */
+	public static DataType forName(String name) {
+		for(DataType type : values()) {
+			if (type.name.equals(name)) return type;
+		}
+		return null;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}
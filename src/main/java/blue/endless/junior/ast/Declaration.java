@@ -0,0 +1,27 @@
+package blue.endless.junior.ast;
+
+/**
+ * Declares a local variable's type, like {@code var x : i32}, and sets it to zero. Function parameters are declarations too.
+ */
+public class Declaration implements Statement {
+	protected final String variable;
+	protected final DataType type;
+	
+	public Declaration(String variable, DataType type) {
+		this.variable = variable;
+		this.type = type;
+	}
+	
+	public String getVariable() {
+		return variable;
+	}
+	
+	public DataType getType() {
+		return type;
+	}
+	
+	@Override
+	public String toString() {
+		return "var "+variable+" : "+type;
+	}
+}
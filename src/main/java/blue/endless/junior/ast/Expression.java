@@ -1,5 +1,8 @@
 package blue.endless.junior.ast;
 
-public class Expression {
+/**
+ * Anything which produces a value: constants, variables, operators, conversions and calls.
+ */
+public abstract class Expression {
 
 }
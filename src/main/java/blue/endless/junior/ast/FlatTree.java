@@ -0,0 +1,394 @@
+package blue.endless.junior.ast;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import blue.endless.junior.ast.BinaryOperation.Operator;
+
+/**
+ * An AST stored as parallel primitive arrays rather than as an object per node, for programs too big for that to be
+ * practical. A node is an int id, and costs a tag byte, an operand int and a child offset int, plus an int in its parent's
+ * child list; names and mnemonics are interned once per tree, and constants are stored once per distinct value.
+ *
+ * <p>The tag's low nibble is the node's kind, one of the KIND_ constants, and its high nibble is the data type of a
+ * constant, conversion or declaration, or the operator of a binary operation - the same packing as an EsoVM instruction's
+ * type byte. The operand is a string index for nodes with names, a constant index for constants, and unused otherwise.
+ * Children, in the same order as the object AST's constructor arguments, are listed contiguously in node order, so a
+ * node's children are found from its own offset and the next node's. An if without an else has two children rather than
+ * three, and a return without a value has none.
+ *
+ * <p>Nodes are appended children first, so every child has a smaller id than its parent, and a pass which visits ids in
+ * increasing order always sees children before their parents, without recursion or pointer chasing; see
+ * {@link #foldConstants()}.
+ *
+ * <p>For code which expects the object AST, {@link #getBlock(int)}, {@link #getStatement(int)} and {@link #getExpression(int)}
+ * return read-only views. Blocks are views over the arrays, and statements and expressions are built when they're
+ * reached, so only the part of the tree actually walked is ever held as objects.
+ */
+public final class FlatTree {
+	public static final int KIND_BLOCK       = 0x0;
+	public static final int KIND_CONSTANT    = 0x1;
+	public static final int KIND_VARIABLE    = 0x2;
+	public static final int KIND_BINARY      = 0x3;
+	public static final int KIND_CONVERSION  = 0x4;
+	public static final int KIND_CALL        = 0x5;
+	public static final int KIND_ASSIGNMENT  = 0x6;
+	public static final int KIND_DECLARATION = 0x7;
+	public static final int KIND_IF          = 0x8;
+	public static final int KIND_WHILE       = 0x9;
+	public static final int KIND_RETURN      = 0xA;
+	public static final int KIND_INSTRUCTION = 0xB;
+	
+	private byte[] tags = new byte[64];
+	private int[] operands = new int[64];
+	/** Where each node's children start in children. Has one more entry than there are nodes, so the last node has an end. */
+	private int[] childStarts = new int[65];
+	private int[] children = new int[64];
+	private int nodeCount = 0;
+	private int childCount = 0;
+	
+	private String[] strings = new String[16];
+	private int stringCount = 0;
+	private final HashMap<String, Integer> stringIndices = new HashMap<>();
+	/** Raw bits of each constant: the long value of integers, and the double bits of floating point values. */
+	private long[] constants = new long[16];
+	private int constantCount = 0;
+	private final HashMap<Long, Integer> constantIndices = new HashMap<>();
+	
+	/** Returns a tree holding a copy of block, whose root is {@link #getRoot()}. */
+	public static FlatTree of(CodeBlock block) {
+		FlatTree tree = new FlatTree();
+		tree.add(block);
+		return tree;
+	}
+	
+	/** Returns the number of nodes. */
+	public int size() {
+		return nodeCount;
+	}
+	
+	/** Returns the last node added, which is the root of the tree if it was built bottom-up. */
+	public int getRoot() {
+		return nodeCount-1;
+	}
+	
+	/** Shrinks the arrays to fit the nodes they hold, for trees which are done being built. */
+	public void trimToSize() {
+		tags = Arrays.copyOf(tags, nodeCount);
+		operands = Arrays.copyOf(operands, nodeCount);
+		childStarts = Arrays.copyOf(childStarts, nodeCount+1);
+		children = Arrays.copyOf(children, childCount);
+		strings = Arrays.copyOf(strings, stringCount);
+		constants = Arrays.copyOf(constants, constantCount);
+	}
+	
+	public int getKind(int node) {
+		return tags[node] & 0x0F;
+	}
+	
+	/** Returns the data type of a constant, conversion or declaration. */
+	public DataType getType(int node) {
+		return DataType.values()[(tags[node] >> 4) & 0x0F];
+	}
+	
+	/** Returns the operator of a binary operation. */
+	public Operator getOperator(int node) {
+		return Operator.values()[(tags[node] >> 4) & 0x0F];
+	}
+	
+	/** Returns the variable, function or mnemonic named by a node. */
+	public String getName(int node) {
+		return strings[operands[node]];
+	}
+	
+	/** Returns the value of a constant, boxed the way {@link Constant} boxes it. */
+	public Number getValue(int node) {
+		long bits = constants[operands[node]];
+		DataType type = getType(node);
+		return (type.isFloat()) ? Arithmetic.convert(Double.longBitsToDouble(bits), type) : Arithmetic.convert(bits, type);
+	}
+	
+	public int getChildCount(int node) {
+		return childStarts[node+1] - childStarts[node];
+	}
+	
+	public int getChild(int node, int index) {
+		return children[childStarts[node] + index];
+	}
+	
+	public int constant(DataType type, Number value) {
+		return node(KIND_CONSTANT, type.ordinal(), intern(type, value));
+	}
+	
+	public int variable(String name) {
+		return node(KIND_VARIABLE, 0, intern(name));
+	}
+	
+	public int binary(Operator operator, int left, int right) {
+		return node(KIND_BINARY, operator.ordinal(), 0, left, right);
+	}
+	
+	public int conversion(DataType type, int operand) {
+		return node(KIND_CONVERSION, type.ordinal(), 0, operand);
+	}
+	
+	public int call(String function, int... arguments) {
+		return node(KIND_CALL, 0, intern(function), arguments);
+	}
+	
+	public int assignment(String variable, int value) {
+		return node(KIND_ASSIGNMENT, 0, intern(variable), value);
+	}
+	
+	public int declaration(String variable, DataType type) {
+		return node(KIND_DECLARATION, type.ordinal(), intern(variable));
+	}
+	
+	/** otherwise may be -1 if there's no "else" block. */
+	public int ifStatement(int condition, int then, int otherwise) {
+		return (otherwise==-1) ? node(KIND_IF, 0, 0, condition, then) : node(KIND_IF, 0, 0, condition, then, otherwise);
+	}
+	
+	public int whileStatement(int condition, int body) {
+		return node(KIND_WHILE, 0, 0, condition, body);
+	}
+	
+	/** value may be -1 for functions without a result. */
+	public int returnStatement(int value) {
+		return (value==-1) ? node(KIND_RETURN, 0, 0) : node(KIND_RETURN, 0, 0, value);
+	}
+	
+	public int instruction(String mnemonic) {
+		return node(KIND_INSTRUCTION, 0, intern(mnemonic));
+	}
+	
+	public int block(int... statements) {
+		return node(KIND_BLOCK, 0, 0, statements);
+	}
+	
+	/** Copies an object AST block into this tree, and returns its node. */
+	public int add(CodeBlock block) {
+		int[] statements = new int[block.size()];
+		int i = 0;
+		for(Statement statement : block) statements[i++] = add(statement);
+		return block(statements);
+	}
+	
+	public int add(Statement statement) {
+		if (statement instanceof Expression) {
+			return add((Expression) statement);
+		} else if (statement instanceof Assignment) {
+			return assignment(((Assignment) statement).getVariable(), add(((Assignment) statement).getValue()));
+		} else if (statement instanceof Declaration) {
+			return declaration(((Declaration) statement).getVariable(), ((Declaration) statement).getType());
+		} else if (statement instanceof If) {
+			If branch = (If) statement;
+			int condition = add(branch.getCondition());
+			int then = add(branch.getThen());
+			return ifStatement(condition, then, (branch.getOtherwise()==null) ? -1 : add(branch.getOtherwise()));
+		} else if (statement instanceof While) {
+			int condition = add(((While) statement).getCondition());
+			return whileStatement(condition, add(((While) statement).getBody()));
+		} else if (statement instanceof Return) {
+			Expression value = ((Return) statement).getValue();
+			return returnStatement((value==null) ? -1 : add(value));
+		} else if (statement instanceof Instruction) {
+			return instruction(((Instruction) statement).getMnemonic());
+		} else {
+			throw new IllegalArgumentException("Can't store a "+statement.getClass().getSimpleName()+" in a flat tree");
+		}
+	}
+	
+	public int add(Expression expression) {
+		if (expression instanceof Constant) {
+			return constant(((Constant) expression).getType(), ((Constant) expression).getValue());
+		} else if (expression instanceof Variable) {
+			return variable(((Variable) expression).getName());
+		} else if (expression instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) expression;
+			int left = add(operation.getLeft());
+			return binary(operation.getOperator(), left, add(operation.getRight()));
+		} else if (expression instanceof Conversion) {
+			return conversion(((Conversion) expression).getType(), add(((Conversion) expression).getOperand()));
+		} else if (expression instanceof Call) {
+			List<Expression> arguments = ((Call) expression).getArguments();
+			int[] nodes = new int[arguments.size()];
+			for(int i=0; i<nodes.length; i++) nodes[i] = add(arguments.get(i));
+			return call(((Call) expression).getFunction(), nodes);
+		} else {
+			throw new IllegalArgumentException("Can't store a "+expression.getClass().getSimpleName()+" in a flat tree");
+		}
+	}
+	
+	/** Returns a read-only view of a block node. */
+	public CodeBlock getBlock(int node) {
+		if (getKind(node)!=KIND_BLOCK) throw new IllegalArgumentException("Node "+node+" isn't a block");
+		return new BlockView(node);
+	}
+	
+	/** Builds the statement a node stands for. Blocks inside it are views. */
+	public Statement getStatement(int node) {
+		switch(getKind(node)) {
+		case KIND_CALL:
+			return (Call) getExpression(node);
+		case KIND_ASSIGNMENT:
+			return new Assignment(getName(node), getExpression(getChild(node, 0)));
+		case KIND_DECLARATION:
+			return new Declaration(getName(node), getType(node));
+		case KIND_IF:
+			return new If(getExpression(getChild(node, 0)), getBlock(getChild(node, 1)), (getChildCount(node)==3) ? getBlock(getChild(node, 2)) : null);
+		case KIND_WHILE:
+			return new While(getExpression(getChild(node, 0)), getBlock(getChild(node, 1)));
+		case KIND_RETURN:
+			return new Return((getChildCount(node)==1) ? getExpression(getChild(node, 0)) : null);
+		case KIND_INSTRUCTION:
+			return new Instruction(getName(node));
+		default:
+			throw new IllegalArgumentException("Node "+node+" isn't a statement");
+		}
+	}
+	
+	/** Builds the expression a node stands for. */
+	public Expression getExpression(int node) {
+		switch(getKind(node)) {
+		case KIND_CONSTANT:
+			return new Constant(getType(node), getValue(node));
+		case KIND_VARIABLE:
+			return new Variable(getName(node));
+		case KIND_BINARY:
+			return new BinaryOperation(getOperator(node), getExpression(getChild(node, 0)), getExpression(getChild(node, 1)));
+		case KIND_CONVERSION:
+			return new Conversion(getType(node), getExpression(getChild(node, 0)));
+		case KIND_CALL: {
+			List<Expression> arguments = new ArrayList<>(getChildCount(node));
+			for(int i=0; i<getChildCount(node); i++) arguments.add(getExpression(getChild(node, i)));
+			return new Call(getName(node), arguments);
+		}
+		default:
+			throw new IllegalArgumentException("Node "+node+" isn't an expression");
+		}
+	}
+	
+	/**
+	 * Replaces every binary operation and conversion whose operands are all constants with its result, in one pass over
+	 * the arrays, and returns the number of nodes replaced. Operations which would fail, like integer division by zero, are
+	 * left alone. Replaced nodes keep their ids and their child lists, which constants ignore, so their old operands are
+	 * simply no longer reachable.
+	 */
+	public int foldConstants() {
+		int folded = 0;
+		for(int node=0; node<nodeCount; node++) {
+			int kind = getKind(node);
+			Number result;
+			DataType type;
+			try {
+				if (kind==KIND_BINARY && getKind(getChild(node, 0))==KIND_CONSTANT && getKind(getChild(node, 1))==KIND_CONSTANT) {
+					int left = getChild(node, 0);
+					int right = getChild(node, 1);
+					Operator operator = getOperator(node);
+					result = Arithmetic.apply(operator, getValue(left), getValue(right));
+					type = (operator.isComparison()) ? DataType.I32 : Arithmetic.wider(getType(left), getType(right));
+				} else if (kind==KIND_CONVERSION && getKind(getChild(node, 0))==KIND_CONSTANT && getType(node)!=DataType.F16) {
+					type = getType(node);
+					result = Arithmetic.convert(getValue(getChild(node, 0)), type);
+				} else {
+					continue;
+				}
+			} catch (ArithmeticException | IllegalArgumentException ex) {
+				continue;
+			}
+			
+			tags[node] = (byte) ((type.ordinal() << 4) | KIND_CONSTANT);
+			operands[node] = intern(type, result);
+			folded++;
+		}
+		return folded;
+	}
+	
+	private int intern(String string) {
+		Integer index = stringIndices.get(string);
+		if (index==null) {
+			if (stringCount==strings.length) strings = Arrays.copyOf(strings, Math.max(16, stringCount * 2));
+			index = stringCount;
+			strings[stringCount++] = string;
+			stringIndices.put(string, index);
+		}
+		return index;
+	}
+	
+	private int intern(DataType type, Number value) {
+		Number boxed = new Constant(type, value).getValue();
+		long bits = (type.isFloat()) ? Double.doubleToRawLongBits(boxed.doubleValue()) : boxed.longValue();
+		Integer index = constantIndices.get(bits);
+		if (index==null) {
+			if (constantCount==constants.length) constants = Arrays.copyOf(constants, Math.max(16, constantCount * 2));
+			index = constantCount;
+			constants[constantCount++] = bits;
+			constantIndices.put(bits, index);
+		}
+		return index;
+	}
+	
+	private int node(int kind, int subtype, int operand, int... nodes) {
+		for(int child : nodes) {
+			if (child<0 || child>=nodeCount) throw new IllegalArgumentException("Node "+child+" doesn't exist yet");
+		}
+		if (nodeCount==tags.length) {
+			tags = Arrays.copyOf(tags, Math.max(64, nodeCount * 2));
+			operands = Arrays.copyOf(operands, Math.max(64, nodeCount * 2));
+			childStarts = Arrays.copyOf(childStarts, Math.max(64, nodeCount * 2) + 1);
+		}
+		while(childCount + nodes.length > children.length) children = Arrays.copyOf(children, Math.max(64, children.length * 2));
+		
+		tags[nodeCount] = (byte) ((subtype << 4) | kind);
+		operands[nodeCount] = operand;
+		System.arraycopy(nodes, 0, children, childCount, nodes.length);
+		childCount += nodes.length;
+		childStarts[nodeCount+1] = childCount;
+		return nodeCount++;
+	}
+	
+	/** A block node, seen as a CodeBlock. Statements are built each time they're reached. */
+	private final class BlockView extends CodeBlock {
+		private final int node;
+		
+		BlockView(int node) {
+			this.node = node;
+		}
+		
+		@Override
+		public CodeBlock add(Statement statement) {
+			throw new UnsupportedOperationException("Blocks of a flat tree are read-only");
+		}
+		
+		@Override
+		public List<Statement> getStatements() {
+			return new AbstractList<Statement>() {
+				@Override
+				public Statement get(int index) {
+					if (index<0 || index>=size()) throw new IndexOutOfBoundsException("Index "+index+" of "+size());
+					return getStatement(getChild(node, index));
+				}
+				
+				@Override
+				public int size() {
+					return getChildCount(node);
+				}
+			};
+		}
+		
+		@Override
+		public int size() {
+			return getChildCount(node);
+		}
+		
+		@Override
+		public Iterator<Statement> iterator() {
+			return getStatements().iterator();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package blue.endless.junior.ast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A named function: its parameters, which are declared local variables set from the caller's arguments, the type of its
+ * result, and its body.
+ */
+public class Function {
+	protected final String name;
+	protected final List<Declaration> parameters;
+	protected final DataType resultType;
+	protected final CodeBlock body;
+	
+	/** resultType may be null for functions which don't return anything. */
+	public Function(String name, List<Declaration> parameters, DataType resultType, CodeBlock body) {
+		this.name = name;
+		this.parameters = Collections.unmodifiableList(new ArrayList<>(parameters));
+		this.resultType = resultType;
+		this.body = body;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public List<Declaration> getParameters() {
+		return parameters;
+	}
+	
+	/** Returns the type of this function's result, or null if it doesn't have one. */
+	public DataType getResultType() {
+		return resultType;
+	}
+	
+	public CodeBlock getBody() {
+		return body;
+	}
+}
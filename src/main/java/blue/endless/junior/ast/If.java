@@ -0,0 +1,30 @@
+package blue.endless.junior.ast;
+
+/**
+ * Runs one block if a condition is nonzero, and optionally another if it's zero.
+ */
+public class If implements Statement {
+	protected final Expression condition;
+	protected final CodeBlock then;
+	protected final CodeBlock otherwise;
+	
+	/** otherwise may be null if there's no "else" block. */
+	public If(Expression condition, CodeBlock then, CodeBlock otherwise) {
+		this.condition = condition;
+		this.then = then;
+		this.otherwise = otherwise;
+	}
+	
+	public Expression getCondition() {
+		return condition;
+	}
+	
+	public CodeBlock getThen() {
+		return then;
+	}
+	
+	/** Returns the "else" block, or null if there isn't one. */
+	public CodeBlock getOtherwise() {
+		return otherwise;
+	}
+}
@@ -3,4 +3,19 @@ package blue.endless.junior.ast;
 public class Instruction implements Statement {
 	protected String mnemonic;
 	//TODO: How should we represent r/m arguments?
+	
+	public Instruction() {}
+	
+	public Instruction(String mnemonic) {
+		this.mnemonic = mnemonic;
+	}
+	
+	public String getMnemonic() {
+		return mnemonic;
+	}
+	
+	@Override
+	public String toString() {
+		return String.valueOf(mnemonic);
+	}
 }
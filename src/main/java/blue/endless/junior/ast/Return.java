@@ -0,0 +1,23 @@
+package blue.endless.junior.ast;
+
+/**
+ * Leaves the function, with a result if it has one.
+ */
+public class Return implements Statement {
+	protected final Expression value;
+	
+	/** value may be null for functions without a result. */
+	public Return(Expression value) {
+		this.value = value;
+	}
+	
+	/** Returns the result, or null if there isn't one. */
+	public Expression getValue() {
+		return value;
+	}
+	
+	@Override
+	public String toString() {
+		return (value==null) ? "return" : "return "+value;
+	}
+}
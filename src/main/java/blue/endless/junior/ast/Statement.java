@@ -3,8 +3,9 @@ package blue.endless.junior.ast;
 /**
  * Tagging interface for
  * <ul>
- *   <li>Variable assignments
+ *   <li>Variable declarations and assignments
  *   <li>subroutine calls
+ *   <li>control flow: "if", "while" and "return"
  *   <li>single-instruction assembly calls
  * </ul>
  */
@@ -0,0 +1,21 @@
+package blue.endless.junior.ast;
+
+/**
+ * Reads a local variable.
+ */
+public class Variable extends Expression {
+	protected final String name;
+	
+	public Variable(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+}
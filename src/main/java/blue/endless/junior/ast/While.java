@@ -0,0 +1,22 @@
+package blue.endless.junior.ast;
+
+/**
+ * Runs a block over and over for as long as a condition, checked before each time, is nonzero.
+ */
+public class While implements Statement {
+	protected final Expression condition;
+	protected final CodeBlock body;
+	
+	public While(Expression condition, CodeBlock body) {
+		this.condition = condition;
+		this.body = body;
+	}
+	
+	public Expression getCondition() {
+		return condition;
+	}
+	
+	public CodeBlock getBody() {
+		return body;
+	}
+}
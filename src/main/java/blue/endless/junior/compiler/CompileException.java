@@ -0,0 +1,16 @@
+package blue.endless.junior.compiler;
+
+public class CompileException extends Exception {
+	private static final long serialVersionUID = 4390257742409521187L;
+	
+	public CompileException() {
+	}
+	
+	public CompileException(String message) {
+		super(message);
+	}
+	
+	public CompileException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,143 @@
+package blue.endless.junior.compiler;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A function's basic blocks, and which registers carry values between them. A register which is only used inside one
+ * block, and always set there before it's read, is local to that block; nothing about it has to be tracked across blocks,
+ * and most registers - every intermediate value of an expression - are like this. The rest are global, numbered densely,
+ * and are the only ones which block-level dataflow tracks, so its cost grows with blocks times globals rather than with
+ * instructions times registers.
+ */
+final class ControlFlow {
+	final List<Op> ops;
+	/** The first instruction of each block, then the number of instructions, so block b spans [starts[b], starts[b+1]). */
+	final int[] starts;
+	final int[][] successors;
+	/** Each register's global number, or -1 if it's local to a block. */
+	final int[] globals;
+	/** The register each global number stands for. */
+	final int[] globalRegisters;
+	
+	ControlFlow(List<Op> ops, int registerCount) {
+		this.ops = ops;
+		int count = ops.size();
+		boolean[] leader = new boolean[count+1];
+		leader[0] = true;
+		for(int i=0; i<count; i++) {
+			Op op = ops.get(i);
+			if (op.opcode==Op.LABEL) leader[i] = true;
+			if (op.isJump() || op.endsBlock()) leader[i+1] = true;
+		}
+		int blocks = 0;
+		for(int i=0; i<count; i++) if (leader[i]) blocks++;
+		starts = new int[blocks+1];
+		int[] blockOf = new int[count];
+		for(int i=0, block=-1; i<count; i++) {
+			if (leader[i]) starts[++block] = i;
+			blockOf[i] = block;
+		}
+		starts[blocks] = count;
+		
+		HashMap<Integer, Integer> labels = Optimizer.labels(ops);
+		successors = new int[blocks][];
+		for(int block=0; block<blocks; block++) {
+			int last = starts[block+1]-1;
+			Op op = ops.get(last);
+			int next = (block+1<blocks) ? block+1 : -1;
+			switch(op.opcode) {
+			case OPCODE_JUMP:   successors[block] = new int[] { blockOf[labels.get(op.label)] }; break;
+			case OPCODE_CJUMP:  successors[block] = (next==-1) ? new int[] { blockOf[labels.get(op.label)] } : new int[] { blockOf[labels.get(op.label)], next }; break;
+			case OPCODE_RETURN:
+			case Op.FALL_OFF:   successors[block] = new int[0]; break;
+			default:            successors[block] = (next==-1) ? new int[0] : new int[] { next }; break;
+			}
+		}
+		
+		int[] owner = new int[registerCount];
+		int[] setIn = new int[registerCount];
+		boolean[] global = new boolean[registerCount];
+		java.util.Arrays.fill(owner, -1);
+		java.util.Arrays.fill(setIn, -1);
+		for(int block=0; block<blocks; block++) {
+			for(int i=starts[block]; i<starts[block+1]; i++) {
+				Op op = ops.get(i);
+				if (op.operand1>=0) use(op.operand1, block, owner, setIn, global);
+				if (op.operand2>=0) use(op.operand2, block, owner, setIn, global);
+				if (op.destination>=0) {
+					if (owner[op.destination]==-1) owner[op.destination] = block;
+					if (owner[op.destination]!=block) global[op.destination] = true;
+					setIn[op.destination] = block;
+				}
+			}
+		}
+		globals = new int[registerCount];
+		int globalCount = 0;
+		for(int register=0; register<registerCount; register++) globals[register] = (global[register]) ? globalCount++ : -1;
+		globalRegisters = new int[globalCount];
+		for(int register=0; register<registerCount; register++) if (global[register]) globalRegisters[globals[register]] = register;
+	}
+	
+	private static void use(int register, int block, int[] owner, int[] setIn, boolean[] global) {
+		if (owner[register]==-1) owner[register] = block;
+		//Read before it's set in this block, so its value comes from elsewhere
+		if (owner[register]!=block || setIn[register]!=block) global[register] = true;
+	}
+	
+	int blockCount() {
+		return successors.length;
+	}
+	
+	int globalCount() {
+		return globalRegisters.length;
+	}
+	
+	/** Returns, for each block, the global numbers of the registers which may still be read after it. */
+	BitSet[] liveOut() {
+		int blocks = blockCount();
+		BitSet[] in = new BitSet[blocks];
+		BitSet[] out = new BitSet[blocks];
+		for(int block=0; block<blocks; block++) {
+			in[block] = new BitSet();
+			out[block] = new BitSet();
+		}
+		
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(int block=blocks-1; block>=0; block--) {
+				for(int successor : successors[block]) out[block].or(in[successor]);
+				BitSet live = (BitSet) out[block].clone();
+				for(int i=starts[block+1]-1; i>=starts[block]; i--) {
+					Op op = ops.get(i);
+					if (op.destination>=0 && globals[op.destination]>=0) live.clear(globals[op.destination]);
+					if (op.operand1>=0 && globals[op.operand1]>=0) live.set(globals[op.operand1]);
+					if (op.operand2>=0 && globals[op.operand2]>=0) live.set(globals[op.operand2]);
+				}
+				if (!live.equals(in[block])) {
+					in[block] = live;
+					changed = true;
+				}
+			}
+		}
+		return out;
+	}
+	
+	/** Fills live with the registers live at the end of block, given {@link #liveOut()}'s result. */
+	void liveAtEnd(int block, BitSet[] liveOut, SparseSet live) {
+		live.clear();
+		BitSet out = liveOut[block];
+		for(int global=out.nextSetBit(0); global>=0; global=out.nextSetBit(global+1)) live.add(globalRegisters[global]);
+	}
+	
+	/** Updates live, the registers live after op, to those live before it. */
+	static void stepBack(Op op, SparseSet live) {
+		if (op.destination>=0) live.remove(op.destination);
+		if (op.operand1>=0) live.add(op.operand1);
+		if (op.operand2>=0) live.add(op.operand2);
+	}
+}
@@ -0,0 +1,198 @@
+package blue.endless.junior.compiler;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import blue.endless.junior.ast.CodeBlock;
+import blue.endless.junior.ast.DataType;
+import blue.endless.junior.ast.Declaration;
+import blue.endless.junior.ast.Function;
+import blue.endless.junior.esovm.ConstantPool;
+import blue.endless.junior.esovm.Module;
+import blue.endless.junior.esovm.StackFrame;
+import blue.endless.junior.esovm.VMException;
+
+/**
+ * Compiles functions to an EsoVM module, with each function exported under its own name. Calls are resolved among the
+ * functions compiled together, whose signatures are known; see {@link IRBuilder} for how types are settled.
+ *
+ * <p>Each function is lowered to an intermediate form over virtual registers, simplified by the {@link Optimizer} unless
+ * optimization is turned off, then given LVT entries by the {@link RegisterAllocator}, which packs each type's registers
+ * into as few entries as it can so lvtInfo and the frames it describes stay small. Constants go in immediates where they
+ * fit, and in the module's constant pool where they don't.
+ */
+public class EsoCompiler {
+	protected boolean optimizing = true;
+	
+	public boolean isOptimizing() {
+		return optimizing;
+	}
+	
+	/** Turns constant folding, branch folding, and dead and unreachable code removal on or off. They're on by default. */
+	public void setOptimizing(boolean optimizing) {
+		this.optimizing = optimizing;
+	}
+	
+	/** Compiles a block as a function named "main", which takes no arguments and returns a value of resultType, or nothing if it's null. */
+	public Module compile(CodeBlock main, DataType resultType) throws CompileException {
+		return compile(Collections.singletonList(new Function("main", Collections.<Declaration>emptyList(), resultType, main)));
+	}
+	
+	public Module compile(Function... functions) throws CompileException {
+		return compile(Arrays.asList(functions));
+	}
+	
+	public Module compile(List<Function> functions) throws CompileException {
+		LinkedHashMap<String, Function> unit = new LinkedHashMap<>();
+		for(Function function : functions) {
+			if (unit.put(function.getName(), function)!=null) throw new CompileException("Two functions are named "+function.getName());
+		}
+		
+		ConstantPool constants = new ConstantPool();
+		ByteArrayOutputStream program = new ByteArrayOutputStream();
+		List<Module.Function> table = new ArrayList<>();
+		for(Function function : functions) {
+			IRBuilder builder = new IRBuilder(function, unit);
+			List<Op> ops = builder.build();
+			List<DataType> registers = builder.getRegisters();
+			Optimizer optimizer = new Optimizer(ops, registers);
+			ops = (optimizing) ? optimizer.optimize() : optimizer.prepare();
+			for(Op op : ops) {
+				if (op.opcode==Op.FALL_OFF) throw new CompileException("Function "+function.getName()+" can reach its end without returning a result");
+			}
+			
+			RegisterAllocator allocator = new RegisterAllocator(ops, registers);
+			ops = allocator.allocate();
+			long lvtInfo;
+			try {
+				lvtInfo = StackFrame.lvtInfo(
+						allocator.getCount(DataType.WORD), allocator.getCount(DataType.I64), allocator.getCount(DataType.F64),
+						allocator.getCount(DataType.I32), allocator.getCount(DataType.F32), allocator.getCount(DataType.I16),
+						allocator.getCount(DataType.F16), allocator.getCount(DataType.I8));
+			} catch (VMException ex) {
+				throw new CompileException("Function "+function.getName()+" needs too many local variables: "+ex.getMessage(), ex);
+			}
+			
+			int start = program.size();
+			emit(ops, start, constants, program);
+			int argumentBytes = 0;
+			for(Declaration parameter : function.getParameters()) argumentBytes += parameter.getType().getWidth();
+			int resultBytes = (function.getResultType()==null) ? 0 : function.getResultType().getWidth();
+			table.add(new Module.Function(function.getName(), start, program.size(), start, lvtInfo, argumentBytes, resultBytes, Module.FLAG_EXPORTED));
+		}
+		
+		try {
+			return new Module(program.toByteArray(), constants, table);
+		} catch (VMException ex) {
+			throw new CompileException(ex.getMessage(), ex);
+		}
+	}
+	
+	/** Writes out a function's instructions, which will start at address start in the program. */
+	private static void emit(List<Op> ops, int start, ConstantPool constants, ByteArrayOutputStream program) {
+		HashMap<Integer, Integer> addresses = new HashMap<>();
+		int address = start;
+		for(Op op : ops) {
+			if (op.opcode==Op.LABEL) {
+				addresses.put(op.label, address);
+			} else {
+				address += 8;
+			}
+		}
+		
+		for(Op op : ops) {
+			int dataType = (op.type==null) ? 0 : op.type.getId();
+			int operand2Type = OPERAND_REGISTER;
+			int destination = 0;
+			int operand1 = 0;
+			int operand2 = 0;
+			switch(op.opcode) {
+			case Op.LABEL:
+				continue;
+			case OPCODE_LOAD:
+				operand1 = op.destination;
+				if (op.operand2>=0) {
+					operand2 = op.operand2;
+				} else {
+					operand2Type = fitsImmediate(op.type, op.immediate) ? OPERAND_IMMEDIATE : OPERAND_CONSTANT;
+					operand2 = operand(op.type, op.immediate, operand2Type, constants);
+				}
+				break;
+			case OPCODE_CONVERT:
+				operand2Type = op.targetType.getId();
+				destination = op.destination;
+				operand1 = op.operand1;
+				break;
+			case OPCODE_PUSH:
+			case OPCODE_TEST:
+				operand1 = op.operand1;
+				break;
+			case OPCODE_POP:
+				operand1 = op.destination;
+				break;
+			case OPCODE_JUMP:
+				operand2 = addresses.get(op.label);
+				break;
+			case OPCODE_CJUMP:
+				operand1 = op.condition;
+				operand2 = addresses.get(op.label);
+				break;
+			case OPCODE_CALL:
+				operand2 = constants.addString(op.function);
+				break;
+			case OPCODE_RETURN:
+				break;
+			default:
+				destination = op.destination;
+				operand1 = op.operand1;
+				if (op.operand2>=0) {
+					operand2 = op.operand2;
+				} else {
+					operand2Type = fitsImmediate(op.type, op.immediate) ? OPERAND_IMMEDIATE : OPERAND_CONSTANT;
+					operand2 = operand(op.type, op.immediate, operand2Type, constants);
+				}
+				break;
+			}
+			program.write(op.opcode);
+			program.write((dataType << 4) | operand2Type);
+			program.write(destination);
+			program.write(operand1);
+			program.write(operand2 >>> 24);
+			program.write(operand2 >>> 16);
+			program.write(operand2 >>>  8);
+			program.write(operand2);
+		}
+	}
+	
+	/** Returns true if a value can be an immediate rather than a constant; immediates are 32 bits, and f64 ones are f32s. */
+	private static boolean fitsImmediate(DataType type, Number value) {
+		switch(type) {
+		case I64:
+		case WORD: return value.longValue()==value.intValue();
+		case F64:  return Double.doubleToRawLongBits(value.doubleValue())==Double.doubleToRawLongBits((double) value.floatValue());
+		default:   return true;
+		}
+	}
+	
+	private static int operand(DataType type, Number value, int operandType, ConstantPool constants) {
+		if (operandType==OPERAND_CONSTANT) {
+			switch(type) {
+			case F64:  return constants.addFloat64(value.doubleValue());
+			case WORD: return constants.addWord(value.longValue());
+			default:   return constants.addInt64(value.longValue());
+			}
+		}
+		switch(type) {
+		case F32:
+		case F64: return Float.floatToRawIntBits(value.floatValue());
+		default:  return value.intValue();
+		}
+	}
+}
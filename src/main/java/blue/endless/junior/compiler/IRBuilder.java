@@ -0,0 +1,369 @@
+package blue.endless.junior.compiler;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import blue.endless.junior.ast.Arithmetic;
+import blue.endless.junior.ast.Assignment;
+import blue.endless.junior.ast.BinaryOperation;
+import blue.endless.junior.ast.BinaryOperation.Operator;
+import blue.endless.junior.ast.Call;
+import blue.endless.junior.ast.CodeBlock;
+import blue.endless.junior.ast.Constant;
+import blue.endless.junior.ast.Conversion;
+import blue.endless.junior.ast.DataType;
+import blue.endless.junior.ast.Declaration;
+import blue.endless.junior.ast.Expression;
+import blue.endless.junior.ast.Function;
+import blue.endless.junior.ast.If;
+import blue.endless.junior.ast.Instruction;
+import blue.endless.junior.ast.Return;
+import blue.endless.junior.ast.Statement;
+import blue.endless.junior.ast.Variable;
+import blue.endless.junior.ast.While;
+
+/**
+ * Lowers one function to the intermediate form, with a virtual register per variable and per intermediate value. Types are
+ * settled here, statically: a variable has its declared type if it's declared anywhere in the function, and otherwise the
+ * type of the first value assigned to it, and operators on mixed types convert the narrower operand first.
+ */
+final class IRBuilder {
+	private final Function function;
+	private final Map<String, Function> unit;
+	private final List<Op> ops = new ArrayList<>();
+	private final List<DataType> registers = new ArrayList<>();
+	private final HashMap<String, Integer> variables = new HashMap<>();
+	private final HashMap<String, DataType> declared = new HashMap<>();
+	private int labels = 0;
+	
+	/** unit holds every function calls may name, by name. */
+	IRBuilder(Function function, Map<String, Function> unit) {
+		this.function = function;
+		this.unit = unit;
+	}
+	
+	List<Op> getOps() {
+		return ops;
+	}
+	
+	/** Returns the type of each virtual register, by number. */
+	List<DataType> getRegisters() {
+		return registers;
+	}
+	
+	List<Op> build() throws CompileException {
+		List<Declaration> parameters = function.getParameters();
+		for(Declaration parameter : parameters) {
+			if (declared.containsKey(parameter.getVariable())) throw new CompileException("Function "+function.getName()+" has two parameters named "+parameter.getVariable());
+			declare(parameter);
+		}
+		collectDeclarations(function.getBody());
+		if (function.getResultType()!=null) check(function.getResultType());
+		
+		//Arguments are pushed in order, so the last one is on top
+		for(int i=parameters.size()-1; i>=0; i--) {
+			Op pop = new Op(OPCODE_POP, parameters.get(i).getType());
+			pop.destination = variable(parameters.get(i).getVariable());
+			ops.add(pop);
+		}
+		
+		block(function.getBody());
+		ops.add(new Op((function.getResultType()==null) ? OPCODE_RETURN : Op.FALL_OFF, null));
+		return ops;
+	}
+	
+	private void declare(Declaration declaration) throws CompileException {
+		check(declaration.getType());
+		DataType previous = declared.put(declaration.getVariable(), declaration.getType());
+		if (previous!=null && previous!=declaration.getType()) {
+			throw new CompileException("Variable "+declaration.getVariable()+" is declared as both "+previous+" and "+declaration.getType()+" in "+function.getName());
+		}
+	}
+	
+	private void collectDeclarations(CodeBlock block) throws CompileException {
+		for(Statement statement : block) {
+			if (statement instanceof Declaration) {
+				declare((Declaration) statement);
+			} else if (statement instanceof If) {
+				collectDeclarations(((If) statement).getThen());
+				if (((If) statement).getOtherwise()!=null) collectDeclarations(((If) statement).getOtherwise());
+			} else if (statement instanceof While) {
+				collectDeclarations(((While) statement).getBody());
+			}
+		}
+	}
+	
+	private void check(DataType type) throws CompileException {
+		if (type==DataType.F16) throw new CompileException("f16 values can't be compiled yet, in "+function.getName());
+	}
+	
+	private int register(DataType type) {
+		registers.add(type);
+		return registers.size()-1;
+	}
+	
+	/** Returns a declared variable's register, creating it if this is its first use. */
+	private int variable(String name) {
+		Integer register = variables.get(name);
+		if (register==null) {
+			register = register(declared.get(name));
+			variables.put(name, register);
+		}
+		return register;
+	}
+	
+	private int label() {
+		return labels++;
+	}
+	
+	private void block(CodeBlock block) throws CompileException {
+		for(Statement statement : block) statement(statement);
+	}
+	
+	private void statement(Statement statement) throws CompileException {
+		if (statement instanceof Assignment) {
+			Assignment assignment = (Assignment) statement;
+			String name = assignment.getVariable();
+			int value = expression(assignment.getValue());
+			Integer register = variables.get(name);
+			if (register==null && !declared.containsKey(name)) {
+				register = register(registers.get(value));
+				variables.put(name, register);
+			} else if (register==null) {
+				register = variable(name);
+			} else if (!declared.containsKey(name) && registers.get(register)!=registers.get(value)) {
+				throw new CompileException("Variable "+name+" is assigned both "+registers.get(register)+" and "+registers.get(value)+" values in "+function.getName()+"; declare it to convert them");
+			}
+			move(register, convert(value, registers.get(register)));
+		} else if (statement instanceof Declaration) {
+			Declaration declaration = (Declaration) statement;
+			load(variable(declaration.getVariable()), Arithmetic.convert(0, declaration.getType()));
+		} else if (statement instanceof Call) {
+			call((Call) statement, false);
+		} else if (statement instanceof If) {
+			If branch = (If) statement;
+			int otherwise = label();
+			branch(branch.getCondition(), otherwise, false);
+			block(branch.getThen());
+			if (branch.getOtherwise()==null) {
+				ops.add(Op.label(otherwise));
+			} else {
+				int end = label();
+				ops.add(Op.jump(end));
+				ops.add(Op.label(otherwise));
+				block(branch.getOtherwise());
+				ops.add(Op.label(end));
+			}
+		} else if (statement instanceof While) {
+			//Tested at the bottom, so each iteration only takes the one jump
+			While loop = (While) statement;
+			int body = label();
+			int test = label();
+			ops.add(Op.jump(test));
+			ops.add(Op.label(body));
+			block(loop.getBody());
+			ops.add(Op.label(test));
+			branch(loop.getCondition(), body, true);
+		} else if (statement instanceof Return) {
+			Expression value = ((Return) statement).getValue();
+			DataType resultType = function.getResultType();
+			if (value==null && resultType!=null) throw new CompileException("Function "+function.getName()+" returns without a result");
+			if (value!=null && resultType==null) throw new CompileException("Function "+function.getName()+" returns a result, but doesn't declare its type");
+			if (value!=null) {
+				Op push = new Op(OPCODE_PUSH, resultType);
+				push.operand1 = convert(expression(value), resultType);
+				ops.add(push);
+			}
+			ops.add(new Op(OPCODE_RETURN, null));
+		} else if (statement instanceof Instruction) {
+			throw new CompileException("Assembly instructions can't be compiled yet, in "+function.getName());
+		} else {
+			throw new CompileException("Can't compile a "+statement.getClass().getSimpleName()+" in "+function.getName());
+		}
+	}
+	
+	/** Returns the register holding the expression's value. */
+	private int expression(Expression expression) throws CompileException {
+		if (expression instanceof Constant) {
+			Constant constant = (Constant) expression;
+			check(constant.getType());
+			int register = register(constant.getType());
+			load(register, constant.getValue());
+			return register;
+		} else if (expression instanceof Variable) {
+			String name = ((Variable) expression).getName();
+			if (!variables.containsKey(name) && !declared.containsKey(name)) throw new CompileException("Variable "+name+" is read before it's set in "+function.getName());
+			return variable(name);
+		} else if (expression instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) expression;
+			if (operation.getOperator().isComparison()) {
+				//Comparisons as values are 1 or 0, chosen by the same jumps an If would use
+				int register = register(DataType.I32);
+				int end = label();
+				load(register, 0);
+				branch(operation, end, false);
+				load(register, 1);
+				ops.add(Op.label(end));
+				return register;
+			}
+			int left = expression(operation.getLeft());
+			int right = expression(operation.getRight());
+			DataType type = Arithmetic.wider(registers.get(left), registers.get(right));
+			if (type.isFloat() && operation.getOperator().ordinal()>=Operator.SHL.ordinal()) {
+				throw new CompileException("Can't use "+operation.getOperator().getSymbol()+" on floating point values, in "+function.getName());
+			}
+			return arithmetic(operation.getOperator(), convert(left, type), convert(right, type));
+		} else if (expression instanceof Conversion) {
+			Conversion conversion = (Conversion) expression;
+			check(conversion.getType());
+			return convert(expression(conversion.getOperand()), conversion.getType());
+		} else if (expression instanceof Call) {
+			return call((Call) expression, true);
+		} else {
+			throw new CompileException("Can't compile a "+expression.getClass().getSimpleName()+" in "+function.getName());
+		}
+	}
+	
+	private int arithmetic(Operator operator, int left, int right) {
+		DataType type = registers.get(left);
+		Op op = new Op(OPCODE_ADD + operator.ordinal(), type);
+		op.destination = register(type);
+		op.operand1 = left;
+		op.operand2 = right;
+		ops.add(op);
+		return op.destination;
+	}
+	
+	private int call(Call call, boolean needsResult) throws CompileException {
+		Function callee = unit.get(call.getFunction());
+		if (callee==null) throw new CompileException("No function named \""+call.getFunction()+"\" is being compiled, in "+function.getName());
+		List<Declaration> parameters = callee.getParameters();
+		if (call.getArguments().size()!=parameters.size()) {
+			throw new CompileException(callee.getName()+" takes "+parameters.size()+" arguments, but "+function.getName()+" passes it "+call.getArguments().size());
+		}
+		if (needsResult && callee.getResultType()==null) throw new CompileException(callee.getName()+" doesn't return a value, but "+function.getName()+" uses one");
+		
+		for(int i=0; i<parameters.size(); i++) {
+			Op push = new Op(OPCODE_PUSH, parameters.get(i).getType());
+			push.operand1 = convert(expression(call.getArguments().get(i)), parameters.get(i).getType());
+			ops.add(push);
+		}
+		Op op = new Op(OPCODE_CALL, null);
+		op.function = callee.getName();
+		ops.add(op);
+		
+		if (callee.getResultType()==null) return -1;
+		//Even an unused result has to come off the operand stack
+		Op pop = new Op(OPCODE_POP, callee.getResultType());
+		pop.destination = register(callee.getResultType());
+		ops.add(pop);
+		return pop.destination;
+	}
+	
+	/**
+	 * Jumps to label if the condition's truth is jumpIf, and otherwise falls through. Comparisons subtract and test the
+	 * difference, so that needs to be exact: integers narrower than i64 are widened first so the difference can't overflow,
+	 * and i64s and words with different signs are ordered by their signs alone.
+	 *
+	 * <p>Floating point comparisons are exact too, except between infinities of the same sign, whose difference is NaN; NaN
+	 * tests as positive, so those compare as greater rather than equal.
+	 */
+	private void branch(Expression condition, int label, boolean jumpIf) throws CompileException {
+		if (!(condition instanceof BinaryOperation) || !((BinaryOperation) condition).getOperator().isComparison()) {
+			Op test = new Op(OPCODE_TEST, null);
+			test.operand1 = expression(condition);
+			test.type = registers.get(test.operand1);
+			ops.add(test);
+			ops.add(Op.jump(jumpIf ? CONDITION_NOT_ZERO : CONDITION_ZERO, label));
+			return;
+		}
+		
+		BinaryOperation comparison = (BinaryOperation) condition;
+		int left = expression(comparison.getLeft());
+		int right = expression(comparison.getRight());
+		DataType type = Arithmetic.wider(registers.get(left), registers.get(right));
+		left = convert(left, type);
+		right = convert(right, type);
+		
+		Operator operator = comparison.getOperator();
+		if (operator==Operator.EQUAL || operator==Operator.NOT_EQUAL) {
+			test(arithmetic(Operator.SUB, left, right));
+			ops.add(Op.jump(((operator==Operator.EQUAL)==jumpIf) ? CONDITION_ZERO : CONDITION_NOT_ZERO, label));
+			return;
+		}
+		
+		//Everything else is "less than", with the operands swapped or the result inverted
+		if (operator==Operator.GREATER || operator==Operator.LESS_OR_EQUAL) {
+			int swap = left;
+			left = right;
+			right = swap;
+		}
+		if (operator==Operator.LESS_OR_EQUAL || operator==Operator.GREATER_OR_EQUAL) jumpIf = !jumpIf;
+		
+		int end = -1;
+		switch(type) {
+		case I8:
+		case I16:
+		case I32:
+			left = convert(left, DataType.I64);
+			right = convert(right, DataType.I64);
+			break;
+		case I64:
+		case WORD: {
+			int leftNegative = label();
+			int sameSign = label();
+			end = label();
+			test(left);
+			ops.add(Op.jump(CONDITION_NEGATIVE, leftNegative));
+			test(right);
+			ops.add(Op.jump(CONDITION_NEGATIVE, jumpIf ? end : label));
+			ops.add(Op.jump(sameSign));
+			ops.add(Op.label(leftNegative));
+			test(right);
+			ops.add(Op.jump(CONDITION_NOT_NEGATIVE, jumpIf ? label : end));
+			ops.add(Op.label(sameSign));
+			break;
+		}
+		default:
+			break;
+		}
+		test(arithmetic(Operator.SUB, left, right));
+		ops.add(Op.jump(jumpIf ? CONDITION_NEGATIVE : CONDITION_NOT_NEGATIVE, label));
+		if (end!=-1) ops.add(Op.label(end));
+	}
+	
+	private void test(int register) {
+		Op test = new Op(OPCODE_TEST, registers.get(register));
+		test.operand1 = register;
+		ops.add(test);
+	}
+	
+	private void load(int register, Number value) {
+		Op load = new Op(OPCODE_LOAD, registers.get(register));
+		load.destination = register;
+		load.immediate = Arithmetic.convert(value, registers.get(register));
+		ops.add(load);
+	}
+	
+	private void move(int destination, int source) {
+		Op move = new Op(OPCODE_LOAD, registers.get(destination));
+		move.destination = destination;
+		move.operand2 = source;
+		ops.add(move);
+	}
+	
+	/** Returns a register holding the value of register converted to type, which is register itself if it has that type. */
+	private int convert(int register, DataType type) {
+		if (registers.get(register)==type) return register;
+		Op op = new Op(OPCODE_CONVERT, registers.get(register));
+		op.targetType = type;
+		op.destination = register(type);
+		op.operand1 = register;
+		ops.add(op);
+		return op.destination;
+	}
+}
@@ -0,0 +1,123 @@
+package blue.endless.junior.compiler;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import blue.endless.junior.ast.BinaryOperation.Operator;
+import blue.endless.junior.ast.DataType;
+
+/**
+ * One instruction of the compiler's intermediate form: an EsoVM instruction whose registers are virtual, numbered per
+ * function, and whose jumps name labels rather than addresses. A register has the same type everywhere it's used, so each
+ * type's registers can be allocated separately.
+ *
+ * <p>Operands are laid out the same way for every opcode: destination is the register written, if any, and operand1 and
+ * operand2 are the registers read, if any. So a LOAD's source is its operand2, and a PUSH or TEST reads its operand1. When
+ * operand2 is -1 on a LOAD or arithmetic instruction, immediate is used instead; it's boxed like a
+ * {@link blue.endless.junior.ast.Constant} of the instruction's type, and turns into an immediate or a constant pool entry
+ * once the size of the value is known.
+ */
+final class Op {
+	/** Not an instruction; marks where jumps to label land. */
+	static final int LABEL = -1;
+	/** Not an instruction; marks the end of a function which must return a value, so it's an error if it can be reached. */
+	static final int FALL_OFF = -2;
+	
+	int opcode;
+	/** The data type the instruction works on. For CONVERT, the type being converted from. */
+	DataType type;
+	/** For CONVERT, the type being converted to. */
+	DataType targetType;
+	int destination = -1;
+	int operand1 = -1;
+	int operand2 = -1;
+	Number immediate;
+	int condition;
+	int label;
+	/** For CALL, the name of the function called. */
+	String function;
+	
+	Op(int opcode, DataType type) {
+		this.opcode = opcode;
+		this.type = type;
+	}
+	
+	static Op label(int label) {
+		Op op = new Op(LABEL, null);
+		op.label = label;
+		return op;
+	}
+	
+	static Op jump(int condition, int label) {
+		Op op = new Op(OPCODE_CJUMP, null);
+		op.condition = condition;
+		op.label = label;
+		return op;
+	}
+	
+	static Op jump(int label) {
+		Op op = new Op(OPCODE_JUMP, null);
+		op.label = label;
+		return op;
+	}
+	
+	boolean isArithmetic() {
+		return opcode>=OPCODE_ADD && opcode<=OPCODE_ASR;
+	}
+	
+	boolean isJump() {
+		return opcode==OPCODE_JUMP || opcode==OPCODE_CJUMP;
+	}
+	
+	/** Returns true if control never continues to the next instruction. */
+	boolean endsBlock() {
+		return opcode==OPCODE_JUMP || opcode==OPCODE_RETURN || opcode==FALL_OFF;
+	}
+	
+	/** Returns true if this instruction does nothing but set its destination, so it can go if the value is never used. */
+	boolean isPure() {
+		switch(opcode) {
+		case OPCODE_LOAD:
+		case OPCODE_CONVERT:
+		case OPCODE_ADD:
+		case OPCODE_SUB:
+		case OPCODE_MUL:
+		case OPCODE_SHL:
+		case OPCODE_SHR:
+		case OPCODE_ASR:
+			return true;
+		case OPCODE_DIV:
+		case OPCODE_MOD:
+			//Only integer division by a register can fault
+			return type.isFloat() || (operand2==-1 && immediate.longValue()!=0L);
+		default:
+			return false;
+		}
+	}
+	
+	/** Returns the operator an arithmetic instruction applies. */
+	Operator operator() {
+		return Operator.values()[opcode - OPCODE_ADD];
+	}
+	
+	@Override
+	public String toString() {
+		switch(opcode) {
+		case LABEL:         return "L"+label+":";
+		case FALL_OFF:      return "  (end)";
+		case OPCODE_JUMP:   return "  jump L"+label;
+		case OPCODE_CJUMP:  return "  cjump "+condition+" L"+label;
+		case OPCODE_CALL:   return "  call "+function;
+		case OPCODE_RETURN: return "  return";
+		case OPCODE_PUSH:   return "  push."+type+" r"+operand1;
+		case OPCODE_POP:    return "  r"+destination+" = pop."+type;
+		case OPCODE_TEST:   return "  test."+type+" r"+operand1;
+		case OPCODE_LOAD:   return "  r"+destination+" = "+type+" "+source();
+		case OPCODE_CONVERT:return "  r"+destination+" = "+targetType+" r"+operand1+"."+type;
+		default:            return "  r"+destination+" = r"+operand1+" "+operator().getSymbol()+"."+type+" "+source();
+		}
+	}
+	
+	private String source() {
+		return (operand2==-1) ? String.valueOf(immediate) : "r"+operand2;
+	}
+}
@@ -0,0 +1,377 @@
+package blue.endless.junior.compiler;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import blue.endless.junior.ast.Arithmetic;
+import blue.endless.junior.ast.DataType;
+
+/**
+ * Simplifies a function's intermediate form. The passes feed each other - folding a branch makes code unreachable, which
+ * can make a variable constant where paths used to merge - so they run in turn until none of them changes anything:
+ *
+ * <ul>
+ *   <li>Constant propagation, which finds the registers holding the same constant on every path, folds instructions whose
+ *       operands are all constants into loads, turns constant operand2 registers into immediates, and resolves tests of
+ *       constants so their jumps become unconditional or disappear. Integer division by zero is left to fault at runtime.
+ *   <li>Unreachable code removal, which also drops jumps to the next instruction and labels nothing jumps to, and
+ *       retargets jumps to unconditional jumps.
+ *   <li>Dead code elimination, which removes instructions whose only effect is setting a register nothing reads.
+ * </ul>
+ */
+final class Optimizer {
+	/** The lattice value for a register which may hold different values. Null stands for one which hasn't been set yet. */
+	private static final Object VARYING = new Object();
+	
+	private final List<DataType> registers;
+	private List<Op> ops;
+	
+	//Constant propagation's view of the current instruction: what's known of the global registers, and of the local ones
+	private ControlFlow flow;
+	private Object[] state;
+	private Object[] locals;
+	
+	Optimizer(List<Op> ops, List<DataType> registers) {
+		this.ops = ops;
+		this.registers = registers;
+	}
+	
+	/**
+	 * Makes the function ready to allocate registers for, without optimizing it: makes every register which could be read
+	 * before it's set start out as zero explicitly, which is what the source language promises, and removes instructions
+	 * nothing can reach.
+	 */
+	List<Op> prepare() {
+		int[] entry = new int[0];
+		if (!ops.isEmpty()) {
+			ControlFlow flow = new ControlFlow(ops, registers.size());
+			SparseSet live = new SparseSet(registers.size());
+			flow.liveAtEnd(0, flow.liveOut(), live);
+			for(int i=flow.starts[1]-1; i>=0; i--) ControlFlow.stepBack(ops.get(i), live);
+			entry = new int[live.size()];
+			for(int i=0; i<entry.length; i++) entry[i] = live.get(i);
+			Arrays.sort(entry);
+		}
+		List<Op> result = new ArrayList<>(ops.size() + entry.length);
+		for(int register : entry) {
+			Op load = new Op(OPCODE_LOAD, registers.get(register));
+			load.destination = register;
+			load.immediate = Arithmetic.convert(0, registers.get(register));
+			result.add(load);
+		}
+		result.addAll(ops);
+		
+		ops = new ArrayList<>(result.size());
+		if (result.isEmpty()) return ops;
+		ControlFlow flow = new ControlFlow(result, registers.size());
+		boolean[] reached = new boolean[flow.blockCount()];
+		int[] worklist = new int[flow.blockCount()];
+		int pending = 0;
+		reached[0] = true;
+		worklist[pending++] = 0;
+		while(pending>0) {
+			for(int successor : flow.successors[worklist[--pending]]) {
+				if (reached[successor]) continue;
+				reached[successor] = true;
+				worklist[pending++] = successor;
+			}
+		}
+		for(int block=0; block<reached.length; block++) {
+			if (reached[block]) ops.addAll(result.subList(flow.starts[block], flow.starts[block+1]));
+		}
+		return ops;
+	}
+	
+	/** Prepares the function like {@link #prepare()} does, then optimizes it. */
+	List<Op> optimize() {
+		prepare();
+		boolean changed = true;
+		for(int pass=0; changed && pass<100; pass++) {
+			changed = propagateConstants();
+			changed |= removeUnreachable();
+			changed |= eliminateDeadCode();
+		}
+		return ops;
+	}
+	
+	private boolean propagateConstants() {
+		if (ops.isEmpty()) return false;
+		flow = new ControlFlow(ops, registers.size());
+		locals = new Object[registers.size()];
+		int blocks = flow.blockCount();
+		Object[][] in = new Object[blocks][];
+		in[0] = new Object[flow.globalCount()];
+		
+		int[] worklist = new int[blocks];
+		boolean[] queued = new boolean[blocks];
+		int pending = 0;
+		worklist[pending++] = 0;
+		queued[0] = true;
+		while(pending>0) {
+			int block = worklist[--pending];
+			queued[block] = false;
+			state = in[block].clone();
+			for(int i=flow.starts[block]; i<flow.starts[block+1]; i++) {
+				Op op = ops.get(i);
+				if (op.destination>=0) set(op.destination, evaluate(op));
+			}
+			for(int successor : flow.successors[block]) {
+				if (merge(in, successor, state) && !queued[successor]) {
+					worklist[pending++] = successor;
+					queued[successor] = true;
+				}
+			}
+		}
+		
+		boolean changed = false;
+		List<Op> result = new ArrayList<>(ops.size());
+		for(int block=0; block<blocks; block++) {
+			int end = flow.starts[block+1];
+			if (in[block]==null) {
+				//Unreachable
+				changed = true;
+				continue;
+			}
+			state = in[block].clone();
+			for(int i=flow.starts[block]; i<end; i++) {
+				Op op = ops.get(i);
+				Object value = (op.destination>=0) ? evaluate(op) : null;
+				
+				if (op.opcode==OPCODE_TEST && get(op.operand1) instanceof Number && i+1<end && ops.get(i+1).opcode==OPCODE_CJUMP) {
+					Op jump = ops.get(i+1);
+					if (conditionMet(jump.condition, (Number) get(op.operand1))) result.add(Op.jump(jump.label));
+					i++;
+					changed = true;
+					continue;
+				}
+				
+				if (value instanceof Number && op.opcode!=OPCODE_POP && !(op.opcode==OPCODE_LOAD && op.operand2==-1)) {
+					Op load = new Op(OPCODE_LOAD, registers.get(op.destination));
+					load.destination = op.destination;
+					load.immediate = (Number) value;
+					result.add(load);
+					set(op.destination, value);
+					changed = true;
+					continue;
+				}
+				
+				if (op.isArithmetic() || op.opcode==OPCODE_LOAD) {
+					if (op.isArithmetic() && op.operand2>=0 && get(op.operand1) instanceof Number && (op.opcode==OPCODE_ADD || op.opcode==OPCODE_MUL)) {
+						//Only operand2 can be an immediate, but these don't care about order
+						int swap = op.operand1;
+						op.operand1 = op.operand2;
+						op.operand2 = swap;
+						changed = true;
+					}
+					if (op.operand2>=0 && get(op.operand2) instanceof Number) {
+						op.immediate = (Number) get(op.operand2);
+						op.operand2 = -1;
+						changed = true;
+					}
+					if (op.isArithmetic() && op.operand2==-1 && isIdentity(op)) {
+						Op move = new Op(OPCODE_LOAD, op.type);
+						move.destination = op.destination;
+						move.operand2 = op.operand1;
+						op = move;
+						changed = true;
+					}
+				}
+				result.add(op);
+				if (op.destination>=0) set(op.destination, value);
+			}
+		}
+		ops = result;
+		flow = null;
+		state = null;
+		locals = null;
+		return changed;
+	}
+	
+	/** Returns what constant propagation knows about a register at the current instruction. */
+	private Object get(int register) {
+		int global = flow.globals[register];
+		return (global>=0) ? state[global] : locals[register];
+	}
+	
+	private void set(int register, Object value) {
+		int global = flow.globals[register];
+		if (global>=0) {
+			state[global] = value;
+		} else {
+			locals[register] = value;
+		}
+	}
+	
+	/** Returns the value of an instruction's destination after it runs, given what's known going in. */
+	private Object evaluate(Op op) {
+		Object a = (op.operand1>=0) ? get(op.operand1) : null;
+		Object b = (op.operand2>=0) ? get(op.operand2) : op.immediate;
+		switch(op.opcode) {
+		case OPCODE_LOAD:
+			return (b==null) ? VARYING : b;
+		case OPCODE_CONVERT:
+			return (a instanceof Number) ? Arithmetic.convert((Number) a, op.targetType) : VARYING;
+		case OPCODE_POP:
+			return VARYING;
+		default:
+			if (!(a instanceof Number) || !(b instanceof Number)) return VARYING;
+			try {
+				return Arithmetic.apply(op.operator(), (Number) a, (Number) b);
+			} catch (ArithmeticException | IllegalArgumentException ex) {
+				return VARYING;
+			}
+		}
+	}
+	
+	/** Merges a predecessor's out state into index's in state, and returns true if it changed. */
+	private static boolean merge(Object[][] in, int index, Object[] out) {
+		Object[] existing = in[index];
+		if (existing==null) {
+			in[index] = out.clone();
+			return true;
+		}
+		boolean changed = false;
+		for(int i=0; i<existing.length; i++) {
+			Object value = existing[i];
+			if (value==VARYING || out[i]==null || out[i].equals(value)) continue;
+			existing[i] = (value==null) ? out[i] : VARYING;
+			changed = true;
+		}
+		return changed;
+	}
+	
+	private static boolean isIdentity(Op op) {
+		if (op.type.isFloat()) {
+			//x + 0 is 0 rather than -0 when x is -0
+			return (op.opcode==OPCODE_SUB && op.immediate.doubleValue()==0.0 && 1/op.immediate.doubleValue()>0)
+					|| ((op.opcode==OPCODE_MUL || op.opcode==OPCODE_DIV) && op.immediate.doubleValue()==1.0);
+		}
+		long value = op.immediate.longValue();
+		switch(op.opcode) {
+		case OPCODE_ADD:
+		case OPCODE_SUB:
+			return value==0L;
+		case OPCODE_MUL:
+		case OPCODE_DIV:
+			return value==1L;
+		case OPCODE_SHL:
+		case OPCODE_SHR:
+		case OPCODE_ASR:
+			//Shift distances are taken modulo the width
+			return (value & ((op.type==DataType.I64 || op.type==DataType.WORD) ? 63 : 31))==0L;
+		default:
+			return false;
+		}
+	}
+	
+	/** Returns whether a CJUMP's condition holds after a TEST of value. */
+	private static boolean conditionMet(int condition, Number value) {
+		double real = value.doubleValue();
+		long integer = value.longValue();
+		boolean floating = (value instanceof Double || value instanceof Float);
+		boolean zero = floating ? real==0.0 : integer==0L;
+		boolean negative = floating ? real<0.0 : integer<0L;
+		switch(condition) {
+		case CONDITION_ZERO:         return zero;
+		case CONDITION_NOT_ZERO:     return !zero;
+		case CONDITION_LESS:
+		case CONDITION_NEGATIVE:     return negative;
+		case CONDITION_GREATER:      return !zero && !negative;
+		case CONDITION_NOT_NEGATIVE: return !negative;
+		default:                     return false;
+		}
+	}
+	
+	private boolean removeUnreachable() {
+		boolean changed = false;
+		
+		//Jumps to jumps go straight to the final target
+		HashMap<Integer, Integer> labels = labels(ops);
+		for(Op op : ops) {
+			if (!op.isJump()) continue;
+			for(int hops=0; hops<ops.size(); hops++) {
+				Op target = ops.get(next(ops, labels.get(op.label)));
+				if (target.opcode!=OPCODE_JUMP || target.label==op.label) break;
+				op.label = target.label;
+				changed = true;
+			}
+		}
+		
+		List<Op> result = new ArrayList<>(ops.size());
+		boolean reachable = true;
+		for(int i=0; i<ops.size(); i++) {
+			Op op = ops.get(i);
+			if (op.opcode==Op.LABEL) reachable = true;
+			if (!reachable) {
+				changed = true;
+				continue;
+			}
+			
+			if (op.isJump() && labels.get(op.label)>i && next(ops, i+1)==next(ops, labels.get(op.label))) {
+				//Jumps to the next instruction, and the test feeding it if it's conditional
+				if (op.opcode==OPCODE_CJUMP && !result.isEmpty() && result.get(result.size()-1).opcode==OPCODE_TEST) result.remove(result.size()-1);
+				changed = true;
+				continue;
+			}
+			result.add(op);
+			if (op.endsBlock()) reachable = false;
+		}
+		
+		BitSet used = new BitSet();
+		for(Op op : result) if (op.isJump()) used.set(op.label);
+		ops = new ArrayList<>(result.size());
+		for(Op op : result) {
+			if (op.opcode==Op.LABEL && !used.get(op.label)) {
+				changed = true;
+			} else {
+				ops.add(op);
+			}
+		}
+		return changed;
+	}
+	
+	private boolean eliminateDeadCode() {
+		if (ops.isEmpty()) return false;
+		ControlFlow flow = new ControlFlow(ops, registers.size());
+		BitSet[] liveOut = flow.liveOut();
+		SparseSet live = new SparseSet(registers.size());
+		boolean[] dead = new boolean[ops.size()];
+		boolean changed = false;
+		for(int block=0; block<flow.blockCount(); block++) {
+			flow.liveAtEnd(block, liveOut, live);
+			for(int i=flow.starts[block+1]-1; i>=flow.starts[block]; i--) {
+				Op op = ops.get(i);
+				boolean selfMove = op.opcode==OPCODE_LOAD && op.operand2==op.destination;
+				if (selfMove || (op.isPure() && !live.contains(op.destination))) {
+					//What it reads only matters if something else reads it too
+					dead[i] = true;
+					changed = true;
+				} else {
+					ControlFlow.stepBack(op, live);
+				}
+			}
+		}
+		List<Op> result = new ArrayList<>(ops.size());
+		for(int i=0; i<ops.size(); i++) if (!dead[i]) result.add(ops.get(i));
+		ops = result;
+		return changed;
+	}
+	
+	/** Returns the index of each label. */
+	static HashMap<Integer, Integer> labels(List<Op> ops) {
+		HashMap<Integer, Integer> labels = new HashMap<>();
+		for(int i=0; i<ops.size(); i++) if (ops.get(i).opcode==Op.LABEL) labels.put(ops.get(i).label, i);
+		return labels;
+	}
+	
+	/** Returns the index of the first instruction at or after index which isn't a label. */
+	private static int next(List<Op> ops, int index) {
+		while(index<ops.size()-1 && ops.get(index).opcode==Op.LABEL) index++;
+		return index;
+	}
+}
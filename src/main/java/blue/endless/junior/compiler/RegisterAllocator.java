@@ -0,0 +1,118 @@
+package blue.endless.junior.compiler;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+
+import blue.endless.junior.ast.DataType;
+
+/**
+ * Maps a function's virtual registers onto as few LVT entries of each type as it can, since every entry makes the
+ * function's frames bigger. Two registers of the same type interfere if one is set while the other still holds a value
+ * something will read, and interfering registers need different entries; the rest are colored greedily, lowest entry
+ * first, preferring the entry of the register a move copies from or to so the move disappears.
+ */
+final class RegisterAllocator {
+	private final List<Op> ops;
+	private final List<DataType> registers;
+	private final int[] entries;
+	private final int[] counts = new int[DataType.values().length];
+	
+	RegisterAllocator(List<Op> ops, List<DataType> registers) {
+		this.ops = ops;
+		this.registers = registers;
+		this.entries = new int[registers.size()];
+	}
+	
+	/** Assigns every register an LVT entry, and returns the instructions rewritten to use them, without redundant moves. */
+	List<Op> allocate() {
+		int count = registers.size();
+		//Interference is sparse - most registers live for a few instructions - so it's kept as lists of neighbours
+		int[][] neighbours = new int[count][];
+		int[] degrees = new int[count];
+		HashSet<Long> edges = new HashSet<>();
+		List<List<Integer>> partners = new ArrayList<>(count);
+		BitSet used = new BitSet(count);
+		for(int i=0; i<count; i++) partners.add(new ArrayList<>(2));
+		
+		ControlFlow flow = new ControlFlow(ops, count);
+		BitSet[] liveOut = (ops.isEmpty()) ? new BitSet[0] : flow.liveOut();
+		SparseSet live = new SparseSet(count);
+		for(int block=0; block<liveOut.length; block++) {
+			flow.liveAtEnd(block, liveOut, live);
+			for(int i=flow.starts[block+1]-1; i>=flow.starts[block]; i--) {
+				Op op = ops.get(i);
+				if (op.operand1>=0) used.set(op.operand1);
+				if (op.operand2>=0) used.set(op.operand2);
+				if (op.destination>=0) {
+					used.set(op.destination);
+					
+					boolean move = op.opcode==OPCODE_LOAD && op.operand2>=0;
+					if (move) {
+						partners.get(op.destination).add(op.operand2);
+						partners.get(op.operand2).add(op.destination);
+					}
+					for(int j=0; j<live.size(); j++) {
+						int other = live.get(j);
+						//A move's source and destination hold the same value, so they can share an entry
+						if (other==op.destination || (move && other==op.operand2) || registers.get(other)!=registers.get(op.destination)) continue;
+						long edge = ((long) Math.min(other, op.destination) << 32) | Math.max(other, op.destination);
+						if (!edges.add(edge)) continue;
+						addNeighbour(neighbours, degrees, op.destination, other);
+						addNeighbour(neighbours, degrees, other, op.destination);
+					}
+				}
+				ControlFlow.stepBack(op, live);
+			}
+		}
+		
+		BitSet taken = new BitSet();
+		for(int register=used.nextSetBit(0); register>=0; register=used.nextSetBit(register+1)) {
+			taken.clear();
+			for(int j=0; j<degrees[register]; j++) {
+				int other = neighbours[register][j];
+				if (other<register && used.get(other)) taken.set(entries[other]);
+			}
+			int entry = -1;
+			for(int partner : partners.get(register)) {
+				if (partner<register && registers.get(partner)==registers.get(register) && !taken.get(entries[partner])) {
+					entry = entries[partner];
+					break;
+				}
+			}
+			if (entry==-1) entry = taken.nextClearBit(0);
+			entries[register] = entry;
+			int type = registers.get(register).ordinal();
+			counts[type] = Math.max(counts[type], entry+1);
+		}
+		
+		List<Op> result = new ArrayList<>(ops.size());
+		for(Op op : ops) {
+			if (op.destination>=0) op.destination = entries[op.destination];
+			if (op.operand1>=0) op.operand1 = entries[op.operand1];
+			if (op.operand2>=0) op.operand2 = entries[op.operand2];
+			if (op.opcode==OPCODE_LOAD && op.operand2==op.destination) continue;
+			result.add(op);
+		}
+		return result;
+	}
+	
+	private static void addNeighbour(int[][] neighbours, int[] degrees, int register, int neighbour) {
+		int[] list = neighbours[register];
+		if (list==null) {
+			list = neighbours[register] = new int[4];
+		} else if (degrees[register]==list.length) {
+			list = neighbours[register] = Arrays.copyOf(list, list.length*2);
+		}
+		list[degrees[register]++] = neighbour;
+	}
+	
+	/** Returns the number of LVT entries of a type the function needs. Only valid after {@link #allocate()}. */
+	int getCount(DataType type) {
+		return counts[type.ordinal()];
+	}
+}
@@ -0,0 +1,48 @@
+package blue.endless.junior.compiler;
+
+/**
+ * A set of ints below a fixed bound which can be cleared, and have its members listed, in time proportional to the number
+ * of members rather than to the bound (Briggs and Torczon's representation). Liveness walks clear their set once per block,
+ * and most registers are dead at any point, so this keeps those walks linear in the size of the code.
+ */
+final class SparseSet {
+	private final int[] dense;
+	private final int[] sparse;
+	private int size = 0;
+	
+	SparseSet(int bound) {
+		dense = new int[bound];
+		sparse = new int[bound];
+	}
+	
+	boolean contains(int value) {
+		int index = sparse[value];
+		return index<size && dense[index]==value;
+	}
+	
+	void add(int value) {
+		if (contains(value)) return;
+		sparse[value] = size;
+		dense[size++] = value;
+	}
+	
+	void remove(int value) {
+		if (!contains(value)) return;
+		int last = dense[--size];
+		dense[sparse[value]] = last;
+		sparse[last] = sparse[value];
+	}
+	
+	void clear() {
+		size = 0;
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	/** Returns the member at index, for 0 &lt;= index &lt; size(). Members are in no particular order. */
+	int get(int index) {
+		return dense[index];
+	}
+}
@@ -0,0 +1,502 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * The loops behind the bulk memory and vector instructions. Heap memory is direct ByteBuffers, and HotSpot won't vectorize
+ * a loop of ByteBuffer reads and writes, so each operation copies its operands a chunk at a time into plain arrays with a
+ * bulk get (a memcpy), runs a simple loop over the arrays, which HotSpot does vectorize, and copies the results back.
+ *
+ * <p>Operands are heap regions already checked by {@link Heap#region(long, int)}, as ByteBuffers holding exactly the
+ * operand's bytes. Integer arithmetic wraps at the width of the data type, as it does in registers. Float sums and dot
+ * products are accumulated in float64, in order, so they come out the same everywhere.
+ *
+ * <p>Each VMThread has its own, since the scratch arrays are reused from one instruction to the next.
+ */
+final class BulkMemory {
+	/** How many elements are worked on at once; big enough to amortize the copies, small enough to stay in cache. */
+	private static final int CHUNK = 2048;
+	
+	private byte[][] bytes;
+	private short[][] shorts;
+	private int[][] ints;
+	private long[][] longs;
+	private float[][] floats;
+	private double[][] doubles;
+	
+	/**
+	 * Copies source to destination, which is the same size. If they overlap, the copy runs in whichever direction reads each
+	 * byte before it's overwritten; backward must be true if destination starts after source.
+	 */
+	void copy(ByteBuffer destination, ByteBuffer source, boolean overlapping, boolean backward) {
+		if (!overlapping) {
+			destination.put(source);
+			return;
+		}
+		byte[] scratch = bytes(0);
+		int length = source.remaining();
+		if (backward) {
+			for(int end=length; end>0; end-=CHUNK) {
+				int n = Math.min(CHUNK, end);
+				source.position(end-n);
+				source.get(scratch, 0, n);
+				destination.position(end-n);
+				destination.put(scratch, 0, n);
+			}
+		} else {
+			for(int start=0; start<length; start+=CHUNK) {
+				int n = Math.min(CHUNK, length-start);
+				source.get(scratch, 0, n);
+				destination.put(scratch, 0, n);
+			}
+		}
+	}
+	
+	/** Fills destination with count copies of a value width bytes wide, given as its raw bits. */
+	void fill(ByteBuffer destination, int width, long bits, int count) {
+		int n = Math.min(CHUNK, count);
+		switch(width) {
+		case 1: {
+			byte[] scratch = bytes(0);
+			Arrays.fill(scratch, 0, n, (byte) bits);
+			for(int done=0; done<count; done+=CHUNK) destination.put(scratch, 0, Math.min(CHUNK, count-done));
+			break;
+		}
+		case 2: {
+			short[] scratch = shorts(0);
+			Arrays.fill(scratch, 0, n, (short) bits);
+			ShortBuffer view = destination.asShortBuffer();
+			for(int done=0; done<count; done+=CHUNK) view.put(scratch, 0, Math.min(CHUNK, count-done));
+			break;
+		}
+		case 4: {
+			int[] scratch = ints(0);
+			Arrays.fill(scratch, 0, n, (int) bits);
+			IntBuffer view = destination.asIntBuffer();
+			for(int done=0; done<count; done+=CHUNK) view.put(scratch, 0, Math.min(CHUNK, count-done));
+			break;
+		}
+		default: {
+			long[] scratch = longs(0);
+			Arrays.fill(scratch, 0, n, bits);
+			LongBuffer view = destination.asLongBuffer();
+			for(int done=0; done<count; done+=CHUNK) view.put(scratch, 0, Math.min(CHUNK, count-done));
+			break;
+		}
+		}
+	}
+	
+	/**
+	 * Compares count elements of a and b in order, and returns the flags TEST would set for the first pair that differs:
+	 * FLAG_SIGN if a's element is less than b's, 0 if it's greater, or FLAG_ZERO if no pair differs. Integers are signed.
+	 * Floats compare by value, so 0.0 equals -0.0, and a NaN differs from everything but isn't less than anything.
+	 */
+	int compare(ByteBuffer a, ByteBuffer b, int dataType, int count) {
+		switch(dataType) {
+		case DATA_INT8: {
+			byte[] x = bytes(0), y = bytes(1);
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				a.get(x, 0, n);
+				b.get(y, 0, n);
+				for(int i=0; i<n; i++) if (x[i]!=y[i]) return (x[i]<y[i]) ? FLAG_SIGN : 0;
+			}
+			return FLAG_ZERO;
+		}
+		case DATA_INT16: {
+			short[] x = shorts(0), y = shorts(1);
+			ShortBuffer av = a.asShortBuffer(), bv = b.asShortBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				for(int i=0; i<n; i++) if (x[i]!=y[i]) return (x[i]<y[i]) ? FLAG_SIGN : 0;
+			}
+			return FLAG_ZERO;
+		}
+		case DATA_INT32: {
+			int[] x = ints(0), y = ints(1);
+			IntBuffer av = a.asIntBuffer(), bv = b.asIntBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				for(int i=0; i<n; i++) if (x[i]!=y[i]) return (x[i]<y[i]) ? FLAG_SIGN : 0;
+			}
+			return FLAG_ZERO;
+		}
+		case DATA_FLOAT16: {
+			short[] hx = shorts(0), hy = shorts(1);
+			float[] x = floats(0), y = floats(1);
+			ShortBuffer av = a.asShortBuffer(), bv = b.asShortBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(hx, 0, n);
+				bv.get(hy, 0, n);
+				Half.toFloats(hx, x, n);
+				Half.toFloats(hy, y, n);
+				for(int i=0; i<n; i++) if (x[i]!=y[i]) return (x[i]<y[i]) ? FLAG_SIGN : 0;
+			}
+			return FLAG_ZERO;
+		}
+		case DATA_FLOAT32: {
+			float[] x = floats(0), y = floats(1);
+			FloatBuffer av = a.asFloatBuffer(), bv = b.asFloatBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				for(int i=0; i<n; i++) if (x[i]!=y[i]) return (x[i]<y[i]) ? FLAG_SIGN : 0;
+			}
+			return FLAG_ZERO;
+		}
+		case DATA_FLOAT64: {
+			double[] x = doubles(0), y = doubles(1);
+			DoubleBuffer av = a.asDoubleBuffer(), bv = b.asDoubleBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				for(int i=0; i<n; i++) if (x[i]!=y[i]) return (x[i]<y[i]) ? FLAG_SIGN : 0;
+			}
+			return FLAG_ZERO;
+		}
+		default: {
+			long[] x = longs(0), y = longs(1);
+			LongBuffer av = a.asLongBuffer(), bv = b.asLongBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				for(int i=0; i<n; i++) if (x[i]!=y[i]) return (x[i]<y[i]) ? FLAG_SIGN : 0;
+			}
+			return FLAG_ZERO;
+		}
+		}
+	}
+	
+	/**
+	 * Computes destination = a + b, a * b, or for OPCODE_VECTOR_MULADD, destination + a * b, element by element. A chunk of
+	 * every operand is read before any of destination's chunk is written, so destination may be the same region as a or b.
+	 */
+	void elementwise(int opcode, ByteBuffer destination, ByteBuffer a, ByteBuffer b, int dataType, int count) {
+		switch(dataType) {
+		case DATA_INT8: {
+			byte[] x = bytes(0), y = bytes(1), z = bytes(2);
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				a.get(x, 0, n);
+				b.get(y, 0, n);
+				switch(opcode) {
+				case OPCODE_VECTOR_ADD: for(int i=0; i<n; i++) x[i] += y[i]; break;
+				case OPCODE_VECTOR_MUL: for(int i=0; i<n; i++) x[i] *= y[i]; break;
+				default:
+					destination.mark();
+					destination.get(z, 0, n);
+					destination.reset();
+					for(int i=0; i<n; i++) x[i] = (byte) (z[i] + x[i]*y[i]);
+				}
+				destination.put(x, 0, n);
+			}
+			break;
+		}
+		case DATA_INT16: {
+			short[] x = shorts(0), y = shorts(1), z = shorts(2);
+			ShortBuffer av = a.asShortBuffer(), bv = b.asShortBuffer(), dv = destination.asShortBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				switch(opcode) {
+				case OPCODE_VECTOR_ADD: for(int i=0; i<n; i++) x[i] += y[i]; break;
+				case OPCODE_VECTOR_MUL: for(int i=0; i<n; i++) x[i] *= y[i]; break;
+				default:
+					dv.mark();
+					dv.get(z, 0, n);
+					dv.reset();
+					for(int i=0; i<n; i++) x[i] = (short) (z[i] + x[i]*y[i]);
+				}
+				dv.put(x, 0, n);
+			}
+			break;
+		}
+		case DATA_INT32: {
+			int[] x = ints(0), y = ints(1), z = ints(2);
+			IntBuffer av = a.asIntBuffer(), bv = b.asIntBuffer(), dv = destination.asIntBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				switch(opcode) {
+				case OPCODE_VECTOR_ADD: for(int i=0; i<n; i++) x[i] += y[i]; break;
+				case OPCODE_VECTOR_MUL: for(int i=0; i<n; i++) x[i] *= y[i]; break;
+				default:
+					dv.mark();
+					dv.get(z, 0, n);
+					dv.reset();
+					for(int i=0; i<n; i++) x[i] = z[i] + x[i]*y[i];
+				}
+				dv.put(x, 0, n);
+			}
+			break;
+		}
+		case DATA_FLOAT16: {
+			//Done in float and rounded back, which gives the same results as half precision would; muladd rounds its product
+			//to a half first, like a MUL would
+			short[] hx = shorts(0), hy = shorts(1), hz = shorts(2);
+			float[] x = floats(0), y = floats(1), z = floats(2);
+			ShortBuffer av = a.asShortBuffer(), bv = b.asShortBuffer(), dv = destination.asShortBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(hx, 0, n);
+				bv.get(hy, 0, n);
+				Half.toFloats(hx, x, n);
+				Half.toFloats(hy, y, n);
+				switch(opcode) {
+				case OPCODE_VECTOR_ADD: for(int i=0; i<n; i++) x[i] += y[i]; break;
+				case OPCODE_VECTOR_MUL: for(int i=0; i<n; i++) x[i] *= y[i]; break;
+				default:
+					dv.mark();
+					dv.get(hz, 0, n);
+					dv.reset();
+					Half.toFloats(hz, z, n);
+					for(int i=0; i<n; i++) x[i] = z[i] + Half.toFloat(Half.fromFloat(x[i]*y[i]));
+				}
+				Half.fromFloats(x, hx, n);
+				dv.put(hx, 0, n);
+			}
+			break;
+		}
+		case DATA_FLOAT32: {
+			float[] x = floats(0), y = floats(1), z = floats(2);
+			FloatBuffer av = a.asFloatBuffer(), bv = b.asFloatBuffer(), dv = destination.asFloatBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				switch(opcode) {
+				case OPCODE_VECTOR_ADD: for(int i=0; i<n; i++) x[i] += y[i]; break;
+				case OPCODE_VECTOR_MUL: for(int i=0; i<n; i++) x[i] *= y[i]; break;
+				default:
+					dv.mark();
+					dv.get(z, 0, n);
+					dv.reset();
+					for(int i=0; i<n; i++) x[i] = z[i] + x[i]*y[i];
+				}
+				dv.put(x, 0, n);
+			}
+			break;
+		}
+		case DATA_FLOAT64: {
+			double[] x = doubles(0), y = doubles(1), z = doubles(2);
+			DoubleBuffer av = a.asDoubleBuffer(), bv = b.asDoubleBuffer(), dv = destination.asDoubleBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				switch(opcode) {
+				case OPCODE_VECTOR_ADD: for(int i=0; i<n; i++) x[i] += y[i]; break;
+				case OPCODE_VECTOR_MUL: for(int i=0; i<n; i++) x[i] *= y[i]; break;
+				default:
+					dv.mark();
+					dv.get(z, 0, n);
+					dv.reset();
+					for(int i=0; i<n; i++) x[i] = z[i] + x[i]*y[i];
+				}
+				dv.put(x, 0, n);
+			}
+			break;
+		}
+		default: {
+			long[] x = longs(0), y = longs(1), z = longs(2);
+			LongBuffer av = a.asLongBuffer(), bv = b.asLongBuffer(), dv = destination.asLongBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				bv.get(y, 0, n);
+				switch(opcode) {
+				case OPCODE_VECTOR_ADD: for(int i=0; i<n; i++) x[i] += y[i]; break;
+				case OPCODE_VECTOR_MUL: for(int i=0; i<n; i++) x[i] *= y[i]; break;
+				default:
+					dv.mark();
+					dv.get(z, 0, n);
+					dv.reset();
+					for(int i=0; i<n; i++) x[i] = z[i] + x[i]*y[i];
+				}
+				dv.put(x, 0, n);
+			}
+			break;
+		}
+		}
+	}
+	
+	/**
+	 * Returns the sum of count integer elements of a, or if b isn't null, of the products of the elements of a and b. The
+	 * sum wraps like 64-bit arithmetic, so narrowing it to the data type gives the sum wrapped at that type's width.
+	 */
+	long integerSum(ByteBuffer a, ByteBuffer b, int dataType, int count) {
+		long sum = 0;
+		switch(dataType) {
+		case DATA_INT8: {
+			byte[] x = bytes(0), y = bytes(1);
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				a.get(x, 0, n);
+				if (b==null) {
+					for(int i=0; i<n; i++) sum += x[i];
+				} else {
+					b.get(y, 0, n);
+					for(int i=0; i<n; i++) sum += x[i]*y[i];
+				}
+			}
+			return sum;
+		}
+		case DATA_INT16: {
+			short[] x = shorts(0), y = shorts(1);
+			ShortBuffer av = a.asShortBuffer(), bv = (b==null) ? null : b.asShortBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				if (bv==null) {
+					for(int i=0; i<n; i++) sum += x[i];
+				} else {
+					bv.get(y, 0, n);
+					for(int i=0; i<n; i++) sum += x[i]*y[i];
+				}
+			}
+			return sum;
+		}
+		case DATA_INT32: {
+			int[] x = ints(0), y = ints(1);
+			IntBuffer av = a.asIntBuffer(), bv = (b==null) ? null : b.asIntBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				//Only the low 32 bits survive, so the sums can be kept in ints, which vectorize twice as wide
+				int chunkSum = 0;
+				if (bv==null) {
+					for(int i=0; i<n; i++) chunkSum += x[i];
+				} else {
+					bv.get(y, 0, n);
+					for(int i=0; i<n; i++) chunkSum += x[i]*y[i];
+				}
+				sum += chunkSum;
+			}
+			return sum;
+		}
+		default: {
+			long[] x = longs(0), y = longs(1);
+			LongBuffer av = a.asLongBuffer(), bv = (b==null) ? null : b.asLongBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				if (bv==null) {
+					for(int i=0; i<n; i++) sum += x[i];
+				} else {
+					bv.get(y, 0, n);
+					for(int i=0; i<n; i++) sum += x[i]*y[i];
+				}
+			}
+			return sum;
+		}
+		}
+	}
+	
+	/** Same as {@link #integerSum(ByteBuffer, ByteBuffer, int, int)}, for float elements. */
+	double floatSum(ByteBuffer a, ByteBuffer b, int dataType, int count) {
+		double sum = 0;
+		if (dataType==DATA_FLOAT16) {
+			short[] hx = shorts(0), hy = shorts(1);
+			float[] x = floats(0), y = floats(1);
+			ShortBuffer av = a.asShortBuffer(), bv = (b==null) ? null : b.asShortBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(hx, 0, n);
+				Half.toFloats(hx, x, n);
+				if (bv==null) {
+					for(int i=0; i<n; i++) sum += x[i];
+				} else {
+					bv.get(hy, 0, n);
+					Half.toFloats(hy, y, n);
+					for(int i=0; i<n; i++) sum += (double) x[i] * y[i];
+				}
+			}
+		} else if (dataType==DATA_FLOAT32) {
+			float[] x = floats(0), y = floats(1);
+			FloatBuffer av = a.asFloatBuffer(), bv = (b==null) ? null : b.asFloatBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				if (bv==null) {
+					for(int i=0; i<n; i++) sum += x[i];
+				} else {
+					bv.get(y, 0, n);
+					//The product of two floats is exact as a double
+					for(int i=0; i<n; i++) sum += (double) x[i] * y[i];
+				}
+			}
+		} else {
+			double[] x = doubles(0), y = doubles(1);
+			DoubleBuffer av = a.asDoubleBuffer(), bv = (b==null) ? null : b.asDoubleBuffer();
+			for(int done=0; done<count; done+=CHUNK) {
+				int n = Math.min(CHUNK, count-done);
+				av.get(x, 0, n);
+				if (bv==null) {
+					for(int i=0; i<n; i++) sum += x[i];
+				} else {
+					bv.get(y, 0, n);
+					for(int i=0; i<n; i++) sum += x[i]*y[i];
+				}
+			}
+		}
+		return sum;
+	}
+	
+	/*
+	 * Scratch arrays, three of each kind, made the first time they're needed.
+	 */
+	
+	private byte[] bytes(int which) {
+		if (bytes==null) bytes = new byte[3][];
+		if (bytes[which]==null) bytes[which] = new byte[CHUNK];
+		return bytes[which];
+	}
+	
+	private short[] shorts(int which) {
+		if (shorts==null) shorts = new short[3][];
+		if (shorts[which]==null) shorts[which] = new short[CHUNK];
+		return shorts[which];
+	}
+	
+	private int[] ints(int which) {
+		if (ints==null) ints = new int[3][];
+		if (ints[which]==null) ints[which] = new int[CHUNK];
+		return ints[which];
+	}
+	
+	private long[] longs(int which) {
+		if (longs==null) longs = new long[3][];
+		if (longs[which]==null) longs[which] = new long[CHUNK];
+		return longs[which];
+	}
+	
+	private float[] floats(int which) {
+		if (floats==null) floats = new float[3][];
+		if (floats[which]==null) floats[which] = new float[CHUNK];
+		return floats[which];
+	}
+	
+	private double[] doubles(int which) {
+		if (doubles==null) doubles = new double[3][];
+		if (doubles[which]==null) doubles[which] = new double[CHUNK];
+		return doubles[which];
+	}
+}
@@ -0,0 +1,23 @@
+package blue.endless.junior.esovm;
+
+/**
+ * Something a CALL can land on: either a {@link Module.Function} or a {@link NativeFunction}. Both take their arguments
+ * from the top of the caller's operand stack and leave their results there.
+ */
+public abstract class CallTarget {
+	protected final String name;
+	protected final int argumentBytes;
+	protected final int resultBytes;
+	
+	protected CallTarget(String name, int argumentBytes, int resultBytes) {
+		this.name = name;
+		this.argumentBytes = argumentBytes;
+		this.resultBytes = resultBytes;
+	}
+	
+	public String getName() { return name; }
+	/** Returns the number of bytes of arguments a call pops off the caller's operand stack. */
+	public int getArgumentBytes() { return argumentBytes; }
+	/** Returns the number of bytes of results a call leaves on the caller's operand stack. */
+	public int getResultBytes() { return resultBytes; }
+}
@@ -0,0 +1,247 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A program's constants, for OPERAND_CONSTANT operands, the constant-offset memory modes, and the strings that name called
+ * methods and describe error halts. Each data type has its own pool, held in a primitive array, and a constant operand is
+ * simply an index into the pool for the instruction's data type, so reading one never boxes or parses anything.
+ *
+ * <p>String 0 is always the empty string, because a HALT whose operand2 is zero is a normal halt rather than one with a
+ * message. Strings are interned, so identical names from different pools are the same object.
+ *
+ * <p>The binary form, as read by {@link #read(DataInput)}, is big-endian like the instruction stream. For each data type in
+ * order from DATA_INT8 to DATA_WORD there's a u32 count followed by that many values, with floats as their raw bits. Then a
+ * u32 count of strings follows, not counting string 0, with each string in {@link DataOutput#writeUTF(String)} form.
+ */
+public class ConstantPool {
+	protected byte[] int8 = new byte[0];
+	protected short[] int16 = new short[0];
+	protected int[] int32 = new int[0];
+	protected long[] int64 = new long[0];
+	protected short[] float16 = new short[0];
+	protected float[] float32 = new float[0];
+	protected double[] float64 = new double[0];
+	protected long[] word = new long[0];
+	protected String[] strings = { "" };
+	/** Number of entries in use in each pool, indexed by data type. The arrays grow by doubling, so they may be longer. */
+	protected int[] counts = new int[DATA_WORD+1];
+	protected int stringCount = 1;
+	
+	/** Lookup from a value's raw bits (or a string) to its existing index, so adding the same constant twice reuses it. */
+	private HashMap<Long, Integer>[] indices;
+	private HashMap<String, Integer> stringIndices;
+	
+	public byte getInt8(int index) { return int8[index]; }
+	public short getInt16(int index) { return int16[index]; }
+	public int getInt32(int index) { return int32[index]; }
+	public long getInt64(int index) { return int64[index]; }
+	public short getFloat16(int index) { return float16[index]; }
+	public float getFloat32(int index) { return float32[index]; }
+	public double getFloat64(int index) { return float64[index]; }
+	public long getWord(int index) { return word[index]; }
+	public String getString(int index) { return strings[index]; }
+	
+	/** Returns the number of constants of the given data type. */
+	public int size(int dataType) {
+		return counts[dataType];
+	}
+	
+	public int getStringCount() {
+		return stringCount;
+	}
+	
+	/** Throws a VMException unless index names a constant of the given data type. */
+	public void check(int dataType, int index) throws VMException {
+		if (dataType<0 || dataType>DATA_WORD) throw new VMException("Invalid instruction data type 0x"+Integer.toHexString(dataType));
+		if (index<0 || index>=counts[dataType]) throw new VMException("Constant "+index+" doesn't exist (there are "+counts[dataType]+" constants of type 0x"+Integer.toHexString(dataType)+")");
+	}
+	
+	/** Throws a VMException unless index names a string in this pool. */
+	public void checkString(int index) throws VMException {
+		if (index<0 || index>=stringCount) throw new VMException("String constant "+index+" doesn't exist (there are "+stringCount+")");
+	}
+	
+	/**
+	 * Returns the raw bits of a constant, sign-extended to a long for the integer and float16 types. Used by the decoder and
+	 * compilers, which care about values rather than types.
+	 */
+	public long getBits(int dataType, int index) {
+		switch(dataType) {
+		case DATA_INT8:    return int8[index];
+		case DATA_INT16:   return int16[index];
+		case DATA_INT32:   return int32[index];
+		case DATA_INT64:   return int64[index];
+		case DATA_FLOAT16: return float16[index];
+		case DATA_FLOAT32: return Float.floatToRawIntBits(float32[index]);
+		case DATA_FLOAT64: return Double.doubleToRawLongBits(float64[index]);
+		case DATA_WORD:    return word[index];
+		default: throw new IllegalArgumentException("Invalid data type 0x"+Integer.toHexString(dataType));
+		}
+	}
+	
+	/**
+	 * If the constant can be written as a 32-bit immediate operand of the same data type without changing its value, returns
+	 * true. Such constants are folded into immediates when the program is decoded.
+	 */
+	public boolean fitsImmediate(int dataType, int index) {
+		switch(dataType) {
+		case DATA_INT64:   return int64[index]==(int) int64[index];
+		case DATA_WORD:    return word[index]==(int) word[index];
+		case DATA_FLOAT64: return Double.doubleToRawLongBits(float64[index])==Double.doubleToRawLongBits((double) (float) float64[index]);
+		default:           return true;
+		}
+	}
+	
+	/** Returns the 32-bit immediate equivalent to a constant for which {@link #fitsImmediate(int, int)} is true. */
+	public int toImmediate(int dataType, int index) {
+		switch(dataType) {
+		case DATA_FLOAT64: return Float.floatToRawIntBits((float) float64[index]);
+		default:           return (int) getBits(dataType, index);
+		}
+	}
+	
+	public int addInt8(byte value) { return add(DATA_INT8, value); }
+	public int addInt16(short value) { return add(DATA_INT16, value); }
+	public int addInt32(int value) { return add(DATA_INT32, value); }
+	public int addInt64(long value) { return add(DATA_INT64, value); }
+	public int addFloat16(short value) { return add(DATA_FLOAT16, value); }
+	public int addFloat32(float value) { return add(DATA_FLOAT32, Float.floatToRawIntBits(value)); }
+	public int addFloat64(double value) { return add(DATA_FLOAT64, Double.doubleToRawLongBits(value)); }
+	public int addWord(long value) { return add(DATA_WORD, value); }
+	
+	/** Adds a string to the pool, or finds the copy that's already there, and returns its index. */
+	public int addString(String value) {
+		if (stringIndices==null) {
+			stringIndices = new HashMap<>();
+			for(int i=0; i<stringCount; i++) stringIndices.put(strings[i], i);
+		}
+		Integer existing = stringIndices.get(value);
+		if (existing!=null) return existing;
+		
+		if (stringCount>=strings.length) strings = Arrays.copyOf(strings, strings.length*2);
+		int index = stringCount++;
+		strings[index] = value.intern();
+		stringIndices.put(strings[index], index);
+		return index;
+	}
+	
+	/**
+	 * Adds a constant given as raw bits, as returned by {@link #getBits(int, int)}, or finds the identical constant that's
+	 * already there, and returns its index.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public int add(int dataType, long bits) {
+		if (indices==null) {
+			indices = new HashMap[DATA_WORD+1];
+			for(int type=0; type<=DATA_WORD; type++) {
+				indices[type] = new HashMap<>();
+				for(int i=0; i<counts[type]; i++) indices[type].put(getBits(type, i), i);
+			}
+		}
+		Integer existing = indices[dataType].get(bits);
+		if (existing!=null) return existing;
+		
+		int index = append(dataType, bits);
+		indices[dataType].put(getBits(dataType, index), index);
+		return index;
+	}
+	
+	private int append(int dataType, long bits) {
+		int index = counts[dataType]++;
+		int capacity = Math.max(8, index*2);
+		switch(dataType) {
+		case DATA_INT8:
+			if (index>=int8.length) int8 = Arrays.copyOf(int8, capacity);
+			int8[index] = (byte) bits;
+			break;
+		case DATA_INT16:
+			if (index>=int16.length) int16 = Arrays.copyOf(int16, capacity);
+			int16[index] = (short) bits;
+			break;
+		case DATA_INT32:
+			if (index>=int32.length) int32 = Arrays.copyOf(int32, capacity);
+			int32[index] = (int) bits;
+			break;
+		case DATA_INT64:
+			if (index>=int64.length) int64 = Arrays.copyOf(int64, capacity);
+			int64[index] = bits;
+			break;
+		case DATA_FLOAT16:
+			if (index>=float16.length) float16 = Arrays.copyOf(float16, capacity);
+			float16[index] = (short) bits;
+			break;
+		case DATA_FLOAT32:
+			if (index>=float32.length) float32 = Arrays.copyOf(float32, capacity);
+			float32[index] = Float.intBitsToFloat((int) bits);
+			break;
+		case DATA_FLOAT64:
+			if (index>=float64.length) float64 = Arrays.copyOf(float64, capacity);
+			float64[index] = Double.longBitsToDouble(bits);
+			break;
+		case DATA_WORD:
+			if (index>=word.length) word = Arrays.copyOf(word, capacity);
+			word[index] = bits;
+			break;
+		default:
+			counts[dataType]--;
+			throw new IllegalArgumentException("Invalid data type 0x"+Integer.toHexString(dataType));
+		}
+		return index;
+	}
+	
+	/** Reads a pool in the binary form described above. */
+	public static ConstantPool read(DataInput in) throws IOException {
+		ConstantPool pool = new ConstantPool();
+		for(int type=0; type<=DATA_WORD; type++) {
+			int count = in.readInt();
+			if (count<0) throw new IOException("Invalid constant count "+count);
+			for(int i=0; i<count; i++) {
+				switch(type) {
+				case DATA_INT8:    pool.append(type, in.readByte()); break;
+				case DATA_INT16:
+				case DATA_FLOAT16: pool.append(type, in.readShort()); break;
+				case DATA_INT32:
+				case DATA_FLOAT32: pool.append(type, in.readInt()); break;
+				default:           pool.append(type, in.readLong()); break;
+				}
+			}
+		}
+		
+		int count = in.readInt();
+		if (count<0) throw new IOException("Invalid string count "+count);
+		pool.strings = Arrays.copyOf(pool.strings, count+1);
+		for(int i=0; i<count; i++) {
+			pool.strings[pool.stringCount++] = in.readUTF().intern();
+		}
+		return pool;
+	}
+	
+	public void write(DataOutput out) throws IOException {
+		for(int type=0; type<=DATA_WORD; type++) {
+			out.writeInt(counts[type]);
+			for(int i=0; i<counts[type]; i++) {
+				long bits = getBits(type, i);
+				switch(type) {
+				case DATA_INT8:    out.writeByte((int) bits); break;
+				case DATA_INT16:
+				case DATA_FLOAT16: out.writeShort((int) bits); break;
+				case DATA_INT32:
+				case DATA_FLOAT32: out.writeInt((int) bits); break;
+				default:           out.writeLong(bits); break;
+				}
+			}
+		}
+		
+		out.writeInt(stringCount-1);
+		for(int i=1; i<stringCount; i++) {
+			out.writeUTF(strings[i]);
+		}
+	}
+}
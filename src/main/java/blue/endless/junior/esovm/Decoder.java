@@ -0,0 +1,337 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+/**
+ * Turns the raw 8-byte EsoVM instruction stream into the compact form that VMThread actually dispatches on. Each
+ * instruction becomes {@link #STRIDE} ints:
+ *
+ * <pre>
+ *   [handler][d][a][b]
+ * </pre>
+ *
+ * <p>where handler is one of the {@link Handlers} indices, d is the LVT index being written, a is the LVT index being
+ * read, and b is operand2 (a register, an immediate, or for jumps, the target <em>instruction index</em> rather than a
+ * byte address). Constants which fit in 32 bits are folded into immediates here. Fields an instruction doesn't use are
+ * zero. Instruction index i always lives at {@code i * STRIDE}, so byte address {@code pc} maps to
+ * {@code (pc >> 3) * STRIDE}.
+ */
+final class Decoder {
+	public static final int STRIDE = 4;
+	/**
+	 * Identifies the decoded form. Pre-decoded code saved in a {@link Module} is only trusted if it was saved with this same
+	 * version, so this must change whenever handler numbers or field layouts do.
+	 */
+	public static final int VERSION = 2;
+	
+	private Decoder() {}
+	
+	/**
+	 * Decodes a whole program. Instructions that are invalid are not rejected here - they may be data, or unreachable - but
+	 * are decoded as {@link Handlers#FAULT}, which raises the error if and when they're executed.
+	 */
+	public static int[] decode(byte[] program, ConstantPool constants) {
+		int count = program.length / 8;
+		int[] code = new int[(count+1) * STRIDE];
+		for(int i=0; i<count; i++) {
+			decode(program, constants, i, code);
+		}
+		code[count * STRIDE] = Handlers.END;
+		return code;
+	}
+	
+	/** Decodes instruction number {@code index} of program into its slot in code. */
+	public static void decode(byte[] program, ConstantPool constants, int index, int[] code) {
+		try {
+			decodeInstruction(program, constants, index, code);
+		} catch (VMException ex) {
+			int base = index * STRIDE;
+			code[base  ] = Handlers.FAULT;
+			code[base+1] = 0;
+			code[base+2] = 0;
+			code[base+3] = 0;
+		}
+	}
+	
+	/**
+	 * Decodes instruction number {@code index} of program into its slot in code, throwing the same VMException that the
+	 * instruction would raise at runtime if it can't be decoded.
+	 */
+	public static void decodeInstruction(byte[] program, ConstantPool constants, int index, int[] code) throws VMException {
+		decodeInstruction(program, constants, index, code, index * STRIDE);
+	}
+	
+	/**
+	 * Decodes instruction number {@code index} of program into code starting at {@code base}, throwing the same VMException
+	 * that the instruction would raise at runtime if it can't be decoded.
+	 */
+	public static void decodeInstruction(byte[] program, ConstantPool constants, int index, int[] code, int base) throws VMException {
+		int pc = index * 8;
+		int opcode       =  program[pc] & 0xFF;
+		int dataType     = (program[pc+1] >>> 4) & 0x0F;
+		int operand2Type =  program[pc+1] & 0x0F;
+		int destination  =  program[pc+2] & 0xFF;
+		int operand1     =  program[pc+3] & 0xFF;
+		int operand2     = operand2(program, pc);
+		
+		int handler;
+		int d = 0;
+		int a = 0;
+		int b = 0;
+		
+		switch(opcode) {
+		case OPCODE_LOAD:
+			checkDataType(dataType);
+			if (operand2Type>=OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET) {
+				handler = Handlers.LOAD_MEMORY + dataType;
+				d = operand1;
+				a = memoryOperand(constants, operand2Type, destination, operand2);
+				b = operand2;
+				break;
+			}
+			checkSourceOperand(operand2Type);
+			d = operand1;
+			b = operand2;
+			if (operand2Type==OPERAND_CONSTANT) {
+				constants.check(dataType, operand2);
+				if (constants.fitsImmediate(dataType, operand2)) {
+					handler = Handlers.LOAD_IMMEDIATE + dataType;
+					b = constants.toImmediate(dataType, operand2);
+				} else {
+					handler = Handlers.LOAD_CONSTANT + dataType;
+				}
+				break;
+			}
+			handler = ((operand2Type==OPERAND_REGISTER) ? Handlers.LOAD_REGISTER : Handlers.LOAD_IMMEDIATE) + dataType;
+			break;
+		case OPCODE_STORE:
+			checkDataType(dataType);
+			if (operand2Type>=OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET) {
+				handler = Handlers.STORE_MEMORY + dataType;
+				d = memoryOperand(constants, operand2Type, destination, operand2);
+				a = operand1;
+				b = operand2;
+				break;
+			}
+			checkDestinationOperand(operand2Type);
+			handler = Handlers.STORE_REGISTER + dataType;
+			d = operand2;
+			a = operand1;
+			break;
+		case OPCODE_PUSH:
+			checkDataType(dataType);
+			handler = Handlers.PUSH + dataType;
+			a = operand1;
+			break;
+		case OPCODE_POP:
+			checkDataType(dataType);
+			handler = Handlers.POP + dataType;
+			d = operand1;
+			break;
+		
+		case OPCODE_ALLOCATE:
+			checkSourceOperand(operand2Type);
+			handler = (operand2Type==OPERAND_IMMEDIATE) ? Handlers.ALLOCATE_IMMEDIATE : Handlers.ALLOCATE_REGISTER;
+			d = operand1;
+			b = operand2;
+			if (operand2Type==OPERAND_CONSTANT) {
+				constants.check(DATA_WORD, operand2);
+				long size = constants.getWord(operand2);
+				if (size<0 || size>0xFFFFFFFFL) {
+					handler = Handlers.GENERIC;
+				} else {
+					handler = Handlers.ALLOCATE_IMMEDIATE;
+					b = (int) size;
+				}
+			}
+			break;
+		case OPCODE_FREE:
+			handler = Handlers.FREE;
+			a = operand1;
+			break;
+		
+		case OPCODE_ADD:
+		case OPCODE_SUB:
+		case OPCODE_MUL:
+		case OPCODE_DIV:
+		case OPCODE_MOD:
+		case OPCODE_SHL:
+		case OPCODE_SHR:
+		case OPCODE_ASR:
+			checkDataType(dataType);
+			checkSourceOperand(operand2Type);
+			if (opcode>=OPCODE_SHL && (dataType==DATA_FLOAT16 || dataType==DATA_FLOAT32 || dataType==DATA_FLOAT64)) {
+				throw new VMException("Shift instructions are only valid for integer types");
+			}
+			handler = Handlers.alu(opcode) + ((operand2Type==OPERAND_REGISTER) ? 0 : 8) + dataType;
+			d = destination;
+			a = operand1;
+			b = operand2;
+			if (operand2Type==OPERAND_CONSTANT) {
+				//Wide constants are rare enough in arithmetic that they don't get handlers of their own
+				constants.check(dataType, operand2);
+				if (constants.fitsImmediate(dataType, operand2)) {
+					b = constants.toImmediate(dataType, operand2);
+				} else {
+					handler = Handlers.GENERIC;
+				}
+			}
+			break;
+		
+		case OPCODE_CONVERT:
+			checkDataType(dataType);
+			checkDataType(operand2Type); //For conversions the low nibble is the destination data type
+			handler = Handlers.GENERIC;
+			break;
+		
+		case OPCODE_MEMCOPY:
+		case OPCODE_MEMFILL:
+		case OPCODE_MEMCOMPARE:
+		case OPCODE_VECTOR_ADD:
+		case OPCODE_VECTOR_MUL:
+		case OPCODE_VECTOR_MULADD:
+		case OPCODE_VECTOR_SUM:
+		case OPCODE_VECTOR_DOT:
+			//Each of these does enough work that dispatching it from the raw bytes costs nothing worth a handler
+			checkDataType(dataType);
+			checkSourceOperand(operand2Type);
+			if (operand2Type==OPERAND_CONSTANT) constants.check(DATA_WORD, operand2);
+			handler = Handlers.GENERIC;
+			break;
+		
+		case OPCODE_TEST:
+			checkDataType(dataType);
+			handler = Handlers.TEST + dataType;
+			a = operand1;
+			break;
+		case OPCODE_JUMP:
+			b = jumpTarget(program, operand2);
+			handler = (b<=index) ? Handlers.JUMP_BACK : Handlers.JUMP;
+			break;
+		case OPCODE_CJUMP:
+			if (operand1 > CONDITION_NOT_NEGATIVE) throw new VMException("Invalid condition code 0x"+Integer.toHexString(operand1));
+			b = jumpTarget(program, operand2);
+			handler = ((b<=index) ? Handlers.CJUMP_BACK : Handlers.CJUMP) + operand1;
+			break;
+		
+		case OPCODE_CLOAD:
+			checkDataType(dataType);
+			checkSourceOperand(operand2Type);
+			if (operand2Type==OPERAND_CONSTANT) constants.check(dataType, operand2);
+			if (operand1 > CONDITION_NOT_NEGATIVE) throw new VMException("Invalid condition code 0x"+Integer.toHexString(operand1));
+			handler = Handlers.GENERIC;
+			break;
+		case OPCODE_CSTORE:
+			checkDataType(dataType);
+			checkDestinationOperand(operand2Type);
+			if (operand1 > CONDITION_NOT_NEGATIVE) throw new VMException("Invalid condition code 0x"+Integer.toHexString(operand1));
+			handler = Handlers.GENERIC;
+			break;
+		
+		case OPCODE_OUT:
+			checkDataType(dataType);
+			checkPortOperand(operand2Type);
+			handler = Handlers.GENERIC;
+			break;
+		case OPCODE_IN:
+			checkDataType(dataType);
+			checkPortOperand(operand2Type);
+			handler = Handlers.IN;
+			d = operand1;
+			a = dataType;
+			b = operand2;
+			break;
+		
+		case OPCODE_CALL:
+			constants.checkString(operand2);
+			handler = Handlers.CALL;
+			b = operand2;
+			break;
+		case OPCODE_RETURN:
+			handler = Handlers.RETURN;
+			break;
+		
+		case OPCODE_HALT:
+			if (operand2!=0) constants.checkString(operand2);
+			handler = Handlers.HALT;
+			b = operand2;
+			break;
+		
+		default:
+			throw new VMException("Unknown opcode 0x"+Integer.toHexString(opcode));
+		}
+		
+		code[base  ] = handler;
+		code[base+1] = d;
+		code[base+2] = a;
+		code[base+3] = b;
+	}
+	
+	/** Reads the 32-bit operand2 of a standard-format instruction. */
+	public static int operand2(byte[] program, int pc) {
+		return
+				((program[pc+4] & 0xFF) << 24) |
+				((program[pc+5] & 0xFF) << 16) |
+				((program[pc+6] & 0xFF) <<  8) |
+				 (program[pc+7] & 0xFF);
+	}
+	
+	private static int jumpTarget(byte[] program, int address) throws VMException {
+		if ((address & 0x7) != 0) throw new VMException("Jump target 0x"+Integer.toHexString(address)+" is not aligned to an instruction");
+		if (address<0 || address>=program.length) throw new VMException("Jump target 0x"+Integer.toHexString(address)+" is outside the program");
+		return address >> 3;
+	}
+	
+	private static void checkDataType(int dataType) throws VMException {
+		if (dataType>DATA_WORD) throw new VMException("Invalid instruction data type 0x"+Integer.toHexString(dataType));
+	}
+	
+	private static void checkSourceOperand(int operand2Type) throws VMException {
+		switch(operand2Type) {
+		case OPERAND_REGISTER:
+		case OPERAND_IMMEDIATE:
+		case OPERAND_CONSTANT:
+			return;
+		default:
+			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
+		}
+	}
+	
+	/**
+	 * Packs a memory operand's base register and addressing mode into one field, as described in {@link Handlers#LOAD_MEMORY}.
+	 * Constant offsets are word constants.
+	 */
+	@SuppressWarnings("fallthrough")
+	private static int memoryOperand(ConstantPool constants, int operand2Type, int baseRegister, int operand2) throws VMException {
+		switch(operand2Type) {
+		case OPERAND_REGISTER_ADDRESS_PLUS_CONSTANT_OFFSET:
+		case OPERAND_INDIRECT_ADDRESS_WITH_CONSTANT_OFFSET:
+			constants.check(DATA_WORD, operand2);
+			//fall through
+		case OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET:
+		case OPERAND_REGISTER_ADDRESS_PLUS_REGISTER_OFFSET:
+		case OPERAND_INDIRECT_ADDRESS_WITH_IMMEDIATE_OFFSET:
+		case OPERAND_INDIRECT_ADDRESS_WITH_REGISTER_OFFSET:
+			return baseRegister | (operand2Type << 8);
+		default:
+			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
+		}
+	}
+	
+	private static void checkPortOperand(int operand2Type) throws VMException {
+		if (operand2Type!=OPERAND_IMMEDIATE) throw new VMException("Port numbers must be immediate values");
+	}
+	
+	private static void checkDestinationOperand(int operand2Type) throws VMException {
+		switch(operand2Type) {
+		case OPERAND_REGISTER:
+			return;
+		case OPERAND_IMMEDIATE:
+			throw new VMException("Can't store to immediate value");
+		case OPERAND_CONSTANT:
+			throw new VMException("Can't store to constant value");
+		default:
+			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
+		}
+	}
+}
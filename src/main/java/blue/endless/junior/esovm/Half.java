@@ -0,0 +1,83 @@
+package blue.endless.junior.esovm;
+
+/**
+ * Conversions between float16 values, which EsoVM carries around as the raw bits of an IEEE 754 binary16 in a short, and
+ * Java floats. Java 8 has nothing built in for this.
+ *
+ * <p>Going to float is a lookup in a table of all 65536 halves. Every half is exactly representable as a float, so there's
+ * no rounding to do. Going the other way rounds to nearest, ties to even, with a few integer operations and no branches
+ * past the range checks.
+ *
+ * <p>Arithmetic on halves is done in float and rounded back. A float has more than twice the precision of a half, so for
+ * add, subtract, multiply and divide that rounds exactly as if the operation had been done in half precision; remainders
+ * are always exact.
+ */
+public final class Half {
+	private static final float[] TO_FLOAT = new float[65536];
+	static {
+		for(int i=0; i<65536; i++) {
+			int sign = (i & 0x8000) << 16;
+			int exponent = (i >>> 10) & 0x1F;
+			int mantissa = i & 0x3FF;
+			int bits;
+			if (exponent==0x1F) {
+				bits = sign | 0x7F800000 | (mantissa << 13);
+			} else if (exponent==0) {
+				bits = sign | Float.floatToRawIntBits(mantissa * 0x1p-24f);
+			} else {
+				bits = sign | ((exponent + 127 - 15) << 23) | (mantissa << 13);
+			}
+			TO_FLOAT[i] = Float.intBitsToFloat(bits);
+		}
+	}
+	
+	private Half() {}
+	
+	public static float toFloat(short half) {
+		return TO_FLOAT[half & 0xFFFF];
+	}
+	
+	/** Rounds a float to the nearest half. Anything 65520 or bigger becomes infinity; NaNs stay NaNs. */
+	public static short fromFloat(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int magnitude = bits & 0x7FFFFFFF;
+		int half;
+		if (magnitude>=0x47800000) {
+			//2^16 and up: infinity, or a NaN keeping the top of its payload, made quiet so it can't turn into infinity
+			half = (magnitude>0x7F800000) ? 0x7E00 | ((magnitude >>> 13) & 0x3FF) : 0x7C00;
+		} else if (magnitude<0x38800000) {
+			//Below the smallest normal half. Adding 0.5 lines the last bit of a subnormal half up with the last bit of the
+			//float, so the float addition does the rounding, and what's left in the low bits is the half
+			half = Float.floatToRawIntBits(Float.intBitsToFloat(magnitude) + 0.5f) - 0x3F000000;
+		} else {
+			//Rebias the exponent, then add just under half a half-ulp, plus one if the kept part is odd, and truncate. A
+			//mantissa which rounds up carries into the exponent, which is right even when it carries all the way to infinity
+			half = (magnitude - ((127 - 15) << 23) + 0xFFF + ((magnitude >>> 13) & 1)) >>> 13;
+		}
+		return (short) (sign | half);
+	}
+	
+	/** Rounds a double to the nearest half, rounding only once. */
+	public static short fromDouble(double value) {
+		float rounded = (float) value;
+		if (rounded!=value && value==value) {
+			//Rounding to float and then to half could round twice in the same direction. Rounding an inexact value to whichever
+			//neighbouring float is odd instead keeps a trace of what was lost, so the second rounding comes out right
+			int bits = Float.floatToRawIntBits(rounded);
+			if ((bits & 1)==0) bits += (Math.abs(rounded)>Math.abs(value)) ? -1 : 1;
+			rounded = Float.intBitsToFloat(bits);
+		}
+		return fromFloat(rounded);
+	}
+	
+	/** Converts count halves to floats, for the bulk instructions. */
+	public static void toFloats(short[] halves, float[] floats, int count) {
+		for(int i=0; i<count; i++) floats[i] = TO_FLOAT[halves[i] & 0xFFFF];
+	}
+	
+	/** Rounds count floats to halves, for the bulk instructions. */
+	public static void fromFloats(float[] floats, short[] halves, int count) {
+		for(int i=0; i<count; i++) halves[i] = fromFloat(floats[i]);
+	}
+}
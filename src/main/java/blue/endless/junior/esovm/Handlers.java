@@ -0,0 +1,100 @@
+package blue.endless.junior.esovm;
+
+/**
+ * Handler indices for pre-decoded instructions. The Decoder picks exactly one of these for every instruction, so by the
+ * time VMThread dispatches, the opcode, data type and operand mode have all been folded into a single switch key.
+ *
+ * <p>Most handlers come in families of eight, one per data type: the specialized handler for an instruction is the family
+ * base plus its {@code DATA_} constant. ALU families additionally come in a register and an immediate flavor.
+ */
+final class Handlers {
+	/** The instruction couldn't be decoded. Executing it re-runs the decoder to raise the precise error. */
+	public static final int FAULT   = 0x00;
+	/** Sentinel placed one past the last instruction, so running off the end of the program doesn't need a bounds check. */
+	public static final int END     = 0x01;
+	public static final int HALT    = 0x02;
+	/**
+	 * Unconditional jump to b. Like the conditional jumps, d is normally zero, but is the number of jumps skipped over if the
+	 * {@link Peephole} pass threaded this one straight through to their target; they still count as executed.
+	 */
+	public static final int JUMP    = 0x03;
+	/** Rarely-used instructions which are executed straight from the raw bytes instead of being specialized. */
+	public static final int GENERIC = 0x04;
+	/** Port read. Since the thread may have to stop and wait here, the data type travels in the a field instead of the handler. */
+	public static final int IN      = 0x05;
+	/** A JUMP whose target is at or before the jump itself. Only the verified loop treats these differently, counting them towards JIT compilation. */
+	public static final int JUMP_BACK = 0x06;
+
+	public static final int LOAD_REGISTER  = 0x08;
+	public static final int LOAD_IMMEDIATE = 0x10;
+	public static final int STORE_REGISTER = 0x18;
+	public static final int PUSH           = 0x20;
+	public static final int POP            = 0x28;
+	public static final int TEST           = 0x30;
+	/** Family of conditional jumps - add the condition code rather than a data type. */
+	public static final int CJUMP          = 0x38;
+
+	public static final int ADD_REGISTER  = 0x40;
+	public static final int ADD_IMMEDIATE = 0x48;
+	public static final int SUB_REGISTER  = 0x50;
+	public static final int SUB_IMMEDIATE = 0x58;
+	public static final int MUL_REGISTER  = 0x60;
+	public static final int MUL_IMMEDIATE = 0x68;
+	public static final int DIV_REGISTER  = 0x70;
+	public static final int DIV_IMMEDIATE = 0x78;
+	public static final int MOD_REGISTER  = 0x80;
+	public static final int MOD_IMMEDIATE = 0x88;
+	public static final int SHL_REGISTER  = 0x90;
+	public static final int SHL_IMMEDIATE = 0x98;
+	public static final int SHR_REGISTER  = 0xA0;
+	public static final int SHR_IMMEDIATE = 0xA8;
+	public static final int ASR_REGISTER  = 0xB0;
+	public static final int ASR_IMMEDIATE = 0xB8;
+	
+	/** Conditional jumps whose target is at or before the jump. See {@link #JUMP_BACK}. */
+	public static final int CJUMP_BACK    = 0xC0;
+	
+	/**
+	 * Loads and stores through a memory operand, one per data type. The address is computed by
+	 * {@link VMThread#memoryAddress(StackFrame, int, int)}: the base word register is in the low 8 bits of a (LOAD) or d
+	 * (STORE), the operand mode is in the bits above it, and b holds the immediate or register offset.
+	 */
+	public static final int LOAD_MEMORY        = 0xC8;
+	public static final int STORE_MEMORY       = 0xD0;
+	public static final int ALLOCATE_REGISTER  = 0xD8;
+	public static final int ALLOCATE_IMMEDIATE = 0xD9;
+	public static final int FREE               = 0xDA;
+	
+	/**
+	 * Loads from the constant pool, with b holding the index. Only int64, float64 and word have handlers in this family, since
+	 * constants of every other type are folded into immediates when the program is decoded.
+	 */
+	public static final int LOAD_CONSTANT      = 0xE0;
+	
+	/** b holds the string constant naming the function to call. */
+	public static final int CALL               = 0xE8;
+	public static final int RETURN             = 0xE9;
+	
+	/*
+	 * Superinstructions, written over the first instruction of a pair by the Peephole pass. The second instruction's slot is
+	 * left alone, so jumps can still land on it. The checked loop treats each of these as its first instruction alone, so
+	 * every field keeps the meaning it had there; only the verified loop runs both halves in one dispatch.
+	 */
+	/** TEST followed by CJUMP, for int32, int64 and word. d holds the condition code, a the register, b the jump target. */
+	public static final int TEST_CJUMP         = 0xF0;
+	/** ADD of an immediate followed by a TEST of the result, for int32, int64 and word. */
+	public static final int ADD_IMMEDIATE_TEST = 0xF8;
+	/** SUB of an immediate followed by a TEST of the result, for int32, int64 and word. */
+	public static final int SUB_IMMEDIATE_TEST = 0x100;
+	/** PUSH followed by a POP of the same type: a is the register pushed, d the one popped into. */
+	public static final int PUSH_POP           = 0x108;
+	/** LOAD_REGISTER followed by a STORE_REGISTER putting the same value back where it came from, which is skipped. */
+	public static final int LOAD_STORE         = 0x110;
+
+	private Handlers() {}
+
+	/** Returns the register-operand family for an ALU opcode from OPCODE_ADD through OPCODE_ASR. Add 8 for the immediate family. */
+	public static int alu(int opcode) {
+		return ADD_REGISTER + ((opcode - VMThread.OPCODE_ADD) << 4);
+	}
+}
@@ -0,0 +1,435 @@
+package blue.endless.junior.esovm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The EsoVM heap, which backs ALLOCATE, FREE, and the memory operand modes of LOAD and STORE. All of its memory is
+ * off-heap (direct ByteBuffers), so big buffers allocated by scripts don't add to the Java heap or to GC pause times.
+ *
+ * <p>Addresses are words. The high bits select a {@link #PAGE_SIZE}-byte page from the page table, and the low 16 bits are
+ * the offset into it. Page 0 is never mapped, so address 0 is the null address and anything near it faults.
+ * <pre>
+ *   [ page number (48 bits) ][ offset (16 bits) ]
+ * </pre>
+ *
+ * <p>Small blocks come in power-of-two size classes from 16 bytes up to {@link #MAX_SMALL_BLOCK} bytes. They're carved
+ * off the current page by a bump allocator, and freed blocks go on a per-class free list. Anything bigger is given a run of
+ * pages of its own, backed by one buffer so it's contiguous, and the run is unmapped again when freed.
+ *
+ * <p>None of the allocator's bookkeeping lives in memory a script can write to. Each page small blocks are carved from has
+ * a table, kept beside the page rather than in it, with the size class of every live block that starts there; the free
+ * lists are plain arrays; and a large block's length is the length of its buffer. So a script scribbling over its own
+ * blocks, or over blocks it has freed, can never talk the heap into freeing or handing out memory that isn't free.
+ *
+ * <p>Accesses are only checked against the pages that are mapped, not against the bounds of individual blocks - the same
+ * guarantee native code gets from an MMU. The heap is not thread-safe.
+ *
+ * <p>{@link #fork()} makes a copy-on-write copy of the heap: both heaps keep using the same buffers, with every page marked
+ * shared, and whichever heap first writes to a shared page gets a private copy of it (or of the whole run, for a large
+ * block). A fork only costs memory for the pages it actually writes.
+ */
+public class Heap {
+	public static final int PAGE_SHIFT = 16;
+	public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	/** The largest block that's allocated from a size class rather than given pages of its own. */
+	public static final int MAX_SMALL_BLOCK = 32768;
+	/** The largest block that can be allocated. Buffers are indexed with ints, so that's as many pages as one can hold. */
+	public static final long MAX_BLOCK = (long) (Integer.MAX_VALUE >> PAGE_SHIFT) << PAGE_SHIFT;
+	
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+	private static final int MIN_BLOCK_SHIFT = 4;
+	private static final int MIN_BLOCK_SIZE = 1 << MIN_BLOCK_SHIFT;
+	private static final int SIZE_CLASSES = PAGE_SHIFT - MIN_BLOCK_SHIFT;
+	
+	/** The buffer backing each mapped page. A run of pages for a large block shares a single buffer. */
+	protected ByteBuffer[] pages = new ByteBuffer[16];
+	/** Where each page starts within its buffer: zero for ordinary pages, or a multiple of PAGE_SIZE inside a run. */
+	protected int[] pageOffsets = new int[16];
+	/** Set for pages whose buffer may also be mapped by another heap, and so has to be copied before it's written to. */
+	protected boolean[] shared = new boolean[16];
+	/**
+	 * For pages small blocks are carved from, the size class plus one of the live block starting at each multiple of
+	 * MIN_BLOCK_SIZE, or zero where no live block starts. Null for every other page. Shared along with the page.
+	 */
+	protected byte[][] blockClasses = new byte[16][];
+	/** No page below this index is unmapped. Page 0 is reserved, so the search always starts at 1 or above. */
+	protected int firstUnmappedHint = 1;
+	protected int mappedPages = 0;
+	
+	/** The addresses of the free blocks of each size class. Only the first freeCounts[sizeClass] entries are in use. */
+	protected long[][] freeLists = new long[SIZE_CLASSES][16];
+	protected int[] freeCounts = new int[SIZE_CLASSES];
+	/** The next unused byte of the page small blocks are being carved from, and the end of that page. */
+	protected long bumpPointer = 0;
+	protected long bumpLimit = 0;
+	
+	protected long allocatedBytes = 0;
+	
+	/**
+	 * Allocates a block able to hold {@code size} bytes and returns its address. The contents of the block are undefined.
+	 * Throws a VMMemoryException if the size is negative or more than {@link #MAX_BLOCK}, or the memory can't be reserved.
+	 */
+	public long allocate(long size) throws VMMemoryException {
+		if (size<0) throw new VMMemoryException("Can't allocate a negative amount of memory ("+size+" bytes)");
+		if (size>MAX_BLOCK) throw new VMMemoryException("Can't allocate a block of "+size+" bytes");
+		
+		if (size <= MAX_SMALL_BLOCK) {
+			int sizeClass = sizeClass((int) size);
+			int blockSize = MIN_BLOCK_SIZE << sizeClass;
+			long address;
+			if (freeCounts[sizeClass]>0) {
+				address = freeLists[sizeClass][--freeCounts[sizeClass]];
+			} else {
+				if (bumpPointer + blockSize > bumpLimit) nextBumpPage();
+				address = bumpPointer;
+				bumpPointer += blockSize;
+			}
+			setBlockClass(address, sizeClass + 1);
+			allocatedBytes += blockSize;
+			return address;
+		}
+		
+		int count = (int) ((size + PAGE_MASK) >> PAGE_SHIFT);
+		long address = (long) mapPages(count) << PAGE_SHIFT;
+		allocatedBytes += (long) count << PAGE_SHIFT;
+		return address;
+	}
+	
+	/**
+	 * Frees the block at address, which must have come from {@link #allocate(long)} and must not have been freed already.
+	 * Freeing the null address does nothing.
+	 */
+	public void free(long address) throws VMMemoryException {
+		if (address==0) return;
+		long index = address >>> PAGE_SHIFT;
+		if (address>0 && index<pages.length && pages[(int) index]!=null) {
+			int page = (int) index;
+			int offset = (int) address & PAGE_MASK;
+			byte[] classes = blockClasses[page];
+			if (classes!=null) {
+				int sizeClass = ((offset & (MIN_BLOCK_SIZE-1))==0) ? classes[offset >> MIN_BLOCK_SHIFT] - 1 : -1;
+				if (sizeClass>=0) {
+					setBlockClass(address, 0);
+					pushFree(sizeClass, address);
+					allocatedBytes -= MIN_BLOCK_SIZE << sizeClass;
+					return;
+				}
+			} else if (offset==0 && pageOffsets[page]==0) {
+				//The first page of a run. Its buffer spans exactly the run's pages
+				int count = pages[page].capacity() >> PAGE_SHIFT;
+				unmapPages(page, count);
+				allocatedBytes -= (long) count << PAGE_SHIFT;
+				return;
+			}
+		}
+		throw new VMMemoryException("Can't free 0x"+Long.toHexString(address)+": it isn't the address of an allocated block");
+	}
+	
+	/** Returns the number of bytes in live blocks, rounded up to their size classes or whole pages. */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+	
+	/** Returns the number of bytes of off-heap memory currently mapped into the heap. */
+	public long getMappedBytes() {
+		return (long) mappedPages << PAGE_SHIFT;
+	}
+	
+	/**
+	 * Returns a copy-on-write copy of this heap, with the same blocks at the same addresses. Writes to either heap are never
+	 * seen by the other. Forking a heap which nothing writes to, like the one held by a {@link Snapshot}, is safe from
+	 * several threads at once.
+	 */
+	public Heap fork() {
+		for(int i=0; i<pages.length; i++) {
+			//Only write where needed, so forking an already-shared heap doesn't write to it at all
+			if (pages[i]!=null && !shared[i]) shared[i] = true;
+		}
+		Heap copy = new Heap();
+		copy.pages = pages.clone();
+		copy.pageOffsets = pageOffsets.clone();
+		copy.shared = shared.clone();
+		copy.blockClasses = blockClasses.clone();
+		copy.firstUnmappedHint = firstUnmappedHint;
+		copy.mappedPages = mappedPages;
+		copy.freeLists = new long[SIZE_CLASSES][];
+		for(int i=0; i<SIZE_CLASSES; i++) copy.freeLists[i] = Arrays.copyOf(freeLists[i], Math.max(freeCounts[i], 16));
+		copy.freeCounts = freeCounts.clone();
+		copy.bumpPointer = bumpPointer;
+		copy.bumpLimit = bumpLimit;
+		copy.allocatedBytes = allocatedBytes;
+		return copy;
+	}
+	
+	/** Unmaps every page, invalidating every address handed out so far. */
+	public void clear() {
+		Arrays.fill(pages, null);
+		Arrays.fill(pageOffsets, 0);
+		Arrays.fill(shared, false);
+		Arrays.fill(blockClasses, null);
+		Arrays.fill(freeCounts, 0);
+		firstUnmappedHint = 1;
+		mappedPages = 0;
+		bumpPointer = 0;
+		bumpLimit = 0;
+		allocatedBytes = 0;
+	}
+	
+	public byte getInt8(long address) throws VMMemoryException {
+		int page = page(address, 1);
+		return pages[page].get(pageOffsets[page] + ((int) address & PAGE_MASK));
+	}
+	
+	public short getInt16(long address) throws VMMemoryException {
+		int page = page(address, 2);
+		return pages[page].getShort(pageOffsets[page] + ((int) address & PAGE_MASK));
+	}
+	
+	public int getInt32(long address) throws VMMemoryException {
+		int page = page(address, 4);
+		return pages[page].getInt(pageOffsets[page] + ((int) address & PAGE_MASK));
+	}
+	
+	public long getInt64(long address) throws VMMemoryException {
+		int page = page(address, 8);
+		return pages[page].getLong(pageOffsets[page] + ((int) address & PAGE_MASK));
+	}
+	
+	public short getFloat16(long address) throws VMMemoryException {
+		return getInt16(address);
+	}
+	
+	public float getFloat32(long address) throws VMMemoryException {
+		int page = page(address, 4);
+		return pages[page].getFloat(pageOffsets[page] + ((int) address & PAGE_MASK));
+	}
+	
+	public double getFloat64(long address) throws VMMemoryException {
+		int page = page(address, 8);
+		return pages[page].getDouble(pageOffsets[page] + ((int) address & PAGE_MASK));
+	}
+	
+	public long getWord(long address) throws VMMemoryException {
+		return getInt64(address);
+	}
+	
+	public void putInt8(long address, byte value) throws VMMemoryException {
+		int page = writablePage(address, 1);
+		pages[page].put(pageOffsets[page] + ((int) address & PAGE_MASK), value);
+	}
+	
+	public void putInt16(long address, short value) throws VMMemoryException {
+		int page = writablePage(address, 2);
+		pages[page].putShort(pageOffsets[page] + ((int) address & PAGE_MASK), value);
+	}
+	
+	public void putInt32(long address, int value) throws VMMemoryException {
+		int page = writablePage(address, 4);
+		pages[page].putInt(pageOffsets[page] + ((int) address & PAGE_MASK), value);
+	}
+	
+	public void putInt64(long address, long value) throws VMMemoryException {
+		int page = writablePage(address, 8);
+		pages[page].putLong(pageOffsets[page] + ((int) address & PAGE_MASK), value);
+	}
+	
+	public void putFloat16(long address, short value) throws VMMemoryException {
+		putInt16(address, value);
+	}
+	
+	public void putFloat32(long address, float value) throws VMMemoryException {
+		int page = writablePage(address, 4);
+		pages[page].putFloat(pageOffsets[page] + ((int) address & PAGE_MASK), value);
+	}
+	
+	public void putFloat64(long address, double value) throws VMMemoryException {
+		int page = writablePage(address, 8);
+		pages[page].putDouble(pageOffsets[page] + ((int) address & PAGE_MASK), value);
+	}
+	
+	public void putWord(long address, long value) throws VMMemoryException {
+		putInt64(address, value);
+	}
+	
+	/** Copies {@code length} bytes starting at address into dest. Used to move data between scripts and the host. */
+	public void getBytes(long address, byte[] dest, int offset, int length) throws VMMemoryException {
+		while(length>0) {
+			int chunk = Math.min(length, PAGE_SIZE - ((int) address & PAGE_MASK));
+			int page = page(address, chunk);
+			ByteBuffer buffer = pages[page].duplicate();
+			buffer.position(pageOffsets[page] + ((int) address & PAGE_MASK));
+			buffer.get(dest, offset, chunk);
+			address += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+	
+	/** Copies {@code length} bytes from src into the heap starting at address. */
+	public void putBytes(long address, byte[] src, int offset, int length) throws VMMemoryException {
+		while(length>0) {
+			int chunk = Math.min(length, PAGE_SIZE - ((int) address & PAGE_MASK));
+			int page = writablePage(address, chunk);
+			ByteBuffer buffer = pages[page].duplicate();
+			buffer.position(pageOffsets[page] + ((int) address & PAGE_MASK));
+			buffer.put(src, offset, chunk);
+			address += chunk;
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+	
+	/**
+	 * Returns a little-endian view of the {@code length} bytes starting at address, for instructions which work on many
+	 * elements at once. Like any other access, the bytes must all be mapped, and may only span pages of the same run.
+	 */
+	ByteBuffer region(long address, int length) throws VMMemoryException {
+		int page = page(address, length);
+		return view(pages[page], pageOffsets[page] + ((int) address & PAGE_MASK), length);
+	}
+	
+	/** Same as {@link #region(long, int)}, but the region may be written to. */
+	ByteBuffer writableRegion(long address, int length) throws VMMemoryException {
+		int page = writablePage(address, length);
+		return view(pages[page], pageOffsets[page] + ((int) address & PAGE_MASK), length);
+	}
+	
+	private static ByteBuffer view(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	/**
+	 * Returns the index of the page address falls in, if an access of {@code width} bytes there stays inside mapped memory.
+	 * Accesses may only cross into the next page when both pages belong to the same run.
+	 */
+	protected int page(long address, int width) throws VMMemoryException {
+		long index = address >>> PAGE_SHIFT;
+		if (index < pages.length) {
+			ByteBuffer buffer = pages[(int) index];
+			if (buffer!=null && pageOffsets[(int) index] + ((int) address & PAGE_MASK) + width <= buffer.capacity()) return (int) index;
+		}
+		throw new VMMemoryException("Invalid memory access at 0x"+Long.toHexString(address));
+	}
+	
+	/** Same as {@link #page(long, int)}, but first gives this heap its own copy of the page if it's shared. */
+	protected int writablePage(long address, int width) throws VMMemoryException {
+		int page = page(address, width);
+		if (shared[page]) unshare(page);
+		return page;
+	}
+	
+	/** Replaces a shared page, and the rest of its run if it's part of one, with a private copy, block table included. */
+	private void unshare(int page) throws VMMemoryException {
+		ByteBuffer buffer = pages[page];
+		int start = page - (pageOffsets[page] >> PAGE_SHIFT);
+		int count = buffer.capacity() >> PAGE_SHIFT;
+		ByteBuffer copy;
+		try {
+			copy = ByteBuffer.allocateDirect(buffer.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+		} catch (OutOfMemoryError err) {
+			throw new VMMemoryException("Out of memory: couldn't copy "+buffer.capacity()+" shared bytes", err);
+		}
+		ByteBuffer source = buffer.duplicate();
+		source.clear();
+		copy.put(source);
+		for(int i=0; i<count; i++) {
+			pages[start + i] = copy;
+			shared[start + i] = false;
+			if (blockClasses[start + i]!=null) blockClasses[start + i] = blockClasses[start + i].clone();
+		}
+	}
+	
+	/** Returns the smallest size class whose blocks hold {@code blockSize} bytes. */
+	private static int sizeClass(int blockSize) {
+		if (blockSize <= MIN_BLOCK_SIZE) return 0;
+		return 32 - Integer.numberOfLeadingZeros(blockSize - 1) - MIN_BLOCK_SHIFT;
+	}
+	
+	/** Records value, a size class plus one or zero, as the block at address in its page's block table. */
+	private void setBlockClass(long address, int value) throws VMMemoryException {
+		int page = (int) (address >>> PAGE_SHIFT);
+		if (shared[page]) unshare(page);
+		blockClasses[page][((int) address & PAGE_MASK) >> MIN_BLOCK_SHIFT] = (byte) value;
+	}
+	
+	private void pushFree(int sizeClass, long address) {
+		long[] list = freeLists[sizeClass];
+		if (freeCounts[sizeClass]==list.length) list = freeLists[sizeClass] = Arrays.copyOf(list, list.length * 2);
+		list[freeCounts[sizeClass]++] = address;
+	}
+	
+	/**
+	 * Starts carving small blocks out of a fresh page. Whatever's left of the old page is split into the largest blocks that
+	 * fit and put on the free lists, so nothing is wasted.
+	 */
+	private void nextBumpPage() throws VMMemoryException {
+		long remaining = bumpLimit - bumpPointer;
+		for(int sizeClass=SIZE_CLASSES-1; sizeClass>=0 && remaining>0; sizeClass--) {
+			int blockSize = MIN_BLOCK_SIZE << sizeClass;
+			while(remaining >= blockSize) {
+				pushFree(sizeClass, bumpPointer);
+				bumpPointer += blockSize;
+				remaining -= blockSize;
+			}
+		}
+		
+		int page = mapPages(1);
+		blockClasses[page] = new byte[PAGE_SIZE >> MIN_BLOCK_SHIFT];
+		bumpPointer = (long) page << PAGE_SHIFT;
+		bumpLimit = bumpPointer + PAGE_SIZE;
+	}
+	
+	/** Maps a run of {@code count} consecutive pages backed by one new buffer, and returns the index of the first. */
+	private int mapPages(int count) throws VMMemoryException {
+		int start = firstUnmappedHint;
+		int run = 0;
+		while(run<count) {
+			if (start + run >= pages.length) {
+				int newLength = Math.max(pages.length * 2, start + count);
+				pages = Arrays.copyOf(pages, newLength);
+				pageOffsets = Arrays.copyOf(pageOffsets, newLength);
+				shared = Arrays.copyOf(shared, newLength);
+				blockClasses = Arrays.copyOf(blockClasses, newLength);
+			}
+			if (pages[start + run]==null) {
+				run++;
+			} else {
+				start = start + run + 1;
+				run = 0;
+			}
+		}
+		
+		ByteBuffer buffer;
+		try {
+			buffer = ByteBuffer.allocateDirect(count << PAGE_SHIFT).order(ByteOrder.LITTLE_ENDIAN);
+		} catch (OutOfMemoryError err) {
+			throw new VMMemoryException("Out of memory: couldn't map "+((long) count << PAGE_SHIFT)+" more bytes", err);
+		}
+		for(int i=0; i<count; i++) {
+			pages[start + i] = buffer;
+			pageOffsets[start + i] = i << PAGE_SHIFT;
+			shared[start + i] = false;
+			blockClasses[start + i] = null;
+		}
+		if (start==firstUnmappedHint) firstUnmappedHint = start + count;
+		mappedPages += count;
+		return start;
+	}
+	
+	/** Drops a run of pages. The buffer's native memory is released once the JVM collects it. */
+	private void unmapPages(int start, int count) {
+		for(int i=0; i<count; i++) {
+			pages[start + i] = null;
+			pageOffsets[start + i] = 0;
+			shared[start + i] = false;
+			blockClasses[start + i] = null;
+		}
+		if (start<firstUnmappedHint) firstUnmappedHint = start;
+		mappedPages -= count;
+	}
+}
@@ -0,0 +1,130 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Counts how often each pair of adjacent instructions occurs, across however many programs are added, to show which idioms
+ * are common enough to be worth a superinstruction (see {@link Peephole}). Pairs are told apart by opcode and, for opcodes
+ * where it matters, data type. A pair is only counted where the second instruction can follow on from the first, so not
+ * after a JUMP, RETURN or HALT.
+ */
+public class IdiomCounter {
+	private static final String[] TYPE_NAMES = { "i8", "i16", "i32", "i64", "f16", "f32", "f64", "word" };
+	private static final String[] OPCODE_NAMES = new String[256];
+	
+	static {
+		for(Field field : VMThread.class.getFields()) {
+			if (!field.getName().startsWith("OPCODE_") || !Modifier.isStatic(field.getModifiers())) continue;
+			try {
+				OPCODE_NAMES[field.getInt(null)] = field.getName().substring(7).toLowerCase(Locale.ROOT);
+			} catch (IllegalAccessException ex) {
+				throw new ExceptionInInitializerError(ex);
+			}
+		}
+	}
+	
+	/** Counts keyed by {@link #key(int, int)} of the first instruction in the high half and of the second in the low half. */
+	protected final HashMap<Integer, long[]> counts = new HashMap<>();
+	protected long pairs = 0L;
+	protected int programs = 0;
+	
+	/** Counts the idioms in a bare program. */
+	public void add(byte[] program) {
+		count(program, 0, program.length & ~0x7);
+		programs++;
+	}
+	
+	/** Counts the idioms in every function of a module, loading any which haven't been yet. */
+	public void add(Module module) {
+		for(Module.Function function : module.getFunctions()) {
+			module.load(function);
+			count(module.getProgram(), function.getStart(), function.getEnd());
+		}
+		programs++;
+	}
+	
+	/** Returns the number of times the pair has been seen. Data types are ignored for opcodes which don't have one. */
+	public long getCount(int firstOpcode, int firstDataType, int secondOpcode, int secondDataType) {
+		long[] count = counts.get((key(firstOpcode, firstDataType) << 16) | key(secondOpcode, secondDataType));
+		return (count==null) ? 0L : count[0];
+	}
+	
+	/** Returns the total number of pairs counted. */
+	public long getPairs() {
+		return pairs;
+	}
+	
+	public int getPrograms() {
+		return programs;
+	}
+	
+	/**
+	 * Returns the most common idioms, most common first, one per line: the count, its share of all pairs counted, and the
+	 * pair itself, like {@code "  4120  12.5%  test.i32 cjump"}.
+	 */
+	public List<String> report(int limit) {
+		List<Map.Entry<Integer, long[]>> entries = new ArrayList<>(counts.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+		
+		List<String> lines = new ArrayList<>();
+		for(int i=0; i<entries.size() && i<limit; i++) {
+			int key = entries.get(i).getKey();
+			long count = entries.get(i).getValue()[0];
+			lines.add(String.format(Locale.ROOT, "%6d %5.1f%%  %s %s", count, count * 100.0 / pairs, name(key >>> 16), name(key & 0xFFFF)));
+		}
+		return lines;
+	}
+	
+	protected void count(byte[] program, int start, int end) {
+		for(int pc=start; pc+8<end; pc+=8) {
+			int opcode = program[pc] & 0xFF;
+			if (opcode==OPCODE_JUMP || opcode==OPCODE_RETURN || opcode==OPCODE_HALT) continue;
+			int first = key(opcode, (program[pc+1] >>> 4) & 0x0F);
+			int second = key(program[pc+8] & 0xFF, (program[pc+9] >>> 4) & 0x0F);
+			long[] count = counts.get((first << 16) | second);
+			if (count==null) counts.put((first << 16) | second, count = new long[1]);
+			count[0]++;
+			pairs++;
+		}
+	}
+	
+	/** Packs an opcode and, if it's one that has one, its data type into 16 bits. */
+	private static int key(int opcode, int dataType) {
+		return (hasDataType(opcode) && dataType<TYPE_NAMES.length) ? (opcode << 8) | (dataType + 1) : opcode << 8;
+	}
+	
+	private static boolean hasDataType(int opcode) {
+		switch(opcode) {
+		case OPCODE_ALLOCATE:
+		case OPCODE_FREE:
+		case OPCODE_CALL:
+		case OPCODE_JUMP:
+		case OPCODE_CJUMP:
+		case OPCODE_RETURN:
+		case OPCODE_INTERRUPT:
+		case OPCODE_HALT:
+			return false;
+		default:
+			return true;
+		}
+	}
+	
+	/** Returns the name of an opcode, like "cjump", or its number in hex if it doesn't have one. */
+	static String opcodeName(int opcode) {
+		return (OPCODE_NAMES[opcode]!=null) ? OPCODE_NAMES[opcode] : "0x"+Integer.toHexString(opcode);
+	}
+	
+	private static String name(int key) {
+		String name = opcodeName(key >>> 8);
+		int dataType = (key & 0xFF) - 1;
+		return (dataType<0) ? name : name+"."+TYPE_NAMES[dataType];
+	}
+}
@@ -0,0 +1,350 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Load-time inliner. Splices the bodies of small functions into the functions which call them, so those calls no longer
+ * push a frame or move their arguments and results between operand stacks.
+ *
+ * <p>An inlined body gets registers of its own, past the end of each of the caller's LVT pools, so the caller's lvtInfo
+ * grows by the largest callee inlined into it (bodies never run at the same time, so they all share the same registers).
+ * Registers the body reads are zeroed first, just as a new frame's would be. Its jumps are retargeted to where the body
+ * landed, and each RETURN becomes a jump to the instruction after the call. Arguments and results stay exactly where they
+ * were: the callee pops its arguments off the caller's operand stack and pushes its results onto it.
+ *
+ * <p>Only calls which resolve to another function of the same module are inlined, since a call always prefers a function of
+ * its own module (see {@link Linker}), so nothing short of replacing the whole module can redefine the callee - and a module
+ * loaded to replace it goes through the inliner again. A callee must also:
+ *
+ * <ul>
+ *   <li>be no longer than the threshold, in instructions
+ *   <li>pass verification, as must the caller
+ *   <li>not call itself
+ *   <li>return with exactly its results on the operand stack, since there's no frame to throw the rest away with
+ *   <li>fit: the caller's LVT pools plus the callee's must hold no more than 255 entries of each type
+ * </ul>
+ *
+ * <p>Calls inside an inlined body are left as calls; only one level is inlined.
+ */
+public final class Inliner {
+	/** A reasonable threshold: big enough for accessors and arithmetic helpers, small enough not to bloat callers. */
+	public static final int DEFAULT_THRESHOLD = 16;
+	
+	private Inliner() {}
+	
+	/**
+	 * Returns a new module like this one, but with calls to functions of at most threshold instructions inlined. Every
+	 * function is loaded. If there's nothing to inline, or threshold is zero or less, the module itself is returned.
+	 */
+	public static Module inline(Module module, int threshold) throws VMException {
+		if (threshold<=0) return module;
+		List<Module.Function> functions = module.getFunctions();
+		for(Module.Function function : functions) module.load(function);
+		byte[] program = module.getProgram();
+		ConstantPool constants = module.getConstants();
+		int count = program.length >> 3;
+		
+		HashMap<Module.Function, int[]> depths = new HashMap<>();
+		for(Module.Function function : functions) {
+			try {
+				depths.put(function, Verifier.depths(module, function));
+			} catch (VMVerificationException ex) {
+				//Left exactly as it is, to fault the same way at runtime
+			}
+		}
+		
+		//Pick out the call sites to inline, and how many registers each caller needs for the bodies it gets
+		Module.Function[] sites = new Module.Function[count];
+		HashMap<Module.Function, int[]> extraRegisters = new HashMap<>();
+		for(Module.Function caller : functions) {
+			int[] callerDepths = depths.get(caller);
+			if (callerDepths==null) continue;
+			int first = caller.getStart() >> 3;
+			for(int i=0; i<callerDepths.length; i++) {
+				int pc = (first + i) << 3;
+				if (callerDepths[i]==-1 || (program[pc] & 0xFF)!=OPCODE_CALL) continue;
+				Module.Function callee = module.getFunction(constants.getString(Decoder.operand2(program, pc)));
+				if (callee==null || callee==caller || !isInlinable(program, constants, callee, depths.get(callee), threshold)) continue;
+				
+				boolean fits = true;
+				for(int type=0; type<8; type++) {
+					if (Verifier.lvtCount(caller.getLvtInfo(), type) + Verifier.lvtCount(callee.getLvtInfo(), type) > 255) fits = false;
+				}
+				if (!fits) continue;
+				int[] extra = extraRegisters.get(caller);
+				if (extra==null) extraRegisters.put(caller, extra = new int[8]);
+				for(int type=0; type<8; type++) {
+					extra[type] = Math.max(extra[type], Verifier.lvtCount(callee.getLvtInfo(), type));
+				}
+				sites[first + i] = callee;
+			}
+		}
+		if (extraRegisters.isEmpty()) return module;
+		
+		//Lay out the new program: every instruction keeps its order, and each inlined call grows into its callee's body
+		int[] map = new int[count + 1];
+		int length = 0;
+		for(int i=0; i<count; i++) {
+			map[i] = length;
+			length += (sites[i]==null) ? 1 : expansionLength(program, sites[i]);
+		}
+		map[count] = length;
+		
+		byte[] result = new byte[length << 3];
+		Module.Function[] owners = new Module.Function[count];
+		for(Module.Function function : functions) {
+			for(int i=function.getStart() >> 3; i<function.getEnd() >> 3; i++) owners[i] = function;
+		}
+		for(int i=0; i<count; i++) {
+			if (sites[i]==null) {
+				copy(program, i, result, map[i], map, 0, count, 0, null, null, null);
+			} else {
+				emitBody(program, sites[i], owners[i], result, map[i], map[i+1]);
+			}
+		}
+		
+		List<Module.Function> inlined = new ArrayList<>();
+		for(Module.Function function : functions) {
+			long lvtInfo = function.getLvtInfo();
+			int[] extra = extraRegisters.get(function);
+			if (extra!=null) {
+				for(int type=0; type<8; type++) lvtInfo += ((long) extra[type]) << lvtShift(type);
+			}
+			inlined.add(new Module.Function(
+					function.getName(),
+					map[function.getStart() >> 3] << 3,
+					map[function.getEnd() >> 3] << 3,
+					map[function.getEntry() >> 3] << 3,
+					lvtInfo, function.getArgumentBytes(), function.getResultBytes(), function.getFlags()));
+		}
+		return new Module(result, constants, inlined);
+	}
+	
+	private static boolean isInlinable(byte[] program, ConstantPool constants, Module.Function callee, int[] depths, int threshold) {
+		if (depths==null || depths.length==0 || depths.length>threshold) return false;
+		int first = callee.getStart() >> 3;
+		for(int i=0; i<depths.length; i++) {
+			if (depths[i]==-1) continue;
+			int pc = (first + i) << 3;
+			int opcode = program[pc] & 0xFF;
+			if (opcode==OPCODE_RETURN && depths[i]!=callee.getResultBytes()) return false;
+			if (opcode==OPCODE_CALL && constants.getString(Decoder.operand2(program, pc)).equals(callee.getName())) return false;
+		}
+		return true;
+	}
+	
+	/** Returns the number of instructions a call to callee turns into. */
+	private static int expansionLength(byte[] program, Module.Function callee) {
+		int[] reads = registersRead(program, callee);
+		int length = (callee.getEnd() - callee.getStart()) >> 3;
+		for(int bits : reads) length += Integer.bitCount(bits);
+		if (callee.getEntry()!=callee.getStart()) length++;
+		if (endsInReturn(program, callee)) length--;
+		return length;
+	}
+	
+	private static boolean endsInReturn(byte[] program, Module.Function callee) {
+		return (program[callee.getEnd() - 8] & 0xFF)==OPCODE_RETURN;
+	}
+	
+	/**
+	 * Writes the inlined body of callee at instruction index at of result, continuing at instruction index next. Registers are
+	 * moved up past those the caller already has.
+	 */
+	private static void emitBody(byte[] program, Module.Function callee, Module.Function caller, byte[] result, int at, int next) {
+		int[] offsets = new int[8];
+		for(int type=0; type<8; type++) offsets[type] = Verifier.lvtCount(caller.getLvtInfo(), type);
+		
+		//A new frame's registers would all be zero
+		int[] reads = registersRead(program, callee);
+		for(int type=0; type<8; type++) {
+			for(int register=0; register<256; register++) {
+				if ((reads[type*8 + (register >> 5)] & (1 << (register & 31)))==0) continue;
+				write(result, at++, OPCODE_LOAD, (type << 4) | OPERAND_IMMEDIATE, 0, offsets[type] + register, 0);
+			}
+		}
+		
+		int first = callee.getStart() >> 3;
+		int end = callee.getEnd() >> 3;
+		if (callee.getEntry()!=callee.getStart()) {
+			write(result, at, OPCODE_JUMP, 0, 0, 0, (at + 1 + (callee.getEntry() >> 3) - first) << 3);
+			at++;
+		}
+		int bodyStart = at;
+		for(int i=first; i<end; i++) {
+			int pc = i << 3;
+			if ((program[pc] & 0xFF)==OPCODE_RETURN) {
+				//The last RETURN simply falls through to the rest of the caller
+				if (i<end-1) write(result, bodyStart + i - first, OPCODE_JUMP, 0, 0, 0, next << 3);
+				continue;
+			}
+			copy(program, i, result, bodyStart + i - first, null, first, end, bodyStart, offsets, null, null);
+		}
+	}
+	
+	/**
+	 * Copies instruction index of program to instruction to of result. Jump targets are moved through map if there is one,
+	 * otherwise from [first, end) to wherever the body starting at bodyStart landed; registers are moved up by offsets if
+	 * there are any. If reads and writes aren't null, the registers the instruction reads and writes are recorded in them
+	 * instead of copying anything.
+	 */
+	private static void copy(byte[] program, int index, byte[] result, int to, int[] map, int first, int end, int bodyStart, int[] offsets, int[] reads, int[] writes) {
+		int pc = index << 3;
+		int opcode       =  program[pc] & 0xFF;
+		int dataType     = (program[pc+1] >>> 4) & 0x0F;
+		int operand2Type =  program[pc+1] & 0x0F;
+		int destination  =  program[pc+2] & 0xFF;
+		int operand1     =  program[pc+3] & 0xFF;
+		int operand2     = Decoder.operand2(program, pc);
+		
+		switch(opcode) {
+		case OPCODE_LOAD:
+		case OPCODE_STORE: {
+			boolean load = opcode==OPCODE_LOAD;
+			operand1 = register(operand1, dataType, offsets, load ? writes : reads);
+			if (operand2Type==OPERAND_REGISTER) operand2 = register(operand2, dataType, offsets, load ? reads : writes);
+			if (operand2Type>=OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET) {
+				destination = register(destination, DATA_WORD, offsets, reads);
+				if (operand2Type==OPERAND_REGISTER_ADDRESS_PLUS_REGISTER_OFFSET || operand2Type==OPERAND_INDIRECT_ADDRESS_WITH_REGISTER_OFFSET) {
+					operand2 = register(operand2, DATA_WORD, offsets, reads);
+				}
+			}
+			break;
+		}
+		case OPCODE_ALLOCATE:
+			operand1 = register(operand1, DATA_WORD, offsets, writes);
+			if (operand2Type==OPERAND_REGISTER) operand2 = register(operand2, DATA_WORD, offsets, reads);
+			break;
+		case OPCODE_FREE:
+			operand1 = register(operand1, DATA_WORD, offsets, reads);
+			break;
+		case OPCODE_PUSH:
+		case OPCODE_TEST:
+		case OPCODE_OUT:
+			operand1 = register(operand1, dataType, offsets, reads);
+			break;
+		case OPCODE_POP:
+		case OPCODE_IN:
+			operand1 = register(operand1, dataType, offsets, writes);
+			break;
+		case OPCODE_ADD:
+		case OPCODE_SUB:
+		case OPCODE_MUL:
+		case OPCODE_DIV:
+		case OPCODE_MOD:
+		case OPCODE_SHL:
+		case OPCODE_SHR:
+		case OPCODE_ASR:
+			destination = register(destination, dataType, offsets, writes);
+			operand1 = register(operand1, dataType, offsets, reads);
+			if (operand2Type==OPERAND_REGISTER) operand2 = register(operand2, dataType, offsets, reads);
+			break;
+		case OPCODE_CONVERT:
+			destination = register(destination, operand2Type, offsets, writes);
+			operand1 = register(operand1, dataType, offsets, reads);
+			break;
+		case OPCODE_MEMCOPY:
+		case OPCODE_MEMFILL:
+		case OPCODE_MEMCOMPARE:
+		case OPCODE_VECTOR_ADD:
+		case OPCODE_VECTOR_MUL:
+		case OPCODE_VECTOR_MULADD:
+			//Only the memory is written; the registers just hold addresses
+			destination = register(destination, DATA_WORD, offsets, reads);
+			if (opcode>=OPCODE_VECTOR_ADD) register(operand1+1, DATA_WORD, offsets, reads);
+			operand1 = register(operand1, (opcode==OPCODE_MEMFILL) ? dataType : DATA_WORD, offsets, reads);
+			if (operand2Type==OPERAND_REGISTER) operand2 = register(operand2, DATA_WORD, offsets, reads);
+			break;
+		case OPCODE_VECTOR_SUM:
+		case OPCODE_VECTOR_DOT:
+			destination = register(destination, dataType, offsets, writes);
+			if (opcode==OPCODE_VECTOR_DOT) register(operand1+1, DATA_WORD, offsets, reads);
+			operand1 = register(operand1, DATA_WORD, offsets, reads);
+			if (operand2Type==OPERAND_REGISTER) operand2 = register(operand2, DATA_WORD, offsets, reads);
+			break;
+		case OPCODE_CLOAD:
+		case OPCODE_CSTORE:
+			//Conditional writes keep the old value when the condition fails, so they count as reads too
+			destination = register(destination, dataType, offsets, reads);
+			if (operand2Type==OPERAND_REGISTER) operand2 = register(operand2, dataType, offsets, reads);
+			break;
+		case OPCODE_JUMP:
+		case OPCODE_CJUMP:
+			if ((operand2 & 0x7)==0 && operand2>=first << 3 && operand2<end << 3) {
+				operand2 = ((map!=null) ? map[operand2 >> 3] : bodyStart + (operand2 >> 3) - first) << 3;
+			}
+			break;
+		default:
+			break;
+		}
+		
+		if (reads==null) write(result, to, opcode, program[pc+1] & 0xFF, destination, operand1, operand2);
+	}
+	
+	/** Returns register moved up by the offset for its type, recording it in set if that isn't null. */
+	private static int register(int register, int dataType, int[] offsets, int[] set) {
+		if (dataType>=8) return register;
+		if (set!=null) set[dataType*8 + (register >> 5)] |= 1 << (register & 31);
+		return (offsets==null) ? register : register + offsets[dataType];
+	}
+	
+	/**
+	 * Returns the registers callee might read before writing them, which are the ones to zero, as a 256-bit set per data
+	 * type, in eight ints each. That's any register it reads at all, except ones which are always written first: the run of
+	 * instructions from the entry point up to the first jump, return or halt always runs before anything else does.
+	 */
+	private static int[] registersRead(byte[] program, Module.Function callee) {
+		int[] reads = new int[64];
+		int[] writes = new int[64];
+		for(int i=callee.getStart() >> 3; i<callee.getEnd() >> 3; i++) {
+			copy(program, i, null, 0, null, 0, 0, 0, null, reads, writes);
+		}
+		
+		int[] prefixReads = new int[64];
+		int[] written = new int[64];
+		for(int pc=callee.getEntry(); pc<callee.getEnd(); pc+=8) {
+			int opcode = program[pc] & 0xFF;
+			if (opcode==OPCODE_JUMP || opcode==OPCODE_CJUMP || opcode==OPCODE_RETURN || opcode==OPCODE_HALT) break;
+			int[] instructionReads = new int[64];
+			int[] instructionWrites = new int[64];
+			copy(program, pc >> 3, null, 0, null, 0, 0, 0, null, instructionReads, instructionWrites);
+			for(int i=0; i<64; i++) {
+				//Reads of a register come before the same instruction writes it
+				prefixReads[i] |= instructionReads[i] & ~written[i];
+				written[i] |= instructionWrites[i];
+			}
+		}
+		for(int i=0; i<64; i++) reads[i] &= ~written[i] | prefixReads[i];
+		return reads;
+	}
+	
+	private static void write(byte[] result, int index, int opcode, int types, int destination, int operand1, int operand2) {
+		int pc = index << 3;
+		result[pc  ] = (byte) opcode;
+		result[pc+1] = (byte) types;
+		result[pc+2] = (byte) destination;
+		result[pc+3] = (byte) operand1;
+		result[pc+4] = (byte) (operand2 >>> 24);
+		result[pc+5] = (byte) (operand2 >>> 16);
+		result[pc+6] = (byte) (operand2 >>>  8);
+		result[pc+7] = (byte)  operand2;
+	}
+	
+	/** Returns where a data type's count sits in an lvtInfo. */
+	private static int lvtShift(int dataType) {
+		switch(dataType) {
+		case DATA_INT8:    return 0;
+		case DATA_FLOAT16: return 8;
+		case DATA_INT16:   return 16;
+		case DATA_FLOAT32: return 24;
+		case DATA_INT32:   return 32;
+		case DATA_FLOAT64: return 40;
+		case DATA_INT64:   return 48;
+		default:           return 56;
+		}
+	}
+}
@@ -1,11 +1,83 @@
 package blue.endless.junior.esovm;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Path;
+
 public class Interpreter {
-	protected byte[] program;
-	protected int programCounter = 0;
-	protected Stack stack = new Stack(65536);
+	protected final Linker linker = new Linker();
+	protected Module module;
+	/** Functions of at most this many instructions are inlined into their callers as modules load; 0 turns inlining off. */
+	protected int inlineThreshold = 0;
+	
+	public void loadProgram(byte[] program, int mainFunctionPointer) throws VMException {
+		link(Module.of(program, new ConstantPool(), mainFunctionPointer, 0L));
+	}
+	
+	/**
+	 * Maps a module file. Functions are only read and decoded as threads call them. If a module is already loaded, this
+	 * reloads it: calls which reached the old version re-resolve to the new one.
+	 */
+	public void loadModule(Path path) throws IOException, VMException {
+		link(Module.load(path));
+	}
+	
+	protected void link(Module replacement) throws VMException {
+		if (module==null) {
+			linker.add(replacement);
+		} else {
+			linker.replace(module, replacement);
+		}
+		module = replacement;
+		
+		//Inlining comes after linking, so calls to other modules can be resolved to verify the callers
+		Module inlined = Inliner.inline(replacement, inlineThreshold);
+		if (inlined!=replacement) {
+			linker.replace(replacement, inlined);
+			module = inlined;
+		}
+	}
+	
+	public Module getModule() {
+		return module;
+	}
+	
+	public int getInlineThreshold() {
+		return inlineThreshold;
+	}
+	
+	/**
+	 * Sets the size, in instructions, of the largest function to inline into its callers when modules are loaded from now on,
+	 * or 0 to not inline anything. Inlining loads every function of a module up front rather than as it's first called. See
+	 * {@link Inliner}.
+	 */
+	public void setInlineThreshold(int threshold) {
+		this.inlineThreshold = threshold;
+	}
+	
+	public Linker getLinker() {
+		return linker;
+	}
+	
+	/**
+	 * Allows or forbids EsoVM code calling Java methods by name, which is off by default. Methods bound with
+	 * {@link #bind(String, MethodHandle)} are always allowed. Only turn this on for trusted code; see
+	 * {@link Linker#setJavaCallsAllowed(boolean)}.
+	 */
+	public void setJavaCallsAllowed(boolean allowed) {
+		linker.setJavaCallsAllowed(allowed);
+	}
+	
+	/** Makes a Java method callable from EsoVM code under the given name. */
+	public void bind(String name, MethodHandle handle) throws VMException {
+		linker.bind(name, handle);
+	}
 	
-	public void loadProgram(byte[] program, int mainFunctionPointer) {
-		stack.clear();
+	/** Creates a thread which runs the exported function with the given name. */
+	public VMThread createThread(String functionName) throws VMException {
+		if (module==null) throw new VMException("No module is loaded");
+		Module.Function function = module.getExport(functionName);
+		if (function==null) throw new VMException("The module doesn't export a function named \""+functionName+"\"");
+		return new VMThread(module, function);
 	}
 }
@@ -0,0 +1,102 @@
+package blue.endless.junior.esovm;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Resolves CALLs by name. A call looks for a function in the calling module first, then for an exported function of any
+ * other module added here, then for a Java method bound with {@link #bind(String, MethodHandle)}, and finally, if the host
+ * has turned it on with {@link #setJavaCallsAllowed(boolean)}, for a public static Java method whose fully-qualified binary
+ * name matches (see {@link NativeFunction#find(String, ClassLoader)}).
+ *
+ * <p>Each call site only resolves once: modules cache what every CALL resolved to, tagged with the linker's generation.
+ * Anything which could change what a name resolves to - adding, replacing or removing a module, binding a method, or
+ * switching Java calls on or off - bumps the generation, and every call site re-resolves the next time it runs.
+ */
+public class Linker {
+	protected final ArrayList<Module> modules = new ArrayList<>();
+	protected final HashMap<String, NativeFunction> bindings = new HashMap<>();
+	/** Java methods found by name, kept across generations since reflection is the slow part of linking. */
+	protected final HashMap<String, NativeFunction> javaMethods = new HashMap<>();
+	protected ClassLoader classLoader = Linker.class.getClassLoader();
+	protected boolean javaCallsAllowed = false;
+	protected volatile int generation = 1;
+	
+	/** Links a module, so its exports can be called from other modules, and its calls can reach theirs. */
+	public synchronized void add(Module module) throws VMException {
+		if (module.linker!=null) throw new VMException("The module is already linked");
+		module.linker = this;
+		modules.add(module);
+		generation++;
+	}
+	
+	/** Swaps a reloaded module in for the old version. Calls into it re-resolve to the new code the next time they run. */
+	public synchronized void replace(Module old, Module replacement) throws VMException {
+		int index = modules.indexOf(old);
+		if (index==-1) throw new VMException("The module being replaced isn't linked");
+		if (replacement.linker!=null) throw new VMException("The replacement module is already linked");
+		replacement.linker = this;
+		modules.set(index, replacement);
+		generation++;
+	}
+	
+	/** Unlinks a module. Threads already running its code may keep running it, but calls can no longer reach it by name. */
+	public synchronized void remove(Module module) {
+		if (modules.remove(module)) generation++;
+	}
+	
+	/** Makes a Java method callable under name, taking precedence over any Java method found by reflection. */
+	public synchronized void bind(String name, MethodHandle handle) throws VMException {
+		bindings.put(name, new NativeFunction(name, handle));
+		generation++;
+	}
+	
+	/**
+	 * Allows or forbids resolving calls to Java methods by name. It's off until this turns it on. Explicitly bound methods can
+	 * always be called.
+	 *
+	 * <p>Only allow this for trusted code. It lets every module linked here call any public static method of any class the
+	 * class loader can reach, with arguments of its choosing - {@code java.lang.System.exit} included. To give untrusted code
+	 * a few Java methods, {@link #bind(String, MethodHandle) bind} just those instead, or restrict what's reachable with
+	 * {@link #setClassLoader(ClassLoader)}.
+	 */
+	public synchronized void setJavaCallsAllowed(boolean allowed) {
+		javaCallsAllowed = allowed;
+		generation++;
+	}
+	
+	/** Sets the class loader Java classes named by calls are loaded with. */
+	public synchronized void setClassLoader(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+		javaMethods.clear();
+		generation++;
+	}
+	
+	public int getGeneration() {
+		return generation;
+	}
+	
+	/** Resolves a call to name made from a module linked here. Throws a VMException if nothing matches. */
+	public synchronized CallTarget resolve(Module caller, String name) throws VMException {
+		Module.Function local = caller.getFunction(name);
+		if (local!=null) return local;
+		for(Module module : modules) {
+			if (module==caller) continue;
+			Module.Function export = module.getExport(name);
+			if (export!=null) return export;
+		}
+		
+		NativeFunction bound = bindings.get(name);
+		if (bound!=null) return bound;
+		if (javaCallsAllowed && name.indexOf('.')!=-1) {
+			NativeFunction method = javaMethods.get(name);
+			if (method==null) {
+				method = NativeFunction.find(name, classLoader);
+				javaMethods.put(name, method);
+			}
+			return method;
+		}
+		throw new VMException("Can't find a function named \""+name+"\"");
+	}
+}
@@ -0,0 +1,487 @@
+package blue.endless.junior.esovm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import blue.endless.junior.esovm.jit.CompiledFunction;
+
+/**
+ * A unit of EsoVM code: the instruction stream, its constant pool, and a table of the functions inside it.
+ *
+ * <p>Modules are usually loaded from a file with {@link #load(Path)}, which maps the file instead of reading it. Only the
+ * header, the constant pool and the function table are parsed up front; each function's code is copied out of the mapping
+ * and decoded the first time it's called, so starting a short script in a large module only pays for what it runs.
+ *
+ * <p>The file format is big-endian, like the instruction stream:
+ * <pre>
+ *   u32 magic ("ESOM")  u16 version  u16 sectionCount
+ *   sectionCount x { u32 type, u32 offset, u32 length }    ; offsets are from the start of the file
+ * </pre>
+ *
+ * <p>followed by the sections themselves. Readers skip sections they don't recognize.
+ * <ul>
+ *   <li>{@link #SECTION_CODE}: the instruction stream. Addresses in the code, like jump targets, are offsets into it.
+ *   <li>{@link #SECTION_CONSTANTS}: the constant pool, in the form {@link ConstantPool#read(java.io.DataInput)} reads.
+ *   <li>{@link #SECTION_FUNCTIONS}: u32 count, then per function: u32 name (a string constant), u32 start address,
+ *       u32 length in bytes, u64 lvtInfo, u16 argument bytes, u16 result bytes, u32 flags.
+ *   <li>{@link #SECTION_DECODED}: optional. u32 decoder version, then the pre-decoded form of the whole code section as
+ *       ints (see {@link Decoder}). It's ignored unless it was produced by the decoder of this exact VM build.
+ * </ul>
+ */
+public class Module {
+	public static final int MAGIC = 0x45534F4D;
+	public static final int VERSION = 1;
+	
+	public static final int SECTION_CODE      = 1;
+	public static final int SECTION_CONSTANTS = 2;
+	public static final int SECTION_FUNCTIONS = 3;
+	public static final int SECTION_DECODED   = 4;
+	
+	/** The function may be looked up with {@link #getExport(String)}. Every function can be called from inside the module. */
+	public static final int FLAG_EXPORTED = 0x01;
+	
+	/** Where the code still lives until it's been copied into program. Null for modules built in memory. */
+	protected final ByteBuffer codeSource;
+	/** The pre-decoded section, if the module has a usable one. */
+	protected final IntBuffer decodedSource;
+	protected final byte[] program;
+	protected final int[] code;
+	protected final ConstantPool constants;
+	/** Sorted by start address. */
+	protected final Function[] functions;
+	/** Functions indexed by the string constant holding their name, so a CALL to this module resolves with one array read. */
+	protected final Function[] functionsByName;
+	/** What each CALL instruction resolved to, indexed by instruction index. See {@link #link(int, int)}. */
+	private final CallSite[] callSites;
+	/** Set when the module is added to a Linker, which resolves the calls this module can't resolve itself. */
+	volatile Linker linker;
+	
+	/**
+	 * Creates a module from code that's already in memory. The whole program is decoded right away. Functions mustn't
+	 * overlap, and need not cover the whole program.
+	 */
+	public Module(byte[] program, ConstantPool constants, List<Function> functions) throws VMException {
+		this(null, null, program.length, constants, functions);
+		System.arraycopy(program, 0, this.program, 0, program.length);
+		int[] decoded = Decoder.decode(this.program, constants);
+		System.arraycopy(decoded, 0, code, 0, code.length);
+		for(Function function : this.functions) function.loaded = true;
+	}
+	
+	protected Module(ByteBuffer codeSource, IntBuffer decodedSource, int length, ConstantPool constants, List<Function> functions) throws VMException {
+		this.codeSource = codeSource;
+		this.decodedSource = decodedSource;
+		this.program = new byte[length];
+		this.code = new int[((length >> 3) + 1) * Decoder.STRIDE];
+		this.code[(length >> 3) * Decoder.STRIDE] = Handlers.END;
+		this.constants = constants;
+		this.callSites = new CallSite[length >> 3];
+		
+		this.functions = functions.toArray(new Function[functions.size()]);
+		Arrays.sort(this.functions, (a, b) -> Integer.compare(a.start, b.start));
+		for(Function function : this.functions) constants.addString(function.name);
+		this.functionsByName = new Function[constants.getStringCount()];
+		int previousEnd = 0;
+		for(Function function : this.functions) {
+			if (function.start<previousEnd || function.start>function.end || function.end>length || (function.start & 0x7)!=0 || (function.end & 0x7)!=0) {
+				throw new VMException("Function "+function.name+" at 0x"+Integer.toHexString(function.start)+" overlaps another function or lies outside the code");
+			}
+			previousEnd = function.end;
+			int nameIndex = constants.addString(function.name);
+			if (functionsByName[nameIndex]!=null) throw new VMException("Duplicate function "+function.name);
+			functionsByName[nameIndex] = function;
+		}
+		for(Function function : this.functions) {
+			if (function.module!=null) throw new VMException("Function "+function.name+" already belongs to another module");
+			function.module = this;
+		}
+	}
+	
+	/**
+	 * Wraps a bare program, with no function table, as a module holding a single function named "main" which spans the whole
+	 * program and is entered at entryPoint.
+	 */
+	public static Module of(byte[] program, ConstantPool constants, int entryPoint, long lvtInfo) throws VMException {
+		constants.addString("main");
+		Function main = new Function("main", 0, program.length & ~0x7, entryPoint, lvtInfo, 0, 0, FLAG_EXPORTED);
+		return new Module(program, constants, Collections.singletonList(main));
+	}
+	
+	/** Maps a module file into memory and reads its tables. Function code isn't touched until it's first needed. */
+	public static Module load(Path path) throws IOException, VMException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			//The mapping stays valid after the channel is closed
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+	
+	/** Reads a module from a buffer holding a module file, which should be a mapped file for lazy loading to pay off. */
+	public static Module read(ByteBuffer buffer) throws IOException, VMException {
+		buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		if (buffer.remaining()<8 || buffer.getInt(0)!=MAGIC) throw new IOException("Not an EsoVM module");
+		int version = buffer.getShort(4) & 0xFFFF;
+		if (version!=VERSION) throw new IOException("Unsupported module version "+version);
+		int sectionCount = buffer.getShort(6) & 0xFFFF;
+		if (buffer.limit() < 8 + sectionCount*12) throw new IOException("Module is too short to hold its section table");
+		
+		ByteBuffer codeSection = null;
+		ByteBuffer constantSection = null;
+		ByteBuffer functionSection = null;
+		ByteBuffer decodedSection = null;
+		for(int i=0; i<sectionCount; i++) {
+			int entry = 8 + i*12;
+			int type = buffer.getInt(entry);
+			int offset = buffer.getInt(entry + 4);
+			int length = buffer.getInt(entry + 8);
+			if (offset<0 || length<0 || (long) offset + length > buffer.limit()) throw new IOException("Section "+type+" lies outside the module");
+			ByteBuffer section = slice(buffer, offset, length);
+			switch(type) {
+			case SECTION_CODE:      codeSection = section; break;
+			case SECTION_CONSTANTS: constantSection = section; break;
+			case SECTION_FUNCTIONS: functionSection = section; break;
+			case SECTION_DECODED:   decodedSection = section; break;
+			default: break;
+			}
+		}
+		if (codeSection==null) throw new IOException("Module has no code section");
+		
+		ConstantPool constants = (constantSection==null) ? new ConstantPool() : ConstantPool.read(new DataInputStream(new BufferInputStream(constantSection)));
+		
+		List<Function> functions = new ArrayList<>();
+		if (functionSection!=null) {
+			try {
+				int count = functionSection.getInt();
+				for(int i=0; i<count; i++) {
+					int name = functionSection.getInt();
+					int start = functionSection.getInt();
+					int length = functionSection.getInt();
+					long lvtInfo = functionSection.getLong();
+					int argumentBytes = functionSection.getShort() & 0xFFFF;
+					int resultBytes = functionSection.getShort() & 0xFFFF;
+					int flags = functionSection.getInt();
+					constants.checkString(name);
+					functions.add(new Function(constants.getString(name), start, start + length, start, lvtInfo, argumentBytes, resultBytes, flags));
+				}
+			} catch (BufferUnderflowException ex) {
+				throw new IOException("Function table is cut short", ex);
+			}
+		}
+		
+		IntBuffer decoded = null;
+		int length = codeSection.remaining();
+		if (decodedSection!=null && decodedSection.remaining()>=4 && decodedSection.getInt(0)==Decoder.VERSION) {
+			IntBuffer ints = slice(decodedSection, 4, decodedSection.remaining() - 4).asIntBuffer();
+			if (ints.remaining()==((length >> 3) + 1) * Decoder.STRIDE) decoded = ints;
+		}
+		
+		return new Module(codeSection, decoded, length, constants, functions);
+	}
+	
+	/**
+	 * Writes this module in the file format described above. If includeDecoded is true, every function is decoded and the
+	 * result is saved too, so the decoding step is skipped when the module is next loaded.
+	 */
+	public void write(OutputStream stream, boolean includeDecoded) throws IOException, VMException {
+		ByteArrayOutputStream constantBytes = new ByteArrayOutputStream();
+		constants.write(new DataOutputStream(constantBytes));
+		
+		ByteArrayOutputStream functionBytes = new ByteArrayOutputStream();
+		DataOutputStream functionOut = new DataOutputStream(functionBytes);
+		functionOut.writeInt(functions.length);
+		for(Function function : functions) {
+			if (includeDecoded) load(function);
+			functionOut.writeInt(constants.addString(function.name));
+			functionOut.writeInt(function.start);
+			functionOut.writeInt(function.end - function.start);
+			functionOut.writeLong(function.lvtInfo);
+			functionOut.writeShort(function.argumentBytes);
+			functionOut.writeShort(function.resultBytes);
+			functionOut.writeInt(function.flags);
+		}
+		
+		int sectionCount = includeDecoded ? 4 : 3;
+		int offset = 8 + sectionCount*12;
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(sectionCount);
+		offset = writeSectionEntry(out, SECTION_CODE, offset, program.length);
+		offset = writeSectionEntry(out, SECTION_CONSTANTS, offset, constantBytes.size());
+		offset = writeSectionEntry(out, SECTION_FUNCTIONS, offset, functionBytes.size());
+		if (includeDecoded) writeSectionEntry(out, SECTION_DECODED, offset, 4 + code.length*4);
+		
+		if (codeSource!=null) {
+			//Copy straight from the source, since functions which were never loaded aren't in program yet
+			byte[] raw = new byte[program.length];
+			codeSource.duplicate().get(raw);
+			out.write(raw);
+		} else {
+			out.write(program);
+		}
+		constantBytes.writeTo(out);
+		functionBytes.writeTo(out);
+		if (includeDecoded) {
+			out.writeInt(Decoder.VERSION);
+			for(int i : code) out.writeInt(i);
+		}
+		out.flush();
+	}
+	
+	private static int writeSectionEntry(DataOutputStream out, int type, int offset, int length) throws IOException {
+		out.writeInt(type);
+		out.writeInt(offset);
+		out.writeInt(length);
+		return offset + length;
+	}
+	
+	public ConstantPool getConstants() {
+		return constants;
+	}
+	
+	/**
+	 * Returns the module's instruction stream. Functions which haven't been loaded yet read as zeroes; use
+	 * {@link #load(Function)} first.
+	 */
+	public byte[] getProgram() {
+		return program;
+	}
+	
+	/** Returns the pre-decoded form of the program. Like the program itself, it's only filled in as functions are loaded. */
+	int[] getCode() {
+		return code;
+	}
+	
+	public List<Function> getFunctions() {
+		return Collections.unmodifiableList(Arrays.asList(functions));
+	}
+	
+	/** Returns the function with the given name, or null if there isn't one. */
+	public Function getFunction(String name) {
+		for(Function function : functions) {
+			if (function.name.equals(name)) return function;
+		}
+		return null;
+	}
+	
+	/** Returns the exported function with the given name, or null if there isn't one. */
+	public Function getExport(String name) {
+		Function function = getFunction(name);
+		return (function!=null && function.isExported()) ? function : null;
+	}
+	
+	/** Returns the Linker this module has been added to, or null if it can only call its own functions. */
+	public Linker getLinker() {
+		return linker;
+	}
+	
+	/**
+	 * Returns what a CALL naming the given string constant calls: a function of this module if there's one by that name,
+	 * otherwise whatever the linker resolves it to. Throws a VMException if nothing matches.
+	 */
+	public CallTarget resolve(int nameIndex) throws VMException {
+		Function function = (nameIndex>=0 && nameIndex<functionsByName.length) ? functionsByName[nameIndex] : null;
+		if (function!=null) return function;
+		Linker linker = this.linker;
+		if (linker==null) throw new VMException("Can't find a function named \""+constants.getString(nameIndex)+"\"");
+		return linker.resolve(this, constants.getString(nameIndex));
+	}
+	
+	/**
+	 * Returns the target of the CALL at instruction index, which names string constant nameIndex. Each call site is resolved
+	 * the first time it runs and cached until the linker's generation changes, so a call normally costs one array read and
+	 * one comparison. Call sites must keep their argument and result sizes when they're re-resolved, since the verifier
+	 * checked the caller against them.
+	 */
+	public CallTarget link(int index, int nameIndex) throws VMException {
+		Linker linker = this.linker;
+		int generation = (linker==null) ? 0 : linker.generation;
+		CallSite site = callSites[index];
+		if (site!=null && site.generation==generation) return site.target;
+		
+		CallTarget target = resolve(nameIndex);
+		if (site!=null && (target.argumentBytes!=site.target.argumentBytes || target.resultBytes!=site.target.resultBytes)) {
+			throw new VMException("Call to "+target.name+" at 0x"+Integer.toHexString(index << 3)+" now resolves to something with a different signature");
+		}
+		//Sites are immutable, so threads racing to re-link one can't see a torn entry
+		callSites[index] = new CallSite(generation, target);
+		return target;
+	}
+	
+	/** Returns the function whose code contains address, or null if it's outside every function. */
+	public Function functionAt(int address) {
+		int low = 0;
+		int high = functions.length - 1;
+		while(low<=high) {
+			int mid = (low + high) >>> 1;
+			Function function = functions[mid];
+			if (address<function.start) {
+				high = mid - 1;
+			} else if (address>=function.end) {
+				low = mid + 1;
+			} else {
+				return function;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Makes sure function's code has been copied out of the module file and decoded. Cheap once the function is loaded, and
+	 * safe to call from several threads at once.
+	 */
+	public void load(Function function) {
+		if (function.loaded) return;
+		synchronized(function) {
+			if (function.loaded) return;
+			int length = function.end - function.start;
+			ByteBuffer source = codeSource.duplicate();
+			source.position(function.start);
+			source.get(program, function.start, length);
+			
+			int first = function.start >> 3;
+			int count = length >> 3;
+			if (decodedSource!=null) {
+				IntBuffer decoded = decodedSource.duplicate();
+				decoded.position(first * Decoder.STRIDE);
+				decoded.get(code, first * Decoder.STRIDE, count * Decoder.STRIDE);
+			} else {
+				for(int i=first; i<first+count; i++) Decoder.decode(program, constants, i, code);
+			}
+			//Volatile write, publishing the code to every thread that sees the flag set
+			function.loaded = true;
+		}
+	}
+	
+	/**
+	 * Loads function and verifies it, if that hasn't been done already. Verified functions are always decoded from their raw
+	 * code, so a tampered pre-decoded section can't slip past the verifier, and then run through the {@link Peephole} pass.
+	 */
+	public void verify(Function function) throws VMVerificationException {
+		if (function.verified) return;
+		load(function);
+		synchronized(function) {
+			if (function.verified) return;
+			function.maxStackDepth = Verifier.verify(this, function);
+			int first = function.start >> 3;
+			int end = function.end >> 3;
+			if (decodedSource!=null) {
+				for(int i=first; i<end; i++) Decoder.decode(program, constants, i, code);
+			}
+			Peephole.optimize(code, first, end);
+			function.verified = true;
+		}
+	}
+	
+	/** Returns true if the instruction at address belongs to a function whose code has been loaded. */
+	public boolean isLoaded(int address) {
+		Function function = functionAt(address);
+		return function!=null && function.loaded;
+	}
+	
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer section = buffer.duplicate();
+		section.limit(offset + length);
+		section.position(offset);
+		return section.slice().order(ByteOrder.BIG_ENDIAN);
+	}
+	
+	/**
+	 * One function in a module. Arguments and results are passed on the operand stack: a CALL moves the top argumentBytes
+	 * bytes of the caller's operand stack to the start of the callee's, and a RETURN moves the top resultBytes bytes of the
+	 * callee's back.
+	 */
+	public static final class Function extends CallTarget {
+		protected final int start;
+		protected final int end;
+		protected final int entry;
+		protected final long lvtInfo;
+		protected final int flags;
+		/** The module the function was added to. A function can only belong to one. */
+		Module module;
+		
+		volatile boolean loaded = false;
+		volatile boolean verified = false;
+		int maxStackDepth = -1;
+		/** Set by the VM once the function has been compiled to JVM bytecode, or once compiling it has failed. */
+		volatile CompiledFunction compiled;
+		volatile boolean compileFailed = false;
+		/** Calls verified threads have made to the function, towards compiling it. Threads race to count them, so it's approximate. */
+		int invocations = 0;
+		
+		public Function(String name, int start, int end, int entry, long lvtInfo, int argumentBytes, int resultBytes, int flags) {
+			super(name, argumentBytes, resultBytes);
+			this.start = start;
+			this.end = end;
+			this.entry = entry;
+			this.lvtInfo = lvtInfo;
+			this.flags = flags;
+		}
+		
+		public Module getModule() { return module; }
+		/** Returns the address of the function's first instruction. */
+		public int getStart() { return start; }
+		/** Returns the address just past the function's last instruction. */
+		public int getEnd() { return end; }
+		/** Returns the address execution starts at when the function is called. */
+		public int getEntry() { return entry; }
+		public long getLvtInfo() { return lvtInfo; }
+		public int getFlags() { return flags; }
+		public boolean isExported() { return (flags & FLAG_EXPORTED)!=0; }
+		public boolean isLoaded() { return loaded; }
+		public boolean isVerified() { return verified; }
+		/** Returns the function's compiled form, or null if it's only been interpreted so far. */
+		public CompiledFunction getCompiled() { return compiled; }
+		
+		@Override
+		public String toString() {
+			return name+"@0x"+Integer.toHexString(start);
+		}
+	}
+	
+	private static final class CallSite {
+		final int generation;
+		final CallTarget target;
+		
+		CallSite(int generation, CallTarget target) {
+			this.generation = generation;
+			this.target = target;
+		}
+	}
+	
+	/** Just enough of an InputStream to hand a section of the module to DataInputStream. */
+	private static final class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] dest, int offset, int length) {
+			if (!buffer.hasRemaining()) return -1;
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(dest, offset, count);
+			return count;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * A Java method which EsoVM code can CALL. Parameters and the result must be primitives (or void): byte and boolean map to
+ * int8, short and char to int16, and int, long, float and double to int32, int64, float32 and float64. Arguments are popped
+ * off the operand stack in reverse order, so the last parameter is the one on top.
+ *
+ * <p>The handle is adapted once, up front, into a {@code (long[])long} invoker which unpacks each argument from its raw bits
+ * and packs the result back into a long, so a call moves its arguments through a reusable long[] and never boxes.
+ */
+public final class NativeFunction extends CallTarget {
+	private static final int[] SIZES = { 1, 2, 4, 8, 2, 4, 8, 8 };
+	
+	private static final MethodHandle INT_BITS_TO_FLOAT;
+	private static final MethodHandle LONG_BITS_TO_DOUBLE;
+	private static final MethodHandle FLOAT_TO_BITS;
+	private static final MethodHandle DOUBLE_TO_RAW_LONG_BITS;
+	private static final MethodHandle NO_RESULT;
+	
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			INT_BITS_TO_FLOAT = lookup.findStatic(NativeFunction.class, "intBitsToFloat", MethodType.methodType(float.class, long.class));
+			LONG_BITS_TO_DOUBLE = lookup.findStatic(Double.class, "longBitsToDouble", MethodType.methodType(double.class, long.class));
+			FLOAT_TO_BITS = lookup.findStatic(NativeFunction.class, "floatToBits", MethodType.methodType(long.class, float.class));
+			DOUBLE_TO_RAW_LONG_BITS = lookup.findStatic(Double.class, "doubleToRawLongBits", MethodType.methodType(long.class, double.class));
+			NO_RESULT = MethodHandles.dropArguments(MethodHandles.constant(long.class, 0L), 0, long[].class);
+		} catch (ReflectiveOperationException ex) {
+			throw new ExceptionInInitializerError(ex);
+		}
+	}
+	
+	protected final MethodHandle handle;
+	/** The handle adapted to take its arguments as raw bits in a long[], and return its result the same way. */
+	private final MethodHandle invoker;
+	/** The EsoVM data type of each parameter. */
+	private final int[] parameterTypes;
+	/** The EsoVM data type of the result, or -1 for a void method. */
+	private final int resultType;
+	
+	/** Wraps a method handle, which must take and return only the primitive types listed above. */
+	public NativeFunction(String name, MethodHandle handle) throws VMException {
+		super(name, argumentBytes(name, handle.type()), resultBytes(name, handle.type()));
+		this.handle = handle;
+		
+		MethodType type = handle.type();
+		parameterTypes = new int[type.parameterCount()];
+		MethodHandle adapted = handle;
+		for(int i=0; i<parameterTypes.length; i++) {
+			Class<?> parameter = type.parameterType(i);
+			parameterTypes[i] = dataType(name, parameter);
+			adapted = MethodHandles.filterArguments(adapted, i, fromBits(parameter));
+		}
+		
+		if (type.returnType()==void.class) {
+			resultType = -1;
+			invoker = MethodHandles.foldArguments(NO_RESULT, adapted.asSpreader(long[].class, parameterTypes.length));
+		} else {
+			resultType = dataType(name, type.returnType());
+			invoker = MethodHandles.filterReturnValue(adapted, toBits(type.returnType())).asSpreader(long[].class, parameterTypes.length);
+		}
+	}
+	
+	/**
+	 * Finds a public static method by its fully-qualified binary name, like {@code java.lang.Math.abs}. If the method is
+	 * overloaded, the name must end with the method descriptor of the overload to use, like {@code java.lang.Math.abs(I)I};
+	 * otherwise overloads the VM can't call are ignored, and exactly one must be left. The class isn't initialized until the
+	 * method is first called, so merely naming a class doesn't run its static initializers.
+	 */
+	public static NativeFunction find(String name, ClassLoader loader) throws VMException {
+		String qualifiedName = name;
+		String descriptor = null;
+		int paren = name.indexOf('(');
+		if (paren!=-1) {
+			qualifiedName = name.substring(0, paren);
+			descriptor = name.substring(paren);
+		}
+		int dot = qualifiedName.lastIndexOf('.');
+		if (dot<=0 || dot==qualifiedName.length()-1) throw new VMException("\""+name+"\" isn't a fully-qualified Java method name");
+		
+		Class<?> owner;
+		try {
+			owner = Class.forName(qualifiedName.substring(0, dot), false, loader);
+		} catch (ClassNotFoundException | LinkageError ex) {
+			throw new VMException("Can't find Java class "+qualifiedName.substring(0, dot), ex);
+		}
+		
+		String methodName = qualifiedName.substring(dot+1);
+		Method found = null;
+		for(Method method : owner.getMethods()) {
+			if (!Modifier.isStatic(method.getModifiers()) || !method.getName().equals(methodName)) continue;
+			String methodDescriptor = MethodType.methodType(method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString();
+			if (descriptor!=null) {
+				if (!descriptor.equals(methodDescriptor)) continue;
+			} else if (!isCallable(method)) {
+				continue;
+			}
+			if (found!=null) throw new VMException("Java method "+qualifiedName+" is overloaded; name one overload with its descriptor, like "+qualifiedName+methodDescriptor);
+			found = method;
+		}
+		if (found==null) throw new VMException("Can't find a public static Java method named "+name);
+		
+		try {
+			return new NativeFunction(name, MethodHandles.publicLookup().unreflect(found));
+		} catch (IllegalAccessException ex) {
+			throw new VMException("Can't access Java method "+name, ex);
+		}
+	}
+	
+	public MethodHandle getHandle() {
+		return handle;
+	}
+	
+	/** Returns the number of parameters, which is the length of the scratch array {@link #invoke(Stack, long[])} needs. */
+	public int getArity() {
+		return parameterTypes.length;
+	}
+	
+	/**
+	 * Pops the arguments off the stack, calls the method, and pushes its result. arguments is scratch space of length
+	 * {@link #getArity()}, so that callers can reuse one array for every call. VMExceptions thrown by the method pass
+	 * straight through; anything else it throws is wrapped in one.
+	 */
+	public void invoke(Stack stack, long[] arguments) throws VMException {
+		for(int i=parameterTypes.length-1; i>=0; i--) {
+			switch(parameterTypes[i]) {
+			case DATA_INT8:    arguments[i] = stack.popInt8(); break;
+			case DATA_INT16:   arguments[i] = stack.popInt16(); break;
+			case DATA_INT32:   arguments[i] = stack.popInt32(); break;
+			case DATA_INT64:   arguments[i] = stack.popInt64(); break;
+			case DATA_FLOAT32: arguments[i] = Float.floatToRawIntBits(stack.popFloat32()); break;
+			default:           arguments[i] = Double.doubleToRawLongBits(stack.popFloat64()); break;
+			}
+		}
+		
+		long result;
+		try {
+			result = (long) invoker.invokeExact(arguments);
+		} catch (VMException ex) {
+			throw ex;
+		} catch (Throwable t) {
+			throw new VMException("Java method "+name+" threw "+t, t);
+		}
+		
+		switch(resultType) {
+		case -1:           break;
+		case DATA_INT8:    stack.pushInt8((int) result); break;
+		case DATA_INT16:   stack.pushInt16((int) result); break;
+		case DATA_INT32:   stack.pushInt32((int) result); break;
+		case DATA_INT64:   stack.pushInt64(result); break;
+		case DATA_FLOAT32: stack.pushFloat32(Float.intBitsToFloat((int) result)); break;
+		default:           stack.pushFloat64(Double.longBitsToDouble(result)); break;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return name+handle.type();
+	}
+	
+	private static boolean isCallable(Method method) {
+		if (method.getReturnType()!=void.class && dataTypeOf(method.getReturnType())==-1) return false;
+		for(Class<?> parameter : method.getParameterTypes()) {
+			if (dataTypeOf(parameter)==-1) return false;
+		}
+		return true;
+	}
+	
+	/** Returns the EsoVM data type Java values of the given class are passed as, or -1 if they can't be passed at all. */
+	private static int dataTypeOf(Class<?> type) {
+		if (type==byte.class || type==boolean.class) return DATA_INT8;
+		if (type==short.class || type==char.class) return DATA_INT16;
+		if (type==int.class) return DATA_INT32;
+		if (type==long.class) return DATA_INT64;
+		if (type==float.class) return DATA_FLOAT32;
+		if (type==double.class) return DATA_FLOAT64;
+		return -1;
+	}
+	
+	private static int dataType(String name, Class<?> type) throws VMException {
+		int dataType = dataTypeOf(type);
+		if (dataType==-1) throw new VMException("Java method "+name+" can't be called from EsoVM code: "+type.getName()+" isn't a supported type");
+		return dataType;
+	}
+	
+	private static int argumentBytes(String name, MethodType type) throws VMException {
+		int bytes = 0;
+		for(int i=0; i<type.parameterCount(); i++) bytes += SIZES[dataType(name, type.parameterType(i))];
+		return bytes;
+	}
+	
+	private static int resultBytes(String name, MethodType type) throws VMException {
+		return (type.returnType()==void.class) ? 0 : SIZES[dataType(name, type.returnType())];
+	}
+	
+	/** Returns a handle converting the raw bits of an argument to a value of the given parameter type. */
+	private static MethodHandle fromBits(Class<?> type) {
+		if (type==float.class) return INT_BITS_TO_FLOAT;
+		if (type==double.class) return LONG_BITS_TO_DOUBLE;
+		return MethodHandles.explicitCastArguments(MethodHandles.identity(long.class), MethodType.methodType(type, long.class));
+	}
+	
+	/** Returns a handle converting a result of the given type to raw bits. */
+	private static MethodHandle toBits(Class<?> type) {
+		if (type==float.class) return FLOAT_TO_BITS;
+		if (type==double.class) return DOUBLE_TO_RAW_LONG_BITS;
+		return MethodHandles.explicitCastArguments(MethodHandles.identity(type), MethodType.methodType(long.class, type));
+	}
+	
+	private static float intBitsToFloat(long bits) {
+		return Float.intBitsToFloat((int) bits);
+	}
+	
+	private static long floatToBits(float value) {
+		return Float.floatToRawIntBits(value);
+	}
+}
@@ -0,0 +1,151 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.util.Arrays;
+
+/**
+ * Load-time peephole pass over pre-decoded code, run on each function once it's been verified. It never moves an
+ * instruction; it only rewrites slots in place:
+ *
+ * <ul>
+ *   <li>Jumps whose target is an unconditional JUMP are threaded straight through to where that one goes. The number of
+ *       jumps skipped is kept in the d field, so cycle counts come out the same as if they'd run, and the original target
+ *       in the a field, which jumps don't otherwise use. When the cycle budget can't cover the jumps skipped, the jump
+ *       goes to its original target instead, so a thread stops at the same instruction in every tier.
+ *   <li>Frequent pairs of instructions are fused into a superinstruction (see {@link Handlers#TEST_CJUMP} and the ones after
+ *       it), written over the first instruction of the pair, so the verified loop runs both in one dispatch: a TEST and the
+ *       CJUMP acting on it, an immediate ADD or SUB and a TEST of its result, a PUSH straight into a POP (a move, which never
+ *       touches the operand stack), and a register LOAD followed by a STORE which puts the value right back.
+ * </ul>
+ *
+ * <p>The second half of a pair keeps its own slot, so jumps can still land on it, and a superinstruction only runs it when
+ * the cycle budget has room for both. The second halves chosen are all ones which can't fault once their function is
+ * verified, so faults are still reported at the instruction which caused them. The one first half which can fault, a PUSH
+ * onto a full stack, only takes the fused path when the stack has room for the value; otherwise it runs as a plain PUSH.
+ *
+ * <p>{@link IdiomCounter} measures how often each pair of instructions occurs across a corpus of programs, which is how to
+ * decide what's worth fusing next.
+ */
+final class Peephole {
+	/** The longest chain of jumps threaded through. Longer chains are most likely loops made of nothing but jumps. */
+	private static final int MAX_HOPS = 8;
+	
+	private Peephole() {}
+	
+	/**
+	 * Optimizes instructions first up to, but not including, end, which must be the whole of one verified function. Returns
+	 * the number of instructions rewritten.
+	 */
+	public static int optimize(int[] code, int first, int end) {
+		int changed = 0;
+		for(int i=first; i<end; i++) {
+			if (threadJump(code, i, first, end)) changed++;
+		}
+		
+		//Match pairs against the code as it was before any fusing, since fusing rewrites the slots the next pair starts on
+		int[] original = Arrays.copyOfRange(code, first * Decoder.STRIDE, end * Decoder.STRIDE);
+		for(int i=first; i<end-1; i++) {
+			if (fuse(original, (i - first) * Decoder.STRIDE, code, i * Decoder.STRIDE)) changed++;
+		}
+		return changed;
+	}
+	
+	private static boolean threadJump(int[] code, int index, int first, int end) {
+		int base = index * Decoder.STRIDE;
+		int handler = code[base];
+		int condition = conditionOf(handler);
+		if (condition==-1 && handler!=Handlers.JUMP && handler!=Handlers.JUMP_BACK) return false;
+		
+		int target = code[base+3];
+		int hops = code[base+1];
+		int threaded = 0;
+		while(threaded<MAX_HOPS && target>=first && target<end) {
+			int next = target * Decoder.STRIDE;
+			if (code[next]!=Handlers.JUMP && code[next]!=Handlers.JUMP_BACK) break;
+			if (code[next+3]==target) break;
+			hops += 1 + code[next+1];
+			target = code[next+3];
+			threaded++;
+		}
+		if (threaded==0) return false;
+		
+		if (code[base+1]==0) code[base+2] = code[base+3];
+		boolean backward = target<=index;
+		if (condition==-1) {
+			code[base] = (backward) ? Handlers.JUMP_BACK : Handlers.JUMP;
+		} else {
+			code[base] = ((backward) ? Handlers.CJUMP_BACK : Handlers.CJUMP) + condition;
+		}
+		code[base+1] = hops;
+		code[base+3] = target;
+		return true;
+	}
+	
+	/** Fuses the pair starting at offset o of original, if it's one there's a superinstruction for, into code at c. */
+	private static boolean fuse(int[] original, int o, int[] code, int c) {
+		int first = original[o];
+		int d = original[o+1];
+		int b = original[o+3];
+		int second = original[o + Decoder.STRIDE];
+		int secondD = original[o + Decoder.STRIDE + 1];
+		int secondA = original[o + Decoder.STRIDE + 2];
+		int secondB = original[o + Decoder.STRIDE + 3];
+		
+		int type = typeIn(first, Handlers.TEST);
+		if (isCounter(type)) {
+			int condition = conditionOf(second);
+			if (condition==-1 || secondD!=0) return false; //Threaded CJUMPs have no room left to count their hops
+			code[c  ] = Handlers.TEST_CJUMP + type;
+			code[c+1] = condition;
+			code[c+3] = secondB;
+			return true;
+		}
+		
+		type = typeIn(first, Handlers.ADD_IMMEDIATE);
+		int fused = Handlers.ADD_IMMEDIATE_TEST;
+		if (type==-1) {
+			type = typeIn(first, Handlers.SUB_IMMEDIATE);
+			fused = Handlers.SUB_IMMEDIATE_TEST;
+		}
+		if (isCounter(type)) {
+			if (second!=Handlers.TEST + type || secondA!=d) return false;
+			code[c] = fused + type;
+			return true;
+		}
+		
+		type = typeIn(first, Handlers.PUSH);
+		if (type!=-1) {
+			if (second!=Handlers.POP + type) return false;
+			code[c  ] = Handlers.PUSH_POP + type;
+			code[c+1] = secondD;
+			return true;
+		}
+		
+		type = typeIn(first, Handlers.LOAD_REGISTER);
+		if (type!=-1) {
+			if (second!=Handlers.STORE_REGISTER + type || secondA!=d || secondD!=b) return false;
+			code[c] = Handlers.LOAD_STORE + type;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/** Returns handler's data type if it's in the family of eight starting at family, or -1 if it isn't. */
+	private static int typeIn(int handler, int family) {
+		return (handler>=family && handler<family+8) ? handler - family : -1;
+	}
+	
+	/** The types loop counters come in, which are the only ones with TEST_CJUMP and immediate-then-TEST superinstructions. */
+	private static boolean isCounter(int type) {
+		return type==DATA_INT32 || type==DATA_INT64 || type==DATA_WORD;
+	}
+	
+	/** Returns the condition code of a CJUMP handler, or -1 if it isn't one. */
+	private static int conditionOf(int handler) {
+		if (handler>=Handlers.CJUMP && handler<=Handlers.CJUMP + CONDITION_NOT_NEGATIVE) return handler - Handlers.CJUMP;
+		if (handler>=Handlers.CJUMP_BACK && handler<=Handlers.CJUMP_BACK + CONDITION_NOT_NEGATIVE) return handler - Handlers.CJUMP_BACK;
+		return -1;
+	}
+}
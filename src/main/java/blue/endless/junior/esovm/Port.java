@@ -0,0 +1,18 @@
+package blue.endless.junior.esovm;
+
+/**
+ * A device attached to one of a VMThread's I/O ports, reachable through OPCODE_IN and OPCODE_OUT. Values cross the port as
+ * the bit pattern of the register involved, sign-extended to 64 bits for integer types.
+ */
+public interface Port {
+	/**
+	 * Returns true if a value is ready to be read. If this returns false when a thread executes OPCODE_IN, the thread stops
+	 * with {@link RunResult.Status#WAITING_ON_IO} and retries the same instruction the next time it's run.
+	 */
+	boolean available();
+	
+	/** Reads the next value from this port. Only called after {@link #available()} has returned true. */
+	long read();
+	
+	void write(long value) throws VMException;
+}
@@ -0,0 +1,259 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where a thread's time goes, gathered by attaching this to it with {@link VMThread#setProfile(Profile)}: how often each
+ * opcode ran, the cycles spent in each function both counting and not counting the functions it calls, which way each
+ * conditional jump went, and what each call site called.
+ *
+ * <p>Cycles are attributed to the chain of calls which led to them, so the same function called from two places is kept
+ * apart; {@link #collapsedStacks()} gives that chain in the format flame graph tools read. A profile can be attached to
+ * several threads in turn to add up their time, but isn't thread-safe, so not to threads running at the same time.
+ */
+public class Profile {
+	protected final long[] opcodeCounts = new long[256];
+	/** The root of the calling context tree. It stands for no function at all; threads start out in its children. */
+	protected final Node root = new Node(null, null);
+	protected final HashMap<Module.Function, HashMap<Integer, long[]>> branches = new HashMap<>();
+	protected final HashMap<Module.Function, HashMap<Integer, HashMap<String, long[]>>> callSites = new HashMap<>();
+	protected long instructions = 0L;
+	protected long cycles = 0L;
+	
+	/** Returns the number of instructions executed. Jumps threaded through by {@link Peephole} aren't counted. */
+	public long getInstructions() {
+		return instructions;
+	}
+	
+	/** Returns the number of cycles spent, which includes those of threaded jumps. */
+	public long getCycles() {
+		return cycles;
+	}
+	
+	/** Returns the number of times instructions with the given opcode (see {@link VMThread}'s OPCODE_ constants) executed. */
+	public long getOpcodeCount(int opcode) {
+		return opcodeCounts[opcode & 0xFF];
+	}
+	
+	/** Returns the cycles spent in functions with the given name, not counting the functions they call. */
+	public long getExclusiveCycles(String function) {
+		long[] totals = functionTotals().get(function);
+		return (totals==null) ? 0L : totals[1];
+	}
+	
+	/** Returns the cycles spent in functions with the given name, counting the functions they call. */
+	public long getInclusiveCycles(String function) {
+		long[] totals = functionTotals().get(function);
+		return (totals==null) ? 0L : totals[0];
+	}
+	
+	/** Returns the number of times functions with the given name were called. Functions a thread started in aren't counted. */
+	public long getCallCount(String function) {
+		long[] totals = functionTotals().get(function);
+		return (totals==null) ? 0L : totals[2];
+	}
+	
+	/** Returns how often the CJUMP at address in function jumped, and how often it fell through, in that order. */
+	public long[] getBranchCounts(Module.Function function, int address) {
+		HashMap<Integer, long[]> sites = branches.get(function);
+		long[] counts = (sites==null) ? null : sites.get(address);
+		return (counts==null) ? new long[2] : counts.clone();
+	}
+	
+	/** Returns how often the CALL at address in function reached each function or Java method, by name. */
+	public Map<String, Long> getCallTargets(Module.Function function, int address) {
+		HashMap<Integer, HashMap<String, long[]>> sites = callSites.get(function);
+		HashMap<String, long[]> targets = (sites==null) ? null : sites.get(address);
+		HashMap<String, Long> result = new HashMap<>();
+		if (targets!=null) {
+			for(Map.Entry<String, long[]> entry : targets.entrySet()) result.put(entry.getKey(), entry.getValue()[0]);
+		}
+		return result;
+	}
+	
+	/**
+	 * Returns one line per chain of calls which spent any cycles in its last function, giving the chain outermost first,
+	 * separated by semicolons, then the cycles, like {@code "main;square 4120"}. This is the collapsed stack format which
+	 * flamegraph.pl and most other flame graph tools take as input.
+	 */
+	public List<String> collapsedStacks() {
+		List<String> lines = new ArrayList<>();
+		for(Node child : root.children.values()) collapse(child, child.name, lines);
+		return lines;
+	}
+	
+	/**
+	 * Returns a readable summary, one line per string: the most frequent opcodes, the functions with the most inclusive
+	 * cycles, the most frequently run conditional jumps, and the most frequently run call sites, at most limit of each.
+	 */
+	public List<String> report(int limit) {
+		List<String> lines = new ArrayList<>();
+		lines.add(String.format(Locale.ROOT, "%d instructions, %d cycles", instructions, cycles));
+		
+		lines.add("Opcodes:");
+		List<Integer> opcodes = new ArrayList<>();
+		for(int i=0; i<256; i++) if (opcodeCounts[i]!=0) opcodes.add(i);
+		opcodes.sort((a, b) -> Long.compare(opcodeCounts[b], opcodeCounts[a]));
+		for(int i=0; i<opcodes.size() && i<limit; i++) {
+			long count = opcodeCounts[opcodes.get(i)];
+			lines.add(String.format(Locale.ROOT, "%12d %5.1f%%  %s", count, count * 100.0 / instructions, IdiomCounter.opcodeName(opcodes.get(i))));
+		}
+		
+		lines.add("Functions (inclusive, exclusive, calls):");
+		List<Map.Entry<String, long[]>> functions = new ArrayList<>(functionTotals().entrySet());
+		functions.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+		for(int i=0; i<functions.size() && i<limit; i++) {
+			long[] totals = functions.get(i).getValue();
+			lines.add(String.format(Locale.ROOT, "%12d %5.1f%% %12d %5.1f%% %10d  %s",
+					totals[0], totals[0] * 100.0 / cycles, totals[1], totals[1] * 100.0 / cycles, totals[2], functions.get(i).getKey()));
+		}
+		
+		lines.add("Branches (taken, not taken):");
+		List<Object[]> sites = new ArrayList<>();
+		for(Map.Entry<Module.Function, HashMap<Integer, long[]>> function : branches.entrySet()) {
+			for(Map.Entry<Integer, long[]> site : function.getValue().entrySet()) {
+				long[] counts = site.getValue();
+				sites.add(new Object[] { site(function.getKey(), site.getKey()), counts[0] + counts[1], counts });
+			}
+		}
+		sites.sort((a, b) -> Long.compare((Long) b[1], (Long) a[1]));
+		for(int i=0; i<sites.size() && i<limit; i++) {
+			long[] counts = (long[]) sites.get(i)[2];
+			long total = (Long) sites.get(i)[1];
+			lines.add(String.format(Locale.ROOT, "%12d %5.1f%% %12d  %s", counts[0], counts[0] * 100.0 / total, counts[1], sites.get(i)[0]));
+		}
+		
+		lines.add("Call sites:");
+		sites.clear();
+		for(Map.Entry<Module.Function, HashMap<Integer, HashMap<String, long[]>>> function : callSites.entrySet()) {
+			for(Map.Entry<Integer, HashMap<String, long[]>> site : function.getValue().entrySet()) {
+				long total = 0L;
+				for(long[] count : site.getValue().values()) total += count[0];
+				sites.add(new Object[] { site(function.getKey(), site.getKey()), total, site.getValue() });
+			}
+		}
+		sites.sort((a, b) -> Long.compare((Long) b[1], (Long) a[1]));
+		for(int i=0; i<sites.size() && i<limit; i++) {
+			@SuppressWarnings("unchecked")
+			HashMap<String, long[]> targets = (HashMap<String, long[]>) sites.get(i)[2];
+			long total = (Long) sites.get(i)[1];
+			StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%12d  %s ->", total, sites.get(i)[0]));
+			for(Map.Entry<String, long[]> target : targets.entrySet()) {
+				line.append(String.format(Locale.ROOT, " %s %.1f%%", target.getKey(), target.getValue()[0] * 100.0 / total));
+			}
+			lines.add(line.toString());
+		}
+		return lines;
+	}
+	
+	/** Returns the node for the chain of calls a thread is in right now, creating any of it which doesn't exist yet. */
+	Node enter(Module.Function[] functionStack, int callDepth) {
+		Node node = root;
+		for(int i=0; i<=callDepth; i++) node = node.child(functionStack[i].name);
+		return node;
+	}
+	
+	/**
+	 * Records one instruction, which started at address in caller and spent cycles, and returns the node for whatever chain
+	 * of calls the thread is in afterwards. depth is the thread's call depth before the instruction.
+	 */
+	Node record(Node node, Module.Function caller, int address, int opcode, int depth, long cycles, VMThread thread) {
+		instructions++;
+		this.cycles += cycles;
+		opcodeCounts[opcode]++;
+		node.self += cycles;
+		
+		switch(opcode) {
+		case OPCODE_CJUMP: {
+			HashMap<Integer, long[]> sites = branches.get(caller);
+			if (sites==null) branches.put(caller, sites = new HashMap<>());
+			long[] counts = sites.get(address);
+			if (counts==null) sites.put(address, counts = new long[2]);
+			counts[(thread.programCounter!=address + 8) ? 0 : 1]++;
+			return node;
+		}
+		case OPCODE_CALL: {
+			String target;
+			if (thread.callDepth>depth) {
+				target = thread.function.name;
+				node = node.child(target);
+				node.calls++;
+			} else {
+				//A Java method, which ran to completion inside the CALL
+				target = caller.module.getConstants().getString(Decoder.operand2(caller.module.getProgram(), address));
+			}
+			HashMap<Integer, HashMap<String, long[]>> sites = callSites.get(caller);
+			if (sites==null) callSites.put(caller, sites = new HashMap<>());
+			HashMap<String, long[]> targets = sites.get(address);
+			if (targets==null) sites.put(address, targets = new HashMap<>());
+			long[] count = targets.get(target);
+			if (count==null) targets.put(target, count = new long[1]);
+			count[0]++;
+			return node;
+		}
+		case OPCODE_RETURN:
+			return (thread.callDepth<depth && node.parent!=root) ? node.parent : node;
+		default:
+			return node;
+		}
+	}
+	
+	/** Returns inclusive cycles, exclusive cycles, and calls, for each function name. */
+	protected HashMap<String, long[]> functionTotals() {
+		HashMap<String, long[]> totals = new HashMap<>();
+		for(Node child : root.children.values()) total(child, new HashSet<>(), totals);
+		return totals;
+	}
+	
+	/** Adds up node and everything under it into totals, and returns its inclusive cycles. */
+	private static long total(Node node, HashSet<String> onStack, HashMap<String, long[]> totals) {
+		//A recursive function's cycles only count once towards its inclusive total, at the outermost call
+		boolean outermost = onStack.add(node.name);
+		long inclusive = node.self;
+		for(Node child : node.children.values()) inclusive += total(child, onStack, totals);
+		if (outermost) onStack.remove(node.name);
+		
+		long[] total = totals.get(node.name);
+		if (total==null) totals.put(node.name, total = new long[3]);
+		if (outermost) total[0] += inclusive;
+		total[1] += node.self;
+		total[2] += node.calls;
+		return inclusive;
+	}
+	
+	private static void collapse(Node node, String path, List<String> lines) {
+		if (node.self!=0) lines.add(path+" "+node.self);
+		for(Node child : node.children.values()) collapse(child, path+";"+child.name, lines);
+	}
+	
+	private static String site(Module.Function function, int address) {
+		return function.name+"+0x"+Integer.toHexString(address - function.start);
+	}
+	
+	/** One chain of calls: the function at the end of it, and what it called. */
+	static final class Node {
+		final Node parent;
+		final String name;
+		final HashMap<String, Node> children = new HashMap<>();
+		long self = 0L;
+		long calls = 0L;
+		
+		Node(Node parent, String name) {
+			this.parent = parent;
+			this.name = name;
+		}
+		
+		Node child(String name) {
+			Node child = children.get(name);
+			if (child==null) children.put(name, child = new Node(this, name));
+			return child;
+		}
+	}
+}
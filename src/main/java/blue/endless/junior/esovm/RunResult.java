@@ -0,0 +1,46 @@
+package blue.endless.junior.esovm;
+
+/**
+ * Describes how a call to {@link VMThread#run(long)} ended, and how many instructions it executed on the way there.
+ */
+public final class RunResult {
+	public enum Status {
+		/** The thread executed OPCODE_HALT. It will not run again. */
+		HALTED,
+		/** The thread used up its cycle budget and can be run again to continue where it left off. */
+		BUDGET_EXHAUSTED,
+		/** The thread threw a VMException, which is available from {@link RunResult#getFault()}. It will not run again. */
+		FAULTED,
+		/** The thread is waiting for data on an I/O port, and will retry the read the next time it's run. */
+		WAITING_ON_IO;
+	}
+	
+	private final Status status;
+	private final long cycles;
+	private final VMException fault;
+	
+	public RunResult(Status status, long cycles, VMException fault) {
+		this.status = status;
+		this.cycles = cycles;
+		this.fault = fault;
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+	
+	/** Returns the number of instructions executed during the run. */
+	public long getCycles() {
+		return cycles;
+	}
+	
+	/** If the status is FAULTED, returns the exception that stopped the thread. Otherwise returns null. */
+	public VMException getFault() {
+		return fault;
+	}
+	
+	@Override
+	public String toString() {
+		return (fault==null) ? status+" after "+cycles+" cycles" : status+" after "+cycles+" cycles: "+fault.getMessage();
+	}
+}
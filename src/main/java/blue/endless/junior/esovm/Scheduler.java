@@ -0,0 +1,154 @@
+package blue.endless.junior.esovm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many VMThreads over a fixed pool of worker threads. Each worker has its own run queue; a VMThread runs for one time
+ * slice of at most {@code timeSlice} cycles, then goes to the back of the queue of the worker that ran it, and idle workers
+ * steal from the others. That's a ForkJoinPool in async mode, which is exactly this: per-worker FIFO deques with stealing.
+ *
+ * <p>A thread which stops on an OPCODE_IN whose port has no data is parked: it's taken off the run queues entirely until
+ * {@link #unpark(VMThread)} is called, typically by whatever feeds the port. Java methods called from EsoVM code run on the
+ * worker itself, so ones which block for long should do it through {@link ForkJoinPool#managedBlock} to let the pool make
+ * up for the missing worker.
+ *
+ * <p>Preemption only ever happens between instructions, and a VMThread's state is entirely its own, so its results never
+ * depend on how it was scheduled. The exception is shared mutable state: Heaps and Ports aren't thread-safe, so VMThreads
+ * which share one mustn't be scheduled at the same time.
+ */
+public class Scheduler {
+	public static final long DEFAULT_TIME_SLICE = 100_000L;
+	
+	private static final int RUNNING = 0;
+	private static final int PARKED = 1;
+	/** unpark() was called while the thread was running, so if it's about to park, it should go straight back in the queue. */
+	private static final int WAKE_PENDING = 2;
+	
+	protected final ForkJoinPool pool;
+	protected final long timeSlice;
+	protected final ConcurrentHashMap<VMThread, Task> tasks = new ConcurrentHashMap<>();
+	
+	/** Creates a scheduler with one worker per available processor. */
+	public Scheduler() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_TIME_SLICE);
+	}
+	
+	public Scheduler(int workers, long timeSlice) {
+		if (timeSlice<=0) throw new IllegalArgumentException("The time slice must be at least one cycle");
+		this.pool = new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		this.timeSlice = timeSlice;
+	}
+	
+	/**
+	 * Starts running a thread, and returns a future which completes once it halts or faults. The result's cycle count covers
+	 * every time slice. A thread can only be submitted once at a time.
+	 */
+	public CompletableFuture<RunResult> submit(VMThread thread) {
+		Task task = new Task(thread);
+		if (tasks.putIfAbsent(thread, task)!=null) throw new IllegalStateException("The thread is already scheduled");
+		schedule(task);
+		return task.result;
+	}
+	
+	/**
+	 * Puts a thread which is parked waiting on a port back into the run queues. If the thread is still running, it won't park
+	 * the next time it finds a port empty, but retry straight away instead, so data which arrives while a thread is on its
+	 * way to parking isn't missed. Does nothing for threads this scheduler isn't running.
+	 */
+	public void unpark(VMThread thread) {
+		Task task = tasks.get(thread);
+		if (task==null) return;
+		while(true) {
+			int state = task.state.get();
+			if (state==PARKED) {
+				if (task.state.compareAndSet(PARKED, RUNNING)) {
+					schedule(task);
+					return;
+				}
+			} else if (state==RUNNING) {
+				if (task.state.compareAndSet(RUNNING, WAKE_PENDING)) return;
+			} else {
+				return;
+			}
+		}
+	}
+	
+	/** Returns the number of threads which haven't halted or faulted yet, whether they're queued, running or parked. */
+	public int getThreadCount() {
+		return tasks.size();
+	}
+	
+	public long getTimeSlice() {
+		return timeSlice;
+	}
+	
+	/** Waits until every thread has halted, faulted or parked, or the timeout elapses, and returns true in the first case. */
+	public boolean awaitQuiescence(long timeout, TimeUnit unit) {
+		return pool.awaitQuiescence(timeout, unit);
+	}
+	
+	/** Stops the workers. Threads which haven't finished are abandoned where they are, and their futures never complete. */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+	
+	protected void schedule(Task task) {
+		if (ForkJoinTask.getPool()==pool) {
+			//Back of this worker's own queue, where other workers can steal it from
+			ForkJoinTask.adapt(task).fork();
+		} else {
+			pool.execute(task);
+		}
+	}
+	
+	/** One VMThread's place in the scheduler. Each time it's run, it runs one time slice and then re-queues itself. */
+	protected final class Task implements Runnable {
+		final VMThread thread;
+		final CompletableFuture<RunResult> result = new CompletableFuture<>();
+		final AtomicInteger state = new AtomicInteger(RUNNING);
+		long cycles = 0L;
+		
+		Task(VMThread thread) {
+			this.thread = thread;
+		}
+		
+		@Override
+		public void run() {
+			RunResult slice;
+			try {
+				slice = thread.run(timeSlice);
+			} catch (RuntimeException | Error ex) {
+				//run() turns exceptions into faults itself, so only an Error, like running out of memory, gets here; don't take the worker down with it
+				finish(new RunResult(RunResult.Status.FAULTED, cycles, new VMException("Thread crashed: "+ex, ex)));
+				return;
+			}
+			cycles += slice.getCycles();
+			
+			switch(slice.getStatus()) {
+			case BUDGET_EXHAUSTED:
+				schedule(this);
+				break;
+			case WAITING_ON_IO:
+				if (!state.compareAndSet(RUNNING, PARKED)) {
+					//Woken while we were running
+					state.set(RUNNING);
+					schedule(this);
+				}
+				break;
+			default:
+				finish(new RunResult(slice.getStatus(), cycles, slice.getFault()));
+				break;
+			}
+		}
+		
+		private void finish(RunResult finalResult) {
+			tasks.remove(thread, this);
+			result.complete(finalResult);
+		}
+	}
+}
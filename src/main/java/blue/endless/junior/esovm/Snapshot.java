@@ -0,0 +1,46 @@
+package blue.endless.junior.esovm;
+
+/**
+ * A frozen copy of a VMThread's state, taken with {@link VMThread#snapshot()}. Snapshots never change once taken, so any
+ * number of threads can be spawned from one, from any number of Java threads at once.
+ */
+public final class Snapshot {
+	final Module module;
+	/** Nothing ever runs on this stack or writes to this heap; they're only copied and forked from. */
+	final Stack stack;
+	final Heap heap;
+	final int programCounter;
+	final int flags;
+	final Module.Function function;
+	final Module.Function[] functionStack;
+	final int callDepth;
+	final boolean bareProgram;
+	final boolean verified;
+	final int jitThreshold;
+	
+	Snapshot(VMThread thread) {
+		this.module = thread.module;
+		this.stack = thread.stack.copy();
+		this.heap = thread.heap.fork();
+		this.programCounter = thread.programCounter;
+		this.flags = thread.flags;
+		this.function = thread.function;
+		this.functionStack = thread.functionStack.clone();
+		this.callDepth = thread.callDepth;
+		this.bareProgram = thread.bareProgram;
+		this.verified = thread.verified;
+		this.jitThreshold = thread.jitThreshold;
+	}
+	
+	public Module getModule() {
+		return module;
+	}
+	
+	/**
+	 * Starts a new thread from this snapshot. It has its own copy of the stack and a copy-on-write fork of the heap, no ports
+	 * attached, and is always active: a snapshot of a thread which halted resumes just past the instruction it halted on.
+	 */
+	public VMThread spawn() {
+		return new VMThread(this);
+	}
+}
@@ -1,12 +1,41 @@
 package blue.endless.junior.esovm;
 
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
+/**
+ * The EsoVM stack. It grows downwards from the end of a single byte array, and holds both the operand stack and the stack
+ * frames, so calls and returns never allocate.
+ * 
+ * <p>Each frame is a header plus the frame's LVT pools (see {@link StackFrame}). The branch pointer holds the address of the
+ * innermost frame's header, and the operand stack for a frame starts right below its LVT pools:
+ * <pre>
+ *   low addresses                                                                              high addresses
+ *   ... [operands][callee LVT pools][callee header][caller operands][caller LVT pools][caller header] ...
+ *       ^stackPointer               ^branchPointer
+ * </pre>
+ * 
+ * <p>A frame header is {@link #FRAME_HEADER_SIZE} bytes: the caller's branch pointer (int32), the return address (int32),
+ * and the frame's lvtInfo (int64).
+ */
 public class Stack {
+	public static final int FRAME_HEADER_SIZE = 16;
+	
 	protected byte[] stack;
+	/**
+	 * Little-endian view of the same memory, so multi-byte values are read and written in one operation. Values have always
+	 * been laid out least-significant byte first (at the stack pointer), so the byte layout is unchanged.
+	 */
+	protected ByteBuffer view;
 	protected int stackPointer;
 	protected int branchPointer;
-	protected ArrayDeque<StackFrame> stackFrames = new ArrayDeque<>();
+	/** The address just above the operand stack of the current frame, i.e. the bottom of its LVT pools. */
+	protected int operandBase;
+	protected int frameDepth;
+	/** Method names of the frames on the stack, indexed by depth. Only reallocated when the stack gets deeper than ever before. */
+	protected String[] frameNames = new String[16];
+	protected StackFrame frame;
 	
 	public Stack() {
 		this(65535);
@@ -14,58 +43,65 @@ public class Stack {
 	
 	public Stack(int size) {
 		stack = new byte[size];
+		view = ByteBuffer.wrap(stack).order(ByteOrder.LITTLE_ENDIAN);
+		frame = new StackFrame(view);
 		clear();
 	}
 	
 	public void clear() {
 		stackPointer = stack.length;
 		branchPointer = stack.length;
+		operandBase = stack.length;
+		Arrays.fill(frameNames, null);
+		frameDepth = 0;
+		frame.bind("unknown", stack.length, 0L);
+	}
+	
+	/**
+	 * Returns an independent copy of this stack, frames and all. Only the part of the array in use is copied, so copying a
+	 * shallow stack is cheap however large it is.
+	 */
+	public Stack copy() {
+		Stack copy = new Stack(stack.length);
+		System.arraycopy(stack, stackPointer, copy.stack, stackPointer, stack.length - stackPointer);
+		copy.stackPointer = stackPointer;
+		copy.branchPointer = branchPointer;
+		copy.operandBase = operandBase;
+		copy.frameNames = frameNames.clone();
+		copy.frameDepth = frameDepth;
+		if (frameDepth>0) copy.frame.bind(frameNames[frameDepth-1], operandBase, frame.lvtInfo);
+		return copy;
+	}
+	
+	/** Returns the number of bytes on the operand stack of the current frame. */
+	public int getOperandStackSize() {
+		return operandBase - stackPointer;
+	}
+	
+	/** Returns true if {@code bytes} more bytes can be pushed without overflowing the stack. */
+	public boolean hasRoom(int bytes) {
+		return stackPointer >= bytes;
+	}
+	
+	/** Returns the number of frames on the stack. */
+	public int getFrameDepth() {
+		return frameDepth;
 	}
 	
 	public void pushInt8(int value) throws VMStackException {
-		stackPointer--;
-		rangeCheck();
-		stack[stackPointer] = (byte)value;
+		view.put(reserve(1), (byte) value);
 	}
 	
 	public void pushInt16(int value) throws VMStackException {
-		int hi = (value >>> 8) & 0xFF;
-		int lo = value & 0xFF;
-		
-		pushInt8(hi);
-		pushInt8(lo);
+		view.putShort(reserve(2), (short) value);
 	}
 	
 	public void pushInt32(int value) throws VMStackException {
-		int a = (value >>>24) & 0xFF;
-		int b = (value >>>16) & 0xFF;
-		int c = (value >>> 8) & 0xFF;
-		int d = value & 0xFF;
-		
-		pushInt8(a);
-		pushInt8(b);
-		pushInt8(c);
-		pushInt8(d);
+		view.putInt(reserve(4), value);
 	}
 	
 	public void pushInt64(long value) throws VMStackException {
-		int a = (int) ((value >>>56) & 0xFF);
-		int b = (int) ((value >>>48) & 0xFF);
-		int c = (int) ((value >>>40) & 0xFF);
-		int d = (int) ((value >>>32) & 0xFF);
-		int e = (int) ((value >>>24) & 0xFF);
-		int f = (int) ((value >>>16) & 0xFF);
-		int g = (int) ((value >>> 8) & 0xFF);
-		int h = (int) ((value)       & 0xFF);
-		
-		pushInt8(a);
-		pushInt8(b);
-		pushInt8(c);
-		pushInt8(d);
-		pushInt8(e);
-		pushInt8(f);
-		pushInt8(g);
-		pushInt8(h);
+		view.putLong(reserve(8), value);
 	}
 	
 	public void pushWord(long value) throws VMStackException {
@@ -77,46 +113,27 @@ public class Stack {
 	}
 	
 	public void pushFloat32(float value) throws VMStackException {
-		pushInt32(Float.floatToIntBits(value));
+		view.putFloat(reserve(4), value);
 	}
 	
 	public void pushFloat64(double value) throws VMStackException {
-		pushInt64(Double.doubleToLongBits(value));
+		view.putDouble(reserve(8), value);
 	}
 	
 	public byte popInt8() throws VMStackException {
-		rangeCheck();
-		byte result = stack[stackPointer];
-		stackPointer++;
-		return result;
+		return view.get(release(1));
 	}
 	
 	public short popInt16() throws VMStackException {
-		int lo = popInt8();
-		int hi = popInt8();
-		return (short) ((hi << 8) | lo);
+		return view.getShort(release(2));
 	}
 	
 	public int popInt32() throws VMStackException {
-		int d = popInt8();
-		int c = popInt8();
-		int b = popInt8();
-		int a = popInt8();
-		
-		return (a<<24) | (b<<16) | (c<<8) | d;
+		return view.getInt(release(4));
 	}
 	
 	public long popInt64() throws VMStackException {
-		int h = popInt8();
-		int g = popInt8();
-		int f = popInt8();
-		int e = popInt8();
-		int d = popInt8();
-		int c = popInt8();
-		int b = popInt8();
-		int a = popInt8();
-		
-		return (a<<56) | (b<<48) | (c<<40) | (d<<32) | (e<<24) | (f<<16) | (g<<8) | h;
+		return view.getLong(release(8));
 	}
 	
 	public short popFloat16() throws VMStackException {
@@ -124,47 +141,200 @@ public class Stack {
 	}
 	
 	public float popFloat32() throws VMStackException {
-		return Float.intBitsToFloat(popInt32());
+		return view.getFloat(release(4));
 	}
 	
 	public double popFloat64() throws VMStackException {
-		return Double.longBitsToDouble(popInt64());
+		return view.getDouble(release(8));
+	}
+	
+	/*
+	 * Bulk operations. Pushing count values from an array is equivalent to pushing values[offset] first and
+	 * values[offset+count-1] last, and popping into an array is its exact inverse, so a bulk pop gives back the values in the
+	 * order they were pushed. Either way there's only one range check for the whole run.
+	 */
+	
+	public void pushInt8(byte[] values, int offset, int count) throws VMStackException {
+		int sp = reserve(count);
+		for(int i=0; i<count; i++) {
+			view.put(sp + i, values[offset + count - 1 - i]);
+		}
+	}
+	
+	public void popInt8(byte[] dest, int offset, int count) throws VMStackException {
+		int sp = release(count);
+		for(int i=0; i<count; i++) {
+			dest[offset + count - 1 - i] = view.get(sp + i);
+		}
+	}
+	
+	public void pushInt16(short[] values, int offset, int count) throws VMStackException {
+		int sp = reserve(count << 1);
+		for(int i=0; i<count; i++) {
+			view.putShort(sp + (i << 1), values[offset + count - 1 - i]);
+		}
 	}
 	
+	public void popInt16(short[] dest, int offset, int count) throws VMStackException {
+		int sp = release(count << 1);
+		for(int i=0; i<count; i++) {
+			dest[offset + count - 1 - i] = view.getShort(sp + (i << 1));
+		}
+	}
+	
+	public void pushInt32(int[] values, int offset, int count) throws VMStackException {
+		int sp = reserve(count << 2);
+		for(int i=0; i<count; i++) {
+			view.putInt(sp + (i << 2), values[offset + count - 1 - i]);
+		}
+	}
+	
+	public void popInt32(int[] dest, int offset, int count) throws VMStackException {
+		int sp = release(count << 2);
+		for(int i=0; i<count; i++) {
+			dest[offset + count - 1 - i] = view.getInt(sp + (i << 2));
+		}
+	}
+	
+	public void pushInt64(long[] values, int offset, int count) throws VMStackException {
+		int sp = reserve(count << 3);
+		for(int i=0; i<count; i++) {
+			view.putLong(sp + (i << 3), values[offset + count - 1 - i]);
+		}
+	}
+	
+	public void popInt64(long[] dest, int offset, int count) throws VMStackException {
+		int sp = release(count << 3);
+		for(int i=0; i<count; i++) {
+			dest[offset + count - 1 - i] = view.getLong(sp + (i << 3));
+		}
+	}
+	
+	public void pushFloat32(float[] values, int offset, int count) throws VMStackException {
+		int sp = reserve(count << 2);
+		for(int i=0; i<count; i++) {
+			view.putFloat(sp + (i << 2), values[offset + count - 1 - i]);
+		}
+	}
+	
+	public void popFloat32(float[] dest, int offset, int count) throws VMStackException {
+		int sp = release(count << 2);
+		for(int i=0; i<count; i++) {
+			dest[offset + count - 1 - i] = view.getFloat(sp + (i << 2));
+		}
+	}
+	
+	public void pushFloat64(double[] values, int offset, int count) throws VMStackException {
+		int sp = reserve(count << 3);
+		for(int i=0; i<count; i++) {
+			view.putDouble(sp + (i << 3), values[offset + count - 1 - i]);
+		}
+	}
+	
+	public void popFloat64(double[] dest, int offset, int count) throws VMStackException {
+		int sp = release(count << 3);
+		for(int i=0; i<count; i++) {
+			dest[offset + count - 1 - i] = view.getDouble(sp + (i << 3));
+		}
+	}
+	
+	/**
+	 * Returns the view of the current frame's LVT. This is always the same object - it's re-pointed as frames are pushed and
+	 * popped - so callers may hold onto it across calls.
+	 */
 	public StackFrame currentStackFrame() {
-		return stackFrames.peek();
+		return frame;
 	}
 	
-	public void pushStackFrame(StackFrame frame) {
-		stackFrames.push(frame);
+	public void pushStackFrame(String methodName, int wordCount, int int64Count, int float64Count, int int32Count, int float32Count, int int16Count, int float16Count, int int8Count) throws VMStackException {
+		pushStackFrame(methodName, StackFrame.lvtInfo(wordCount, int64Count, float64Count, int32Count, float32Count, int16Count, float16Count, int8Count));
 	}
 	
-	public void pushStackFrame(String methodName, int wordCount, int int64Count, int float64Count, int int32Count, int float32Count, int int16Count, int float16Count, int int8Count) {
-		StackFrame frame = new StackFrame(methodName);
-		frame.reserve(wordCount, int64Count, float64Count, int32Count, float32Count, int16Count, float16Count, int8Count);
-		pushStackFrame(frame);
+	public void pushStackFrame(String methodName, long lvtInfo) throws VMStackException {
+		pushStackFrame(methodName, lvtInfo, 0, 0);
 	}
 	
-	public void pushStackFrame(String methodName, long lvtInfo) throws VMException {
-		int int8Count    = (int) ( lvtInfo         & 0xFF);
-		int float16Count = (int) ((lvtInfo >>>  8) & 0xFF);
-		int int16Count   = (int) ((lvtInfo >>> 16) & 0xFF);
-		int float32Count = (int) ((lvtInfo >>> 24) & 0xFF);
-		int int32Count   = (int) ((lvtInfo >>> 32) & 0xFF);
-		int float64Count = (int) ((lvtInfo >>> 40) & 0xFF);
-		int int64Count   = (int) ((lvtInfo >>> 48) & 0xFF);
-		int wordCount    = (int) ((lvtInfo >>> 56) & 0xFF);
+	/**
+	 * Pushes a new frame with zeroed LVT pools. The top argumentBytes bytes of the current operand stack are moved past the
+	 * new frame to become the start of its operand stack, so a callee can pop its arguments in the usual way.
+	 */
+	public void pushStackFrame(String methodName, long lvtInfo, int returnAddress, int argumentBytes) throws VMStackException {
+		if (argumentBytes<0 || argumentBytes>getOperandStackSize()) throw new VMStackException("Can't pass "+argumentBytes+" bytes of arguments; the operand stack only holds "+getOperandStackSize());
+		int lvtSize = StackFrame.sizeOf(lvtInfo);
+		int arguments = stackPointer;
+		int sp = reserve(FRAME_HEADER_SIZE + lvtSize);
+		
+		int bp = arguments + argumentBytes - FRAME_HEADER_SIZE;
+		int poolBase = bp - lvtSize;
+		if (argumentBytes>0) System.arraycopy(stack, arguments, stack, sp, argumentBytes);
+		Arrays.fill(stack, poolBase, bp, (byte) 0);
+		
+		view.putInt(bp, branchPointer);
+		view.putInt(bp + 4, returnAddress);
+		view.putLong(bp + 8, lvtInfo);
+		branchPointer = bp;
+		operandBase = poolBase;
+		
+		if (frameDepth>=frameNames.length) frameNames = Arrays.copyOf(frameNames, frameNames.length*2);
+		frameNames[frameDepth] = methodName;
+		frameDepth++;
+		frame.bind(methodName, poolBase, lvtInfo);
+	}
+	
+	/** Pops the current frame, discarding its operand stack, and returns its return address. */
+	public int popStackFrame() throws VMStackException {
+		return popStackFrame(0);
+	}
+	
+	/**
+	 * Pops the current frame and returns its return address. The top resultBytes bytes of the frame's operand stack are
+	 * moved onto the caller's operand stack; the rest is discarded.
+	 */
+	public int popStackFrame(int resultBytes) throws VMStackException {
+		if (frameDepth==0) throw new VMStackException("There is no stack frame to pop");
+		if (resultBytes<0 || resultBytes>getOperandStackSize()) throw new VMStackException("Can't return "+resultBytes+" bytes of results; the operand stack only holds "+getOperandStackSize());
+		
+		int bp = branchPointer;
+		int callerBp = view.getInt(bp);
+		int returnAddress = view.getInt(bp + 4);
+		int sp = bp + FRAME_HEADER_SIZE - resultBytes;
+		if (resultBytes>0) System.arraycopy(stack, stackPointer, stack, sp, resultBytes);
+		stackPointer = sp;
+		branchPointer = callerBp;
 		
-		pushStackFrame(methodName, wordCount, int64Count, float64Count, int32Count, float32Count, int16Count, float16Count, int8Count);
+		frameDepth--;
+		frameNames[frameDepth] = null;
+		if (frameDepth==0) {
+			operandBase = stack.length;
+			frame.bind("unknown", stack.length, 0L);
+		} else {
+			long lvtInfo = view.getLong(callerBp + 8);
+			operandBase = callerBp - StackFrame.sizeOf(lvtInfo);
+			frame.bind(frameNames[frameDepth-1], operandBase, lvtInfo);
+		}
+		return returnAddress;
 	}
 	
-	public StackFrame popStackFrame() {
-		return stackFrames.pop();
+	/**
+	 * Moves the stack pointer down to make room for {@code bytes} bytes, and returns the new stack pointer, which is the
+	 * address the data should be written at. Throws a StackOverflow if there's no room, leaving the stack untouched.
+	 */
+	protected int reserve(int bytes) throws VMStackException {
+		int sp = stackPointer - bytes;
+		if (sp<0 || bytes<0) throw new VMStackException("The EsoVM stack has overflowed (data was pushed but there's no room for it)");
+		stackPointer = sp;
+		return sp;
 	}
 	
-	/** Makes sure we're ready to read the value *at* the stack pointer. Throws a StackOverflow if we're not. */
-	protected void rangeCheck() throws VMStackException {
-		if (stackPointer<0) throw new VMStackException("The EsoVM stack has overflowed (data was pushed but there's no room for it)");
-		if (stackPointer>=stack.length) throw new VMStackException("The EsoVM stack has underflowed (data was popped but the stack is empty)"); 
+	/**
+	 * Moves the stack pointer up past {@code bytes} bytes, and returns the old stack pointer, which is the address the data
+	 * should be read from. Throws a StackUnderflow if the current frame's operand stack doesn't hold that much, leaving the
+	 * stack untouched.
+	 */
+	protected int release(int bytes) throws VMStackException {
+		int sp = stackPointer;
+		if (bytes<0 || bytes > operandBase - sp) throw new VMStackException("The EsoVM stack has underflowed (data was popped but the stack is empty)");
+		stackPointer = sp + bytes;
+		return sp;
 	}
 }
@@ -1,152 +1,296 @@
 package blue.endless.junior.esovm;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Typed view of the local variable table of the innermost frame on a {@link Stack}. There are no per-type arrays anymore:
+ * each pool is a run of bytes inside the stack's own memory, and this view just knows where each one starts and how many
+ * entries it holds. A Stack owns exactly one StackFrame and re-points it whenever frames are pushed or popped, so the
+ * object returned by {@link Stack#currentStackFrame()} always describes whatever frame is current.
+ * 
+ * <p>Pools are laid out from the widest type to the narrowest, starting at the lowest address of the frame:
+ * <pre>
+ *   [word][int64][float64][int32][float32][int16][float16][int8][frame header]
+ * </pre>
+ */
 public class StackFrame {
-	protected final String methodName;
-	long[] int64;
-	double[] float64;
-	int[] int32;
-	float[] float32;
-	short[] int16;
-	short[] float16;
-	byte[] int8;
-	long[] word;
+	protected final ByteBuffer memory;
+	protected String methodName = "unknown";
+	protected long lvtInfo;
+	
+	protected int wordBase;
+	protected int int64Base;
+	protected int float64Base;
+	protected int int32Base;
+	protected int float32Base;
+	protected int int16Base;
+	protected int float16Base;
+	protected int int8Base;
+	
+	protected int wordCount;
+	protected int int64Count;
+	protected int float64Count;
+	protected int int32Count;
+	protected int float32Count;
+	protected int int16Count;
+	protected int float16Count;
+	protected int int8Count;
 	
-	public StackFrame() {
-		this.methodName = "unknown";
+	protected StackFrame(ByteBuffer memory) {
+		this.memory = memory;
 	}
 	
-	public StackFrame(String methodName) {
+	/** Points this view at the LVT pools of a frame whose lowest byte is at poolBase. */
+	protected void bind(String methodName, int poolBase, long lvtInfo) {
 		this.methodName = methodName;
+		this.lvtInfo = lvtInfo;
+		
+		int8Count    = (int) ( lvtInfo         & 0xFF);
+		float16Count = (int) ((lvtInfo >>>  8) & 0xFF);
+		int16Count   = (int) ((lvtInfo >>> 16) & 0xFF);
+		float32Count = (int) ((lvtInfo >>> 24) & 0xFF);
+		int32Count   = (int) ((lvtInfo >>> 32) & 0xFF);
+		float64Count = (int) ((lvtInfo >>> 40) & 0xFF);
+		int64Count   = (int) ((lvtInfo >>> 48) & 0xFF);
+		wordCount    = (int) ((lvtInfo >>> 56) & 0xFF);
+		
+		wordBase    = poolBase;
+		int64Base   = wordBase    + (wordCount    << 3);
+		float64Base = int64Base   + (int64Count   << 3);
+		int32Base   = float64Base + (float64Count << 3);
+		float32Base = int32Base   + (int32Count   << 2);
+		int16Base   = float32Base + (float32Count << 2);
+		float16Base = int16Base   + (int16Count   << 1);
+		int8Base    = float16Base + (float16Count << 1);
+	}
+	
+	/** Returns the number of bytes the LVT pools described by lvtInfo take up on the stack. */
+	public static int sizeOf(long lvtInfo) {
+		return
+				(int) ( lvtInfo         & 0xFF)       + //int8
+				(int) ((lvtInfo >>>  8) & 0xFF) * 2   + //float16
+				(int) ((lvtInfo >>> 16) & 0xFF) * 2   + //int16
+				(int) ((lvtInfo >>> 24) & 0xFF) * 4   + //float32
+				(int) ((lvtInfo >>> 32) & 0xFF) * 4   + //int32
+				(int) ((lvtInfo >>> 40) & 0xFF) * 8   + //float64
+				(int) ((lvtInfo >>> 48) & 0xFF) * 8   + //int64
+				(int) ((lvtInfo >>> 56) & 0xFF) * 8;    //word
+	}
+	
+	/** Packs per-type LVT entry counts into lvtInfo form. Throws if any count doesn't fit in a byte. */
+	public static long lvtInfo(int wordCount, int int64Count, int float64Count, int int32Count, int float32Count, int int16Count, int float16Count, int int8Count) throws VMStackException {
+		return
+				(checkCount(wordCount)    << 56) |
+				(checkCount(int64Count)   << 48) |
+				(checkCount(float64Count) << 40) |
+				(checkCount(int32Count)   << 32) |
+				(checkCount(float32Count) << 24) |
+				(checkCount(int16Count)   << 16) |
+				(checkCount(float16Count) <<  8) |
+				 checkCount(int8Count);
+	}
+	
+	private static long checkCount(int count) throws VMStackException {
+		if (count<0 || count>0xFF) throw new VMStackException("A stack frame can hold at most 255 LVT entries of each type, not "+count);
+		return count;
+	}
+	
+	public String getMethodName() {
+		return methodName;
 	}
 	
-	public void reserve(int wordCount, int int64Count, int float64Count, int int32Count, int float32Count, int int16Count, int float16Count, int int8Count) {
-		if (wordCount   >0) word    = new long[wordCount];
-		if (int64Count  >0) int64   = new long[int64Count];
-		if (float64Count>0) float64 = new double[float64Count];
-		if (int32Count  >0) int32   = new int[int32Count];
-		if (float32Count>0) float32 = new float[float32Count];
-		if (int16Count  >0) int16   = new short[int16Count];
-		if (float16Count>0) float16 = new short[float16Count];
-		if (int8Count   >0) int8    = new byte[int8Count];
+	/** Returns the lvtInfo this frame was laid out with. */
+	public long getLvtInfo() {
+		return lvtInfo;
 	}
 	
 	public byte getInt8(int index) throws VMStackException {
 		checkInt8(index);
-		return int8[index];
+		return memory.get(int8Base + index);
 	}
 	
 	public short getInt16(int index) throws VMStackException {
 		checkInt16(index);
-		return int16[index];
+		return memory.getShort(int16Base + (index << 1));
 	}
 	
 	public int getInt32(int index) throws VMStackException {
 		checkInt32(index);
-		return int32[index];
+		return memory.getInt(int32Base + (index << 2));
 	}
 	
 	public long getInt64(int index) throws VMStackException {
 		checkInt64(index);
-		return int64[index];
+		return memory.getLong(int64Base + (index << 3));
 	}
 	
 	public long getWord(int index) throws VMStackException {
 		checkWord(index);
-		return word[index];
+		return memory.getLong(wordBase + (index << 3));
 	}
 	
 	public short getFloat16(int index) throws VMStackException {
 		checkFloat16(index);
-		return float16[index];
+		return memory.getShort(float16Base + (index << 1));
 	}
 	
 	public float getFloat32(int index) throws VMStackException {
 		checkFloat32(index);
-		return float32[index];
+		return memory.getFloat(float32Base + (index << 2));
 	}
 	
 	public double getFloat64(int index) throws VMStackException {
 		checkFloat64(index);
-		return float64[index];
+		return memory.getDouble(float64Base + (index << 3));
 	}
 	
 	public void putInt8(int index, byte value) throws VMStackException {
 		checkInt8(index);
-		int8[index] = value;
+		memory.put(int8Base + index, value);
 	}
 	
 	public void putInt16(int index, short value) throws VMStackException {
 		checkInt16(index);
-		int16[index] = value;
+		memory.putShort(int16Base + (index << 1), value);
 	}
 	
 	public void putInt32(int index, int value) throws VMStackException {
 		checkInt32(index);
-		int32[index] = value;
+		memory.putInt(int32Base + (index << 2), value);
 	}
 	
 	public void putInt64(int index, long value) throws VMStackException {
 		checkInt64(index);
-		int64[index] = value;
+		memory.putLong(int64Base + (index << 3), value);
 	}
 	
 	public void putWord(int index, long value) throws VMStackException {
 		checkWord(index);
-		word[index] = value;
+		memory.putLong(wordBase + (index << 3), value);
 	}
 	
 	public void putFloat16(int index, short value) throws VMStackException {
 		checkFloat16(index);
-		float16[index] = value;
+		memory.putShort(float16Base + (index << 1), value);
 	}
 	
 	public void putFloat32(int index, float value) throws VMStackException {
 		checkFloat32(index);
-		float32[index] = value;
+		memory.putFloat(float32Base + (index << 2), value);
 	}
 	
 	public void putFloat64(int index, double value) throws VMStackException {
 		checkFloat64(index);
-		float64[index] = value;
+		memory.putDouble(float64Base + (index << 3), value);
+	}
+	
+	/*
+	 * Unchecked accessors, for code the Verifier has accepted against this frame's lvtInfo. A bad index here doesn't throw;
+	 * it silently reads or writes some other part of the stack. It can never reach memory outside the stack, though, because
+	 * the underlying ByteBuffer still does its own bounds checks.
+	 */
+	
+	public byte getInt8Unchecked(int index) {
+		return memory.get(int8Base + index);
+	}
+	
+	public short getInt16Unchecked(int index) {
+		return memory.getShort(int16Base + (index << 1));
+	}
+	
+	public int getInt32Unchecked(int index) {
+		return memory.getInt(int32Base + (index << 2));
+	}
+	
+	public long getInt64Unchecked(int index) {
+		return memory.getLong(int64Base + (index << 3));
+	}
+	
+	public long getWordUnchecked(int index) {
+		return memory.getLong(wordBase + (index << 3));
+	}
+	
+	public short getFloat16Unchecked(int index) {
+		return memory.getShort(float16Base + (index << 1));
+	}
+	
+	public float getFloat32Unchecked(int index) {
+		return memory.getFloat(float32Base + (index << 2));
+	}
+	
+	public double getFloat64Unchecked(int index) {
+		return memory.getDouble(float64Base + (index << 3));
+	}
+	
+	public void putInt8Unchecked(int index, byte value) {
+		memory.put(int8Base + index, value);
+	}
+	
+	public void putInt16Unchecked(int index, short value) {
+		memory.putShort(int16Base + (index << 1), value);
+	}
+	
+	public void putInt32Unchecked(int index, int value) {
+		memory.putInt(int32Base + (index << 2), value);
+	}
+	
+	public void putInt64Unchecked(int index, long value) {
+		memory.putLong(int64Base + (index << 3), value);
+	}
+	
+	public void putWordUnchecked(int index, long value) {
+		memory.putLong(wordBase + (index << 3), value);
+	}
+	
+	public void putFloat16Unchecked(int index, short value) {
+		memory.putShort(float16Base + (index << 1), value);
+	}
+	
+	public void putFloat32Unchecked(int index, float value) {
+		memory.putFloat(float32Base + (index << 2), value);
+	}
+	
+	public void putFloat64Unchecked(int index, double value) {
+		memory.putDouble(float64Base + (index << 3), value);
 	}
 	
 	protected void checkInt8(int index) throws VMStackException {
-		if (int8==null) throw new VMStackException("An instruction attempted to access an int8 in the LVT, but none were declared.");
-		if (index<0 || index>=int8.length) throw new VMStackException("An instruction attempted to access an int8 in the LVT with invalid index "+index);
+		if (int8Count==0) throw new VMStackException("An instruction attempted to access an int8 in the LVT, but none were declared.");
+		if (index<0 || index>=int8Count) throw new VMStackException("An instruction attempted to access an int8 in the LVT with invalid index "+index);
 	}
 	
 	protected void checkInt16(int index) throws VMStackException {
-		if (int16==null) throw new VMStackException("An instruction attempted to access an int16 in the LVT, but none were declared.");
-		if (index<0 || index>=int16.length) throw new VMStackException("An instruction attempted to access an int16 in the LVT with invalid index "+index);
+		if (int16Count==0) throw new VMStackException("An instruction attempted to access an int16 in the LVT, but none were declared.");
+		if (index<0 || index>=int16Count) throw new VMStackException("An instruction attempted to access an int16 in the LVT with invalid index "+index);
 	}
 	
 	protected void checkInt32(int index) throws VMStackException {
-		if (int32==null) throw new VMStackException("An instruction attempted to access an int32 in the LVT, but none were declared.");
-		if (index<0 || index>=int32.length) throw new VMStackException("An instruction attempted to access an int32 in the LVT with invalid index "+index);
+		if (int32Count==0) throw new VMStackException("An instruction attempted to access an int32 in the LVT, but none were declared.");
+		if (index<0 || index>=int32Count) throw new VMStackException("An instruction attempted to access an int32 in the LVT with invalid index "+index);
 	}
 	
 	protected void checkInt64(int index) throws VMStackException {
-		if (int64==null) throw new VMStackException("An instruction attempted to access an int64 in the LVT, but none were declared.");
-		if (index<0 || index>=int64.length) throw new VMStackException("An instruction attempted to access an int64 in the LVT with invalid index "+index);
+		if (int64Count==0) throw new VMStackException("An instruction attempted to access an int64 in the LVT, but none were declared.");
+		if (index<0 || index>=int64Count) throw new VMStackException("An instruction attempted to access an int64 in the LVT with invalid index "+index);
 	}
 	
 	protected void checkWord(int index) throws VMStackException {
-		if (word==null) throw new VMStackException("An instruction attempted to access a word in the LVT, but none were declared.");
-		if (index<0 || index>=word.length) throw new VMStackException("An instruction attempted to access a word in the LVT with invalid index "+index);
+		if (wordCount==0) throw new VMStackException("An instruction attempted to access a word in the LVT, but none were declared.");
+		if (index<0 || index>=wordCount) throw new VMStackException("An instruction attempted to access a word in the LVT with invalid index "+index);
 	}
 	
 	protected void checkFloat16(int index) throws VMStackException {
-		if (float16==null) throw new VMStackException("An instruction attempted to access a float16 in the LVT, but none were declared.");
-		if (index<0 || index>=float16.length) throw new VMStackException("An instruction attempted to access a float16 in the LVT with invalid index "+index);
+		if (float16Count==0) throw new VMStackException("An instruction attempted to access an float16 in the LVT, but none were declared.");
+		if (index<0 || index>=float16Count) throw new VMStackException("An instruction attempted to access an float16 in the LVT with invalid index "+index);
 	}
 	
 	protected void checkFloat32(int index) throws VMStackException {
-		if (float32==null) throw new VMStackException("An instruction attempted to access a float32 in the LVT, but none were declared.");
-		if (index<0 || index>=float32.length) throw new VMStackException("An instruction attempted to access a float32 in the LVT with invalid index "+index);
+		if (float32Count==0) throw new VMStackException("An instruction attempted to access an float32 in the LVT, but none were declared.");
+		if (index<0 || index>=float32Count) throw new VMStackException("An instruction attempted to access an float32 in the LVT with invalid index "+index);
 	}
 	
 	protected void checkFloat64(int index) throws VMStackException {
-		if (float64==null) throw new VMStackException("An instruction attempted to access a float64 in the LVT, but none were declared.");
-		if (index<0 || index>=float64.length) throw new VMStackException("An instruction attempted to access a float64 in the LVT with invalid index "+index);
+		if (float64Count==0) throw new VMStackException("An instruction attempted to access an float64 in the LVT, but none were declared.");
+		if (index<0 || index>=float64Count) throw new VMStackException("An instruction attempted to access an float64 in the LVT with invalid index "+index);
 	}
 }
@@ -0,0 +1,15 @@
+package blue.endless.junior.esovm;
+
+public class VMMemoryException extends VMException {
+	private static final long serialVersionUID = -2361862436016846771L;
+	
+	public VMMemoryException() {}
+	
+	public VMMemoryException(String message) {
+		super(message);
+	}
+	
+	public VMMemoryException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
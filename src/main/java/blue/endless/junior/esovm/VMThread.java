@@ -1,5 +1,13 @@
 package blue.endless.junior.esovm;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import blue.endless.junior.esovm.jit.CompiledFunction;
+import blue.endless.junior.esovm.jit.JitCompiler;
+import blue.endless.junior.esovm.jit.JitState;
+
 public class VMThread {
 	/*
 	 * Opcode formats:
@@ -45,7 +53,8 @@ public class VMThread {
 	public static final int OPERAND_REGISTER  = 0x0;
 	public static final int OPERAND_IMMEDIATE = 0x1;
 	public static final int OPERAND_CONSTANT  = 0x2;
-	//0x0..0x3 are always valid for non-ignored operands, but the following are memory types, and are only valid for load and store:
+	//0x0..0x3 are always valid for non-ignored operands, but the following are memory types, and are only valid for load and store.
+	//The base register is a word register, given in the destination byte of the instruction. Register offsets are word registers too.
 	/* Loading this will load the value at address `register+operand2` */
 	public static final int OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET = 0x4;
 	/* Loading this will load the value at address `register+constant` where constant is the value at the constant-offset pointed to by immediate value operand2 */
@@ -78,8 +87,8 @@ public class VMThread {
 	public static final int OPCODE_PUSH  = 0x02; //Simple - operand 1 is the source register, operand 2 is ignored and SHOULD be zeroes
 	public static final int OPCODE_POP   = 0x03; //Simple - operand 1 is the destination register, operand 2 is ignored and SHOULD be zeroes
 	
-	public static final int OPCODE_ALLOCATE       = 0x10; //simple - operand 1 is the destination register to place the address in, operand 2 is the amount of memory to reserve
-	public static final int OPCODE_FREE           = 0x11; //simple - operand 1 is the register containing the address, operand 2 is ignored and SHOULD be zeroes
+	public static final int OPCODE_ALLOCATE       = 0x10; //simple - operand 1 is the destination word register to place the address in, operand 2 is the amount of memory to reserve (a word register or an unsigned immediate)
+	public static final int OPCODE_FREE           = 0x11; //simple - operand 1 is the word register containing the address, operand 2 is ignored and SHOULD be zeroes
 	public static final int OPCODE_ALLOCATE_STACK = 0x12; //same as allocate
 	public static final int OPCODE_FREE_STACK     = 0x13; //same as free
 	
@@ -87,18 +96,37 @@ public class VMThread {
 	public static final int OPCODE_SUB = 0x21; //Standard
 	public static final int OPCODE_MUL = 0x22; //Standard
 	public static final int OPCODE_DIV = 0x23; //Standard
-	public static final int OPCIDE_MOD = 0x24; //Standard
+	public static final int OPCODE_MOD = 0x24; //Standard
+	/** @deprecated misspelled; use {@link #OPCODE_MOD} */
+	@Deprecated
+	public static final int OPCIDE_MOD = OPCODE_MOD;
 	public static final int OPCODE_SHL = 0x25; //Standard - only valid for int types
 	public static final int OPCODE_SHR = 0x26; //Standard - only valid for int types
 	public static final int OPCODE_ASR = 0x27; //Standard - only valid for int types - sign-extending "Arithmetic Shift Right"
 	
 	public static final int OPCODE_CONVERT = 0x30; //Convert
 	
+	/*
+	 * Bulk memory and vector instructions work on count elements of the instruction's data type at once, where count is
+	 * operand 2 (a word register, an immediate, or a word constant). Addresses are in word registers, and every region an
+	 * instruction touches must lie inside one heap block. Where there are two sources, a and b, operand 1 is the word
+	 * register holding a's address and the word register after it holds b's.
+	 */
+	public static final int OPCODE_MEMCOPY       = 0x50; //Standard - copies from the address in operand 1 to the address in destination. The regions may overlap.
+	public static final int OPCODE_MEMFILL       = 0x51; //Standard - stores operand 1, a register of the data type, into every element at the address in destination
+	public static final int OPCODE_MEMCOMPARE    = 0x52; //Standard - compares the elements at the addresses in destination and operand 1, setting the flags as TEST would for the first difference, or ZERO if there's none
+	public static final int OPCODE_VECTOR_ADD    = 0x53; //Standard - d[i] = a[i] + b[i], where d is at the address in destination
+	public static final int OPCODE_VECTOR_MUL    = 0x54; //Standard - d[i] = a[i] * b[i]
+	public static final int OPCODE_VECTOR_MULADD = 0x55; //Standard - d[i] = d[i] + a[i] * b[i], rounded as a MUL followed by an ADD would be
+	public static final int OPCODE_VECTOR_SUM    = 0x56; //Standard - destination is a register of the data type, set to the sum of the elements at the address in operand 1
+	public static final int OPCODE_VECTOR_DOT    = 0x57; //Standard - destination is a register of the data type, set to the sum of a[i] * b[i]
+	
 	public static final int OPCODE_CALL    = 0x40; //Simple - operand 1 is ignored, operand 2 is an index in the constant-string pool of a method to call.
 	/*
 	 * Method calls in esovm on the jvm will first look for a junior method matching the signature. If none are found, then java is reflexively asked for the method, and
 	 * based on the first method found matching the string as a fully-qualified binary name, arguments will be popped off the stack in reverse order and a conversion
-	 * attempted to the method's parameter types. The ability to call "external" Java methods can be disabled from the Interpreter.
+	 * attempted to the method's parameter types. Overloaded Java methods need their descriptor appended to the name to pick one. The ability to call "external" Java
+	 * methods can be disabled from the Interpreter. Each call site only does this lookup once; see Module.link and Linker.
 	 */
 	
 	public static final int OPCODE_TEST    = 0x41; //Simple - operand 1 is a register, everything else is ignored.
@@ -113,9 +141,20 @@ public class VMThread {
 	 *   0x04: "Negative", "Less than Zero", "<0" (SF==1)
 	 *   0x05: "Not-Negative", "Greater or Equal to Zero", ">=0" (SF==0)
 	 */
+	public static final int CONDITION_ZERO         = 0x00;
+	public static final int CONDITION_NOT_ZERO     = 0x01;
+	public static final int CONDITION_LESS         = 0x02;
+	public static final int CONDITION_GREATER      = 0x03;
+	public static final int CONDITION_NEGATIVE     = 0x04;
+	public static final int CONDITION_NOT_NEGATIVE = 0x05;
+	
+	//Flags set by OPCODE_TEST. Since TEST only ever compares a register against zero, CF is always clear and isn't tracked.
+	public static final int FLAG_ZERO = 0x01;
+	public static final int FLAG_SIGN = 0x02;
 	
 	public static final int OPCODE_CLOAD   = 0x44; //Standard - operand 1 is a condition code, operand 2 is the element to load
 	public static final int OPCODE_CSTORE  = 0x45; //Standard - operand 1 is a condition code, operand 2 is the data destination, what is normally destination is the source register
+	public static final int OPCODE_RETURN  = 0x46; //Simple - operands are ignored and SHOULD be zeroes. Returns to the caller, moving the function's results onto the caller's operand stack. Returning from the outermost frame halts the thread.
 	
 	
 	public static final int OPCODE_INTERRUPT = 0xF0; //Simple - operand 1 is ignored, operand 2 is the index into the interrupt vector table (the interrupt to trigger).
@@ -124,71 +163,1439 @@ public class VMThread {
 	
 	public static final int OPCODE_HALT      = 0xFF; //Simple - operand 1 is ignored and MUST be zeroes, operand 2 is zero for a normal halt, or an index into the constant-string pool for an error description.
 	
-	protected Stack stack = new Stack(65535);
+	protected Stack stack;
+	/** Memory for ALLOCATE, FREE and memory operands. Threads get their own unless they're given one to share with {@link #setHeap(Heap)}. */
+	protected Heap heap = new Heap();
+	/** Scratch space for the bulk memory and vector instructions, made the first time one runs. */
+	protected BulkMemory bulkMemory;
+	protected Module module;
+	/** The module's instruction stream and constants, cached here because the dispatch loops read them constantly. */
 	protected byte[] program;
+	protected ConstantPool constants;
+	/** The pre-decoded form of program; see {@link Decoder}. */
+	protected int[] code;
+	/** The function being run, and the functions of the frames below it, indexed by call depth. */
+	protected Module.Function function;
+	protected Module.Function[] functionStack = new Module.Function[16];
+	protected int callDepth = 0;
+	/** Reusable argument arrays for calls to Java methods, indexed by argument count. */
+	protected long[][] scratchArguments = new long[4][];
+	/** True if the module was wrapped around a bare program by this thread, rather than handed to it. */
+	protected boolean bareProgram = false;
 	protected int programCounter;
+	protected int flags;
 	protected boolean active = true;
+	/** Set once the Verifier has accepted the code reachable from the entry point, switching dispatch to unchecked handlers. */
+	protected boolean verified = false;
+	
+	/*
+	 * JIT tier. Verified code counts backward jumps, and once jitThreshold of them have been taken, the current function is
+	 * compiled to a JVM class and run from there. Functions without loops are compiled once they've been called jitThreshold
+	 * times instead. Compiled code belongs to the Module.Function, so every thread running the function shares it.
+	 */
+	public static final int DEFAULT_JIT_THRESHOLD = 10000;
+	protected int jitThreshold = DEFAULT_JIT_THRESHOLD;
+	protected int backEdgeCountdown = DEFAULT_JIT_THRESHOLD;
+	protected final JitState jitState = new JitState();
+	/** Set when execution stopped on an OPCODE_IN whose port had no data ready. */
+	protected boolean waiting = false;
+	protected VMException fault;
+	protected long totalCycles = 0L;
+	protected Port[] ports = new Port[0];
+	protected Profile profile;
+	/** Where in the profile's calling context tree this thread is. */
+	protected Profile.Node profileNode;
 	
-	public VMThread(byte[] program, int address) {
-		stack.clear();
-		this.program = program;
+	public VMThread(byte[] program, int address) throws VMException {
+		this(program, new ConstantPool(), address);
+	}
+	
+	/**
+	 * Creates a thread which runs a bare program, with no function table, starting at address. The program is wrapped in a
+	 * module holding a single function named "main". No stack frame is pushed.
+	 */
+	public VMThread(byte[] program, ConstantPool constants, int address) throws VMException {
+		this(Module.of(program, constants, address, 0L), address);
+		bareProgram = true;
+	}
+	
+	/**
+	 * Creates a thread which starts at address with a fresh stack frame laid out according to lvtInfo - one byte per data
+	 * type giving the number of LVT entries to reserve, with int8 in the lowest byte and word in the highest.
+	 */
+	public VMThread(byte[] program, int address, long lvtInfo) throws VMException {
+		this(program, new ConstantPool(), address, lvtInfo);
+	}
+	
+	public VMThread(byte[] program, ConstantPool constants, int address, long lvtInfo) throws VMException {
+		this(Module.of(program, constants, address, lvtInfo), address);
+		bareProgram = true;
+		stack.pushStackFrame("main", lvtInfo);
+	}
+	
+	/**
+	 * Creates a thread which runs function, which must belong to module and take no arguments, in a fresh stack frame. When
+	 * the function returns, the thread halts with its results on the stack.
+	 */
+	public VMThread(Module module, Module.Function function) throws VMException {
+		this(module, function.entry);
+		if (function.argumentBytes!=0) throw new VMException("Function "+function.name+" needs "+function.argumentBytes+" bytes of arguments");
+		stack.pushStackFrame(function.name, function.lvtInfo);
+	}
+	
+	private VMThread(Module module, int address) throws VMException {
+		stack = new Stack(65535);
+		enter(module);
 		this.programCounter = address;
+		this.function = module.functionAt(address);
+		if (function==null) throw new VMException("Address 0x"+Integer.toHexString(address)+" isn't inside any function");
+		module.load(function);
+		functionStack[0] = function;
+	}
+	
+	/** Creates a thread which carries on from where a snapshot was taken; see {@link Snapshot#spawn()}. */
+	protected VMThread(Snapshot snapshot) {
+		stack = snapshot.stack.copy();
+		heap = snapshot.heap.fork();
+		enter(snapshot.module);
+		programCounter = snapshot.programCounter;
+		flags = snapshot.flags;
+		function = snapshot.function;
+		functionStack = snapshot.functionStack.clone();
+		callDepth = snapshot.callDepth;
+		bareProgram = snapshot.bareProgram;
+		verified = snapshot.verified;
+		jitThreshold = snapshot.jitThreshold;
+		backEdgeCountdown = snapshot.jitThreshold;
+	}
+	
+	/**
+	 * Captures this thread's state - its stack, heap, and where it is in its code - so that any number of copies can be
+	 * started from it with {@link Snapshot#spawn()}. This is for paying for initialization once: run a thread until it's set
+	 * up, by having it halt or wait on a port, snapshot it, and spawn a copy per job instead of re-running the setup each time.
+	 *
+	 * <p>The heap is shared copy-on-write, so taking a snapshot and spawning from it cost a copy of the used part of the stack
+	 * but nothing for the heap; each copy only pays for the heap pages it writes to. The module and constant pool are shared
+	 * outright. Attached ports are not captured, since they belong to the host. This thread carries on as normal afterwards,
+	 * and doesn't see writes made by the copies, nor they its. It must not be running while the snapshot is taken.
+	 */
+	public Snapshot snapshot() throws VMException {
+		if (fault!=null) throw new VMException("Can't snapshot a thread which has faulted", fault);
+		return new Snapshot(this);
 	}
 	
 	public void cycle() throws VMException {
 		if (!active) return;
+		execute(1);
+	}
+	
+	/**
+	 * Runs this thread until it halts, faults, blocks on an I/O port, or has executed maxCycles instructions, whichever comes
+	 * first. Unlike {@link #cycle()}, faults are reported through the result instead of being thrown.
+	 */
+	public RunResult run(long maxCycles) {
+		if (!active) {
+			return new RunResult((fault==null) ? RunResult.Status.HALTED : RunResult.Status.FAULTED, 0, fault);
+		}
+		
+		long startCycles = totalCycles;
+		try {
+			execute(maxCycles);
+		} catch (VMException ex) {
+			return new RunResult(RunResult.Status.FAULTED, totalCycles - startCycles, ex);
+		}
+		
+		long cycles = totalCycles - startCycles;
+		if (!active) return new RunResult(RunResult.Status.HALTED, cycles, null);
+		if (waiting) return new RunResult(RunResult.Status.WAITING_ON_IO, cycles, null);
+		return new RunResult(RunResult.Status.BUDGET_EXHAUSTED, cycles, null);
+	}
+	
+	/**
+	 * Verifies the current function, and if it passes, switches this thread over to the unchecked dispatch loop. Functions it
+	 * calls are verified as they're called, and the ones further down the stack as they're returned to. Verification assumes
+	 * each function runs in a frame laid out by its own lvtInfo; don't push or pop frames behind the thread's back afterwards.
+	 * 
+	 * <p>A bare program's frame may have been set up by hand, so for those the code reachable from the current program
+	 * counter is verified against whatever frame is current instead.
+	 */
+	public void verify() throws VMVerificationException {
+		long lvtInfo = stack.currentStackFrame().getLvtInfo();
+		if (bareProgram && callDepth==0 && (programCounter!=function.entry || lvtInfo!=function.lvtInfo)) {
+			try {
+				module = Module.of(program, constants, programCounter, lvtInfo);
+			} catch (VMException ex) {
+				throw new VMVerificationException("Couldn't wrap the program for verification", ex);
+			}
+			program = module.getProgram();
+			code = module.getCode();
+			function = module.getFunction("main");
+			functionStack[0] = function;
+		}
+		module.verify(function);
+		verified = true;
+		backEdgeCountdown = (jitThreshold>0) ? jitThreshold : Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Sets the number of backward jumps verified code may take, or the number of times a function may be called, before it's
+	 * compiled to JVM bytecode. Zero or less disables compilation entirely.
+	 */
+	public void setJitThreshold(int threshold) {
+		this.jitThreshold = threshold;
+		backEdgeCountdown = (threshold>0) ? threshold : Integer.MAX_VALUE;
+	}
+	
+	/** Returns true if the function this thread is running has been compiled to JVM bytecode. */
+	public boolean isCompiled() {
+		return function.compiled!=null;
+	}
+	
+	public boolean isVerified() {
+		return verified;
+	}
+	
+	/**
+	 * Returns true if this thread is still running. In other words, true is returned if cycle() should continue be called to
+	 * dispatch more instructions. False will be returned if the machine hits either a natural or abnormal halt.
+	 */
+	public boolean isActive() {
+		return active;
+	}
+	
+	/** Returns true if this thread last stopped on an OPCODE_IN whose port had no data ready. */
+	public boolean isWaiting() {
+		return waiting;
+	}
+	
+	/** If this thread was stopped by an exception, returns that exception. Otherwise returns null. */
+	public VMException getFault() {
+		return fault;
+	}
+	
+	/** Returns the number of instructions this thread has executed over its whole lifetime. */
+	public long getTotalCycles() {
+		return totalCycles;
+	}
+	
+	public Stack getStack() {
+		return stack;
+	}
+	
+	public Module getModule() {
+		return module;
+	}
+	
+	/** Returns the function this thread is currently running. */
+	public Module.Function getFunction() {
+		return function;
+	}
+	
+	public ConstantPool getConstants() {
+		return constants;
+	}
+	
+	public Heap getHeap() {
+		return heap;
+	}
+	
+	/**
+	 * Attaches a profile to gather statistics about where this thread spends its time, or detaches it if profile is null.
+	 * While a profile is attached, every instruction runs through its own pass of the checked dispatch loop, and the verified
+	 * loop and compiled code aren't used at all; detaching it puts the thread back on its usual tier.
+	 */
+	public void setProfile(Profile profile) {
+		this.profile = profile;
+		this.profileNode = (profile==null) ? null : profile.enter(functionStack, callDepth);
+	}
+	
+	public Profile getProfile() {
+		return profile;
+	}
+	
+	/** Replaces this thread's heap, e.g. so that several threads share memory. Heaps aren't thread-safe, so threads sharing one mustn't run concurrently. */
+	public void setHeap(Heap heap) {
+		this.heap = heap;
+	}
+	
+	/** Attaches a device to the port with the given index, replacing any device that was already there. */
+	public void attachPort(int index, Port port) {
+		if (index>=ports.length) ports = Arrays.copyOf(ports, index+1);
+		ports[index] = port;
+	}
+	
+	protected Port getPort(int index) throws VMException {
+		Port result = (index>=0 && index<ports.length) ? ports[index] : null;
+		if (result==null) throw new VMException("Nothing is attached to port "+index);
+		return result;
+	}
+	
+	public int getProgramCounter() {
+		return programCounter;
+	}
+	
+	protected void checkBounds() throws VMException {
+		if (programCounter<0 || programCounter>=program.length) throw new VMException("Program counter 0x"+Integer.toHexString(programCounter)+" is outside the program");
+		if ((programCounter & 0x7) != 0) throw new VMException("Program counter 0x"+Integer.toHexString(programCounter)+" is not aligned to an instruction");
+	}
+	
+	/**
+	 * Dispatches up to maxCycles instructions, stopping early if the thread halts or blocks, and returns the number of
+	 * instructions actually executed. The thread is deactivated if an exception escapes. Unchecked exceptions, say from a
+	 * port, are faults like any other, so they come out wrapped in a VMException.
+	 */
+	protected long execute(long maxCycles) throws VMException {
 		try {
 			checkBounds();
-			int opcode = program[programCounter];
-			switch(opcode) {
-			case OPCODE_LOAD: {
-				int instructionType = program[programCounter+1] >>> 4;
-				int operand2Type = program[programCounter+1] & 0x0F;
-				int lvtIndex = program[programCounter+3];
-				load(instructionType, lvtIndex, operand2Type, operand2Standard());
-				break;
+			waiting = false;
+			if (profile!=null) return executeProfiled(maxCycles);
+			if (!verified) return executeChecked(maxCycles);
+			
+			long cycles = 0;
+			while(true) {
+				cycles += executeVerified(maxCycles - cycles);
+				if (backEdgeCountdown>=0 || !active || waiting || cycles>=maxCycles) return cycles;
+				
+				//A loop got hot, and we're sitting on its first instruction
+				cycles += executeCompiled(maxCycles - cycles);
+				if (!active || cycles>=maxCycles) return cycles;
 			}
-			case OPCODE_STORE: {
-				int instructionType = program[programCounter+1] >>> 4;
-				int operand2Type = program[programCounter+1] & 0x0F;
-				int lvtIndex = program[programCounter+3];
-				store(instructionType, lvtIndex, operand2Type, operand2Standard());
-				break;
+		} catch (ArithmeticException ex) {
+			//Integer division by zero is the only way to get here. The message is spelled out because HotSpot can drop the
+			//exception's own once it has compiled the code which threw it
+			active = false;
+			fault = new VMException("Arithmetic error at 0x"+Integer.toHexString(programCounter)+": division by zero", ex);
+			throw fault;
+		} catch (RuntimeException ex) {
+			active = false;
+			fault = new VMException("Unexpected "+ex+" at 0x"+Integer.toHexString(programCounter), ex);
+			throw fault;
+		} catch (VMException ex) {
+			active = false;
+			fault = ex;
+			throw ex;
+		}
+	}
+	
+	/**
+	 * The instrumented dispatch loop used while a profile is attached. Each instruction is run by itself by the checked loop,
+	 * then recorded. It's slow, but it keeps every bit of instrumentation out of the loops which run unprofiled code.
+	 */
+	protected long executeProfiled(long maxCycles) throws VMException {
+		long cycles = 0;
+		while(cycles<maxCycles && active && !waiting) {
+			checkBounds();
+			int at = programCounter;
+			Module.Function caller = function;
+			int depth = callDepth;
+			int opcode = program[at] & 0xFF;
+			long spent = executeChecked(1);
+			if (waiting) break;
+			cycles += spent;
+			profileNode = profile.record(profileNode, caller, at, opcode, depth, spent, this);
+		}
+		return cycles;
+	}
+	
+	/**
+	 * Transfers control to the compiled version of the current function, compiling it first if needed, and returns the number
+	 * of instructions executed there. Compiled code runs until it halts, reaches a CALL or RETURN (which it leaves to the
+	 * interpreter), or reaches a basic block the rest of the budget can't cover.
+	 */
+	protected long executeCompiled(long maxCycles) throws VMException {
+		CompiledFunction compiled = function.compiled;
+		if (compiled==null) {
+			if (function.compileFailed || jitThreshold<=0) {
+				//Other functions may still be compilable, so start counting again
+				backEdgeCountdown = (jitThreshold>0) ? jitThreshold : Integer.MAX_VALUE;
+				return 0;
 			}
-			case OPCODE_PUSH: {
-				int instructionType = program[programCounter+1] >>> 4;
-				int lvtIndex = program[programCounter+3];
-				push(instructionType, lvtIndex);
-				break;
+			try {
+				compiled = JitCompiler.compile(module, function);
+				function.compiled = compiled;
+			} catch (JitCompiler.Bailout ex) {
+				//Not an error; the interpreter will just keep going without the compiled tier.
+				function.compileFailed = true;
+				backEdgeCountdown = jitThreshold;
+				return 0;
 			}
-			
-			//TODO: Rest of instructions
-			
-			case OPCODE_HALT: {
-				active = false;
-				break;
+		}
+		
+		//Compiled code exists now, so re-enter it at the very next backward jump. If compiled code leaves at a CALL or RETURN,
+		//that's also where whichever function the thread lands in gets compiled, since it's calling into or out of hot code.
+		backEdgeCountdown = 0;
+		
+		jitState.flags = flags;
+		jitState.cycles = 0;
+		jitState.budget = maxCycles;
+		int next;
+		try {
+			next = compiled.run(stack.currentStackFrame(), stack, programCounter >> 3, jitState);
+		} finally {
+			flags = jitState.flags;
+			totalCycles += jitState.cycles;
+		}
+		
+		if (next<0) {
+			//Leave the program counter just past the HALT, same as the interpreter does
+			active = false;
+			programCounter = (-next) << 3;
+		} else {
+			programCounter = next << 3;
+		}
+		return jitState.cycles;
+	}
+	
+	/**
+	 * The main dispatch loop. Runs pre-decoded code, with every LVT access bounds-checked against the current frame.
+	 * 
+	 * <p>Everything the loop touches is kept in locals and only written back on the way out, and every case is a complete,
+	 * specialized implementation of one opcode/type/operand combination. Keep it that way: this method has to stay under
+	 * HotSpot's huge-method limit to get compiled at all, so anything uncommon or bulky belongs in {@link #executeGeneric(int)}.
+	 */
+	protected long executeChecked(long maxCycles) throws VMException {
+		//Calls and returns may move to another module, so these two are re-read after each
+		int[] code = this.code;
+		ConstantPool constants = this.constants;
+		final Stack stack = this.stack;
+		final Heap heap = this.heap;
+		StackFrame frame = stack.currentStackFrame();
+		int flags = this.flags;
+		int pc = programCounter >> 3;
+		int at = pc;
+		long cycles = 0;
+		
+		try {
+			while (cycles < maxCycles) {
+				at = pc;
+				int base = pc * Decoder.STRIDE;
+				int d = code[base+1];
+				int a = code[base+2];
+				int b = code[base+3];
+				pc++;
+				cycles++;
+				
+				//Superinstructions share the case of their first half, and run as just that here
+				switch(code[base]) {
+				case Handlers.JUMP:
+				case Handlers.JUMP_BACK: if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } break;
+				case Handlers.CJUMP + CONDITION_ZERO:
+				case Handlers.CJUMP_BACK + CONDITION_ZERO:         if ((flags & FLAG_ZERO)!=0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_NOT_ZERO:
+				case Handlers.CJUMP_BACK + CONDITION_NOT_ZERO:     if ((flags & FLAG_ZERO)==0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_LESS:
+				case Handlers.CJUMP_BACK + CONDITION_LESS:         if (flags==FLAG_SIGN) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_GREATER:
+				case Handlers.CJUMP_BACK + CONDITION_GREATER:      if (flags==0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_NEGATIVE:
+				case Handlers.CJUMP_BACK + CONDITION_NEGATIVE:     if ((flags & FLAG_SIGN)!=0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_NOT_NEGATIVE:
+				case Handlers.CJUMP_BACK + CONDITION_NOT_NEGATIVE: if ((flags & FLAG_SIGN)==0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				
+				case Handlers.LOAD_STORE + DATA_INT8:
+				case Handlers.LOAD_REGISTER + DATA_INT8: frame.putInt8(d, frame.getInt8(b)); break;
+				case Handlers.LOAD_STORE + DATA_INT16:
+				case Handlers.LOAD_REGISTER + DATA_INT16: frame.putInt16(d, frame.getInt16(b)); break;
+				case Handlers.LOAD_STORE + DATA_INT32:
+				case Handlers.LOAD_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(b)); break;
+				case Handlers.LOAD_STORE + DATA_INT64:
+				case Handlers.LOAD_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(b)); break;
+				case Handlers.LOAD_STORE + DATA_FLOAT16:
+				case Handlers.LOAD_REGISTER + DATA_FLOAT16: frame.putFloat16(d, frame.getFloat16(b)); break;
+				case Handlers.LOAD_STORE + DATA_FLOAT32:
+				case Handlers.LOAD_REGISTER + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(b)); break;
+				case Handlers.LOAD_STORE + DATA_FLOAT64:
+				case Handlers.LOAD_REGISTER + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(b)); break;
+				case Handlers.LOAD_STORE + DATA_WORD:
+				case Handlers.LOAD_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(b)); break;
+				
+				case Handlers.LOAD_IMMEDIATE + DATA_INT8: frame.putInt8(d, (byte) b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_INT16: frame.putInt16(d, (short) b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_INT32: frame.putInt32(d, b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_INT64: frame.putInt64(d, b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_FLOAT16: frame.putFloat16(d, (short) b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_FLOAT32: frame.putFloat32(d, Float.intBitsToFloat(b)); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_FLOAT64: frame.putFloat64(d, (double) Float.intBitsToFloat(b)); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_WORD: frame.putWord(d, b); break;
+				case Handlers.LOAD_CONSTANT + DATA_INT64: frame.putInt64(d, constants.getInt64(b)); break;
+				case Handlers.LOAD_CONSTANT + DATA_FLOAT64: frame.putFloat64(d, constants.getFloat64(b)); break;
+				case Handlers.LOAD_CONSTANT + DATA_WORD: frame.putWord(d, constants.getWord(b)); break;
+				
+				case Handlers.STORE_REGISTER + DATA_INT8: frame.putInt8(d, frame.getInt8(a)); break;
+				case Handlers.STORE_REGISTER + DATA_INT16: frame.putInt16(d, frame.getInt16(a)); break;
+				case Handlers.STORE_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(a)); break;
+				case Handlers.STORE_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(a)); break;
+				case Handlers.STORE_REGISTER + DATA_FLOAT16: frame.putFloat16(d, frame.getFloat16(a)); break;
+				case Handlers.STORE_REGISTER + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a)); break;
+				case Handlers.STORE_REGISTER + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a)); break;
+				case Handlers.STORE_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(a)); break;
+				
+				case Handlers.LOAD_MEMORY + DATA_INT8: frame.putInt8(d, heap.getInt8(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_INT16: frame.putInt16(d, heap.getInt16(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_INT32: frame.putInt32(d, heap.getInt32(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_INT64: frame.putInt64(d, heap.getInt64(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_FLOAT16: frame.putFloat16(d, heap.getFloat16(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_FLOAT32: frame.putFloat32(d, heap.getFloat32(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_FLOAT64: frame.putFloat64(d, heap.getFloat64(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_WORD: frame.putWord(d, heap.getWord(memoryAddress(frame, a, b))); break;
+				
+				case Handlers.STORE_MEMORY + DATA_INT8: heap.putInt8(memoryAddress(frame, d, b), frame.getInt8(a)); break;
+				case Handlers.STORE_MEMORY + DATA_INT16: heap.putInt16(memoryAddress(frame, d, b), frame.getInt16(a)); break;
+				case Handlers.STORE_MEMORY + DATA_INT32: heap.putInt32(memoryAddress(frame, d, b), frame.getInt32(a)); break;
+				case Handlers.STORE_MEMORY + DATA_INT64: heap.putInt64(memoryAddress(frame, d, b), frame.getInt64(a)); break;
+				case Handlers.STORE_MEMORY + DATA_FLOAT16: heap.putFloat16(memoryAddress(frame, d, b), frame.getFloat16(a)); break;
+				case Handlers.STORE_MEMORY + DATA_FLOAT32: heap.putFloat32(memoryAddress(frame, d, b), frame.getFloat32(a)); break;
+				case Handlers.STORE_MEMORY + DATA_FLOAT64: heap.putFloat64(memoryAddress(frame, d, b), frame.getFloat64(a)); break;
+				case Handlers.STORE_MEMORY + DATA_WORD: heap.putWord(memoryAddress(frame, d, b), frame.getWord(a)); break;
+				
+				case Handlers.ALLOCATE_REGISTER: frame.putWord(d, heap.allocate(frame.getWord(b))); break;
+				case Handlers.ALLOCATE_IMMEDIATE: frame.putWord(d, heap.allocate(b & 0xFFFFFFFFL)); break;
+				case Handlers.FREE: heap.free(frame.getWord(a)); break;
+				
+				case Handlers.PUSH_POP + DATA_INT8:
+				case Handlers.PUSH + DATA_INT8: stack.pushInt8(frame.getInt8(a)); break;
+				case Handlers.PUSH_POP + DATA_INT16:
+				case Handlers.PUSH + DATA_INT16: stack.pushInt16(frame.getInt16(a)); break;
+				case Handlers.PUSH_POP + DATA_INT32:
+				case Handlers.PUSH + DATA_INT32: stack.pushInt32(frame.getInt32(a)); break;
+				case Handlers.PUSH_POP + DATA_INT64:
+				case Handlers.PUSH + DATA_INT64: stack.pushInt64(frame.getInt64(a)); break;
+				case Handlers.PUSH_POP + DATA_FLOAT16:
+				case Handlers.PUSH + DATA_FLOAT16: stack.pushFloat16(frame.getFloat16(a)); break;
+				case Handlers.PUSH_POP + DATA_FLOAT32:
+				case Handlers.PUSH + DATA_FLOAT32: stack.pushFloat32(frame.getFloat32(a)); break;
+				case Handlers.PUSH_POP + DATA_FLOAT64:
+				case Handlers.PUSH + DATA_FLOAT64: stack.pushFloat64(frame.getFloat64(a)); break;
+				case Handlers.PUSH_POP + DATA_WORD:
+				case Handlers.PUSH + DATA_WORD: stack.pushWord(frame.getWord(a)); break;
+				
+				case Handlers.POP + DATA_INT8: frame.putInt8(d, stack.popInt8()); break;
+				case Handlers.POP + DATA_INT16: frame.putInt16(d, stack.popInt16()); break;
+				case Handlers.POP + DATA_INT32: frame.putInt32(d, stack.popInt32()); break;
+				case Handlers.POP + DATA_INT64: frame.putInt64(d, stack.popInt64()); break;
+				case Handlers.POP + DATA_FLOAT16: frame.putFloat16(d, stack.popFloat16()); break;
+				case Handlers.POP + DATA_FLOAT32: frame.putFloat32(d, stack.popFloat32()); break;
+				case Handlers.POP + DATA_FLOAT64: frame.putFloat64(d, stack.popFloat64()); break;
+				case Handlers.POP + DATA_WORD: frame.putWord(d, stack.popInt64()); break;
+				
+				case Handlers.TEST + DATA_INT8: flags = test(frame.getInt8(a)); break;
+				case Handlers.TEST + DATA_INT16: flags = test(frame.getInt16(a)); break;
+				case Handlers.TEST_CJUMP + DATA_INT32:
+				case Handlers.TEST + DATA_INT32: flags = test(frame.getInt32(a)); break;
+				case Handlers.TEST_CJUMP + DATA_INT64:
+				case Handlers.TEST + DATA_INT64: flags = test(frame.getInt64(a)); break;
+				case Handlers.TEST + DATA_FLOAT16: flags = testFloat16(frame.getFloat16(a)); break;
+				case Handlers.TEST + DATA_FLOAT32: flags = test(frame.getFloat32(a)); break;
+				case Handlers.TEST + DATA_FLOAT64: flags = test(frame.getFloat64(a)); break;
+				case Handlers.TEST_CJUMP + DATA_WORD:
+				case Handlers.TEST + DATA_WORD: flags = test(frame.getWord(a)); break;
+				
+				case Handlers.ADD_REGISTER + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) + frame.getInt8(b))); break;
+				case Handlers.ADD_REGISTER + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) + frame.getInt16(b))); break;
+				case Handlers.ADD_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(a) + frame.getInt32(b)); break;
+				case Handlers.ADD_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(a) + frame.getInt64(b)); break;
+				case Handlers.ADD_REGISTER + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) + Half.toFloat(frame.getFloat16(b)))); break;
+				case Handlers.ADD_REGISTER + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) + frame.getFloat32(b)); break;
+				case Handlers.ADD_REGISTER + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) + frame.getFloat64(b)); break;
+				case Handlers.ADD_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(a) + frame.getWord(b)); break;
+				case Handlers.ADD_IMMEDIATE + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) + (byte) b)); break;
+				case Handlers.ADD_IMMEDIATE + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) + (short) b)); break;
+				case Handlers.ADD_IMMEDIATE_TEST + DATA_INT32:
+				case Handlers.ADD_IMMEDIATE + DATA_INT32: frame.putInt32(d, frame.getInt32(a) + b); break;
+				case Handlers.ADD_IMMEDIATE_TEST + DATA_INT64:
+				case Handlers.ADD_IMMEDIATE + DATA_INT64: frame.putInt64(d, frame.getInt64(a) + b); break;
+				case Handlers.ADD_IMMEDIATE + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) + Half.toFloat((short) b))); break;
+				case Handlers.ADD_IMMEDIATE + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) + Float.intBitsToFloat(b)); break;
+				case Handlers.ADD_IMMEDIATE + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) + (double) Float.intBitsToFloat(b)); break;
+				case Handlers.ADD_IMMEDIATE_TEST + DATA_WORD:
+				case Handlers.ADD_IMMEDIATE + DATA_WORD: frame.putWord(d, frame.getWord(a) + b); break;
+				
+				case Handlers.SUB_REGISTER + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) - frame.getInt8(b))); break;
+				case Handlers.SUB_REGISTER + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) - frame.getInt16(b))); break;
+				case Handlers.SUB_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(a) - frame.getInt32(b)); break;
+				case Handlers.SUB_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(a) - frame.getInt64(b)); break;
+				case Handlers.SUB_REGISTER + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) - Half.toFloat(frame.getFloat16(b)))); break;
+				case Handlers.SUB_REGISTER + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) - frame.getFloat32(b)); break;
+				case Handlers.SUB_REGISTER + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) - frame.getFloat64(b)); break;
+				case Handlers.SUB_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(a) - frame.getWord(b)); break;
+				case Handlers.SUB_IMMEDIATE + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) - (byte) b)); break;
+				case Handlers.SUB_IMMEDIATE + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) - (short) b)); break;
+				case Handlers.SUB_IMMEDIATE_TEST + DATA_INT32:
+				case Handlers.SUB_IMMEDIATE + DATA_INT32: frame.putInt32(d, frame.getInt32(a) - b); break;
+				case Handlers.SUB_IMMEDIATE_TEST + DATA_INT64:
+				case Handlers.SUB_IMMEDIATE + DATA_INT64: frame.putInt64(d, frame.getInt64(a) - b); break;
+				case Handlers.SUB_IMMEDIATE + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) - Half.toFloat((short) b))); break;
+				case Handlers.SUB_IMMEDIATE + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) - Float.intBitsToFloat(b)); break;
+				case Handlers.SUB_IMMEDIATE + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) - (double) Float.intBitsToFloat(b)); break;
+				case Handlers.SUB_IMMEDIATE_TEST + DATA_WORD:
+				case Handlers.SUB_IMMEDIATE + DATA_WORD: frame.putWord(d, frame.getWord(a) - b); break;
+				
+				case Handlers.MUL_REGISTER + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) * frame.getInt8(b))); break;
+				case Handlers.MUL_REGISTER + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) * frame.getInt16(b))); break;
+				case Handlers.MUL_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(a) * frame.getInt32(b)); break;
+				case Handlers.MUL_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(a) * frame.getInt64(b)); break;
+				case Handlers.MUL_REGISTER + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) * Half.toFloat(frame.getFloat16(b)))); break;
+				case Handlers.MUL_REGISTER + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) * frame.getFloat32(b)); break;
+				case Handlers.MUL_REGISTER + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) * frame.getFloat64(b)); break;
+				case Handlers.MUL_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(a) * frame.getWord(b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) * (byte) b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) * (short) b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_INT32: frame.putInt32(d, frame.getInt32(a) * b); break;
+				case Handlers.MUL_IMMEDIATE + DATA_INT64: frame.putInt64(d, frame.getInt64(a) * b); break;
+				case Handlers.MUL_IMMEDIATE + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) * Half.toFloat((short) b))); break;
+				case Handlers.MUL_IMMEDIATE + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) * Float.intBitsToFloat(b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) * (double) Float.intBitsToFloat(b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_WORD: frame.putWord(d, frame.getWord(a) * b); break;
+				
+				case Handlers.DIV_REGISTER + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) / frame.getInt8(b))); break;
+				case Handlers.DIV_REGISTER + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) / frame.getInt16(b))); break;
+				case Handlers.DIV_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(a) / frame.getInt32(b)); break;
+				case Handlers.DIV_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(a) / frame.getInt64(b)); break;
+				case Handlers.DIV_REGISTER + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) / Half.toFloat(frame.getFloat16(b)))); break;
+				case Handlers.DIV_REGISTER + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) / frame.getFloat32(b)); break;
+				case Handlers.DIV_REGISTER + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) / frame.getFloat64(b)); break;
+				case Handlers.DIV_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(a) / frame.getWord(b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) / (byte) b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) / (short) b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_INT32: frame.putInt32(d, frame.getInt32(a) / b); break;
+				case Handlers.DIV_IMMEDIATE + DATA_INT64: frame.putInt64(d, frame.getInt64(a) / b); break;
+				case Handlers.DIV_IMMEDIATE + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) / Half.toFloat((short) b))); break;
+				case Handlers.DIV_IMMEDIATE + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) / Float.intBitsToFloat(b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) / (double) Float.intBitsToFloat(b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_WORD: frame.putWord(d, frame.getWord(a) / b); break;
+				
+				case Handlers.MOD_REGISTER + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) % frame.getInt8(b))); break;
+				case Handlers.MOD_REGISTER + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) % frame.getInt16(b))); break;
+				case Handlers.MOD_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(a) % frame.getInt32(b)); break;
+				case Handlers.MOD_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(a) % frame.getInt64(b)); break;
+				case Handlers.MOD_REGISTER + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) % Half.toFloat(frame.getFloat16(b)))); break;
+				case Handlers.MOD_REGISTER + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) % frame.getFloat32(b)); break;
+				case Handlers.MOD_REGISTER + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) % frame.getFloat64(b)); break;
+				case Handlers.MOD_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(a) % frame.getWord(b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) % (byte) b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) % (short) b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_INT32: frame.putInt32(d, frame.getInt32(a) % b); break;
+				case Handlers.MOD_IMMEDIATE + DATA_INT64: frame.putInt64(d, frame.getInt64(a) % b); break;
+				case Handlers.MOD_IMMEDIATE + DATA_FLOAT16: frame.putFloat16(d, Half.fromFloat(Half.toFloat(frame.getFloat16(a)) % Half.toFloat((short) b))); break;
+				case Handlers.MOD_IMMEDIATE + DATA_FLOAT32: frame.putFloat32(d, frame.getFloat32(a) % Float.intBitsToFloat(b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_FLOAT64: frame.putFloat64(d, frame.getFloat64(a) % (double) Float.intBitsToFloat(b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_WORD: frame.putWord(d, frame.getWord(a) % b); break;
+				
+				case Handlers.SHL_REGISTER + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) << frame.getInt8(b))); break;
+				case Handlers.SHL_REGISTER + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) << frame.getInt16(b))); break;
+				case Handlers.SHL_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(a) << frame.getInt32(b)); break;
+				case Handlers.SHL_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(a) << frame.getInt64(b)); break;
+				case Handlers.SHL_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(a) << frame.getWord(b)); break;
+				case Handlers.SHL_IMMEDIATE + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) << (byte) b)); break;
+				case Handlers.SHL_IMMEDIATE + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) << (short) b)); break;
+				case Handlers.SHL_IMMEDIATE + DATA_INT32: frame.putInt32(d, frame.getInt32(a) << b); break;
+				case Handlers.SHL_IMMEDIATE + DATA_INT64: frame.putInt64(d, frame.getInt64(a) << b); break;
+				case Handlers.SHL_IMMEDIATE + DATA_WORD: frame.putWord(d, frame.getWord(a) << b); break;
+				
+				case Handlers.SHR_REGISTER + DATA_INT8: frame.putInt8(d, (byte) ((frame.getInt8(a) & 0xFF) >>> frame.getInt8(b))); break;
+				case Handlers.SHR_REGISTER + DATA_INT16: frame.putInt16(d, (short) ((frame.getInt16(a) & 0xFFFF) >>> frame.getInt16(b))); break;
+				case Handlers.SHR_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(a) >>> frame.getInt32(b)); break;
+				case Handlers.SHR_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(a) >>> frame.getInt64(b)); break;
+				case Handlers.SHR_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(a) >>> frame.getWord(b)); break;
+				case Handlers.SHR_IMMEDIATE + DATA_INT8: frame.putInt8(d, (byte) ((frame.getInt8(a) & 0xFF) >>> (byte) b)); break;
+				case Handlers.SHR_IMMEDIATE + DATA_INT16: frame.putInt16(d, (short) ((frame.getInt16(a) & 0xFFFF) >>> (short) b)); break;
+				case Handlers.SHR_IMMEDIATE + DATA_INT32: frame.putInt32(d, frame.getInt32(a) >>> b); break;
+				case Handlers.SHR_IMMEDIATE + DATA_INT64: frame.putInt64(d, frame.getInt64(a) >>> b); break;
+				case Handlers.SHR_IMMEDIATE + DATA_WORD: frame.putWord(d, frame.getWord(a) >>> b); break;
+				
+				case Handlers.ASR_REGISTER + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) >> frame.getInt8(b))); break;
+				case Handlers.ASR_REGISTER + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) >> frame.getInt16(b))); break;
+				case Handlers.ASR_REGISTER + DATA_INT32: frame.putInt32(d, frame.getInt32(a) >> frame.getInt32(b)); break;
+				case Handlers.ASR_REGISTER + DATA_INT64: frame.putInt64(d, frame.getInt64(a) >> frame.getInt64(b)); break;
+				case Handlers.ASR_REGISTER + DATA_WORD: frame.putWord(d, frame.getWord(a) >> frame.getWord(b)); break;
+				case Handlers.ASR_IMMEDIATE + DATA_INT8: frame.putInt8(d, (byte) (frame.getInt8(a) >> (byte) b)); break;
+				case Handlers.ASR_IMMEDIATE + DATA_INT16: frame.putInt16(d, (short) (frame.getInt16(a) >> (short) b)); break;
+				case Handlers.ASR_IMMEDIATE + DATA_INT32: frame.putInt32(d, frame.getInt32(a) >> b); break;
+				case Handlers.ASR_IMMEDIATE + DATA_INT64: frame.putInt64(d, frame.getInt64(a) >> b); break;
+				case Handlers.ASR_IMMEDIATE + DATA_WORD: frame.putWord(d, frame.getWord(a) >> b); break;
+				
+				case Handlers.HALT:
+					if (b!=0) throw new VMException(constants.getString(b));
+					active = false;
+					return cycles;
+				case Handlers.GENERIC:
+					this.flags = flags;
+					executeGeneric(at);
+					flags = this.flags;
+					break;
+				case Handlers.IN: {
+					Port port = getPort(b);
+					if (!port.available()) {
+						//Leave the program counter on this instruction so it's retried next time
+						pc = at;
+						cycles--;
+						waiting = true;
+						return cycles;
+					}
+					input(a, d, port.read());
+					break;
+				}
+				case Handlers.CALL:
+					pc = call(b, at);
+					code = this.code;
+					constants = this.constants;
+					break;
+				case Handlers.RETURN:
+					pc = leave();
+					if (pc<0) {
+						//Returned from the outermost function
+						pc = at + 1;
+						active = false;
+						return cycles;
+					}
+					code = this.code;
+					constants = this.constants;
+					break;
+				case Handlers.END:
+					throw new VMException("Program counter ran off the end of the program");
+				default:
+					throw invalidInstruction(at);
+				}
 			}
-			default:
-				throw new VMException("Unknown opcode 0x"+Integer.toHexString(opcode));
+			return cycles;
+		} catch (VMException | RuntimeException ex) {
+			pc = at;
+			throw ex;
+		} finally {
+			this.flags = flags;
+			programCounter = pc << 3;
+			totalCycles += cycles;
+		}
+	}
+	
+	/**
+	 * Identical to {@link #executeChecked(long)}, except that LVT accesses skip their checks, and backward jumps are counted
+	 * so hot code can be handed to the JIT. Only used once {@link #verify()} has proven the code can't access an LVT entry
+	 * the frame doesn't have. Any other change to one loop must be made to both.
+	 */
+	@SuppressWarnings("fallthrough")
+	protected long executeVerified(long maxCycles) throws VMException {
+		//Calls and returns may move to another module, so these two are re-read after each
+		int[] code = this.code;
+		ConstantPool constants = this.constants;
+		final Stack stack = this.stack;
+		final Heap heap = this.heap;
+		StackFrame frame = stack.currentStackFrame();
+		int flags = this.flags;
+		int pc = programCounter >> 3;
+		int hotness = backEdgeCountdown;
+		int at = pc;
+		long cycles = 0;
+		
+		try {
+			dispatch:
+			while (cycles < maxCycles) {
+				at = pc;
+				int base = pc * Decoder.STRIDE;
+				int d = code[base+1];
+				int a = code[base+2];
+				int b = code[base+3];
+				pc++;
+				cycles++;
+				
+				switch(code[base]) {
+				case Handlers.JUMP: if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } break;
+				case Handlers.CJUMP + CONDITION_ZERO:         if ((flags & FLAG_ZERO)!=0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_NOT_ZERO:     if ((flags & FLAG_ZERO)==0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_LESS:         if (flags==FLAG_SIGN) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_GREATER:      if (flags==0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_NEGATIVE:     if ((flags & FLAG_SIGN)!=0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				case Handlers.CJUMP + CONDITION_NOT_NEGATIVE: if ((flags & FLAG_SIGN)==0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } } break;
+				
+				//Backward jumps count towards compiling this code. Once it's hot, leave the loop and let execute() tier up.
+				case Handlers.JUMP_BACK: if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } if (--hotness<0) break dispatch; break;
+				case Handlers.CJUMP_BACK + CONDITION_ZERO:         if ((flags & FLAG_ZERO)!=0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } if (--hotness<0) break dispatch; } break;
+				case Handlers.CJUMP_BACK + CONDITION_NOT_ZERO:     if ((flags & FLAG_ZERO)==0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } if (--hotness<0) break dispatch; } break;
+				case Handlers.CJUMP_BACK + CONDITION_LESS:         if (flags==FLAG_SIGN) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } if (--hotness<0) break dispatch; } break;
+				case Handlers.CJUMP_BACK + CONDITION_GREATER:      if (flags==0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } if (--hotness<0) break dispatch; } break;
+				case Handlers.CJUMP_BACK + CONDITION_NEGATIVE:     if ((flags & FLAG_SIGN)!=0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } if (--hotness<0) break dispatch; } break;
+				case Handlers.CJUMP_BACK + CONDITION_NOT_NEGATIVE: if ((flags & FLAG_SIGN)==0) { if (cycles+d<=maxCycles) { pc = b; cycles += d; } else { pc = a; } if (--hotness<0) break dispatch; } break;
+				
+				case Handlers.LOAD_STORE + DATA_INT8: if (cycles<maxCycles) { cycles++; pc++; } //fall through
+				case Handlers.LOAD_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, frame.getInt8Unchecked(b)); break;
+				case Handlers.LOAD_STORE + DATA_INT16: if (cycles<maxCycles) { cycles++; pc++; } //fall through
+				case Handlers.LOAD_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, frame.getInt16Unchecked(b)); break;
+				case Handlers.LOAD_STORE + DATA_INT32: if (cycles<maxCycles) { cycles++; pc++; } //fall through
+				case Handlers.LOAD_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(b)); break;
+				case Handlers.LOAD_STORE + DATA_INT64: if (cycles<maxCycles) { cycles++; pc++; } //fall through
+				case Handlers.LOAD_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(b)); break;
+				case Handlers.LOAD_STORE + DATA_FLOAT16: if (cycles<maxCycles) { cycles++; pc++; } //fall through
+				case Handlers.LOAD_REGISTER + DATA_FLOAT16: frame.putFloat16Unchecked(d, frame.getFloat16Unchecked(b)); break;
+				case Handlers.LOAD_STORE + DATA_FLOAT32: if (cycles<maxCycles) { cycles++; pc++; } //fall through
+				case Handlers.LOAD_REGISTER + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(b)); break;
+				case Handlers.LOAD_STORE + DATA_FLOAT64: if (cycles<maxCycles) { cycles++; pc++; } //fall through
+				case Handlers.LOAD_REGISTER + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(b)); break;
+				case Handlers.LOAD_STORE + DATA_WORD: if (cycles<maxCycles) { cycles++; pc++; } //fall through
+				case Handlers.LOAD_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(b)); break;
+				
+				case Handlers.LOAD_IMMEDIATE + DATA_INT8: frame.putInt8Unchecked(d, (byte) b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_INT16: frame.putInt16Unchecked(d, (short) b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_INT32: frame.putInt32Unchecked(d, b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_INT64: frame.putInt64Unchecked(d, b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_FLOAT16: frame.putFloat16Unchecked(d, (short) b); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_FLOAT32: frame.putFloat32Unchecked(d, Float.intBitsToFloat(b)); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_FLOAT64: frame.putFloat64Unchecked(d, (double) Float.intBitsToFloat(b)); break;
+				case Handlers.LOAD_IMMEDIATE + DATA_WORD: frame.putWordUnchecked(d, b); break;
+				case Handlers.LOAD_CONSTANT + DATA_INT64: frame.putInt64Unchecked(d, constants.getInt64(b)); break;
+				case Handlers.LOAD_CONSTANT + DATA_FLOAT64: frame.putFloat64Unchecked(d, constants.getFloat64(b)); break;
+				case Handlers.LOAD_CONSTANT + DATA_WORD: frame.putWordUnchecked(d, constants.getWord(b)); break;
+				
+				case Handlers.STORE_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, frame.getInt8Unchecked(a)); break;
+				case Handlers.STORE_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, frame.getInt16Unchecked(a)); break;
+				case Handlers.STORE_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a)); break;
+				case Handlers.STORE_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a)); break;
+				case Handlers.STORE_REGISTER + DATA_FLOAT16: frame.putFloat16Unchecked(d, frame.getFloat16Unchecked(a)); break;
+				case Handlers.STORE_REGISTER + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a)); break;
+				case Handlers.STORE_REGISTER + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a)); break;
+				case Handlers.STORE_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a)); break;
+				
+				case Handlers.LOAD_MEMORY + DATA_INT8: frame.putInt8Unchecked(d, heap.getInt8(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_INT16: frame.putInt16Unchecked(d, heap.getInt16(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_INT32: frame.putInt32Unchecked(d, heap.getInt32(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_INT64: frame.putInt64Unchecked(d, heap.getInt64(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_FLOAT16: frame.putFloat16Unchecked(d, heap.getFloat16(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_FLOAT32: frame.putFloat32Unchecked(d, heap.getFloat32(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_FLOAT64: frame.putFloat64Unchecked(d, heap.getFloat64(memoryAddress(frame, a, b))); break;
+				case Handlers.LOAD_MEMORY + DATA_WORD: frame.putWordUnchecked(d, heap.getWord(memoryAddress(frame, a, b))); break;
+				
+				case Handlers.STORE_MEMORY + DATA_INT8: heap.putInt8(memoryAddress(frame, d, b), frame.getInt8Unchecked(a)); break;
+				case Handlers.STORE_MEMORY + DATA_INT16: heap.putInt16(memoryAddress(frame, d, b), frame.getInt16Unchecked(a)); break;
+				case Handlers.STORE_MEMORY + DATA_INT32: heap.putInt32(memoryAddress(frame, d, b), frame.getInt32Unchecked(a)); break;
+				case Handlers.STORE_MEMORY + DATA_INT64: heap.putInt64(memoryAddress(frame, d, b), frame.getInt64Unchecked(a)); break;
+				case Handlers.STORE_MEMORY + DATA_FLOAT16: heap.putFloat16(memoryAddress(frame, d, b), frame.getFloat16Unchecked(a)); break;
+				case Handlers.STORE_MEMORY + DATA_FLOAT32: heap.putFloat32(memoryAddress(frame, d, b), frame.getFloat32Unchecked(a)); break;
+				case Handlers.STORE_MEMORY + DATA_FLOAT64: heap.putFloat64(memoryAddress(frame, d, b), frame.getFloat64Unchecked(a)); break;
+				case Handlers.STORE_MEMORY + DATA_WORD: heap.putWord(memoryAddress(frame, d, b), frame.getWordUnchecked(a)); break;
+				
+				case Handlers.ALLOCATE_REGISTER: frame.putWordUnchecked(d, heap.allocate(frame.getWordUnchecked(b))); break;
+				case Handlers.ALLOCATE_IMMEDIATE: frame.putWordUnchecked(d, heap.allocate(b & 0xFFFFFFFFL)); break;
+				case Handlers.FREE: heap.free(frame.getWordUnchecked(a)); break;
+				
+				case Handlers.PUSH + DATA_INT8: stack.pushInt8(frame.getInt8Unchecked(a)); break;
+				case Handlers.PUSH + DATA_INT16: stack.pushInt16(frame.getInt16Unchecked(a)); break;
+				case Handlers.PUSH + DATA_INT32: stack.pushInt32(frame.getInt32Unchecked(a)); break;
+				case Handlers.PUSH + DATA_INT64: stack.pushInt64(frame.getInt64Unchecked(a)); break;
+				case Handlers.PUSH + DATA_FLOAT16: stack.pushFloat16(frame.getFloat16Unchecked(a)); break;
+				case Handlers.PUSH + DATA_FLOAT32: stack.pushFloat32(frame.getFloat32Unchecked(a)); break;
+				case Handlers.PUSH + DATA_FLOAT64: stack.pushFloat64(frame.getFloat64Unchecked(a)); break;
+				case Handlers.PUSH + DATA_WORD: stack.pushWord(frame.getWordUnchecked(a)); break;
+				
+				case Handlers.POP + DATA_INT8: frame.putInt8Unchecked(d, stack.popInt8()); break;
+				case Handlers.POP + DATA_INT16: frame.putInt16Unchecked(d, stack.popInt16()); break;
+				case Handlers.POP + DATA_INT32: frame.putInt32Unchecked(d, stack.popInt32()); break;
+				case Handlers.POP + DATA_INT64: frame.putInt64Unchecked(d, stack.popInt64()); break;
+				case Handlers.POP + DATA_FLOAT16: frame.putFloat16Unchecked(d, stack.popFloat16()); break;
+				case Handlers.POP + DATA_FLOAT32: frame.putFloat32Unchecked(d, stack.popFloat32()); break;
+				case Handlers.POP + DATA_FLOAT64: frame.putFloat64Unchecked(d, stack.popFloat64()); break;
+				case Handlers.POP + DATA_WORD: frame.putWordUnchecked(d, stack.popInt64()); break;
+				
+				case Handlers.TEST + DATA_INT8: flags = test(frame.getInt8Unchecked(a)); break;
+				case Handlers.TEST + DATA_INT16: flags = test(frame.getInt16Unchecked(a)); break;
+				case Handlers.TEST + DATA_INT32: flags = test(frame.getInt32Unchecked(a)); break;
+				case Handlers.TEST + DATA_INT64: flags = test(frame.getInt64Unchecked(a)); break;
+				case Handlers.TEST + DATA_FLOAT16: flags = testFloat16(frame.getFloat16Unchecked(a)); break;
+				case Handlers.TEST + DATA_FLOAT32: flags = test(frame.getFloat32Unchecked(a)); break;
+				case Handlers.TEST + DATA_FLOAT64: flags = test(frame.getFloat64Unchecked(a)); break;
+				case Handlers.TEST + DATA_WORD: flags = test(frame.getWordUnchecked(a)); break;
+				
+				case Handlers.ADD_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) + frame.getInt8Unchecked(b))); break;
+				case Handlers.ADD_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) + frame.getInt16Unchecked(b))); break;
+				case Handlers.ADD_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) + frame.getInt32Unchecked(b)); break;
+				case Handlers.ADD_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) + frame.getInt64Unchecked(b)); break;
+				case Handlers.ADD_REGISTER + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) + Half.toFloat(frame.getFloat16Unchecked(b)))); break;
+				case Handlers.ADD_REGISTER + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) + frame.getFloat32Unchecked(b)); break;
+				case Handlers.ADD_REGISTER + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) + frame.getFloat64Unchecked(b)); break;
+				case Handlers.ADD_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) + frame.getWordUnchecked(b)); break;
+				case Handlers.ADD_IMMEDIATE + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) + (byte) b)); break;
+				case Handlers.ADD_IMMEDIATE + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) + (short) b)); break;
+				case Handlers.ADD_IMMEDIATE + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) + b); break;
+				case Handlers.ADD_IMMEDIATE + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) + b); break;
+				case Handlers.ADD_IMMEDIATE + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) + Half.toFloat((short) b))); break;
+				case Handlers.ADD_IMMEDIATE + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) + Float.intBitsToFloat(b)); break;
+				case Handlers.ADD_IMMEDIATE + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) + (double) Float.intBitsToFloat(b)); break;
+				case Handlers.ADD_IMMEDIATE + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) + b); break;
+				
+				case Handlers.SUB_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) - frame.getInt8Unchecked(b))); break;
+				case Handlers.SUB_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) - frame.getInt16Unchecked(b))); break;
+				case Handlers.SUB_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) - frame.getInt32Unchecked(b)); break;
+				case Handlers.SUB_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) - frame.getInt64Unchecked(b)); break;
+				case Handlers.SUB_REGISTER + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) - Half.toFloat(frame.getFloat16Unchecked(b)))); break;
+				case Handlers.SUB_REGISTER + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) - frame.getFloat32Unchecked(b)); break;
+				case Handlers.SUB_REGISTER + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) - frame.getFloat64Unchecked(b)); break;
+				case Handlers.SUB_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) - frame.getWordUnchecked(b)); break;
+				case Handlers.SUB_IMMEDIATE + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) - (byte) b)); break;
+				case Handlers.SUB_IMMEDIATE + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) - (short) b)); break;
+				case Handlers.SUB_IMMEDIATE + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) - b); break;
+				case Handlers.SUB_IMMEDIATE + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) - b); break;
+				case Handlers.SUB_IMMEDIATE + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) - Half.toFloat((short) b))); break;
+				case Handlers.SUB_IMMEDIATE + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) - Float.intBitsToFloat(b)); break;
+				case Handlers.SUB_IMMEDIATE + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) - (double) Float.intBitsToFloat(b)); break;
+				case Handlers.SUB_IMMEDIATE + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) - b); break;
+				
+				case Handlers.MUL_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) * frame.getInt8Unchecked(b))); break;
+				case Handlers.MUL_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) * frame.getInt16Unchecked(b))); break;
+				case Handlers.MUL_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) * frame.getInt32Unchecked(b)); break;
+				case Handlers.MUL_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) * frame.getInt64Unchecked(b)); break;
+				case Handlers.MUL_REGISTER + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) * Half.toFloat(frame.getFloat16Unchecked(b)))); break;
+				case Handlers.MUL_REGISTER + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) * frame.getFloat32Unchecked(b)); break;
+				case Handlers.MUL_REGISTER + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) * frame.getFloat64Unchecked(b)); break;
+				case Handlers.MUL_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) * frame.getWordUnchecked(b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) * (byte) b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) * (short) b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) * b); break;
+				case Handlers.MUL_IMMEDIATE + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) * b); break;
+				case Handlers.MUL_IMMEDIATE + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) * Half.toFloat((short) b))); break;
+				case Handlers.MUL_IMMEDIATE + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) * Float.intBitsToFloat(b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) * (double) Float.intBitsToFloat(b)); break;
+				case Handlers.MUL_IMMEDIATE + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) * b); break;
+				
+				case Handlers.DIV_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) / frame.getInt8Unchecked(b))); break;
+				case Handlers.DIV_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) / frame.getInt16Unchecked(b))); break;
+				case Handlers.DIV_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) / frame.getInt32Unchecked(b)); break;
+				case Handlers.DIV_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) / frame.getInt64Unchecked(b)); break;
+				case Handlers.DIV_REGISTER + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) / Half.toFloat(frame.getFloat16Unchecked(b)))); break;
+				case Handlers.DIV_REGISTER + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) / frame.getFloat32Unchecked(b)); break;
+				case Handlers.DIV_REGISTER + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) / frame.getFloat64Unchecked(b)); break;
+				case Handlers.DIV_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) / frame.getWordUnchecked(b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) / (byte) b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) / (short) b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) / b); break;
+				case Handlers.DIV_IMMEDIATE + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) / b); break;
+				case Handlers.DIV_IMMEDIATE + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) / Half.toFloat((short) b))); break;
+				case Handlers.DIV_IMMEDIATE + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) / Float.intBitsToFloat(b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) / (double) Float.intBitsToFloat(b)); break;
+				case Handlers.DIV_IMMEDIATE + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) / b); break;
+				
+				case Handlers.MOD_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) % frame.getInt8Unchecked(b))); break;
+				case Handlers.MOD_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) % frame.getInt16Unchecked(b))); break;
+				case Handlers.MOD_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) % frame.getInt32Unchecked(b)); break;
+				case Handlers.MOD_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) % frame.getInt64Unchecked(b)); break;
+				case Handlers.MOD_REGISTER + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) % Half.toFloat(frame.getFloat16Unchecked(b)))); break;
+				case Handlers.MOD_REGISTER + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) % frame.getFloat32Unchecked(b)); break;
+				case Handlers.MOD_REGISTER + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) % frame.getFloat64Unchecked(b)); break;
+				case Handlers.MOD_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) % frame.getWordUnchecked(b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) % (byte) b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) % (short) b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) % b); break;
+				case Handlers.MOD_IMMEDIATE + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) % b); break;
+				case Handlers.MOD_IMMEDIATE + DATA_FLOAT16: frame.putFloat16Unchecked(d, Half.fromFloat(Half.toFloat(frame.getFloat16Unchecked(a)) % Half.toFloat((short) b))); break;
+				case Handlers.MOD_IMMEDIATE + DATA_FLOAT32: frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a) % Float.intBitsToFloat(b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_FLOAT64: frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a) % (double) Float.intBitsToFloat(b)); break;
+				case Handlers.MOD_IMMEDIATE + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) % b); break;
+				
+				case Handlers.SHL_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) << frame.getInt8Unchecked(b))); break;
+				case Handlers.SHL_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) << frame.getInt16Unchecked(b))); break;
+				case Handlers.SHL_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) << frame.getInt32Unchecked(b)); break;
+				case Handlers.SHL_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) << frame.getInt64Unchecked(b)); break;
+				case Handlers.SHL_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) << frame.getWordUnchecked(b)); break;
+				case Handlers.SHL_IMMEDIATE + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) << (byte) b)); break;
+				case Handlers.SHL_IMMEDIATE + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) << (short) b)); break;
+				case Handlers.SHL_IMMEDIATE + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) << b); break;
+				case Handlers.SHL_IMMEDIATE + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) << b); break;
+				case Handlers.SHL_IMMEDIATE + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) << b); break;
+				
+				case Handlers.SHR_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, (byte) ((frame.getInt8Unchecked(a) & 0xFF) >>> frame.getInt8Unchecked(b))); break;
+				case Handlers.SHR_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, (short) ((frame.getInt16Unchecked(a) & 0xFFFF) >>> frame.getInt16Unchecked(b))); break;
+				case Handlers.SHR_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) >>> frame.getInt32Unchecked(b)); break;
+				case Handlers.SHR_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) >>> frame.getInt64Unchecked(b)); break;
+				case Handlers.SHR_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) >>> frame.getWordUnchecked(b)); break;
+				case Handlers.SHR_IMMEDIATE + DATA_INT8: frame.putInt8Unchecked(d, (byte) ((frame.getInt8Unchecked(a) & 0xFF) >>> (byte) b)); break;
+				case Handlers.SHR_IMMEDIATE + DATA_INT16: frame.putInt16Unchecked(d, (short) ((frame.getInt16Unchecked(a) & 0xFFFF) >>> (short) b)); break;
+				case Handlers.SHR_IMMEDIATE + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) >>> b); break;
+				case Handlers.SHR_IMMEDIATE + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) >>> b); break;
+				case Handlers.SHR_IMMEDIATE + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) >>> b); break;
+				
+				case Handlers.ASR_REGISTER + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) >> frame.getInt8Unchecked(b))); break;
+				case Handlers.ASR_REGISTER + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) >> frame.getInt16Unchecked(b))); break;
+				case Handlers.ASR_REGISTER + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) >> frame.getInt32Unchecked(b)); break;
+				case Handlers.ASR_REGISTER + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) >> frame.getInt64Unchecked(b)); break;
+				case Handlers.ASR_REGISTER + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) >> frame.getWordUnchecked(b)); break;
+				case Handlers.ASR_IMMEDIATE + DATA_INT8: frame.putInt8Unchecked(d, (byte) (frame.getInt8Unchecked(a) >> (byte) b)); break;
+				case Handlers.ASR_IMMEDIATE + DATA_INT16: frame.putInt16Unchecked(d, (short) (frame.getInt16Unchecked(a) >> (short) b)); break;
+				case Handlers.ASR_IMMEDIATE + DATA_INT32: frame.putInt32Unchecked(d, frame.getInt32Unchecked(a) >> b); break;
+				case Handlers.ASR_IMMEDIATE + DATA_INT64: frame.putInt64Unchecked(d, frame.getInt64Unchecked(a) >> b); break;
+				case Handlers.ASR_IMMEDIATE + DATA_WORD: frame.putWordUnchecked(d, frame.getWordUnchecked(a) >> b); break;
+				
+				//Superinstructions. The second half only runs if there's budget left for it; otherwise these act as their first half alone.
+				case Handlers.TEST_CJUMP + DATA_INT32: flags = test(frame.getInt32Unchecked(a)); if (cycles<maxCycles) { cycles++; pc++; if (conditionMet(d, flags)) { pc = b; if (b<=at+1 && --hotness<0) break dispatch; } } break;
+				case Handlers.TEST_CJUMP + DATA_INT64: flags = test(frame.getInt64Unchecked(a)); if (cycles<maxCycles) { cycles++; pc++; if (conditionMet(d, flags)) { pc = b; if (b<=at+1 && --hotness<0) break dispatch; } } break;
+				case Handlers.TEST_CJUMP + DATA_WORD: flags = test(frame.getWordUnchecked(a)); if (cycles<maxCycles) { cycles++; pc++; if (conditionMet(d, flags)) { pc = b; if (b<=at+1 && --hotness<0) break dispatch; } } break;
+				case Handlers.ADD_IMMEDIATE_TEST + DATA_INT32: { int value = frame.getInt32Unchecked(a) + b; frame.putInt32Unchecked(d, value); if (cycles<maxCycles) { cycles++; pc++; flags = test(value); } break; }
+				case Handlers.ADD_IMMEDIATE_TEST + DATA_INT64: { long value = frame.getInt64Unchecked(a) + b; frame.putInt64Unchecked(d, value); if (cycles<maxCycles) { cycles++; pc++; flags = test(value); } break; }
+				case Handlers.ADD_IMMEDIATE_TEST + DATA_WORD: { long value = frame.getWordUnchecked(a) + b; frame.putWordUnchecked(d, value); if (cycles<maxCycles) { cycles++; pc++; flags = test(value); } break; }
+				case Handlers.SUB_IMMEDIATE_TEST + DATA_INT32: { int value = frame.getInt32Unchecked(a) - b; frame.putInt32Unchecked(d, value); if (cycles<maxCycles) { cycles++; pc++; flags = test(value); } break; }
+				case Handlers.SUB_IMMEDIATE_TEST + DATA_INT64: { long value = frame.getInt64Unchecked(a) - b; frame.putInt64Unchecked(d, value); if (cycles<maxCycles) { cycles++; pc++; flags = test(value); } break; }
+				case Handlers.SUB_IMMEDIATE_TEST + DATA_WORD: { long value = frame.getWordUnchecked(a) - b; frame.putWordUnchecked(d, value); if (cycles<maxCycles) { cycles++; pc++; flags = test(value); } break; }
+				case Handlers.PUSH_POP + DATA_INT8: if (cycles<maxCycles && stack.hasRoom(1)) { cycles++; pc++; frame.putInt8Unchecked(d, frame.getInt8Unchecked(a)); } else { stack.pushInt8(frame.getInt8Unchecked(a)); } break;
+				case Handlers.PUSH_POP + DATA_INT16: if (cycles<maxCycles && stack.hasRoom(2)) { cycles++; pc++; frame.putInt16Unchecked(d, frame.getInt16Unchecked(a)); } else { stack.pushInt16(frame.getInt16Unchecked(a)); } break;
+				case Handlers.PUSH_POP + DATA_INT32: if (cycles<maxCycles && stack.hasRoom(4)) { cycles++; pc++; frame.putInt32Unchecked(d, frame.getInt32Unchecked(a)); } else { stack.pushInt32(frame.getInt32Unchecked(a)); } break;
+				case Handlers.PUSH_POP + DATA_INT64: if (cycles<maxCycles && stack.hasRoom(8)) { cycles++; pc++; frame.putInt64Unchecked(d, frame.getInt64Unchecked(a)); } else { stack.pushInt64(frame.getInt64Unchecked(a)); } break;
+				case Handlers.PUSH_POP + DATA_FLOAT16: if (cycles<maxCycles && stack.hasRoom(2)) { cycles++; pc++; frame.putFloat16Unchecked(d, frame.getFloat16Unchecked(a)); } else { stack.pushFloat16(frame.getFloat16Unchecked(a)); } break;
+				case Handlers.PUSH_POP + DATA_FLOAT32: if (cycles<maxCycles && stack.hasRoom(4)) { cycles++; pc++; frame.putFloat32Unchecked(d, frame.getFloat32Unchecked(a)); } else { stack.pushFloat32(frame.getFloat32Unchecked(a)); } break;
+				case Handlers.PUSH_POP + DATA_FLOAT64: if (cycles<maxCycles && stack.hasRoom(8)) { cycles++; pc++; frame.putFloat64Unchecked(d, frame.getFloat64Unchecked(a)); } else { stack.pushFloat64(frame.getFloat64Unchecked(a)); } break;
+				case Handlers.PUSH_POP + DATA_WORD: if (cycles<maxCycles && stack.hasRoom(8)) { cycles++; pc++; frame.putWordUnchecked(d, frame.getWordUnchecked(a)); } else { stack.pushWord(frame.getWordUnchecked(a)); } break;
+				
+				case Handlers.HALT:
+					if (b!=0) throw new VMException(constants.getString(b));
+					active = false;
+					return cycles;
+				case Handlers.GENERIC:
+					this.flags = flags;
+					executeGeneric(at);
+					flags = this.flags;
+					break;
+				case Handlers.IN: {
+					Port port = getPort(b);
+					if (!port.available()) {
+						//Leave the program counter on this instruction so it's retried next time
+						pc = at;
+						cycles--;
+						waiting = true;
+						return cycles;
+					}
+					input(a, d, port.read());
+					break;
+				}
+				case Handlers.CALL:
+					pc = call(b, at);
+					code = this.code;
+					constants = this.constants;
+					if (backEdgeCountdown<0) { hotness = -1; break dispatch; }
+					break;
+				case Handlers.RETURN:
+					pc = leave();
+					if (pc<0) {
+						//Returned from the outermost function
+						pc = at + 1;
+						active = false;
+						return cycles;
+					}
+					code = this.code;
+					constants = this.constants;
+					if (backEdgeCountdown<0) { hotness = -1; break dispatch; }
+					break;
+				case Handlers.END:
+					throw new VMException("Program counter ran off the end of the program");
+				default:
+					throw invalidInstruction(at);
+				}
 			}
-			//TODO: Execute
-			programCounter += 8;
-		} catch (VMException ex) {
-			active = false;
+			return cycles;
+		} catch (VMException | RuntimeException ex) {
+			pc = at;
 			throw ex;
+		} finally {
+			this.flags = flags;
+			backEdgeCountdown = hotness;
+			programCounter = pc << 3;
+			totalCycles += cycles;
 		}
 	}
 	
 	/**
-	 * Returns true if this thread is still running. In other words, true is returned if cycle() should continue be called to
-	 * dispatch more instructions. False will be returned if the machine hits either a natural or abnormal halt.
+	 * Calls the function named by string constant nameIndex from the CALL at instruction index, and returns the instruction
+	 * index to continue at. Verified threads verify the callee before entering it. Java methods run to completion right here,
+	 * so execution simply continues after the CALL.
 	 */
-	public boolean isActive() {
-		return active;
+	protected int call(int nameIndex, int index) throws VMException {
+		CallTarget target = module.link(index, nameIndex);
+		if (target instanceof NativeFunction) {
+			NativeFunction method = (NativeFunction) target;
+			method.invoke(stack, scratchArguments(method.getArity()));
+			return index + 1;
+		}
+		
+		Module.Function callee = (Module.Function) target;
+		if (verified) {
+			callee.module.verify(callee);
+			//Calls make a function hot just like backward jumps, so functions without loops get compiled too
+			if (jitThreshold>0 && profile==null && (callee.compiled!=null || (!callee.compileFailed && ++callee.invocations>=jitThreshold))) {
+				backEdgeCountdown = -1;
+			}
+		} else {
+			callee.module.load(callee);
+		}
+		stack.pushStackFrame(callee.name, callee.lvtInfo, (index+1) << 3, callee.argumentBytes);
+		if (callDepth+1>=functionStack.length) functionStack = Arrays.copyOf(functionStack, functionStack.length*2);
+		functionStack[++callDepth] = callee;
+		function = callee;
+		if (callee.module!=module) enter(callee.module);
+		return callee.entry >> 3;
 	}
 	
-	protected void checkBounds() throws VMException {
-		if (programCounter<0 || programCounter>=program.length) throw new VMException();
+	/** Returns a scratch array of the given length for passing arguments to Java methods. */
+	protected long[] scratchArguments(int count) {
+		if (count>=scratchArguments.length) scratchArguments = Arrays.copyOf(scratchArguments, count+1);
+		long[] scratch = scratchArguments[count];
+		if (scratch==null) {
+			scratch = new long[count];
+			scratchArguments[count] = scratch;
+		}
+		return scratch;
+	}
+	
+	/** Switches to running code from a different module. */
+	protected void enter(Module module) {
+		this.module = module;
+		this.program = module.getProgram();
+		this.constants = module.getConstants();
+		this.code = module.getCode();
+	}
+	
+	/**
+	 * Pops the current function's frame, handing its results to the caller, and returns the instruction index to continue at,
+	 * or -1 if there's no caller to return to.
+	 */
+	protected int leave() throws VMException {
+		int returnAddress = stack.popStackFrame(function.resultBytes);
+		if (callDepth==0) return -1;
+		functionStack[callDepth--] = null;
+		function = functionStack[callDepth];
+		if (function.module!=module) enter(function.module);
+		//The caller may have been entered before the thread was verified
+		if (verified) {
+			module.verify(function);
+			if (jitThreshold>0 && profile==null && function.compiled!=null) backEdgeCountdown = -1;
+		}
+		return returnAddress >> 3;
+	}
+	
+	/**
+	 * Builds the exception for an instruction with the FAULT handler. Re-decoding it produces the exception describing what's
+	 * wrong with it, unless it isn't code at all.
+	 */
+	protected VMException invalidInstruction(int index) {
+		if (!module.isLoaded(index << 3)) return new VMException("Program counter 0x"+Integer.toHexString(index << 3)+" isn't inside a loaded function");
+		try {
+			Decoder.decodeInstruction(program, constants, index, new int[Decoder.STRIDE], 0);
+		} catch (VMException ex) {
+			return ex;
+		}
+		return new VMException("Invalid handler "+code[index * Decoder.STRIDE]+" at 0x"+Integer.toHexString(index << 3));
+	}
+	
+	/**
+	 * Computes the address a memory operand refers to. {@code base} is the base word register, with the operand mode packed
+	 * above its low 8 bits (see {@link Handlers#LOAD_MEMORY}), and {@code offset} is either an immediate offset or the word
+	 * register holding it. Indirect modes read the final address from the heap.
+	 */
+	protected long memoryAddress(StackFrame frame, int base, int offset) throws VMException {
+		long address = frame.getWord(base & 0xFF);
+		switch(base >>> 8) {
+		case OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET:
+			return address + offset;
+		case OPERAND_REGISTER_ADDRESS_PLUS_REGISTER_OFFSET:
+			return address + frame.getWord(offset);
+		case OPERAND_INDIRECT_ADDRESS_WITH_IMMEDIATE_OFFSET:
+			return heap.getWord(address + offset);
+		case OPERAND_INDIRECT_ADDRESS_WITH_REGISTER_OFFSET:
+			return heap.getWord(address + frame.getWord(offset));
+		case OPERAND_REGISTER_ADDRESS_PLUS_CONSTANT_OFFSET:
+			return address + constants.getWord(offset);
+		case OPERAND_INDIRECT_ADDRESS_WITH_CONSTANT_OFFSET:
+			return heap.getWord(address + constants.getWord(offset));
+		default:
+			throw new VMException("Invalid operandType 0x"+Integer.toHexString(base >>> 8));
+		}
+	}
+	
+	/**
+	 * Executes the instruction at instruction index {@code index} directly from the raw program bytes. This is the slow path
+	 * for instructions too rare or too bulky to get their own handlers.
+	 */
+	protected void executeGeneric(int index) throws VMException {
+		int pc = index * 8;
+		int opcode       =  program[pc] & 0xFF;
+		int dataType     = (program[pc+1] >>> 4) & 0x0F;
+		int operand2Type =  program[pc+1] & 0x0F;
+		int destination  =  program[pc+2] & 0xFF;
+		int operand1     =  program[pc+3] & 0xFF;
+		int operand2     = Decoder.operand2(program, pc);
+		
+		switch(opcode) {
+		case OPCODE_CONVERT:
+			convert(dataType, operand2Type, destination, operand1);
+			break;
+		case OPCODE_CLOAD:
+			if (conditionMet(operand1)) load(dataType, destination, operand2Type, operand2);
+			break;
+		case OPCODE_CSTORE:
+			if (conditionMet(operand1)) store(dataType, destination, operand2Type, operand2);
+			break;
+		case OPCODE_OUT:
+			getPort(operand2).write(output(dataType, operand1));
+			break;
+		case OPCODE_ADD:
+		case OPCODE_SUB:
+		case OPCODE_MUL:
+		case OPCODE_DIV:
+		case OPCODE_MOD:
+		case OPCODE_SHL:
+		case OPCODE_SHR:
+		case OPCODE_ASR:
+			arithmetic(opcode, dataType, destination, operand1, operand2Type, operand2);
+			break;
+		case OPCODE_ALLOCATE:
+			stack.currentStackFrame().putWord(operand1, heap.allocate(loadWord(operand2Type, operand2, false)));
+			break;
+		case OPCODE_MEMCOPY:
+		case OPCODE_MEMFILL:
+		case OPCODE_MEMCOMPARE:
+		case OPCODE_VECTOR_ADD:
+		case OPCODE_VECTOR_MUL:
+		case OPCODE_VECTOR_MULADD:
+		case OPCODE_VECTOR_SUM:
+		case OPCODE_VECTOR_DOT:
+			bulk(opcode, dataType, destination, operand1, loadWord(operand2Type, operand2, false));
+			break;
+		default:
+			throw new VMException("Unknown opcode 0x"+Integer.toHexString(opcode));
+		}
+	}
+	
+	/** Runs one of the bulk memory or vector instructions over count elements. See {@link BulkMemory}. */
+	protected void bulk(int opcode, int dataType, int destination, int operand1, long count) throws VMException {
+		int width = Verifier.width(dataType);
+		if (count<0) throw new VMMemoryException("Can't work on a negative number of elements ("+count+")");
+		if (count>Integer.MAX_VALUE/width) throw new VMMemoryException("Can't work on "+count+" elements at once");
+		int n = (int) count;
+		int bytes = n * width;
+		if (bulkMemory==null) bulkMemory = new BulkMemory();
+		StackFrame frame = stack.currentStackFrame();
+		
+		switch(opcode) {
+		case OPCODE_MEMCOPY: {
+			long to = frame.getWord(destination);
+			long from = frame.getWord(operand1);
+			if (n==0) return;
+			ByteBuffer target = heap.writableRegion(to, bytes);
+			ByteBuffer source = heap.region(from, bytes);
+			bulkMemory.copy(target, source, from<to+bytes && to<from+bytes, to>from);
+			break;
+		}
+		case OPCODE_MEMFILL: {
+			long to = frame.getWord(destination);
+			long bits = output(dataType, operand1);
+			if (n==0) return;
+			bulkMemory.fill(heap.writableRegion(to, bytes), width, bits, n);
+			break;
+		}
+		case OPCODE_MEMCOMPARE: {
+			long a = frame.getWord(destination);
+			long b = frame.getWord(operand1);
+			flags = (n==0) ? FLAG_ZERO : bulkMemory.compare(heap.region(a, bytes), heap.region(b, bytes), dataType, n);
+			break;
+		}
+		case OPCODE_VECTOR_ADD:
+		case OPCODE_VECTOR_MUL:
+		case OPCODE_VECTOR_MULADD: {
+			long to = frame.getWord(destination);
+			long a = frame.getWord(operand1);
+			long b = frame.getWord(operand1+1);
+			if (n==0) return;
+			ByteBuffer target = heap.writableRegion(to, bytes);
+			bulkMemory.elementwise(opcode, target, source(a, to, bytes), source(b, to, bytes), dataType, n);
+			break;
+		}
+		default: {
+			long a = frame.getWord(operand1);
+			long b = (opcode==OPCODE_VECTOR_DOT) ? frame.getWord(operand1+1) : 0;
+			ByteBuffer first = (n==0) ? null : heap.region(a, bytes);
+			ByteBuffer second = (n==0 || opcode!=OPCODE_VECTOR_DOT) ? null : heap.region(b, bytes);
+			switch(dataType) {
+			case DATA_FLOAT32:
+				frame.putFloat32(destination, (n==0) ? 0 : (float) bulkMemory.floatSum(first, second, dataType, n));
+				break;
+			case DATA_FLOAT64:
+				frame.putFloat64(destination, (n==0) ? 0 : bulkMemory.floatSum(first, second, dataType, n));
+				break;
+			case DATA_FLOAT16:
+				frame.putFloat16(destination, (n==0) ? 0 : Half.fromDouble(bulkMemory.floatSum(first, second, dataType, n)));
+				break;
+			default:
+				input(dataType, destination, (n==0) ? 0 : bulkMemory.integerSum(first, second, dataType, n));
+				break;
+			}
+			break;
+		}
+		}
+	}
+	
+	/**
+	 * Returns the region a vector instruction reads from. A source which partly overlaps the destination is copied first, so
+	 * every element is read before anything is written; one which exactly coincides with it is read a chunk ahead anyway.
+	 */
+	private ByteBuffer source(long address, long destination, int bytes) throws VMMemoryException {
+		ByteBuffer region = heap.region(address, bytes);
+		if (address!=destination && address<destination+bytes && destination<address+bytes) {
+			ByteBuffer copy = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			copy.put(region);
+			copy.flip();
+			return copy;
+		}
+		return region;
+	}
+	
+	/**
+	 * Slow path for ALU instructions whose operand2 is a constant too wide to be folded into an immediate, which can only
+	 * happen for the 64-bit types.
+	 */
+	protected void arithmetic(int opcode, int dataType, int destination, int operand1, int operand2Type, int operand2) throws VMException {
+		StackFrame frame = stack.currentStackFrame();
+		switch(dataType) {
+		case DATA_INT64:
+			frame.putInt64(destination, arithmetic(opcode, frame.getInt64(operand1), loadInt64(operand2Type, operand2, false)));
+			break;
+		case DATA_WORD:
+			frame.putWord(destination, arithmetic(opcode, frame.getWord(operand1), loadWord(operand2Type, operand2, false)));
+			break;
+		case DATA_FLOAT64:
+			frame.putFloat64(destination, arithmetic(opcode, frame.getFloat64(operand1), loadFloat64(operand2Type, operand2, false)));
+			break;
+		default:
+			throw new VMException("Invalid instruction data type 0x"+Integer.toHexString(dataType));
+		}
+	}
+	
+	protected static long arithmetic(int opcode, long a, long b) throws VMException {
+		switch(opcode) {
+		case OPCODE_ADD: return a + b;
+		case OPCODE_SUB: return a - b;
+		case OPCODE_MUL: return a * b;
+		case OPCODE_DIV: return a / b;
+		case OPCODE_MOD: return a % b;
+		case OPCODE_SHL: return a << b;
+		case OPCODE_SHR: return a >>> b;
+		case OPCODE_ASR: return a >> b;
+		default:
+			throw new VMException("Unknown opcode 0x"+Integer.toHexString(opcode));
+		}
+	}
+	
+	protected static double arithmetic(int opcode, double a, double b) throws VMException {
+		switch(opcode) {
+		case OPCODE_ADD: return a + b;
+		case OPCODE_SUB: return a - b;
+		case OPCODE_MUL: return a * b;
+		case OPCODE_DIV: return a / b;
+		case OPCODE_MOD: return a % b;
+		default:
+			throw new VMException("Shift instructions are only valid for integer types");
+		}
+	}
+	
+	/** Reads the value of an LVT entry as the bits which OPCODE_OUT sends to a port. */
+	protected long output(int dataType, int lvtIndex) throws VMException {
+		StackFrame frame = stack.currentStackFrame();
+		switch(dataType) {
+		case DATA_INT8:    return frame.getInt8(lvtIndex);
+		case DATA_INT16:   return frame.getInt16(lvtIndex);
+		case DATA_INT32:   return frame.getInt32(lvtIndex);
+		case DATA_INT64:   return frame.getInt64(lvtIndex);
+		case DATA_FLOAT16: return frame.getFloat16(lvtIndex) & 0xFFFF;
+		case DATA_FLOAT32: return Float.floatToRawIntBits(frame.getFloat32(lvtIndex)) & 0xFFFFFFFFL;
+		case DATA_FLOAT64: return Double.doubleToRawLongBits(frame.getFloat64(lvtIndex));
+		case DATA_WORD:    return frame.getWord(lvtIndex);
+		default:
+			throw new VMException("Invalid instruction data type 0x"+Integer.toHexString(dataType));
+		}
+	}
+	
+	/** Stores bits received through OPCODE_IN into an LVT entry. */
+	protected void input(int dataType, int lvtIndex, long value) throws VMException {
+		StackFrame frame = stack.currentStackFrame();
+		switch(dataType) {
+		case DATA_INT8:    frame.putInt8(lvtIndex, (byte) value); break;
+		case DATA_INT16:   frame.putInt16(lvtIndex, (short) value); break;
+		case DATA_INT32:   frame.putInt32(lvtIndex, (int) value); break;
+		case DATA_INT64:   frame.putInt64(lvtIndex, value); break;
+		case DATA_FLOAT16: frame.putFloat16(lvtIndex, (short) value); break;
+		case DATA_FLOAT32: frame.putFloat32(lvtIndex, Float.intBitsToFloat((int) value)); break;
+		case DATA_FLOAT64: frame.putFloat64(lvtIndex, Double.longBitsToDouble(value)); break;
+		case DATA_WORD:    frame.putWord(lvtIndex, value); break;
+		default:
+			throw new VMException("Invalid instruction data type 0x"+Integer.toHexString(dataType));
+		}
+	}
+	
+	protected boolean conditionMet(int condition) throws VMException {
+		switch(condition) {
+		case CONDITION_ZERO:         return (flags & FLAG_ZERO)!=0;
+		case CONDITION_NOT_ZERO:     return (flags & FLAG_ZERO)==0;
+		case CONDITION_LESS:         return flags==FLAG_SIGN;
+		case CONDITION_GREATER:      return flags==0;
+		case CONDITION_NEGATIVE:     return (flags & FLAG_SIGN)!=0;
+		case CONDITION_NOT_NEGATIVE: return (flags & FLAG_SIGN)==0;
+		default:
+			throw new VMException("Invalid condition code 0x"+Integer.toHexString(condition));
+		}
+	}
+	
+	/** Same as {@link #conditionMet(int)}, for condition codes which are already known to be valid. */
+	protected static boolean conditionMet(int condition, int flags) {
+		switch(condition) {
+		case CONDITION_ZERO:     return (flags & FLAG_ZERO)!=0;
+		case CONDITION_NOT_ZERO: return (flags & FLAG_ZERO)==0;
+		case CONDITION_LESS:     return flags==FLAG_SIGN;
+		case CONDITION_GREATER:  return flags==0;
+		case CONDITION_NEGATIVE: return (flags & FLAG_SIGN)!=0;
+		default:                 return (flags & FLAG_SIGN)==0;
+		}
+	}
+	
+	protected static int test(long value) {
+		return (value==0) ? FLAG_ZERO : (value<0) ? FLAG_SIGN : 0;
+	}
+	
+	protected static int test(double value) {
+		return (value==0) ? FLAG_ZERO : (value<0) ? FLAG_SIGN : 0;
+	}
+	
+	protected static int testFloat16(short value) {
+		return test(Half.toFloat(value));
+	}
+	
+	protected void convert(int sourceType, int destType, int destination, int operand) throws VMException {
+		StackFrame frame = stack.currentStackFrame();
+		boolean integral;
+		long integer = 0;
+		double real = 0;
+		switch(sourceType) {
+		case DATA_INT8:    integral = true;  integer = frame.getInt8(operand); break;
+		case DATA_INT16:   integral = true;  integer = frame.getInt16(operand); break;
+		case DATA_INT32:   integral = true;  integer = frame.getInt32(operand); break;
+		case DATA_INT64:   integral = true;  integer = frame.getInt64(operand); break;
+		case DATA_WORD:    integral = true;  integer = frame.getWord(operand); break;
+		case DATA_FLOAT32: integral = false; real = frame.getFloat32(operand); break;
+		case DATA_FLOAT64: integral = false; real = frame.getFloat64(operand); break;
+		case DATA_FLOAT16: integral = false; real = Half.toFloat(frame.getFloat16(operand)); break;
+		default:
+			throw new VMException("Invalid instruction data type 0x"+Integer.toHexString(sourceType));
+		}
+		
+		if (integral) {
+			real = integer;
+		} else {
+			integer = (long) real;
+		}
+		
+		switch(destType) {
+		case DATA_INT8:    frame.putInt8(destination, (byte) integer); break;
+		case DATA_INT16:   frame.putInt16(destination, (short) integer); break;
+		case DATA_INT32:   frame.putInt32(destination, (int) integer); break;
+		case DATA_INT64:   frame.putInt64(destination, integer); break;
+		case DATA_WORD:    frame.putWord(destination, integer); break;
+		case DATA_FLOAT32: frame.putFloat32(destination, (float) real); break;
+		case DATA_FLOAT64: frame.putFloat64(destination, real); break;
+		case DATA_FLOAT16: frame.putFloat16(destination, Half.fromDouble(real)); break;
+		default:
+			throw new VMException("Invalid instruction data type 0x"+Integer.toHexString(destType));
+		}
 	}
 	
 	/*
@@ -222,6 +1629,7 @@ public class VMThread {
 			break;
 		case DATA_WORD:
 			stack.currentStackFrame().putWord(lvtIndex, loadWord(operand2Type, operand2, true));
+			break;
 		default:
 			throw new VMException("Invalid instruction data type 0x"+Integer.toHexString(instructionType));
 		}
@@ -325,7 +1733,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			return (byte)operand2;
 		case OPERAND_CONSTANT:
-			throw new VMException("Not yet implemented");
+			return constants.getInt8(operand2);
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -339,7 +1747,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			throw new VMException("Can't store to immediate value");
 		case OPERAND_CONSTANT:
-			throw new VMException("Can't store sto constant value");
+			throw new VMException("Can't store to constant value");
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -352,7 +1760,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			return (short)operand2;
 		case OPERAND_CONSTANT:
-			throw new VMException("Not yet implemented");
+			return constants.getInt16(operand2);
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -366,7 +1774,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			throw new VMException("Can't store to immediate value");
 		case OPERAND_CONSTANT:
-			throw new VMException("Can't store sto constant value");
+			throw new VMException("Can't store to constant value");
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -379,7 +1787,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			return operand2;
 		case OPERAND_CONSTANT:
-			throw new VMException("Not yet implemented");
+			return constants.getInt32(operand2);
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -393,7 +1801,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			throw new VMException("Can't store to immediate value");
 		case OPERAND_CONSTANT:
-			throw new VMException("Can't store sto constant value");
+			throw new VMException("Can't store to constant value");
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -406,7 +1814,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			return operand2;
 		case OPERAND_CONSTANT:
-			throw new VMException("Not yet implemented");
+			return constants.getInt64(operand2);
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -420,7 +1828,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			throw new VMException("Can't store to immediate value");
 		case OPERAND_CONSTANT:
-			throw new VMException("Can't store sto constant value");
+			throw new VMException("Can't store to constant value");
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -433,7 +1841,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			return operand2;
 		case OPERAND_CONSTANT:
-			throw new VMException("Not yet implemented");
+			return constants.getWord(operand2);
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -447,7 +1855,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			throw new VMException("Can't store to immediate value");
 		case OPERAND_CONSTANT:
-			throw new VMException("Can't store sto constant value");
+			throw new VMException("Can't store to constant value");
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -460,7 +1868,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			return (short)operand2;
 		case OPERAND_CONSTANT:
-			throw new VMException("Not yet implemented");
+			return constants.getFloat16(operand2);
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -474,7 +1882,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			throw new VMException("Can't store to immediate value");
 		case OPERAND_CONSTANT:
-			throw new VMException("Can't store sto constant value");
+			throw new VMException("Can't store to constant value");
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -487,7 +1895,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			return Float.intBitsToFloat(operand2);
 		case OPERAND_CONSTANT:
-			throw new VMException("Not yet implemented");
+			return constants.getFloat32(operand2);
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -501,7 +1909,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			throw new VMException("Can't store to immediate value");
 		case OPERAND_CONSTANT:
-			throw new VMException("Can't store sto constant value");
+			throw new VMException("Can't store to constant value");
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -514,7 +1922,7 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			return (double) Float.intBitsToFloat(operand2);
 		case OPERAND_CONSTANT:
-			throw new VMException("Not yet implemented");
+			return constants.getFloat64(operand2);
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
@@ -528,26 +1936,9 @@ public class VMThread {
 		case OPERAND_IMMEDIATE:
 			throw new VMException("Can't store to immediate value");
 		case OPERAND_CONSTANT:
-			throw new VMException("Can't store sto constant value");
+			throw new VMException("Can't store to constant value");
 		default:
 			throw new VMException("Invalid operandType 0x"+Integer.toHexString(operand2Type));
 		}
 	}
-	
-	protected int operand2Standard() {
-		return
-				(program[programCounter+4] << 24) |
-				(program[programCounter+5] << 16) |
-				(program[programCounter+6] <<  8) |
-				 program[programCounter+7];
-	}
-	
-	protected long operand2Simple() {
-		return
-				(program[programCounter+3] << 32) |
-				(program[programCounter+4] << 24) |
-				(program[programCounter+5] << 16) |
-				(program[programCounter+6] <<  8) |
-				 program[programCounter+7];
-	}
 }
@@ -0,0 +1,18 @@
+package blue.endless.junior.esovm;
+
+/**
+ * Thrown by the {@link Verifier} when bytecode can't be proven safe to run without per-access checks.
+ */
+public class VMVerificationException extends VMException {
+	private static final long serialVersionUID = -2318957446022749381L;
+	
+	public VMVerificationException() {}
+	
+	public VMVerificationException(String message) {
+		super(message);
+	}
+	
+	public VMVerificationException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
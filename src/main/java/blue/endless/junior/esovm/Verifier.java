@@ -0,0 +1,259 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+
+import java.util.Arrays;
+
+/**
+ * Load-time verifier for EsoVM functions. A function which passes verification can be run through VMThread's unchecked
+ * handlers, because everything those handlers would otherwise check on every access has been proven here once:
+ * 
+ * <ul>
+ *   <li>Every reachable instruction decodes - opcode, data types, operand types, condition codes and constant pool indices
+ *       are all valid
+ *   <li>Every LVT index names an entry which exists in a frame laid out according to the function's lvtInfo
+ *   <li>Every jump lands inside the function, and control never runs off the end of it
+ *   <li>The operand stack has the same depth on every path into an instruction, and is never popped below the bottom of
+ *       the function's frame
+ *   <li>Every call has its callee's arguments on the operand stack, and every return has the function's results there
+ * </ul>
+ * 
+ * <p>Unreachable bytes are never examined, so functions may embed data after their last instruction.
+ */
+public final class Verifier {
+	private Verifier() {}
+	
+	/**
+	 * Verifies the function whose code spans byte addresses [start, end) of program, entered at start with an empty
+	 * operand stack, and returns the largest number of bytes it ever holds on its operand stack.
+	 */
+	public static int verify(byte[] program, ConstantPool constants, int start, int end, long lvtInfo) throws VMVerificationException {
+		return verify(program, constants, start, start, end, lvtInfo);
+	}
+	
+	/**
+	 * Verifies the function whose code spans byte addresses [start, end) of program, entered at entry with an empty operand
+	 * stack, and returns the largest number of bytes it ever holds on its operand stack.
+	 */
+	public static int verify(byte[] program, ConstantPool constants, int entry, int start, int end, long lvtInfo) throws VMVerificationException {
+		return verify(program, constants, null, entry, start, end, lvtInfo, 0, 0, null);
+	}
+	
+	/**
+	 * Verifies a function of a module, which is entered with its arguments on the operand stack, and returns the largest
+	 * number of bytes it ever holds on its operand stack. Calls are checked against the signatures of the functions they name.
+	 */
+	public static int verify(Module module, Module.Function function) throws VMVerificationException {
+		return verify(module.getProgram(), module.getConstants(), module, function.getEntry(), function.getStart(), function.getEnd(), function.getLvtInfo(), function.getArgumentBytes(), function.getResultBytes(), null);
+	}
+	
+	/**
+	 * Verifies a function of a module like {@link #verify(Module, Module.Function)}, and returns the operand stack depth on
+	 * entry to each of its instructions, in bytes, or -1 for instructions which can't be reached.
+	 */
+	static int[] depths(Module module, Module.Function function) throws VMVerificationException {
+		int[] depths = new int[Math.max(0, (function.getEnd() - function.getStart()) >> 3)];
+		verify(module.getProgram(), module.getConstants(), module, function.getEntry(), function.getStart(), function.getEnd(), function.getLvtInfo(), function.getArgumentBytes(), function.getResultBytes(), depths);
+		return depths;
+	}
+	
+	private static int verify(byte[] program, ConstantPool constants, Module module, int entry, int start, int end, long lvtInfo, int argumentBytes, int resultBytes, int[] depths) throws VMVerificationException {
+		if (start<0 || end>program.length || start>end || (start & 0x7)!=0 || (end & 0x7)!=0) {
+			throw new VMVerificationException("Function bounds 0x"+Integer.toHexString(start)+"..0x"+Integer.toHexString(end)+" are not valid for this program");
+		}
+		if (entry<start || entry>=end || (entry & 0x7)!=0) {
+			throw new VMVerificationException("Entry point 0x"+Integer.toHexString(entry)+" is not an instruction inside the function");
+		}
+		
+		int first = start >> 3;
+		int count = (end - start) >> 3;
+		if (depths==null) depths = new int[count];
+		Arrays.fill(depths, -1);
+		int[] worklist = new int[count];
+		int pending = 0;
+		int maxDepth = argumentBytes;
+		int[] scratch = new int[Decoder.STRIDE];
+		
+		depths[(entry >> 3) - first] = argumentBytes;
+		worklist[pending++] = entry >> 3;
+		
+		while(pending>0) {
+			int index = worklist[--pending];
+			int depth = depths[index - first];
+			int pc = index * 8;
+			
+			try {
+				Decoder.decodeInstruction(program, constants, index, scratch, 0);
+			} catch (VMException ex) {
+				throw new VMVerificationException("Invalid instruction at 0x"+Integer.toHexString(pc)+": "+ex.getMessage(), ex);
+			}
+			
+			int opcode       =  program[pc] & 0xFF;
+			int dataType     = (program[pc+1] >>> 4) & 0x0F;
+			int operand2Type =  program[pc+1] & 0x0F;
+			int destination  =  program[pc+2] & 0xFF;
+			int operand1     =  program[pc+3] & 0xFF;
+			int operand2     = Decoder.operand2(program, pc);
+			
+			boolean fallsThrough = true;
+			int target = -1;
+			
+			switch(opcode) {
+			case OPCODE_LOAD:
+			case OPCODE_STORE:
+				checkRegister(pc, lvtInfo, dataType, operand1);
+				if (operand2Type==OPERAND_REGISTER) checkRegister(pc, lvtInfo, dataType, operand2);
+				if (operand2Type>=OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET) {
+					checkRegister(pc, lvtInfo, DATA_WORD, destination);
+					if (operand2Type==OPERAND_REGISTER_ADDRESS_PLUS_REGISTER_OFFSET || operand2Type==OPERAND_INDIRECT_ADDRESS_WITH_REGISTER_OFFSET) {
+						checkRegister(pc, lvtInfo, DATA_WORD, operand2);
+					}
+				}
+				break;
+			case OPCODE_ALLOCATE:
+				checkRegister(pc, lvtInfo, DATA_WORD, operand1);
+				if (operand2Type==OPERAND_REGISTER) checkRegister(pc, lvtInfo, DATA_WORD, operand2);
+				break;
+			case OPCODE_FREE:
+				checkRegister(pc, lvtInfo, DATA_WORD, operand1);
+				break;
+			case OPCODE_PUSH:
+				checkRegister(pc, lvtInfo, dataType, operand1);
+				depth += width(dataType);
+				break;
+			case OPCODE_POP:
+				checkRegister(pc, lvtInfo, dataType, operand1);
+				depth -= width(dataType);
+				if (depth<0) throw new VMVerificationException("Operand stack underflow at 0x"+Integer.toHexString(pc));
+				break;
+			case OPCODE_ADD:
+			case OPCODE_SUB:
+			case OPCODE_MUL:
+			case OPCODE_DIV:
+			case OPCODE_MOD:
+			case OPCODE_SHL:
+			case OPCODE_SHR:
+			case OPCODE_ASR:
+				checkRegister(pc, lvtInfo, dataType, destination);
+				checkRegister(pc, lvtInfo, dataType, operand1);
+				if (operand2Type==OPERAND_REGISTER) checkRegister(pc, lvtInfo, dataType, operand2);
+				break;
+			case OPCODE_CONVERT:
+				checkRegister(pc, lvtInfo, operand2Type, destination);
+				checkRegister(pc, lvtInfo, dataType, operand1);
+				break;
+			case OPCODE_TEST:
+			case OPCODE_OUT:
+			case OPCODE_IN:
+				checkRegister(pc, lvtInfo, dataType, operand1);
+				break;
+			case OPCODE_MEMCOPY:
+			case OPCODE_MEMFILL:
+			case OPCODE_MEMCOMPARE:
+			case OPCODE_VECTOR_ADD:
+			case OPCODE_VECTOR_MUL:
+			case OPCODE_VECTOR_MULADD:
+			case OPCODE_VECTOR_SUM:
+			case OPCODE_VECTOR_DOT:
+				checkRegister(pc, lvtInfo, (opcode==OPCODE_VECTOR_SUM || opcode==OPCODE_VECTOR_DOT) ? dataType : DATA_WORD, destination);
+				checkRegister(pc, lvtInfo, (opcode==OPCODE_MEMFILL) ? dataType : DATA_WORD, operand1);
+				if (opcode>=OPCODE_VECTOR_ADD && opcode!=OPCODE_VECTOR_SUM) checkRegister(pc, lvtInfo, DATA_WORD, operand1+1);
+				if (operand2Type==OPERAND_REGISTER) checkRegister(pc, lvtInfo, DATA_WORD, operand2);
+				break;
+			case OPCODE_CLOAD:
+			case OPCODE_CSTORE:
+				checkRegister(pc, lvtInfo, dataType, destination);
+				if (operand2Type==OPERAND_REGISTER) checkRegister(pc, lvtInfo, dataType, operand2);
+				break;
+			case OPCODE_JUMP:
+				fallsThrough = false;
+				target = operand2;
+				break;
+			case OPCODE_CJUMP:
+				target = operand2;
+				break;
+			case OPCODE_CALL: {
+				if (module==null) throw new VMVerificationException("Call at 0x"+Integer.toHexString(pc)+" can't be verified outside of a module");
+				CallTarget callee;
+				try {
+					callee = module.resolve(operand2);
+				} catch (VMException ex) {
+					throw new VMVerificationException("Call at 0x"+Integer.toHexString(pc)+" can't be resolved: "+ex.getMessage(), ex);
+				}
+				depth -= callee.getArgumentBytes();
+				if (depth<0) throw new VMVerificationException("Call at 0x"+Integer.toHexString(pc)+" passes more arguments than are on the operand stack");
+				depth += callee.getResultBytes();
+				break;
+			}
+			case OPCODE_RETURN:
+				if (depth<resultBytes) throw new VMVerificationException("Return at 0x"+Integer.toHexString(pc)+" has fewer results on the operand stack than the function returns");
+				fallsThrough = false;
+				break;
+			case OPCODE_HALT:
+				fallsThrough = false;
+				break;
+			default:
+				//The decoder accepted it, so this is an opcode the verifier hasn't been taught about yet.
+				throw new VMVerificationException("Can't verify opcode 0x"+Integer.toHexString(opcode)+" at 0x"+Integer.toHexString(pc));
+			}
+			
+			if (depth>maxDepth) maxDepth = depth;
+			
+			if (target!=-1) {
+				if (target<start || target>=end) throw new VMVerificationException("Jump at 0x"+Integer.toHexString(pc)+" leaves the function");
+				pending = merge(depths, worklist, pending, first, target >> 3, depth);
+			}
+			if (fallsThrough) {
+				if (pc+8>=end) throw new VMVerificationException("Control runs off the end of the function after 0x"+Integer.toHexString(pc));
+				pending = merge(depths, worklist, pending, first, index + 1, depth);
+			}
+		}
+		
+		return maxDepth;
+	}
+	
+	/** Records that control reaches index with the given stack depth, queueing it if it hasn't been seen. Returns the new worklist size. */
+	private static int merge(int[] depths, int[] worklist, int pending, int first, int index, int depth) throws VMVerificationException {
+		int existing = depths[index - first];
+		if (existing==-1) {
+			depths[index - first] = depth;
+			worklist[pending++] = index;
+		} else if (existing!=depth) {
+			throw new VMVerificationException("Operand stack depth at 0x"+Integer.toHexString(index << 3)+" is "+existing+" bytes on one path and "+depth+" on another");
+		}
+		return pending;
+	}
+	
+	/** Returns the number of LVT entries of dataType described by lvtInfo. */
+	public static int lvtCount(long lvtInfo, int dataType) {
+		switch(dataType) {
+		case DATA_INT8:    return (int) ( lvtInfo         & 0xFF);
+		case DATA_FLOAT16: return (int) ((lvtInfo >>>  8) & 0xFF);
+		case DATA_INT16:   return (int) ((lvtInfo >>> 16) & 0xFF);
+		case DATA_FLOAT32: return (int) ((lvtInfo >>> 24) & 0xFF);
+		case DATA_INT32:   return (int) ((lvtInfo >>> 32) & 0xFF);
+		case DATA_FLOAT64: return (int) ((lvtInfo >>> 40) & 0xFF);
+		case DATA_INT64:   return (int) ((lvtInfo >>> 48) & 0xFF);
+		case DATA_WORD:    return (int) ((lvtInfo >>> 56) & 0xFF);
+		default:           return 0;
+		}
+	}
+	
+	/** Returns the number of bytes a value of dataType occupies on the operand stack. */
+	public static int width(int dataType) {
+		switch(dataType) {
+		case DATA_INT8:    return 1;
+		case DATA_INT16:
+		case DATA_FLOAT16: return 2;
+		case DATA_INT32:
+		case DATA_FLOAT32: return 4;
+		default:           return 8;
+		}
+	}
+	
+	private static void checkRegister(int pc, long lvtInfo, int dataType, int index) throws VMVerificationException {
+		if (index<0 || index>=lvtCount(lvtInfo, dataType)) {
+			throw new VMVerificationException("Instruction at 0x"+Integer.toHexString(pc)+" uses LVT entry "+index+" of type 0x"+Integer.toHexString(dataType)+", which the function doesn't declare");
+		}
+	}
+}
@@ -0,0 +1,1118 @@
+package blue.endless.junior.esovm.aot;
+
+import static blue.endless.junior.esovm.VMThread.*;
+import static blue.endless.junior.esovm.aot.MachineCode.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import blue.endless.junior.esovm.CallTarget;
+import blue.endless.junior.esovm.ConstantPool;
+import blue.endless.junior.esovm.Module;
+import blue.endless.junior.esovm.VMException;
+
+/**
+ * Translates verified EsoVM functions ahead of time into x86-64 machine code, packaged as a static Linux executable which
+ * needs neither a JVM nor a C library.
+ *
+ * <p>LVT entries are mapped onto registers by {@link LinearScan}: integer entries onto general-purpose registers, and
+ * float32 and float64 entries onto SSE registers, with whatever doesn't fit kept in the native stack frame. Integer entries
+ * narrower than 64 bits are held sign-extended to 32 bits. The operand stack is a separate block of memory addressed
+ * through RBX, laid out byte-for-byte the way {@link blue.endless.junior.esovm.Stack} lays it out, so arguments and results
+ * pass through it exactly as they do in the interpreter. Compiled functions call each other with CALL and RET, and every
+ * function saves the allocatable registers it uses, so nothing needs saving around a call. R15 holds the flags from the
+ * last TEST, but only if some CJUMP could see a TEST other than the one right before it; otherwise TEST and CJUMP become
+ * a native compare and branch.
+ *
+ * <p>Each function is compiled on its own, in parallel with the others on the common ForkJoinPool, into a separate
+ * {@link MachineCode} buffer which reaches other functions and shared data through symbols. An {@link Image} then lays the
+ * buffers out and patches the references between them, and the {@link ElfFile} is written straight from the buffers.
+ *
+ * <p>The executable runs one function, which takes no arguments, and exits with the lowest byte of what that function
+ * leaves on top of the operand stack (0 if it returns nothing, or if it halts). Faults print the same message the
+ * interpreter would give them to stderr, and exit with status 1. Overflowing the operand stack crashes the process.
+ *
+ * <p>Only functions of the same module can be called, and anything else without a native equivalent - float16 values,
+ * memory operands, the heap, ports, interrupts, and conditional loads and stores - is rejected with a VMException.
+ */
+public final class AotCompiler {
+	public static final long DEFAULT_STACK_SIZE = 1 << 20;
+	
+	/** Registers LVT entries can live in. RAX, RCX, RDX, R11 and XMM0-1 are scratch, RBX is the operand stack pointer. */
+	private static final int[] GENERAL_REGISTERS = { RSI, RDI, R8, R9, R10, R12, R13, R14 };
+	private static final int[] FLOAT_REGISTERS = { 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 };
+	private static final int FLAGS = R15;
+	private static final int XMM0 = 0;
+	private static final int XMM1 = 1;
+	
+	private static final int SYS_WRITE = 1;
+	private static final int SYS_EXIT_GROUP = 231;
+	
+	private static final int[] SIZES = { 1, 2, 4, 8, 2, 4, 8, 8 };
+	
+	//Native frame layout, as offsets from RBP
+	private static final int FRAME_OPERAND_BASE = -8;
+	private static final int FRAME_SCRATCH = -24;
+	private static final int FRAME_FIXED_SIZE = 24;
+	
+	/** State shared by every function in the executable. Functions are compiled concurrently, so the maps are too. */
+	private static final class Program {
+		final Module module;
+		final Map<Module.Function, Symbol> functions = new ConcurrentHashMap<>();
+		final Map<String, Symbol> messages = new ConcurrentHashMap<>();
+		final Symbol fault = new Symbol("fault");
+		final Queue<AotCompiler> compilers = new ConcurrentLinkedQueue<>();
+		boolean flagsInRegister = false;
+		
+		Program(Module module) {
+			this.module = module;
+		}
+		
+		Symbol function(Module.Function function) {
+			return functions.computeIfAbsent(function, it -> new Symbol(it.getName()));
+		}
+		
+		Symbol message(String message) {
+			return messages.computeIfAbsent(message, it -> new Symbol("message \""+it+"\""));
+		}
+	}
+	
+	/**
+	 * Analyzes one function, then forks an analysis of each callee nobody has claimed yet. Analysis is what finds the
+	 * callees, so this is how the call graph gets explored in parallel; as a CountedCompleter, the first task finishes
+	 * only once every task it led to has, without any task waiting on another.
+	 */
+	private static final class Analysis extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 1L;
+		private final transient AotCompiler compiler;
+		
+		Analysis(Analysis parent, AotCompiler compiler) {
+			super(parent);
+			this.compiler = compiler;
+		}
+		
+		@Override
+		public void compute() {
+			Program owner = compiler.owner;
+			owner.compilers.add(compiler);
+			try {
+				compiler.analyze();
+			} catch (VMException ex) {
+				compiler.error = ex;
+			}
+			for(Module.Function callee : compiler.callees) {
+				Symbol symbol = new Symbol(callee.getName());
+				if (owner.functions.putIfAbsent(callee, symbol)==null) {
+					addToPendingCount(1);
+					new Analysis(this, new AotCompiler(owner, callee)).fork();
+				}
+			}
+			tryComplete();
+		}
+	}
+	
+	private final Program owner;
+	private final MachineCode code = new MachineCode();
+	private final Module.Function function;
+	private final byte[] program;
+	private final ConstantPool constants;
+	private final int entry;
+	private final int first;
+	private final int count;
+	
+	private final boolean[] reachable;
+	private final boolean[] leader;
+	private final List<Module.Function> callees = new ArrayList<>();
+	/** The fault messages this function prints, in the order it first uses them. */
+	private final Set<String> messages = new LinkedHashSet<>();
+	/** True if some CJUMP might not be reading the flags of the TEST right before it. */
+	private boolean readsStaleFlags = false;
+	/** Whatever stopped this function from compiling, if anything did. */
+	private VMException error;
+	
+	/** The register each LVT entry, numbered (dataType << 8) | lvtIndex, lives in, or -1 if it's in the frame. */
+	private final int[] registers = new int[8 << 8];
+	/** The frame offset of each LVT entry which isn't in a register. */
+	private final int[] slots = new int[8 << 8];
+	private final BitSet liveAtEntry = new BitSet();
+	private final List<Integer> savedGeneral = new ArrayList<>();
+	private final List<Integer> savedFloat = new ArrayList<>();
+	private int frameSize;
+	private Label[] labels;
+	
+	private AotCompiler(Program owner, Module.Function function) {
+		this.owner = owner;
+		this.function = function;
+		this.program = owner.module.getProgram();
+		this.constants = owner.module.getConstants();
+		this.entry = function.getEntry() >> 3;
+		this.first = function.getStart() >> 3;
+		this.count = (function.getEnd() - function.getStart()) >> 3;
+		this.reachable = new boolean[count];
+		this.leader = new boolean[count];
+	}
+	
+	/**
+	 * Compiles the named function of module, along with every function it can call, into an executable which runs it with
+	 * an operand stack of stackSize bytes.
+	 */
+	public static ElfFile compile(Module module, String entryName, long stackSize) throws VMException {
+		Module.Function main = module.getFunction(entryName);
+		if (main==null) throw new VMException("Can't find a function named \""+entryName+"\"");
+		if (main.getArgumentBytes()!=0) throw new VMException("Function "+entryName+" takes arguments, so it can't be run as a program");
+		
+		Program owner = new Program(module);
+		owner.function(main);
+		new Analysis(null, new AotCompiler(owner, main)).invoke();
+		//Functions are found in whatever order the threads get to them, so put them back in module order to keep the output
+		//the same from run to run
+		List<AotCompiler> compilers = new ArrayList<>(owner.compilers);
+		compilers.sort(Comparator.comparingInt(compiler -> compiler.function.getStart()));
+		throwFirstError(compilers);
+		for(AotCompiler compiler : compilers) owner.flagsInRegister |= compiler.readsStaleFlags;
+		
+		List<RecursiveAction> tasks = new ArrayList<>();
+		for(AotCompiler compiler : compilers) {
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected void compute() {
+					try {
+						compiler.generate();
+					} catch (VMException ex) {
+						compiler.error = ex;
+					}
+				}
+			});
+		}
+		ForkJoinTask.invokeAll(tasks);
+		throwFirstError(compilers);
+		
+		//Entry point: set up the operand stack, run the function, and exit with its result
+		Image image = new Image();
+		MachineCode code = new MachineCode();
+		Symbol stackTop = new Symbol("stack top");
+		code.leaSymbol(RBX, stackTop);
+		code.call(owner.function(main));
+		if (main.getResultBytes()>0) {
+			code.load(1, RDI, RBX, 0);
+		} else {
+			code.alu(ALU_XOR, false, RDI, RDI);
+		}
+		code.movImmediate(false, RAX, SYS_EXIT_GROUP);
+		code.syscall();
+		image.add(code);
+		
+		for(AotCompiler compiler : compilers) image.add(compiler.code);
+		
+		//Faults arrive with the message in RSI and its length in RDX
+		code = new MachineCode();
+		code.define(owner.fault);
+		code.movImmediate(false, RDI, 2);
+		code.movImmediate(false, RAX, SYS_WRITE);
+		code.syscall();
+		code.movImmediate(false, RDI, 1);
+		code.movImmediate(false, RAX, SYS_EXIT_GROUP);
+		code.syscall();
+		Set<String> messages = new LinkedHashSet<>();
+		for(AotCompiler compiler : compilers) messages.addAll(compiler.messages);
+		for(String message : messages) {
+			code.define(owner.message(message));
+			code.bytes(messageBytes(message));
+		}
+		image.add(code);
+		
+		image.define(stackTop, ElfFile.bssOffset(image.size()) + stackSize);
+		image.link();
+		return new ElfFile(image.buffers(), 0, stackSize);
+	}
+	
+	private static void throwFirstError(List<AotCompiler> compilers) throws VMException {
+		for(AotCompiler compiler : compilers) {
+			if (compiler.error!=null) throw compiler.error;
+		}
+	}
+	
+	private static byte[] messageBytes(String message) {
+		return (message+"\n").getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/*
+	 * Raw instruction fields. Same layout the Decoder reads.
+	 */
+	
+	private int opcode(int index)       { return program[index*8] & 0xFF; }
+	private int dataType(int index)     { return (program[index*8+1] >>> 4) & 0x0F; }
+	private int operand2Type(int index) { return program[index*8+1] & 0x0F; }
+	private int destination(int index)  { return program[index*8+2] & 0xFF; }
+	private int operand1(int index)     { return program[index*8+3] & 0xFF; }
+	private int operand2(int index) {
+		int pc = index*8;
+		return ((program[pc+4] & 0xFF) << 24) | ((program[pc+5] & 0xFF) << 16) | ((program[pc+6] & 0xFF) << 8) | (program[pc+7] & 0xFF);
+	}
+	
+	private static int entry(int dataType, int lvtIndex) {
+		return (dataType << 8) | lvtIndex;
+	}
+	
+	private static boolean isFloat(int dataType) {
+		return dataType==DATA_FLOAT32 || dataType==DATA_FLOAT64;
+	}
+	
+	private static boolean isWide(int dataType) {
+		return dataType==DATA_INT64 || dataType==DATA_WORD;
+	}
+	
+	private String at(int index) {
+		return " at 0x"+Integer.toHexString(index*8);
+	}
+	
+	/**
+	 * Finds reachable code and basic block leaders, rejects anything without a native equivalent, and works out where each
+	 * LVT entry lives.
+	 */
+	private void analyze() throws VMException {
+		owner.module.verify(function);
+		
+		int[] defined = new int[count];
+		int[] read1 = new int[count];
+		int[] read2 = new int[count];
+		int[] worklist = new int[count];
+		int pending = 0;
+		reachable[entry - first] = true;
+		leader[entry - first] = true;
+		worklist[pending++] = entry;
+		while(pending>0) {
+			int index = worklist[--pending];
+			int i = index - first;
+			int opcode = opcode(index);
+			int dataType = dataType(index);
+			boolean fallsThrough = true;
+			int target = -1;
+			defined[i] = read1[i] = read2[i] = -1;
+			boolean typed = opcode<OPCODE_CALL || opcode==OPCODE_TEST;
+			if (typed && dataType==DATA_FLOAT16) throw new VMException("float16 values"+at(index)+" can't be compiled to native code");
+			
+			switch(opcode) {
+			case OPCODE_LOAD:
+			case OPCODE_STORE:
+				if (operand2Type(index)>OPERAND_CONSTANT) throw new VMException("Memory operands"+at(index)+" can't be compiled to native code");
+				if (opcode==OPCODE_STORE && operand2Type(index)!=OPERAND_REGISTER) throw new VMException("STORE"+at(index)+" must store to a register");
+				if (opcode==OPCODE_LOAD) {
+					defined[i] = entry(dataType, operand1(index));
+					if (operand2Type(index)==OPERAND_REGISTER) read1[i] = entry(dataType, operand2(index));
+				} else {
+					read1[i] = entry(dataType, operand1(index));
+					defined[i] = entry(dataType, operand2(index));
+				}
+				break;
+			case OPCODE_PUSH:
+			case OPCODE_TEST:
+				read1[i] = entry(dataType, operand1(index));
+				break;
+			case OPCODE_POP:
+				defined[i] = entry(dataType, operand1(index));
+				break;
+			case OPCODE_ADD:
+			case OPCODE_SUB:
+			case OPCODE_MUL:
+			case OPCODE_DIV:
+			case OPCODE_MOD:
+			case OPCODE_SHL:
+			case OPCODE_SHR:
+			case OPCODE_ASR:
+				if (opcode>=OPCODE_SHL && isFloat(dataType)) throw new VMException("Shifts of float values"+at(index)+" aren't valid");
+				defined[i] = entry(dataType, destination(index));
+				read1[i] = entry(dataType, operand1(index));
+				if (operand2Type(index)==OPERAND_REGISTER) read2[i] = entry(dataType, operand2(index));
+				break;
+			case OPCODE_CONVERT:
+				if (operand2Type(index)==DATA_FLOAT16) throw new VMException("float16 values"+at(index)+" can't be compiled to native code");
+				read1[i] = entry(dataType, operand1(index));
+				defined[i] = entry(operand2Type(index), destination(index));
+				break;
+			case OPCODE_JUMP:
+				fallsThrough = false;
+				target = operand2(index) >> 3;
+				break;
+			case OPCODE_CJUMP:
+				target = operand2(index) >> 3;
+				break;
+			case OPCODE_CALL: {
+				CallTarget callee = owner.module.resolve(operand2(index));
+				if (!(callee instanceof Module.Function) || ((Module.Function) callee).getModule()!=owner.module) {
+					throw new VMException("CALL"+at(index)+" calls "+callee.getName()+", which isn't part of the module, so it can't be compiled to native code");
+				}
+				callees.add((Module.Function) callee);
+				break;
+			}
+			case OPCODE_RETURN:
+			case OPCODE_HALT:
+				fallsThrough = false;
+				break;
+			default:
+				throw new VMException("Opcode 0x"+Integer.toHexString(opcode)+at(index)+" can't be compiled to native code");
+			}
+			
+			if (target!=-1) {
+				leader[target - first] = true;
+				if (!reachable[target - first]) {
+					reachable[target - first] = true;
+					worklist[pending++] = target;
+				}
+			}
+			if (!fallsThrough || target!=-1) {
+				//Whatever comes next starts a new block
+				if (index+1 < first+count) leader[index+1 - first] = true;
+			}
+			if (fallsThrough && !reachable[index+1 - first]) {
+				reachable[index+1 - first] = true;
+				worklist[pending++] = index+1;
+			}
+		}
+		//A CJUMP sees only the TEST right before it if that's the only way to reach it
+		for(int i=0; i<count; i++) {
+			if (!reachable[i] || opcode(first+i)!=OPCODE_CJUMP) continue;
+			if (i==0 || leader[i] || !reachable[i-1] || opcode(first+i-1)!=OPCODE_TEST) readsStaleFlags = true;
+		}
+		
+		allocate(defined, read1, read2);
+	}
+	
+	/** Works out each LVT entry's live interval, and gives them registers or frame slots. */
+	private void allocate(int[] defined, int[] read1, int[] read2) {
+		//Basic blocks, as [start, end) instruction offsets
+		List<int[]> blocks = new ArrayList<>();
+		int[] blockOf = new int[count];
+		for(int i=0; i<count; i++) {
+			if (!reachable[i]) continue;
+			if (leader[i] || blocks.isEmpty()) blocks.add(new int[] { i, i+1 });
+			blocks.get(blocks.size()-1)[1] = i+1;
+			blockOf[i] = blocks.size()-1;
+		}
+		
+		int blockCount = blocks.size();
+		BitSet[] uses = new BitSet[blockCount];
+		BitSet[] defs = new BitSet[blockCount];
+		BitSet[] liveIn = new BitSet[blockCount];
+		BitSet[] liveOut = new BitSet[blockCount];
+		int[][] successors = new int[blockCount][];
+		for(int b=0; b<blockCount; b++) {
+			int[] block = blocks.get(b);
+			uses[b] = new BitSet();
+			defs[b] = new BitSet();
+			liveIn[b] = new BitSet();
+			liveOut[b] = new BitSet();
+			for(int i=block[0]; i<block[1]; i++) {
+				if (read1[i]!=-1 && !defs[b].get(read1[i])) uses[b].set(read1[i]);
+				if (read2[i]!=-1 && !defs[b].get(read2[i])) uses[b].set(read2[i]);
+				if (defined[i]!=-1) defs[b].set(defined[i]);
+			}
+			
+			int last = block[1]-1;
+			int index = first + last;
+			int next = (block[1]<count && reachable[block[1]]) ? blockOf[block[1]] : -1;
+			switch(opcode(index)) {
+			case OPCODE_JUMP:  successors[b] = new int[] { blockOf[(operand2(index) >> 3) - first] }; break;
+			case OPCODE_CJUMP: successors[b] = new int[] { blockOf[(operand2(index) >> 3) - first], next }; break;
+			case OPCODE_RETURN:
+			case OPCODE_HALT:  successors[b] = new int[0]; break;
+			default:           successors[b] = new int[] { next }; break;
+			}
+		}
+		
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(int b=blockCount-1; b>=0; b--) {
+				for(int successor : successors[b]) if (successor!=-1) liveOut[b].or(liveIn[successor]);
+				BitSet in = (BitSet) liveOut[b].clone();
+				in.andNot(defs[b]);
+				in.or(uses[b]);
+				if (!in.equals(liveIn[b])) {
+					liveIn[b] = in;
+					changed = true;
+				}
+			}
+		}
+		liveAtEntry.or(liveIn[blockOf[entry - first]]);
+		
+		//Reads are at even positions and writes at odd ones, so a result can take the register of an operand read for the last time
+		int[] starts = new int[8 << 8];
+		int[] ends = new int[8 << 8];
+		java.util.Arrays.fill(starts, -1);
+		java.util.Arrays.fill(ends, -1);
+		for(int b=0; b<blockCount; b++) {
+			int[] block = blocks.get(b);
+			for(int e=liveIn[b].nextSetBit(0); e>=0; e=liveIn[b].nextSetBit(e+1)) touch(starts, ends, e, 2*block[0]);
+			for(int e=liveOut[b].nextSetBit(0); e>=0; e=liveOut[b].nextSetBit(e+1)) touch(starts, ends, e, 2*(block[1]-1)+1);
+			for(int i=block[0]; i<block[1]; i++) {
+				if (read1[i]!=-1) touch(starts, ends, read1[i], 2*i);
+				if (read2[i]!=-1) touch(starts, ends, read2[i], 2*i);
+				if (defined[i]!=-1) touch(starts, ends, defined[i], 2*i+1);
+			}
+		}
+		
+		//Only the entries this function touches go to the allocator, which keeps small functions cheap
+		int[][] used = new int[2][starts.length];
+		int[] usedCount = new int[2];
+		for(int e=0; e<starts.length; e++) {
+			if (starts[e]==-1) continue;
+			int kind = isFloat(e >> 8) ? 1 : 0;
+			used[kind][usedCount[kind]++] = e;
+		}
+		int offset = FRAME_FIXED_SIZE;
+		for(int kind=0; kind<2; kind++) {
+			int n = usedCount[kind];
+			int[] kindStarts = new int[n];
+			int[] kindEnds = new int[n];
+			for(int i=0; i<n; i++) {
+				kindStarts[i] = starts[used[kind][i]];
+				kindEnds[i] = ends[used[kind][i]];
+			}
+			int[] pool = (kind==0) ? GENERAL_REGISTERS : FLOAT_REGISTERS;
+			int[] assigned = LinearScan.allocate(kindStarts, kindEnds, pool);
+			boolean[] taken = new boolean[16];
+			for(int i=0; i<n; i++) {
+				registers[used[kind][i]] = assigned[i];
+				if (assigned[i]!=-1) taken[assigned[i]] = true;
+			}
+			for(int register : pool) {
+				if (taken[register]) ((kind==0) ? savedGeneral : savedFloat).add(register);
+			}
+		}
+		offset += 8 * (savedGeneral.size() + savedFloat.size());
+		for(int kind=0; kind<2; kind++) {
+			for(int i=0; i<usedCount[kind]; i++) {
+				int e = used[kind][i];
+				if (registers[e]==-1) {
+					offset += 8;
+					slots[e] = -offset;
+				}
+			}
+		}
+		frameSize = (offset + 15) & ~15;
+	}
+	
+	private static void touch(int[] starts, int[] ends, int entry, int position) {
+		if (starts[entry]==-1 || position<starts[entry]) starts[entry] = position;
+		if (position>ends[entry]) ends[entry] = position;
+	}
+	
+	private void generate() throws VMException {
+		labels = new Label[count];
+		for(int i=0; i<count; i++) if (leader[i] && reachable[i]) labels[i] = new Label();
+		
+		//Prologue: a native frame, the registers this function will clobber, where its operand stack starts, and zeroes for
+		//every entry which could be read before it's written
+		code.define(owner.function(function));
+		code.push(RBP);
+		code.mov(true, RBP, RSP);
+		code.aluImmediate(ALU_SUB, true, RSP, frameSize);
+		int offset = -FRAME_FIXED_SIZE;
+		for(int register : savedGeneral) code.store(8, RBP, offset -= 8, register);
+		for(int register : savedFloat) code.storeFloat(true, RBP, offset -= 8, register);
+		code.lea(RAX, RBX, function.getArgumentBytes());
+		code.store(8, RBP, FRAME_OPERAND_BASE, RAX);
+		for(int e=liveAtEntry.nextSetBit(0); e>=0; e=liveAtEntry.nextSetBit(e+1)) {
+			int register = registers[e];
+			if (register==-1) {
+				code.alu(ALU_XOR, false, RAX, RAX);
+				code.store(8, RBP, slots[e], RAX);
+			} else if (isFloat(e >> 8)) {
+				code.xorps(register, register);
+			} else {
+				code.alu(ALU_XOR, false, register, register);
+			}
+		}
+		int firstReachable = 0;
+		while(!reachable[firstReachable]) firstReachable++;
+		if (first+firstReachable!=entry) code.jump(labels[entry - first]);
+		
+		for(int i=0; i<count; i++) {
+			if (!reachable[i]) continue;
+			if (labels[i]!=null) code.mark(labels[i]);
+			emit(first + i);
+		}
+	}
+	
+	/*
+	 * Where values live
+	 */
+	
+	/** Returns a register holding entry's value, loading it into scratch first if it lives in the frame. */
+	private int read(int entry, int scratch) {
+		int register = registers[entry];
+		if (register!=-1) return register;
+		if (isFloat(entry >> 8)) {
+			code.loadFloat(true, scratch, RBP, slots[entry]);
+		} else {
+			code.load(8, scratch, RBP, slots[entry]);
+		}
+		return scratch;
+	}
+	
+	/** Returns the register to compute entry's new value in: its own, or scratch if it lives in the frame. */
+	private int target(int entry, int scratch) {
+		int register = registers[entry];
+		return (register!=-1) ? register : scratch;
+	}
+	
+	/** Makes the value in register entry's new value. */
+	private void write(int entry, int register) {
+		int home = registers[entry];
+		boolean floating = isFloat(entry >> 8);
+		if (home==-1) {
+			if (floating) {
+				code.storeFloat(true, RBP, slots[entry], register);
+			} else {
+				code.store(8, RBP, slots[entry], register);
+			}
+		} else if (home!=register) {
+			if (floating) {
+				code.movaps(home, register);
+			} else {
+				code.mov(true, home, register);
+			}
+		}
+	}
+	
+	/** Returns the value of an instruction's immediate or constant operand2, the way the interpreter's LOAD handlers read it. */
+	private long immediate(int index, int dataType) {
+		int operand2 = operand2(index);
+		if (operand2Type(index)==OPERAND_CONSTANT) {
+			switch(dataType) {
+			case DATA_INT8:    return constants.getInt8(operand2);
+			case DATA_INT16:   return constants.getInt16(operand2);
+			case DATA_INT32:   return constants.getInt32(operand2);
+			case DATA_INT64:   return constants.getInt64(operand2);
+			case DATA_WORD:    return constants.getWord(operand2);
+			case DATA_FLOAT32: return Float.floatToRawIntBits(constants.getFloat32(operand2));
+			default:           return Double.doubleToRawLongBits(constants.getFloat64(operand2));
+			}
+		}
+		switch(dataType) {
+		case DATA_INT8:    return (byte) operand2;
+		case DATA_INT16:   return (short) operand2;
+		case DATA_FLOAT32: return operand2;
+		case DATA_FLOAT64: return Double.doubleToRawLongBits(Float.intBitsToFloat(operand2));
+		default:           return operand2;
+		}
+	}
+	
+	/** Loads a float's raw bits into an SSE register. */
+	private void floatImmediate(int dataType, int register, long bits) {
+		if (bits==0) {
+			code.xorps(register, register);
+			return;
+		}
+		boolean wide = dataType==DATA_FLOAT64;
+		code.movImmediate(wide, RAX, (wide) ? bits : bits & 0xFFFFFFFFL);
+		code.movToFloat(wide, register, RAX);
+	}
+	
+	/** Re-narrows an int8 or int16 result to its width, sign-extended to 32 bits. */
+	private void narrow(int dataType, int register) {
+		if (dataType==DATA_INT8) code.movsx(false, 1, register, register);
+		if (dataType==DATA_INT16) code.movsx(false, 2, register, register);
+	}
+	
+	/*
+	 * Instructions
+	 */
+	
+	private void emit(int index) throws VMException {
+		int opcode = opcode(index);
+		int dataType = dataType(index);
+		boolean registerOperand = operand2Type(index)==OPERAND_REGISTER;
+		
+		switch(opcode) {
+		case OPCODE_LOAD:
+			if (registerOperand) {
+				move(dataType, operand2(index), operand1(index));
+			} else if (isFloat(dataType)) {
+				int d = target(entry(dataType, operand1(index)), XMM0);
+				floatImmediate(dataType, d, immediate(index, dataType));
+				write(entry(dataType, operand1(index)), d);
+			} else {
+				int d = target(entry(dataType, operand1(index)), RAX);
+				code.movImmediate(isWide(dataType), d, immediate(index, dataType));
+				write(entry(dataType, operand1(index)), d);
+			}
+			break;
+		case OPCODE_STORE:
+			move(dataType, operand1(index), operand2(index));
+			break;
+		case OPCODE_PUSH: {
+			int size = SIZES[dataType];
+			int source = entry(dataType, operand1(index));
+			int value = read(source, isFloat(dataType) ? XMM0 : RAX);
+			code.aluImmediate(ALU_SUB, true, RBX, size);
+			if (isFloat(dataType)) {
+				code.storeFloat(dataType==DATA_FLOAT64, RBX, 0, value);
+			} else {
+				code.store(size, RBX, 0, value);
+			}
+			break;
+		}
+		case OPCODE_POP: {
+			int size = SIZES[dataType];
+			int destination = entry(dataType, operand1(index));
+			if (isFloat(dataType)) {
+				int d = target(destination, XMM0);
+				code.loadFloat(dataType==DATA_FLOAT64, d, RBX, 0);
+				write(destination, d);
+			} else {
+				int d = target(destination, RAX);
+				code.load(size, d, RBX, 0);
+				write(destination, d);
+			}
+			code.aluImmediate(ALU_ADD, true, RBX, size);
+			break;
+		}
+		
+		case OPCODE_ADD:
+		case OPCODE_SUB:
+		case OPCODE_MUL:
+			if (isFloat(dataType)) {
+				floatArithmetic(index, opcode, dataType);
+			} else {
+				integerArithmetic(index, opcode, dataType);
+			}
+			break;
+		case OPCODE_DIV:
+		case OPCODE_MOD:
+			if (isFloat(dataType)) {
+				floatArithmetic(index, opcode, dataType);
+			} else {
+				divide(index, opcode, dataType);
+			}
+			break;
+		case OPCODE_SHL:
+		case OPCODE_SHR:
+		case OPCODE_ASR:
+			shift(index, opcode, dataType);
+			break;
+		case OPCODE_CONVERT:
+			convert(dataType, operand2Type(index), entry(dataType, operand1(index)), entry(operand2Type(index), destination(index)));
+			break;
+		
+		case OPCODE_TEST:
+			if (owner.flagsInRegister) test(dataType, entry(dataType, operand1(index)));
+			//Otherwise the CJUMP after it does the test, and if there isn't one, nothing can see the result
+			break;
+		case OPCODE_JUMP:
+			code.jump(labels[(operand2(index) >> 3) - first]);
+			break;
+		case OPCODE_CJUMP:
+			conditionalJump(index, operand1(index), labels[(operand2(index) >> 3) - first]);
+			break;
+		case OPCODE_CALL:
+			code.call(owner.function((Module.Function) owner.module.resolve(operand2(index))));
+			break;
+		case OPCODE_RETURN:
+			ret();
+			break;
+		case OPCODE_HALT:
+			if (operand2(index)==0) {
+				code.alu(ALU_XOR, false, RDI, RDI);
+				code.movImmediate(false, RAX, SYS_EXIT_GROUP);
+				code.syscall();
+			} else {
+				fault(constants.getString(operand2(index)));
+			}
+			break;
+		default:
+			throw new VMException("Opcode 0x"+Integer.toHexString(opcode)+at(index)+" can't be compiled to native code");
+		}
+	}
+	
+	private void move(int dataType, int from, int to) {
+		int source = entry(dataType, from);
+		int destination = entry(dataType, to);
+		write(destination, read(source, isFloat(dataType) ? XMM0 : RAX));
+	}
+	
+	/** Prints message and exits, the way a fault would stop the interpreter. */
+	private void fault(String message) {
+		messages.add(message);
+		code.leaSymbol(RSI, owner.message(message));
+		code.movImmediate(false, RDX, messageBytes(message).length);
+		code.jump(owner.fault);
+	}
+	
+	private void integerArithmetic(int index, int opcode, int dataType) {
+		boolean wide = isWide(dataType);
+		int destination = entry(dataType, destination(index));
+		int a = read(entry(dataType, operand1(index)), RAX);
+		int b = -1;
+		long value = 0;
+		if (operand2Type(index)==OPERAND_REGISTER) {
+			b = read(entry(dataType, operand2(index)), RCX);
+		} else {
+			value = immediate(index, dataType);
+			if (value<Integer.MIN_VALUE || value>Integer.MAX_VALUE) {
+				code.movImmediate(true, RCX, value);
+				b = RCX;
+			}
+		}
+		
+		int d = target(destination, RAX);
+		//Writing operand1 into the destination mustn't clobber operand2 before it's read
+		if (b!=-1 && d==b && d!=a) d = RAX;
+		code.mov(wide, d, a);
+		if (b!=-1) {
+			if (opcode==OPCODE_MUL) {
+				code.imul(wide, d, b);
+			} else {
+				code.alu((opcode==OPCODE_ADD) ? ALU_ADD : ALU_SUB, wide, d, b);
+			}
+		} else if (opcode==OPCODE_MUL) {
+			code.imulImmediate(wide, d, d, (int) value);
+		} else {
+			code.aluImmediate((opcode==OPCODE_ADD) ? ALU_ADD : ALU_SUB, wide, d, (int) value);
+		}
+		narrow(dataType, d);
+		write(destination, d);
+	}
+	
+	/**
+	 * Integer division. Division by zero faults the way the interpreter does, and dividing by -1 is done by negation, since
+	 * IDIV traps on the one quotient which overflows while Java just wraps it.
+	 */
+	private void divide(int index, int opcode, int dataType) {
+		boolean wide = isWide(dataType);
+		int destination = entry(dataType, destination(index));
+		if (operand2Type(index)!=OPERAND_REGISTER) {
+			long value = immediate(index, dataType);
+			if (value==0) {
+				fault("Arithmetic error"+at(index)+": division by zero");
+			} else if (value==-1) {
+				negate(index, opcode, dataType);
+				write(destination, RAX);
+			} else {
+				code.movImmediate(wide, RCX, value);
+				idiv(index, opcode, dataType);
+				write(destination, RAX);
+			}
+			return;
+		}
+		
+		Label divideByZero = new Label();
+		Label normal = new Label();
+		Label done = new Label();
+		code.mov(wide, RCX, read(entry(dataType, operand2(index)), RCX));
+		code.test(wide, RCX, RCX);
+		code.jump(CC_EQUAL, divideByZero);
+		code.aluImmediate(ALU_CMP, wide, RCX, -1);
+		code.jump(CC_NOT_EQUAL, normal);
+		negate(index, opcode, dataType);
+		code.jump(done);
+		code.mark(normal);
+		idiv(index, opcode, dataType);
+		code.mark(done);
+		write(destination, RAX);
+		
+		Label skip = new Label();
+		code.jump(skip);
+		code.mark(divideByZero);
+		fault("Arithmetic error"+at(index)+": division by zero");
+		code.mark(skip);
+	}
+	
+	/** Leaves operand1 divided by -1, or its remainder, in RAX. */
+	private void negate(int index, int opcode, int dataType) {
+		if (opcode==OPCODE_MOD) {
+			code.alu(ALU_XOR, false, RAX, RAX);
+			return;
+		}
+		boolean wide = isWide(dataType);
+		code.mov(wide, RAX, read(entry(dataType, operand1(index)), RAX));
+		code.neg(wide, RAX);
+		narrow(dataType, RAX);
+	}
+	
+	/** Leaves operand1 divided by RCX, or its remainder, in RAX. */
+	private void idiv(int index, int opcode, int dataType) {
+		boolean wide = isWide(dataType);
+		code.mov(wide, RAX, read(entry(dataType, operand1(index)), RAX));
+		code.signExtendAccumulator(wide);
+		code.idiv(wide, RCX);
+		if (opcode==OPCODE_MOD) code.mov(wide, RAX, RDX);
+		narrow(dataType, RAX);
+	}
+	
+	private void shift(int index, int opcode, int dataType) {
+		boolean wide = isWide(dataType);
+		int destination = entry(dataType, destination(index));
+		boolean register = operand2Type(index)==OPERAND_REGISTER;
+		//The distance goes in CL first, so the destination can't clobber it
+		if (register) code.mov(wide, RCX, read(entry(dataType, operand2(index)), RCX));
+		int d = target(destination, RAX);
+		code.mov(wide, d, read(entry(dataType, operand1(index)), RAX));
+		//Logical right shifts of narrow values shift in zeroes from their own width, not from bit 31
+		if (opcode==OPCODE_SHR && dataType==DATA_INT8) code.movzx(1, d, d);
+		if (opcode==OPCODE_SHR && dataType==DATA_INT16) code.movzx(2, d, d);
+		int operation = (opcode==OPCODE_SHL) ? SHIFT_SHL : (opcode==OPCODE_SHR) ? SHIFT_SHR : SHIFT_SAR;
+		if (register) {
+			code.shift(operation, wide, d);
+		} else {
+			code.shiftImmediate(operation, wide, d, (int) immediate(index, dataType) & ((wide) ? 63 : 31));
+		}
+		narrow(dataType, d);
+		write(destination, d);
+	}
+	
+	private void floatArithmetic(int index, int opcode, int dataType) {
+		boolean doublePrecision = dataType==DATA_FLOAT64;
+		int destination = entry(dataType, destination(index));
+		int a = read(entry(dataType, operand1(index)), XMM0);
+		int b;
+		if (operand2Type(index)==OPERAND_REGISTER) {
+			b = read(entry(dataType, operand2(index)), XMM1);
+		} else {
+			b = XMM1;
+			floatImmediate(dataType, XMM1, immediate(index, dataType));
+		}
+		
+		int d = target(destination, XMM0);
+		if (opcode==OPCODE_MOD) {
+			//FPREM gives the remainder of truncated division, same as Java's %, but only on the x87 stack
+			code.storeFloat(doublePrecision, RBP, FRAME_SCRATCH, b);
+			code.storeFloat(doublePrecision, RBP, FRAME_SCRATCH+8, a);
+			code.fld(doublePrecision, RBP, FRAME_SCRATCH);
+			code.fld(doublePrecision, RBP, FRAME_SCRATCH+8);
+			Label again = new Label();
+			code.mark(again);
+			code.fprem();
+			code.fnstswAx();
+			code.testImmediate(false, RAX, 0x400);
+			code.jump(CC_NOT_EQUAL, again);
+			code.fstpSt1();
+			code.fstp(doublePrecision, RBP, FRAME_SCRATCH);
+			code.loadFloat(doublePrecision, d, RBP, FRAME_SCRATCH);
+			write(destination, d);
+			return;
+		}
+		
+		if (d==b && d!=a) d = XMM0;
+		code.movaps(d, a);
+		int operation;
+		switch(opcode) {
+		case OPCODE_ADD: operation = SSE_ADD; break;
+		case OPCODE_SUB: operation = SSE_SUB; break;
+		case OPCODE_MUL: operation = SSE_MUL; break;
+		default:         operation = SSE_DIV; break;
+		}
+		code.sse(operation, doublePrecision, d, b);
+		write(destination, d);
+	}
+	
+	/** Same semantics as VMThread.convert: integers go through a long, floats through a double. */
+	private void convert(int sourceType, int destinationType, int source, int destination) {
+		if (isFloat(sourceType)) {
+			int x = read(source, XMM0);
+			if (isFloat(destinationType)) {
+				int d = target(destination, XMM0);
+				if (sourceType==destinationType) {
+					code.movaps(d, x);
+				} else {
+					code.cvts2s(sourceType==DATA_FLOAT64, d, x);
+				}
+				write(destination, d);
+				return;
+			}
+			
+			if (sourceType==DATA_FLOAT32) {
+				code.cvts2s(false, XMM0, x);
+				x = XMM0;
+			}
+			truncate(x);
+			narrow(destinationType, RAX);
+			write(destination, RAX);
+			return;
+		}
+		
+		int value = read(source, RAX);
+		if (isFloat(destinationType)) {
+			if (!isWide(sourceType)) {
+				code.movsx(true, 4, RAX, value);
+				value = RAX;
+			}
+			int d = target(destination, XMM0);
+			if (destinationType==DATA_FLOAT64) {
+				code.cvtsi2s(true, d, value);
+			} else {
+				code.cvtsi2s(true, XMM0, value);
+				code.cvts2s(true, d, XMM0);
+			}
+			write(destination, d);
+			return;
+		}
+		
+		int d = target(destination, RAX);
+		switch(destinationType) {
+		case DATA_INT8:  code.movsx(false, 1, d, value); break;
+		case DATA_INT16: code.movsx(false, 2, d, value); break;
+		case DATA_INT32: code.mov(false, d, value); break;
+		default:
+			if (isWide(sourceType)) {
+				code.mov(true, d, value);
+			} else {
+				code.movsx(true, 4, d, value);
+			}
+			break;
+		}
+		write(destination, d);
+	}
+	
+	/**
+	 * Truncates the double in an SSE register to a long in RAX the way Java's cast does: NaN becomes zero, and values out of
+	 * range saturate. CVTTSD2SI gives Long.MIN_VALUE for all of those, so only that result needs a second look.
+	 */
+	private void truncate(int source) {
+		Label done = new Label();
+		Label nan = new Label();
+		code.cvtts2si(true, RAX, source);
+		code.movImmediate(true, R11, Long.MIN_VALUE);
+		code.alu(ALU_CMP, true, RAX, R11);
+		code.jump(CC_NOT_EQUAL, done);
+		code.xorps(XMM1, XMM1);
+		code.ucomis(true, source, XMM1);
+		code.jump(CC_PARITY, nan);
+		code.jump(CC_BELOW_EQ, done);
+		code.not(true, RAX);
+		code.jump(done);
+		code.mark(nan);
+		code.alu(ALU_XOR, false, RAX, RAX);
+		code.mark(done);
+	}
+	
+	/** Sets the native flags from a value, for the CJUMP that follows: as a signed compare with zero, or UCOMIS for floats. */
+	private void compareWithZero(int dataType, int entry) {
+		if (isFloat(dataType)) {
+			int x = read(entry, XMM0);
+			code.xorps(XMM1, XMM1);
+			code.ucomis(dataType==DATA_FLOAT64, x, XMM1);
+		} else {
+			int value = read(entry, RAX);
+			code.test(isWide(dataType), value, value);
+		}
+	}
+	
+	/** Leaves the FLAG_ bits a TEST of entry would set in the flags register. */
+	private void test(int dataType, int entry) {
+		compareWithZero(dataType, entry);
+		if (isFloat(dataType)) {
+			//Unordered compares set ZF and CF as well as PF, and NaN is neither zero nor negative
+			code.set(CC_EQUAL, FLAGS);
+			code.set(CC_NOT_PARITY, RAX);
+			code.set(CC_BELOW, RCX);
+			code.movzx(1, FLAGS, FLAGS);
+			code.movzx(1, RAX, RAX);
+			code.movzx(1, RCX, RCX);
+			code.alu(ALU_AND, false, FLAGS, RAX);
+			code.alu(ALU_AND, false, RCX, RAX);
+			code.shiftImmediate(SHIFT_SHL, false, RCX, 1);
+			code.alu(ALU_OR, false, FLAGS, RCX);
+		} else {
+			code.set(CC_EQUAL, FLAGS);
+			code.set(CC_SIGN, RAX);
+			code.movzx(1, FLAGS, FLAGS);
+			code.movzx(1, RAX, RAX);
+			code.shiftImmediate(SHIFT_SHL, false, RAX, 1);
+			code.alu(ALU_OR, false, FLAGS, RAX);
+		}
+	}
+	
+	private void conditionalJump(int index, int condition, Label target) throws VMException {
+		if (owner.flagsInRegister) {
+			switch(condition) {
+			case CONDITION_ZERO:         code.testImmediate(false, FLAGS, FLAG_ZERO); code.jump(CC_NOT_EQUAL, target); break;
+			case CONDITION_NOT_ZERO:     code.testImmediate(false, FLAGS, FLAG_ZERO); code.jump(CC_EQUAL, target); break;
+			case CONDITION_LESS:         code.aluImmediate(ALU_CMP, false, FLAGS, FLAG_SIGN); code.jump(CC_EQUAL, target); break;
+			case CONDITION_GREATER:      code.test(false, FLAGS, FLAGS); code.jump(CC_EQUAL, target); break;
+			case CONDITION_NEGATIVE:     code.testImmediate(false, FLAGS, FLAG_SIGN); code.jump(CC_NOT_EQUAL, target); break;
+			case CONDITION_NOT_NEGATIVE: code.testImmediate(false, FLAGS, FLAG_SIGN); code.jump(CC_EQUAL, target); break;
+			default: throw new VMException("Invalid condition code"+at(index));
+			}
+			return;
+		}
+		
+		//The TEST right before this one is the only one it can see, so compare and branch natively
+		int dataType = dataType(index-1);
+		compareWithZero(dataType, entry(dataType, operand1(index-1)));
+		if (!isFloat(dataType)) {
+			switch(condition) {
+			case CONDITION_ZERO:         code.jump(CC_EQUAL, target); break;
+			case CONDITION_NOT_ZERO:     code.jump(CC_NOT_EQUAL, target); break;
+			case CONDITION_LESS:
+			case CONDITION_NEGATIVE:     code.jump(CC_SIGN, target); break;
+			case CONDITION_GREATER:      code.jump(CC_GREATER, target); break;
+			case CONDITION_NOT_NEGATIVE: code.jump(CC_NOT_SIGN, target); break;
+			default: throw new VMException("Invalid condition code"+at(index));
+			}
+			return;
+		}
+		//NaN sets PF, and counts as neither zero nor negative
+		Label notTaken = new Label();
+		switch(condition) {
+		case CONDITION_ZERO:
+			code.jump(CC_PARITY, notTaken);
+			code.jump(CC_EQUAL, target);
+			break;
+		case CONDITION_NOT_ZERO:
+			code.jump(CC_PARITY, target);
+			code.jump(CC_NOT_EQUAL, target);
+			break;
+		case CONDITION_LESS:
+		case CONDITION_NEGATIVE:
+			code.jump(CC_PARITY, notTaken);
+			code.jump(CC_BELOW, target);
+			break;
+		case CONDITION_GREATER:
+			code.jump(CC_PARITY, target);
+			code.jump(CC_ABOVE, target);
+			break;
+		case CONDITION_NOT_NEGATIVE:
+			code.jump(CC_PARITY, target);
+			code.jump(CC_ABOVE_EQ, target);
+			break;
+		default: throw new VMException("Invalid condition code"+at(index));
+		}
+		code.mark(notTaken);
+	}
+	
+	/** Moves the function's results down to where its operand stack started, then restores the caller's registers and frame. */
+	private void ret() {
+		int resultBytes = function.getResultBytes();
+		code.load(8, RDX, RBP, FRAME_OPERAND_BASE);
+		//Highest chunk first, since the results move up and may overlap where they're going
+		int offset = resultBytes;
+		while(offset>0) {
+			int size = (offset>=8) ? 8 : (offset>=4) ? 4 : (offset>=2) ? 2 : 1;
+			offset -= size;
+			code.load(size, RAX, RBX, offset);
+			code.store(size, RDX, offset - resultBytes, RAX);
+		}
+		code.lea(RBX, RDX, -resultBytes);
+		int saved = -FRAME_FIXED_SIZE;
+		for(int register : savedGeneral) code.load(8, register, RBP, saved -= 8);
+		for(int register : savedFloat) code.loadFloat(true, register, RBP, saved -= 8);
+		code.leave();
+		code.ret();
+	}
+}
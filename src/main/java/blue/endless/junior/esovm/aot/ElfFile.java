@@ -0,0 +1,136 @@
+package blue.endless.junior.esovm.aot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Just enough of an ELF writer to produce a static x86-64 Linux executable: a file header, and two program headers - one
+ * mapping the headers and code read-only and executable, and one for zero-filled, writable memory which takes no space in
+ * the file. There are no sections, symbols or dynamic linking; the kernel only needs the program headers to run it.
+ *
+ * <p>The code is kept as a list of buffers, like the chunks of an {@link Image}, and written out without being gathered
+ * into one array first.
+ */
+public class ElfFile {
+	/** Where the file is mapped. This is the traditional base for non-PIE x86-64 executables. */
+	public static final long BASE_ADDRESS = 0x400000L;
+	public static final int PAGE_SIZE = 4096;
+	
+	private static final int FILE_HEADER_SIZE    = 64;
+	private static final int PROGRAM_HEADER_SIZE = 56;
+	/** The file offset code starts at, right after the headers. */
+	public static final int CODE_OFFSET = FILE_HEADER_SIZE + 2*PROGRAM_HEADER_SIZE;
+	
+	private static final int PT_LOAD = 1;
+	private static final int PF_X = 1;
+	private static final int PF_W = 2;
+	private static final int PF_R = 4;
+	
+	private final ByteBuffer[] code;
+	private final long codeSize;
+	private final long entry;
+	private final long bssSize;
+	
+	/**
+	 * Creates an executable whose code, the remaining bytes of each buffer in turn, starts running at offset entry into
+	 * the code, and which has bssSize bytes of zeroed memory at {@link #bssOffset(long)} bytes past the start of the code.
+	 */
+	public ElfFile(ByteBuffer[] code, long entry, long bssSize) {
+		this.code = code;
+		long codeSize = 0;
+		for(ByteBuffer buffer : code) codeSize += buffer.remaining();
+		this.codeSize = codeSize;
+		this.entry = entry;
+		this.bssSize = bssSize;
+	}
+	
+	/**
+	 * Returns where, relative to the start of the code, the writable memory of an executable with codeSize bytes of code
+	 * will be. It's on the first page boundary after the code, so code can find it with RIP-relative addressing.
+	 */
+	public static long bssOffset(long codeSize) {
+		long codeAddress = BASE_ADDRESS + CODE_OFFSET;
+		long bssAddress = (codeAddress + codeSize + PAGE_SIZE - 1) & ~(long) (PAGE_SIZE - 1);
+		return bssAddress - codeAddress;
+	}
+	
+	/** Returns the size of the file, in bytes. */
+	public long size() {
+		return CODE_OFFSET + codeSize;
+	}
+	
+	/** Writes the file into out, which needs at least {@link #size()} bytes remaining. A direct buffer works as well as any. */
+	public void write(ByteBuffer out) {
+		out.put(header());
+		for(ByteBuffer buffer : code) out.put(buffer.duplicate());
+	}
+	
+	/** Writes the file to channel. A FileChannel, or any other gathering channel, gets it in as few writes as it'll take. */
+	public void write(WritableByteChannel channel) throws IOException {
+		ByteBuffer[] buffers = new ByteBuffer[code.length+1];
+		buffers[0] = header();
+		for(int i=0; i<code.length; i++) buffers[i+1] = code[i].duplicate();
+		
+		if (channel instanceof GatheringByteChannel) {
+			GatheringByteChannel gathering = (GatheringByteChannel) channel;
+			int first = 0;
+			while(first<buffers.length) {
+				gathering.write(buffers, first, buffers.length-first);
+				while(first<buffers.length && !buffers[first].hasRemaining()) first++;
+			}
+		} else {
+			for(ByteBuffer buffer : buffers) {
+				while(buffer.hasRemaining()) channel.write(buffer);
+			}
+		}
+	}
+	
+	public void write(OutputStream out) throws IOException {
+		write(Channels.newChannel(out));
+	}
+	
+	private ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(CODE_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+		long fileSize = size();
+		
+		//e_ident: magic, 64-bit, little-endian, version 1, System V ABI
+		header.put(new byte[] { 0x7F, 'E', 'L', 'F', 2, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+		header.putShort((short) 2);      //e_type: ET_EXEC
+		header.putShort((short) 0x3E);   //e_machine: x86-64
+		header.putInt(1);                //e_version
+		header.putLong(BASE_ADDRESS + CODE_OFFSET + entry);
+		header.putLong(FILE_HEADER_SIZE); //e_phoff
+		header.putLong(0);               //e_shoff
+		header.putInt(0);                //e_flags
+		header.putShort((short) FILE_HEADER_SIZE);
+		header.putShort((short) PROGRAM_HEADER_SIZE);
+		header.putShort((short) 2);      //e_phnum
+		header.putShort((short) 64);     //e_shentsize
+		header.putShort((short) 0);      //e_shnum
+		header.putShort((short) 0);      //e_shstrndx
+		
+		//Headers and code, from the very start of the file
+		programHeader(header, PF_R | PF_X, 0, BASE_ADDRESS, fileSize, fileSize);
+		//Zeroed memory, which is nothing but a mapping
+		programHeader(header, PF_R | PF_W, 0, BASE_ADDRESS + CODE_OFFSET + bssOffset(codeSize), 0, bssSize);
+		
+		header.flip();
+		return header;
+	}
+	
+	private static void programHeader(ByteBuffer header, int flags, long offset, long address, long fileSize, long memorySize) {
+		header.putInt(PT_LOAD);
+		header.putInt(flags);
+		header.putLong(offset);
+		header.putLong(address); //p_vaddr
+		header.putLong(address); //p_paddr
+		header.putLong(fileSize);
+		header.putLong(memorySize);
+		header.putLong(PAGE_SIZE);
+	}
+}
@@ -0,0 +1,78 @@
+package blue.endless.junior.esovm.aot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import blue.endless.junior.esovm.aot.MachineCode.Symbol;
+
+/**
+ * Links separately generated buffers of machine code into one image. Buffers are laid out one after another in the order
+ * they're added, each on a 16-byte boundary, and once every symbol has a position, each buffer's relocations are patched
+ * with the distance to their symbol. Nothing is copied: relocations are patched in place, and the image is written out
+ * straight from the buffers.
+ *
+ * <p>Positions are relative to the start of the image. Since every reference is relative too, the image can be loaded
+ * anywhere.
+ */
+public final class Image {
+	public static final int ALIGNMENT = 16;
+	
+	private final List<MachineCode> chunks = new ArrayList<>();
+	private final List<Long> starts = new ArrayList<>();
+	private final Map<Symbol, Long> positions = new HashMap<>();
+	private long size = 0;
+	
+	/** Appends chunk to the image, padding it to the alignment, and takes on the symbols it defines. */
+	public void add(MachineCode chunk) {
+		chunk.align(ALIGNMENT);
+		for(Map.Entry<Symbol, Integer> definition : chunk.definitions.entrySet()) {
+			define(definition.getKey(), size + definition.getValue());
+		}
+		chunks.add(chunk);
+		starts.add(size);
+		size += chunk.position();
+	}
+	
+	/** Defines symbol at position, which needn't be inside the image - memory mapped after it can be given a symbol too. */
+	public void define(Symbol symbol, long position) {
+		if (positions.containsKey(symbol)) throw new IllegalStateException("Symbol "+symbol+" is defined twice");
+		positions.put(symbol, position);
+	}
+	
+	public long size() {
+		return size;
+	}
+	
+	/** Returns the position of symbol, or -1 if it hasn't been defined. */
+	public long position(Symbol symbol) {
+		Long position = positions.get(symbol);
+		return (position==null) ? -1 : position;
+	}
+	
+	/** Patches every relocation in every chunk. Call it once, after the last chunk and symbol have been added. */
+	public void link() {
+		for(int i=0; i<chunks.size(); i++) {
+			MachineCode chunk = chunks.get(i);
+			long start = starts.get(i);
+			for(int j=0; j<chunk.relocationOffsets.size(); j++) {
+				int offset = chunk.relocationOffsets.get(j);
+				Symbol symbol = chunk.relocationSymbols.get(j);
+				Long target = positions.get(symbol);
+				if (target==null) throw new IllegalStateException("Symbol "+symbol+" is never defined");
+				long displacement = target - (start + offset + 4);
+				if (displacement!=(int) displacement) throw new IllegalStateException("Symbol "+symbol+" is out of reach of a rel32");
+				chunk.patch(offset, (int) displacement);
+			}
+		}
+	}
+	
+	/** Returns buffers over the chunks, in order. Together they're exactly {@link #size()} bytes. */
+	public ByteBuffer[] buffers() {
+		ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+		for(int i=0; i<buffers.length; i++) buffers[i] = chunks.get(i).buffer();
+		return buffers;
+	}
+}
@@ -0,0 +1,64 @@
+package blue.endless.junior.esovm.aot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Linear scan register allocation (Poletto and Sarkar). Each value has one live interval, from the first point it holds
+ * something to the last point it's read, and intervals are visited in order of their starts, each taking a free register
+ * if there is one. When there isn't, whichever of the intervals in registers ends last - the current one included - is
+ * spilled to memory for its whole lifetime, which frees registers for the most future intervals. There's no interval
+ * splitting, so a value is always in the same place and control flow never needs fix-up moves.
+ *
+ * <p>Positions are up to the caller. An interval ending at a position doesn't overlap one starting there, so if reads are
+ * at even positions and writes at the odd position just after, an instruction's result can reuse an operand's register.
+ */
+final class LinearScan {
+	private LinearScan() {}
+	
+	/**
+	 * Returns the register each interval gets, taken from pool, or -1 for those spilled. Intervals are given by their
+	 * inclusive start and end positions; those whose start is -1 don't exist, and get -1.
+	 */
+	static int[] allocate(int[] starts, int[] ends, int[] pool) {
+		int[] assignment = new int[starts.length];
+		Arrays.fill(assignment, -1);
+		List<Integer> order = new ArrayList<>();
+		for(int i=0; i<starts.length; i++) if (starts[i]!=-1) order.add(i);
+		order.sort(Comparator.comparingInt((Integer i) -> starts[i]).thenComparingInt(i -> ends[i]));
+		
+		boolean[] free = new boolean[16];
+		for(int register : pool) free[register] = true;
+		//Intervals holding registers, kept sorted by their ends
+		List<Integer> active = new ArrayList<>();
+		for(int interval : order) {
+			while(!active.isEmpty() && ends[active.get(0)] < starts[interval]) {
+				free[assignment[active.remove(0)]] = true;
+			}
+			
+			int register = -1;
+			for(int candidate : pool) {
+				if (free[candidate]) {
+					register = candidate;
+					break;
+				}
+			}
+			if (register==-1) {
+				int last = active.get(active.size()-1);
+				if (ends[last] <= ends[interval]) continue;
+				register = assignment[last];
+				assignment[last] = -1;
+				active.remove(active.size()-1);
+			} else {
+				free[register] = false;
+			}
+			assignment[interval] = register;
+			int at = active.size();
+			while(at>0 && ends[active.get(at-1)] > ends[interval]) at--;
+			active.add(at, interval);
+		}
+		return assignment;
+	}
+}
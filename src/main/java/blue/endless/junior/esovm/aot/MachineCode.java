@@ -0,0 +1,567 @@
+package blue.endless.junior.esovm.aot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A growable buffer of x86-64 machine code with forward-referenceable labels. Only the handful of encodings the AOT
+ * compiler needs are here: register-to-register integer and SSE operations, loads and stores against a base register
+ * plus displacement, and rel32 jumps, calls and RIP-relative addresses.
+ *
+ * <p>Labels are local to one buffer. Anything outside it is referred to through a {@link Symbol}, which leaves a
+ * relocation for {@link Image} to patch once every buffer has its place, so each buffer is position-independent and can be
+ * generated on its own thread.
+ *
+ * <p>Methods are named after the instructions they emit, with the destination first as in Intel syntax. {@code wide}
+ * selects the 64-bit form of an integer instruction over the 32-bit one, and sizes are in bytes.
+ */
+public class MachineCode {
+	public static final int RAX = 0;
+	public static final int RCX = 1;
+	public static final int RDX = 2;
+	public static final int RBX = 3;
+	public static final int RSP = 4;
+	public static final int RBP = 5;
+	public static final int RSI = 6;
+	public static final int RDI = 7;
+	public static final int R8  = 8;
+	public static final int R9  = 9;
+	public static final int R10 = 10;
+	public static final int R11 = 11;
+	public static final int R12 = 12;
+	public static final int R13 = 13;
+	public static final int R14 = 14;
+	public static final int R15 = 15;
+	
+	//Condition codes, as they appear in the low nibble of Jcc and SETcc
+	public static final int CC_OVERFLOW   = 0x0;
+	public static final int CC_BELOW      = 0x2;
+	public static final int CC_ABOVE_EQ   = 0x3;
+	public static final int CC_EQUAL      = 0x4;
+	public static final int CC_NOT_EQUAL  = 0x5;
+	public static final int CC_BELOW_EQ   = 0x6;
+	public static final int CC_ABOVE      = 0x7;
+	public static final int CC_SIGN       = 0x8;
+	public static final int CC_NOT_SIGN   = 0x9;
+	public static final int CC_PARITY     = 0xA;
+	public static final int CC_NOT_PARITY = 0xB;
+	public static final int CC_LESS       = 0xC;
+	public static final int CC_GREATER_EQ = 0xD;
+	public static final int CC_LESS_EQ    = 0xE;
+	public static final int CC_GREATER    = 0xF;
+	
+	//Group 1 operations, as the /digit of their immediate forms
+	public static final int ALU_ADD = 0;
+	public static final int ALU_OR  = 1;
+	public static final int ALU_AND = 4;
+	public static final int ALU_SUB = 5;
+	public static final int ALU_XOR = 6;
+	public static final int ALU_CMP = 7;
+	
+	//Shifts, as the /digit of their encodings
+	public static final int SHIFT_SHL = 4;
+	public static final int SHIFT_SHR = 5;
+	public static final int SHIFT_SAR = 7;
+	
+	//SSE arithmetic, as the second opcode byte; the prefix picks single or double precision
+	public static final int SSE_ADD = 0x58;
+	public static final int SSE_MUL = 0x59;
+	public static final int SSE_SUB = 0x5C;
+	public static final int SSE_DIV = 0x5E;
+	
+	public static final class Label {
+		int position = -1;
+		final List<Integer> fixups = new ArrayList<>();
+		
+		public boolean isPlaced() {
+			return position!=-1;
+		}
+		
+		public int getPosition() {
+			return position;
+		}
+	}
+	
+	/**
+	 * A name for something outside the buffer referring to it, like another function or data placed at link time. Symbols
+	 * are compared by identity; the name is only for error messages.
+	 */
+	public static final class Symbol {
+		private final String name;
+		
+		public Symbol(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	private byte[] code = new byte[256];
+	private int length = 0;
+	/** Where each rel32 displacement to a symbol is, and which symbol it's to, in parallel lists. */
+	final List<Integer> relocationOffsets = new ArrayList<>();
+	final List<Symbol> relocationSymbols = new ArrayList<>();
+	/** The symbols defined in this buffer, and their positions. */
+	final Map<Symbol, Integer> definitions = new HashMap<>();
+	
+	public int position() {
+		return length;
+	}
+	
+	public void u1(int value) {
+		if (length==code.length) code = Arrays.copyOf(code, code.length*2);
+		code[length++] = (byte) value;
+	}
+	
+	/** Writes a little-endian int, which is how every immediate and displacement is encoded. */
+	public void u4(int value) {
+		u1(value);
+		u1(value >> 8);
+		u1(value >> 16);
+		u1(value >> 24);
+	}
+	
+	public void u8(long value) {
+		u4((int) value);
+		u4((int) (value >> 32));
+	}
+	
+	public void bytes(byte[] data) {
+		for(byte b : data) u1(b);
+	}
+	
+	/*
+	 * Encoding helpers
+	 */
+	
+	/** Emits a REX prefix if any of its bits are needed, or if force is set (to reach SPL, BPL, SIL and DIL). */
+	private void rex(boolean wide, int reg, int rm, boolean force) {
+		int rex = 0x40 | (wide ? 8 : 0) | ((reg & 8) >> 1) | ((rm & 8) >> 3);
+		if (rex!=0x40 || force) u1(rex);
+	}
+	
+	private void modrmRegister(int reg, int rm) {
+		u1(0xC0 | ((reg & 7) << 3) | (rm & 7));
+	}
+	
+	/** Emits the ModRM byte, plus SIB and displacement if they're needed, for the operand [base + displacement]. */
+	private void modrmMemory(int reg, int base, int displacement) {
+		int mod = (displacement==0 && (base & 7)!=RBP) ? 0x00 : (displacement>=-128 && displacement<=127) ? 0x40 : 0x80;
+		u1(mod | ((reg & 7) << 3) | (base & 7));
+		if ((base & 7)==RSP) u1(0x24);
+		if (mod==0x40) u1(displacement);
+		if (mod==0x80) u4(displacement);
+	}
+	
+	/** Emits a two-byte-opcode instruction (0F op) between registers, with an optional mandatory prefix. */
+	private void op0F(int prefix, boolean wide, int op, int reg, int rm) {
+		if (prefix!=0) u1(prefix);
+		rex(wide, reg, rm, false);
+		u1(0x0F);
+		u1(op);
+		modrmRegister(reg, rm);
+	}
+	
+	private void op0FMemory(int prefix, boolean wide, int op, int reg, int base, int displacement) {
+		if (prefix!=0) u1(prefix);
+		rex(wide, reg, base, false);
+		u1(0x0F);
+		u1(op);
+		modrmMemory(reg, base, displacement);
+	}
+	
+	/*
+	 * Integer instructions
+	 */
+	
+	public void mov(boolean wide, int destination, int source) {
+		if (destination==source && wide) return;
+		rex(wide, destination, source, false);
+		u1(0x8B);
+		modrmRegister(destination, source);
+	}
+	
+	/** Loads a constant using the shortest encoding which gives the register exactly that value. */
+	public void movImmediate(boolean wide, int destination, long value) {
+		if (!wide || (value>=0 && value<=0xFFFFFFFFL)) {
+			//32-bit moves clear the upper half
+			rex(false, 0, destination, false);
+			u1(0xB8 + (destination & 7));
+			u4((int) value);
+		} else if (value>=Integer.MIN_VALUE && value<=Integer.MAX_VALUE) {
+			rex(true, 0, destination, false);
+			u1(0xC7);
+			modrmRegister(0, destination);
+			u4((int) value);
+		} else {
+			rex(true, 0, destination, false);
+			u1(0xB8 + (destination & 7));
+			u8(value);
+		}
+	}
+	
+	/** Loads size bytes from [base + displacement], sign-extending 1- and 2-byte values to 32 bits. */
+	public void load(int size, int destination, int base, int displacement) {
+		switch(size) {
+		case 1: op0FMemory(0, false, 0xBE, destination, base, displacement); break;
+		case 2: op0FMemory(0, false, 0xBF, destination, base, displacement); break;
+		default:
+			rex(size==8, destination, base, false);
+			u1(0x8B);
+			modrmMemory(destination, base, displacement);
+			break;
+		}
+	}
+	
+	/** Stores the low size bytes of source to [base + displacement]. */
+	public void store(int size, int base, int displacement, int source) {
+		if (size==2) u1(0x66);
+		rex(size==8, source, base, size==1 && source>=RSP && source<=RDI);
+		u1((size==1) ? 0x88 : 0x89);
+		modrmMemory(source, base, displacement);
+	}
+	
+	public void lea(int destination, int base, int displacement) {
+		rex(true, destination, base, false);
+		u1(0x8D);
+		modrmMemory(destination, base, displacement);
+	}
+	
+	/** Loads the address of label, relative to the instruction pointer, so code can sit at any address. */
+	public void leaLabel(int destination, Label label) {
+		rex(true, destination, 0, false);
+		u1(0x8D);
+		u1(((destination & 7) << 3) | 0x05);
+		rel32(label);
+	}
+	
+	public void leaSymbol(int destination, Symbol symbol) {
+		rex(true, destination, 0, false);
+		u1(0x8D);
+		u1(((destination & 7) << 3) | 0x05);
+		rel32(symbol);
+	}
+	
+	/** Sign-extends the low size bytes of source (1, 2 or 4) into destination, which is 64 bits wide if wide is set. */
+	public void movsx(boolean wide, int size, int destination, int source) {
+		if (size==4) {
+			rex(true, destination, source, false);
+			u1(0x63);
+			modrmRegister(destination, source);
+			return;
+		}
+		rex(wide, destination, source, size==1 && source>=RSP && source<=RDI);
+		u1(0x0F);
+		u1((size==1) ? 0xBE : 0xBF);
+		modrmRegister(destination, source);
+	}
+	
+	/** Zero-extends the low size bytes of source (1 or 2) into destination. */
+	public void movzx(int size, int destination, int source) {
+		rex(false, destination, source, size==1 && source>=RSP && source<=RDI);
+		u1(0x0F);
+		u1((size==1) ? 0xB6 : 0xB7);
+		modrmRegister(destination, source);
+	}
+	
+	/** Emits one of the ALU_ operations between two registers, leaving the result in destination. */
+	public void alu(int operation, boolean wide, int destination, int source) {
+		rex(wide, destination, source, false);
+		u1((operation << 3) | 0x03);
+		modrmRegister(destination, source);
+	}
+	
+	public void aluImmediate(int operation, boolean wide, int destination, int value) {
+		rex(wide, 0, destination, false);
+		if (value>=-128 && value<=127) {
+			u1(0x83);
+			modrmRegister(operation, destination);
+			u1(value);
+		} else {
+			u1(0x81);
+			modrmRegister(operation, destination);
+			u4(value);
+		}
+	}
+	
+	public void test(boolean wide, int a, int b) {
+		rex(wide, b, a, false);
+		u1(0x85);
+		modrmRegister(b, a);
+	}
+	
+	public void testImmediate(boolean wide, int register, int mask) {
+		rex(wide, 0, register, false);
+		u1(0xF7);
+		modrmRegister(0, register);
+		u4(mask);
+	}
+	
+	public void imul(boolean wide, int destination, int source) {
+		op0F(0, wide, 0xAF, destination, source);
+	}
+	
+	public void imulImmediate(boolean wide, int destination, int source, int value) {
+		rex(wide, destination, source, false);
+		u1(0x69);
+		modrmRegister(destination, source);
+		u4(value);
+	}
+	
+	/** Sign-extends RAX into RDX, as signed division expects. */
+	public void signExtendAccumulator(boolean wide) {
+		rex(wide, 0, 0, false);
+		u1(0x99);
+	}
+	
+	/** Divides RDX:RAX by divisor, leaving the quotient in RAX and the remainder in RDX. */
+	public void idiv(boolean wide, int divisor) {
+		rex(wide, 0, divisor, false);
+		u1(0xF7);
+		modrmRegister(7, divisor);
+	}
+	
+	public void neg(boolean wide, int register) {
+		rex(wide, 0, register, false);
+		u1(0xF7);
+		modrmRegister(3, register);
+	}
+	
+	public void not(boolean wide, int register) {
+		rex(wide, 0, register, false);
+		u1(0xF7);
+		modrmRegister(2, register);
+	}
+	
+	/** Shifts register by CL. */
+	public void shift(int operation, boolean wide, int register) {
+		rex(wide, 0, register, false);
+		u1(0xD3);
+		modrmRegister(operation, register);
+	}
+	
+	public void shiftImmediate(int operation, boolean wide, int register, int distance) {
+		rex(wide, 0, register, false);
+		u1(0xC1);
+		modrmRegister(operation, register);
+		u1(distance);
+	}
+	
+	/** Sets the low byte of register to 1 if condition holds, or 0 if it doesn't. */
+	public void set(int condition, int register) {
+		rex(false, 0, register, register>=RSP && register<=RDI);
+		u1(0x0F);
+		u1(0x90 | condition);
+		modrmRegister(0, register);
+	}
+	
+	public void push(int register) {
+		rex(false, 0, register, false);
+		u1(0x50 + (register & 7));
+	}
+	
+	public void pop(int register) {
+		rex(false, 0, register, false);
+		u1(0x58 + (register & 7));
+	}
+	
+	public void leave() {
+		u1(0xC9);
+	}
+	
+	public void ret() {
+		u1(0xC3);
+	}
+	
+	public void syscall() {
+		u1(0x0F);
+		u1(0x05);
+	}
+	
+	/*
+	 * SSE instructions. Single precision uses the F3 prefix, double precision F2.
+	 */
+	
+	private static int precision(boolean doublePrecision) {
+		return (doublePrecision) ? 0xF2 : 0xF3;
+	}
+	
+	/** Copies a whole XMM register. */
+	public void movaps(int destination, int source) {
+		if (destination==source) return;
+		op0F(0, false, 0x28, destination, source);
+	}
+	
+	public void loadFloat(boolean doublePrecision, int destination, int base, int displacement) {
+		op0FMemory(precision(doublePrecision), false, 0x10, destination, base, displacement);
+	}
+	
+	public void storeFloat(boolean doublePrecision, int base, int displacement, int source) {
+		op0FMemory(precision(doublePrecision), false, 0x11, source, base, displacement);
+	}
+	
+	/** Emits one of the SSE_ operations, leaving the result in destination. */
+	public void sse(int operation, boolean doublePrecision, int destination, int source) {
+		op0F(precision(doublePrecision), false, operation, destination, source);
+	}
+	
+	public void xorps(int destination, int source) {
+		op0F(0, false, 0x57, destination, source);
+	}
+	
+	/** Compares two floats, setting ZF, PF and CF the way an unsigned comparison would, with all three set if either is NaN. */
+	public void ucomis(boolean doublePrecision, int a, int b) {
+		op0F((doublePrecision) ? 0x66 : 0, false, 0x2E, a, b);
+	}
+	
+	/** Converts a 64-bit integer register to a float. */
+	public void cvtsi2s(boolean doublePrecision, int destination, int source) {
+		op0F(precision(doublePrecision), true, 0x2A, destination, source);
+	}
+	
+	/** Converts a float to a 64-bit integer register, truncating, and giving Long.MIN_VALUE if it's out of range or NaN. */
+	public void cvtts2si(boolean doublePrecision, int destination, int source) {
+		op0F(precision(doublePrecision), true, 0x2C, destination, source);
+	}
+	
+	/** Converts between precisions; doublePrecision gives the precision of the source. */
+	public void cvts2s(boolean doublePrecision, int destination, int source) {
+		op0F(precision(doublePrecision), false, 0x5A, destination, source);
+	}
+	
+	/** Copies the raw bits of an integer register into the low bits of an XMM register. */
+	public void movToFloat(boolean wide, int destination, int source) {
+		op0F(0x66, wide, 0x6E, destination, source);
+	}
+	
+	/*
+	 * x87, which only the floating point remainder needs, since SSE has nothing like FPREM
+	 */
+	
+	public void fld(boolean doublePrecision, int base, int displacement) {
+		rex(false, 0, base, false);
+		u1((doublePrecision) ? 0xDD : 0xD9);
+		modrmMemory(0, base, displacement);
+	}
+	
+	/** Stores ST0 and pops it. */
+	public void fstp(boolean doublePrecision, int base, int displacement) {
+		rex(false, 0, base, false);
+		u1((doublePrecision) ? 0xDD : 0xD9);
+		modrmMemory(3, base, displacement);
+	}
+	
+	/** Pops ST0 into ST1, discarding what was there. */
+	public void fstpSt1() {
+		u1(0xDD);
+		u1(0xD9);
+	}
+	
+	/** Leaves the partial remainder of ST0 / ST1 in ST0, setting C2 in the status word if it isn't finished yet. */
+	public void fprem() {
+		u1(0xD9);
+		u1(0xF8);
+	}
+	
+	/** Copies the x87 status word to AX. */
+	public void fnstswAx() {
+		u1(0xDF);
+		u1(0xE0);
+	}
+	
+	/*
+	 * Control flow
+	 */
+	
+	public void jump(Label label) {
+		u1(0xE9);
+		rel32(label);
+	}
+	
+	public void jump(int condition, Label label) {
+		u1(0x0F);
+		u1(0x80 | condition);
+		rel32(label);
+	}
+	
+	public void call(Label label) {
+		u1(0xE8);
+		rel32(label);
+	}
+	
+	public void jump(Symbol symbol) {
+		u1(0xE9);
+		rel32(symbol);
+	}
+	
+	public void call(Symbol symbol) {
+		u1(0xE8);
+		rel32(symbol);
+	}
+	
+	/** Emits a displacement to label from the end of the current instruction, which must be where the displacement ends. */
+	private void rel32(Label label) {
+		if (label.isPlaced()) {
+			u4(label.position - (length+4));
+		} else {
+			label.fixups.add(length);
+			u4(0);
+		}
+	}
+	
+	/** Leaves a displacement for {@link Image} to fill in once it knows where symbol is. */
+	private void rel32(Symbol symbol) {
+		relocationOffsets.add(length);
+		relocationSymbols.add(symbol);
+		u4(0);
+	}
+	
+	/** Places label at the current position, resolving any references already waiting on it. */
+	public void mark(Label label) {
+		place(label, length);
+	}
+	
+	/**
+	 * Places label at position, which may be past the end of the code - data which follows the code in memory can be
+	 * addressed this way, so long as it's placed before the code is written out.
+	 */
+	public void place(Label label, int position) {
+		label.position = position;
+		for(int at : label.fixups) patch(at, position - (at+4));
+		label.fixups.clear();
+	}
+	
+	/** Defines symbol as the current position. */
+	public void define(Symbol symbol) {
+		definitions.put(symbol, length);
+	}
+	
+	/** Pads the code with int3 until its length is a multiple of alignment, which must be a power of two. */
+	public void align(int alignment) {
+		while((length & (alignment-1))!=0) u1(0xCC);
+	}
+	
+	/** Overwrites the four bytes at offset with value, little-endian. */
+	void patch(int offset, int value) {
+		code[offset  ] = (byte)  value;
+		code[offset+1] = (byte) (value >>  8);
+		code[offset+2] = (byte) (value >> 16);
+		code[offset+3] = (byte) (value >> 24);
+	}
+	
+	/** Returns a buffer over the code, without copying it. */
+	public ByteBuffer buffer() {
+		return ByteBuffer.wrap(code, 0, length);
+	}
+	
+	public byte[] toByteArray() {
+		return Arrays.copyOf(code, length);
+	}
+}
@@ -0,0 +1,318 @@
+package blue.endless.junior.esovm.jit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A growable buffer of JVM instructions for one method body, with forward-referenceable labels. Only 16-bit branch
+ * offsets are emitted, so {@link #toByteArray()} refuses to produce method bodies of 32KB or more.
+ */
+public class Bytecode {
+	public static final int NOP         = 0x00;
+	public static final int ICONST_0    = 0x03;
+	public static final int LCONST_0    = 0x09;
+	public static final int FCONST_0    = 0x0B;
+	public static final int DCONST_0    = 0x0E;
+	public static final int BIPUSH      = 0x10;
+	public static final int SIPUSH      = 0x11;
+	public static final int LDC         = 0x12;
+	public static final int LDC_W       = 0x13;
+	public static final int LDC2_W      = 0x14;
+	public static final int ILOAD       = 0x15;
+	public static final int LLOAD       = 0x16;
+	public static final int FLOAD       = 0x17;
+	public static final int DLOAD       = 0x18;
+	public static final int ALOAD       = 0x19;
+	public static final int ISTORE      = 0x36;
+	public static final int LSTORE      = 0x37;
+	public static final int FSTORE      = 0x38;
+	public static final int DSTORE      = 0x39;
+	public static final int ASTORE      = 0x3A;
+	public static final int POP         = 0x57;
+	public static final int DUP         = 0x59;
+	public static final int IADD        = 0x60;
+	public static final int LADD        = 0x61;
+	public static final int FADD        = 0x62;
+	public static final int DADD        = 0x63;
+	public static final int ISUB        = 0x64;
+	public static final int IMUL        = 0x68;
+	public static final int IDIV        = 0x6C;
+	public static final int IREM        = 0x70;
+	public static final int INEG        = 0x74;
+	public static final int ISHL        = 0x78;
+	public static final int LSHL        = 0x79;
+	public static final int ISHR        = 0x7A;
+	public static final int LSHR        = 0x7B;
+	public static final int IUSHR       = 0x7C;
+	public static final int LUSHR       = 0x7D;
+	public static final int IAND        = 0x7E;
+	public static final int LAND        = 0x7F;
+	public static final int I2L         = 0x85;
+	public static final int I2F         = 0x86;
+	public static final int I2D         = 0x87;
+	public static final int L2I         = 0x88;
+	public static final int L2F         = 0x89;
+	public static final int L2D         = 0x8A;
+	public static final int F2I         = 0x8B;
+	public static final int F2L         = 0x8C;
+	public static final int F2D         = 0x8D;
+	public static final int D2I         = 0x8E;
+	public static final int D2L         = 0x8F;
+	public static final int D2F         = 0x90;
+	public static final int I2B         = 0x91;
+	public static final int I2C         = 0x92;
+	public static final int I2S         = 0x93;
+	public static final int LCMP        = 0x94;
+	public static final int IFEQ        = 0x99;
+	public static final int IFNE        = 0x9A;
+	public static final int IFLT        = 0x9B;
+	public static final int IFGE        = 0x9C;
+	public static final int IFGT        = 0x9D;
+	public static final int IFLE        = 0x9E;
+	public static final int IF_ICMPEQ   = 0x9F;
+	public static final int IF_ICMPNE   = 0xA0;
+	public static final int GOTO        = 0xA7;
+	public static final int LOOKUPSWITCH= 0xAB;
+	public static final int IRETURN     = 0xAC;
+	public static final int LRETURN     = 0xAD;
+	public static final int ARETURN     = 0xB0;
+	public static final int RETURN      = 0xB1;
+	public static final int GETFIELD    = 0xB4;
+	public static final int PUTFIELD    = 0xB5;
+	public static final int INVOKEVIRTUAL   = 0xB6;
+	public static final int INVOKESPECIAL   = 0xB7;
+	public static final int INVOKESTATIC    = 0xB8;
+	public static final int INVOKEINTERFACE = 0xB9;
+	public static final int CHECKCAST   = 0xC0;
+	public static final int ATHROW      = 0xBF;
+	
+	/** The distance between the arithmetic opcodes for int, long, float and double, e.g. IADD, LADD, FADD, DADD. */
+	public static final int TYPE_STRIDE = 1;
+	/** The distance between an arithmetic opcode's int form and the next operation's, e.g. IADD and ISUB. */
+	public static final int OPERATION_STRIDE = 4;
+	
+	public static final class Label {
+		int position = -1;
+		final List<int[]> fixups = new ArrayList<>();
+		
+		public boolean isPlaced() {
+			return position!=-1;
+		}
+	}
+	
+	private final ClassFile owner;
+	private byte[] code = new byte[256];
+	private int length = 0;
+	private int maxStack = 0;
+	private int maxLocals = 0;
+	private final List<int[]> exceptionHandlers = new ArrayList<>();
+	private final List<Label[]> pendingHandlers = new ArrayList<>();
+	private final List<Integer> pendingHandlerTypes = new ArrayList<>();
+	
+	public Bytecode(ClassFile owner) {
+		this.owner = owner;
+	}
+	
+	public int position() {
+		return length;
+	}
+	
+	public void setMaxStack(int maxStack) {
+		this.maxStack = maxStack;
+	}
+	
+	public int getMaxStack() {
+		return maxStack;
+	}
+	
+	public void setMaxLocals(int maxLocals) {
+		this.maxLocals = maxLocals;
+	}
+	
+	public int getMaxLocals() {
+		return maxLocals;
+	}
+	
+	public void u1(int value) {
+		if (length==code.length) code = Arrays.copyOf(code, code.length*2);
+		code[length++] = (byte) value;
+	}
+	
+	public void u2(int value) {
+		u1(value >> 8);
+		u1(value);
+	}
+	
+	public void u4(int value) {
+		u2(value >> 16);
+		u2(value);
+	}
+	
+	public void op(int opcode) {
+		u1(opcode);
+	}
+	
+	/** Emits a local variable instruction, using the wide form only if it's needed. */
+	public void local(int opcode, int slot) {
+		if (slot>0xFF) {
+			u1(0xC4); //wide
+			u1(opcode);
+			u2(slot);
+		} else {
+			u1(opcode);
+			u1(slot);
+		}
+	}
+	
+	public void iconst(int value) throws IOException {
+		if (value>=-1 && value<=5) {
+			op(ICONST_0 + value);
+		} else if (value>=Byte.MIN_VALUE && value<=Byte.MAX_VALUE) {
+			op(BIPUSH);
+			u1(value);
+		} else if (value>=Short.MIN_VALUE && value<=Short.MAX_VALUE) {
+			op(SIPUSH);
+			u2(value);
+		} else {
+			ldc(owner.integer(value));
+		}
+	}
+	
+	public void lconst(long value) throws IOException {
+		if (value==0 || value==1) {
+			op(LCONST_0 + (int) value);
+		} else {
+			op(LDC2_W);
+			u2(owner.longConstant(value));
+		}
+	}
+	
+	public void fconst(float value) throws IOException {
+		if (Float.floatToRawIntBits(value)==0 || value==1.0f || value==2.0f) {
+			op(FCONST_0 + (int) value);
+		} else {
+			ldc(owner.floatConstant(value));
+		}
+	}
+	
+	public void dconst(double value) throws IOException {
+		if (Double.doubleToRawLongBits(value)==0 || value==1.0) {
+			op(DCONST_0 + (int) value);
+		} else {
+			op(LDC2_W);
+			u2(owner.doubleConstant(value));
+		}
+	}
+	
+	private void ldc(int index) {
+		if (index>0xFF) {
+			op(LDC_W);
+			u2(index);
+		} else {
+			op(LDC);
+			u1(index);
+		}
+	}
+	
+	public void invokeVirtual(String owner, String name, String descriptor) throws IOException {
+		op(INVOKEVIRTUAL);
+		u2(this.owner.methodRef(owner, name, descriptor));
+	}
+	
+	public void invokeStatic(String owner, String name, String descriptor) throws IOException {
+		op(INVOKESTATIC);
+		u2(this.owner.methodRef(owner, name, descriptor));
+	}
+	
+	public void invokeSpecial(String owner, String name, String descriptor) throws IOException {
+		op(INVOKESPECIAL);
+		u2(this.owner.methodRef(owner, name, descriptor));
+	}
+	
+	public void getField(String owner, String name, String descriptor) throws IOException {
+		op(GETFIELD);
+		u2(this.owner.fieldRef(owner, name, descriptor));
+	}
+	
+	public void putField(String owner, String name, String descriptor) throws IOException {
+		op(PUTFIELD);
+		u2(this.owner.fieldRef(owner, name, descriptor));
+	}
+	
+	/** Emits a branch instruction to label, which may not have been placed yet. */
+	public void branch(int opcode, Label label) {
+		int at = length;
+		op(opcode);
+		if (label.isPlaced()) {
+			u2(label.position - at);
+		} else {
+			label.fixups.add(new int[] { at, length, 2 });
+			u2(0);
+		}
+	}
+	
+	/**
+	 * Emits a lookupswitch. Keys must be sorted in ascending order, and have a label for each key.
+	 */
+	public void lookupSwitch(Label defaultLabel, int[] keys, Label[] labels) {
+		int at = length;
+		op(LOOKUPSWITCH);
+		while((length & 3) != 0) u1(0);
+		offset32(at, defaultLabel);
+		u4(keys.length);
+		for(int i=0; i<keys.length; i++) {
+			u4(keys[i]);
+			offset32(at, labels[i]);
+		}
+	}
+	
+	private void offset32(int instruction, Label label) {
+		if (label.isPlaced()) {
+			u4(label.position - instruction);
+		} else {
+			label.fixups.add(new int[] { instruction, length, 4 });
+			u4(0);
+		}
+	}
+	
+	/** Places label at the current position, resolving any branches already waiting on it. */
+	public void mark(Label label) {
+		label.position = length;
+		for(int[] fixup : label.fixups) {
+			int offset = length - fixup[0];
+			int at = fixup[1];
+			if (fixup[2]==4) {
+				code[at  ] = (byte) (offset >> 24);
+				code[at+1] = (byte) (offset >> 16);
+				code[at+2] = (byte) (offset >>  8);
+				code[at+3] = (byte)  offset;
+			} else {
+				code[at  ] = (byte) (offset >>  8);
+				code[at+1] = (byte)  offset;
+			}
+		}
+		label.fixups.clear();
+	}
+	
+	/** Adds an exception table entry. The labels only need to be placed by the time {@link #toByteArray()} is called. */
+	public void tryCatch(Label start, Label end, Label handler, String exceptionType) throws IOException {
+		pendingHandlers.add(new Label[] { start, end, handler });
+		pendingHandlerTypes.add((exceptionType==null) ? 0 : owner.classRef(exceptionType));
+	}
+	
+	List<int[]> getExceptionHandlers() {
+		exceptionHandlers.clear();
+		for(int i=0; i<pendingHandlers.size(); i++) {
+			Label[] labels = pendingHandlers.get(i);
+			exceptionHandlers.add(new int[] { labels[0].position, labels[1].position, labels[2].position, pendingHandlerTypes.get(i) });
+		}
+		return exceptionHandlers;
+	}
+	
+	public byte[] toByteArray() throws IOException {
+		if (length>=0x8000) throw new IOException("Method body is too large ("+length+" bytes)");
+		return Arrays.copyOf(code, length);
+	}
+}
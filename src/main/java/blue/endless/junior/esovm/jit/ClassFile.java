@@ -0,0 +1,208 @@
+package blue.endless.junior.esovm.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Just enough of a JVM class file writer to emit the classes the JIT needs: one public final class with a constant pool,
+ * any number of methods, and no fields or attributes beyond Code.
+ * 
+ * <p>Classes are written as version 49 (Java 5) so that the JVM verifies them by type inference, and we don't need to
+ * compute StackMapTable frames.
+ */
+public class ClassFile {
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL  = 0x0010;
+	public static final int ACC_SUPER  = 0x0020;
+	
+	private static final int CONSTANT_UTF8               = 1;
+	private static final int CONSTANT_INTEGER            = 3;
+	private static final int CONSTANT_FLOAT              = 4;
+	private static final int CONSTANT_LONG               = 5;
+	private static final int CONSTANT_DOUBLE             = 6;
+	private static final int CONSTANT_CLASS              = 7;
+	private static final int CONSTANT_FIELDREF           = 9;
+	private static final int CONSTANT_METHODREF          = 10;
+	private static final int CONSTANT_INTERFACEMETHODREF = 11;
+	private static final int CONSTANT_NAME_AND_TYPE      = 12;
+	
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final HashMap<String, Integer> poolIndices = new HashMap<>();
+	private int poolCount = 1;
+	
+	private final String name;
+	private final String superName;
+	private final String[] interfaces;
+	private final List<byte[]> methods = new ArrayList<>();
+	
+	/** Names are internal binary names, like {@code java/lang/Object}. */
+	public ClassFile(String name, String superName, String... interfaces) {
+		this.name = name;
+		this.superName = superName;
+		this.interfaces = interfaces;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void addMethod(int access, String name, String descriptor, Bytecode code) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		byte[] body = code.toByteArray();
+		List<int[]> handlers = code.getExceptionHandlers();
+		
+		out.writeShort(access);
+		out.writeShort(utf8(name));
+		out.writeShort(utf8(descriptor));
+		out.writeShort(1); //attributes_count
+		
+		out.writeShort(utf8("Code"));
+		out.writeInt(2 + 2 + 4 + body.length + 2 + handlers.size()*8 + 2);
+		out.writeShort(code.getMaxStack());
+		out.writeShort(code.getMaxLocals());
+		out.writeInt(body.length);
+		out.write(body);
+		out.writeShort(handlers.size());
+		for(int[] handler : handlers) {
+			out.writeShort(handler[0]);
+			out.writeShort(handler[1]);
+			out.writeShort(handler[2]);
+			out.writeShort(handler[3]);
+		}
+		out.writeShort(0); //Code attributes_count
+		
+		methods.add(baos.toByteArray());
+	}
+	
+	public byte[] toByteArray() throws IOException {
+		int thisClass = classRef(name);
+		int superClass = classRef(superName);
+		int[] interfaceRefs = new int[interfaces.length];
+		for(int i=0; i<interfaces.length; i++) interfaceRefs[i] = classRef(interfaces[i]);
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);  //minor
+		out.writeShort(49); //major: Java 5, no stack map frames
+		out.writeShort(poolCount);
+		pool.flush();
+		out.write(poolBytes.toByteArray());
+		out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(interfaceRefs.length);
+		for(int ref : interfaceRefs) out.writeShort(ref);
+		out.writeShort(0); //fields
+		out.writeShort(methods.size());
+		for(byte[] method : methods) out.write(method);
+		out.writeShort(0); //attributes
+		out.flush();
+		return baos.toByteArray();
+	}
+	
+	/*
+	 * Constant pool. Entries are deduplicated by a key describing their contents.
+	 */
+	
+	public int utf8(String value) throws IOException {
+		Integer existing = poolIndices.get("U"+value);
+		if (existing!=null) return existing;
+		pool.writeByte(CONSTANT_UTF8);
+		pool.writeUTF(value);
+		return register("U"+value, 1);
+	}
+	
+	public int classRef(String internalName) throws IOException {
+		Integer existing = poolIndices.get("C"+internalName);
+		if (existing!=null) return existing;
+		int nameIndex = utf8(internalName);
+		pool.writeByte(CONSTANT_CLASS);
+		pool.writeShort(nameIndex);
+		return register("C"+internalName, 1);
+	}
+	
+	public int integer(int value) throws IOException {
+		Integer existing = poolIndices.get("I"+value);
+		if (existing!=null) return existing;
+		pool.writeByte(CONSTANT_INTEGER);
+		pool.writeInt(value);
+		return register("I"+value, 1);
+	}
+	
+	public int floatConstant(float value) throws IOException {
+		int bits = Float.floatToRawIntBits(value);
+		Integer existing = poolIndices.get("F"+bits);
+		if (existing!=null) return existing;
+		pool.writeByte(CONSTANT_FLOAT);
+		pool.writeInt(bits);
+		return register("F"+bits, 1);
+	}
+	
+	public int longConstant(long value) throws IOException {
+		Integer existing = poolIndices.get("J"+value);
+		if (existing!=null) return existing;
+		pool.writeByte(CONSTANT_LONG);
+		pool.writeLong(value);
+		return register("J"+value, 2);
+	}
+	
+	public int doubleConstant(double value) throws IOException {
+		long bits = Double.doubleToRawLongBits(value);
+		Integer existing = poolIndices.get("D"+bits);
+		if (existing!=null) return existing;
+		pool.writeByte(CONSTANT_DOUBLE);
+		pool.writeLong(bits);
+		return register("D"+bits, 2);
+	}
+	
+	public int methodRef(String owner, String name, String descriptor) throws IOException {
+		return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+	}
+	
+	public int interfaceMethodRef(String owner, String name, String descriptor) throws IOException {
+		return memberRef(CONSTANT_INTERFACEMETHODREF, owner, name, descriptor);
+	}
+	
+	public int fieldRef(String owner, String name, String descriptor) throws IOException {
+		return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+	}
+	
+	private int memberRef(int tag, String owner, String name, String descriptor) throws IOException {
+		String key = "M"+tag+owner+"."+name+descriptor;
+		Integer existing = poolIndices.get(key);
+		if (existing!=null) return existing;
+		
+		int ownerIndex = classRef(owner);
+		String natKey = "N"+name+" "+descriptor;
+		Integer nameAndType = poolIndices.get(natKey);
+		if (nameAndType==null) {
+			int nameIndex = utf8(name);
+			int descriptorIndex = utf8(descriptor);
+			pool.writeByte(CONSTANT_NAME_AND_TYPE);
+			pool.writeShort(nameIndex);
+			pool.writeShort(descriptorIndex);
+			nameAndType = register(natKey, 1);
+		}
+		
+		pool.writeByte(tag);
+		pool.writeShort(ownerIndex);
+		pool.writeShort(nameAndType);
+		return register(key, 1);
+	}
+	
+	private int register(String key, int slots) throws IOException {
+		int index = poolCount;
+		poolCount += slots;
+		if (poolCount>0xFFFF) throw new IOException("Constant pool overflow");
+		poolIndices.put(key, index);
+		return index;
+	}
+}
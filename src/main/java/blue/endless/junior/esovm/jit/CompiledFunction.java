@@ -0,0 +1,20 @@
+package blue.endless.junior.esovm.jit;
+
+import blue.endless.junior.esovm.Stack;
+import blue.endless.junior.esovm.StackFrame;
+import blue.endless.junior.esovm.VMException;
+
+/**
+ * An EsoVM function which the {@link JitCompiler} has translated into a JVM class.
+ */
+public interface CompiledFunction {
+	/**
+	 * Runs the function starting at instruction index entry (a byte address divided by 8), with its LVT in frame.
+	 * 
+	 * <p>Returns the instruction index the interpreter should resume at, or {@code -(index+1)} if the code halted at
+	 * instruction index. Compiled code gives control back at the leader of the first basic block which would take state's
+	 * cycle count past its budget, and immediately if entry isn't one of its entry points. Either way, by the time this method returns or throws, every LVT
+	 * entry has been written back to frame, and state holds the up-to-date flags and cycle count.
+	 */
+	int run(StackFrame frame, Stack stack, int entry, JitState state) throws VMException;
+}
@@ -0,0 +1,15 @@
+package blue.endless.junior.esovm.jit;
+
+/**
+ * Defines compiled functions. Each compiled class gets a loader of its own, so that it can be unloaded as soon as nothing
+ * refers to the function anymore.
+ */
+final class JitClassLoader extends ClassLoader {
+	JitClassLoader() {
+		super(JitClassLoader.class.getClassLoader());
+	}
+	
+	Class<?> define(String binaryName, byte[] classFile) {
+		return defineClass(binaryName, classFile, 0, classFile.length);
+	}
+}
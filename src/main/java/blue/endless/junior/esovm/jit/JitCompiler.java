@@ -0,0 +1,570 @@
+package blue.endless.junior.esovm.jit;
+
+import static blue.endless.junior.esovm.VMThread.*;
+import static blue.endless.junior.esovm.jit.Bytecode.*;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import blue.endless.junior.esovm.ConstantPool;
+import blue.endless.junior.esovm.Module;
+import blue.endless.junior.esovm.Verifier;
+import blue.endless.junior.esovm.VMException;
+
+/**
+ * Translates verified EsoVM functions into JVM classes implementing {@link CompiledFunction}, so that HotSpot can compile
+ * them the rest of the way down to machine code.
+ *
+ * <p>Every LVT entry the function touches becomes a JVM local of the matching primitive type (int8 and int16 entries are
+ * held as ints and re-narrowed after every operation), every ALU opcode becomes the equivalent JVM arithmetic, and EsoVM
+ * jumps become JVM branches. Locals are loaded from the frame on entry and written back on every exit. Every basic block
+ * leader is an entry point, so the interpreter can transfer control in the middle of a loop. Each block is charged for all
+ * of its instructions on entry, but only if the cycle budget covers the whole block; if it doesn't, compiled code hands
+ * control back to the interpreter at that block's leader, which runs whatever part of it the budget allows. That way
+ * compiled loops can still be preempted, and stop after exactly as many cycles as the interpreter would. CALL and RETURN
+ * hand control back to the interpreter, which performs them and re-enters compiled code on the way into or back out of a
+ * compiled function, or at the next backward jump.
+ *
+ * <p>Functions using anything the compiler doesn't understand (float16 values, ports, conditional loads and stores) are
+ * rejected with a {@link Bailout}, and stay in the interpreter.
+ */
+public final class JitCompiler {
+	private static final String FRAME = "blue/endless/junior/esovm/StackFrame";
+	private static final String STACK = "blue/endless/junior/esovm/Stack";
+	private static final String STATE = "blue/endless/junior/esovm/jit/JitState";
+	private static final String SUPPORT = "blue/endless/junior/esovm/jit/JitSupport";
+	private static final String RUN_DESCRIPTOR = "(L"+FRAME+";L"+STACK+";IL"+STATE+";)I";
+	
+	//JVM local slots
+	private static final int SLOT_FRAME  = 1;
+	private static final int SLOT_STACK  = 2;
+	private static final int SLOT_ENTRY  = 3;
+	private static final int SLOT_STATE  = 4;
+	private static final int SLOT_FLAGS  = 5;
+	private static final int SLOT_CYCLES = 6;
+	private static final int SLOT_BUDGET = 8;
+	private static final int FIRST_REGISTER_SLOT = 10;
+	
+	//JVM value kinds, in the order the JVM's typed opcodes use (e.g. ILOAD, LLOAD, FLOAD, DLOAD)
+	private static final int KIND_INT    = 0;
+	private static final int KIND_LONG   = 1;
+	private static final int KIND_FLOAT  = 2;
+	private static final int KIND_DOUBLE = 3;
+	
+	private static final String[] ACCESSOR_NAMES = { "Int8", "Int16", "Int32", "Int64", "Float16", "Float32", "Float64", "Word" };
+	private static final String[] DESCRIPTORS    = { "B",    "S",     "I",     "J",     "S",       "F",       "D",       "J" };
+	private static final int[]    KINDS          = { KIND_INT, KIND_INT, KIND_INT, KIND_LONG, -1, KIND_FLOAT, KIND_DOUBLE, KIND_LONG };
+	
+	private static final AtomicInteger classCounter = new AtomicInteger();
+	
+	/** Thrown when a function can't be compiled. The function should simply keep running in the interpreter. */
+	public static class Bailout extends Exception {
+		private static final long serialVersionUID = -5790911384720475911L;
+		
+		public Bailout(String message) {
+			super(message);
+		}
+		
+		public Bailout(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+	
+	private final byte[] program;
+	private final ConstantPool constants;
+	private final int entry;
+	private final int first;
+	private final int count;
+	private final long lvtInfo;
+	
+	private final boolean[] reachable;
+	private final boolean[] leader;
+	/** JVM local slot for each [dataType][lvtIndex], or 0 if the function never touches that entry. */
+	private final int[][] slots = new int[8][256];
+	private int nextSlot = FIRST_REGISTER_SLOT;
+	
+	private ClassFile classFile;
+	private Bytecode code;
+	private Bytecode.Label[] labels;
+	private Bytecode.Label exit;
+	
+	private JitCompiler(byte[] program, ConstantPool constants, int entry, int start, int end, long lvtInfo) {
+		this.program = program;
+		this.constants = constants;
+		this.entry = entry >> 3;
+		this.first = start >> 3;
+		this.count = (end - start) >> 3;
+		this.lvtInfo = lvtInfo;
+		this.reachable = new boolean[count];
+		this.leader = new boolean[count];
+	}
+	
+	/**
+	 * Compiles a function of module, which must already be loaded. The function is verified first; anything the Verifier
+	 * rejects is rejected here too.
+	 */
+	public static CompiledFunction compile(Module module, Module.Function function) throws Bailout {
+		try {
+			Verifier.verify(module, function);
+		} catch (VMException ex) {
+			throw new Bailout("Function failed verification", ex);
+		}
+		
+		JitCompiler compiler = new JitCompiler(module.getProgram(), module.getConstants(), function.getEntry(), function.getStart(), function.getEnd(), function.getLvtInfo());
+		compiler.analyze();
+		try {
+			byte[] classBytes = compiler.generate();
+			Class<?> compiled = new JitClassLoader().define(compiler.classFile.getName().replace('/', '.'), classBytes);
+			return (CompiledFunction) compiled.getDeclaredConstructor().newInstance();
+		} catch (IOException | ReflectiveOperationException | LinkageError ex) {
+			throw new Bailout("Couldn't generate a class for the function", ex);
+		}
+	}
+	
+	/*
+	 * Raw instruction fields. Same layout the Decoder reads.
+	 */
+	
+	private int opcode(int index)       { return program[index*8] & 0xFF; }
+	private int dataType(int index)     { return (program[index*8+1] >>> 4) & 0x0F; }
+	private int operand2Type(int index) { return program[index*8+1] & 0x0F; }
+	private int destination(int index)  { return program[index*8+2] & 0xFF; }
+	private int operand1(int index)     { return program[index*8+3] & 0xFF; }
+	private int operand2(int index) {
+		int pc = index*8;
+		return ((program[pc+4] & 0xFF) << 24) | ((program[pc+5] & 0xFF) << 16) | ((program[pc+6] & 0xFF) << 8) | (program[pc+7] & 0xFF);
+	}
+	
+	/** Finds reachable code and basic block leaders, assigns JVM locals to LVT entries, and rejects anything unsupported. */
+	private void analyze() throws Bailout {
+		int[] worklist = new int[count];
+		int pending = 0;
+		reachable[entry - first] = true;
+		leader[entry - first] = true;
+		worklist[pending++] = entry;
+		
+		while(pending>0) {
+			int index = worklist[--pending];
+			int opcode = opcode(index);
+			int dataType = dataType(index);
+			boolean fallsThrough = true;
+			int target = -1;
+			
+			switch(opcode) {
+			case OPCODE_LOAD:
+			case OPCODE_STORE:
+				if (operand2Type(index)>OPERAND_CONSTANT) throw new Bailout("Memory operands at 0x"+Integer.toHexString(index*8)+" aren't supported by the compiler");
+				use(dataType, operand1(index));
+				if (operand2Type(index)==OPERAND_REGISTER) use(dataType, operand2(index));
+				break;
+			case OPCODE_PUSH:
+			case OPCODE_POP:
+			case OPCODE_TEST:
+				use(dataType, operand1(index));
+				break;
+			case OPCODE_ADD:
+			case OPCODE_SUB:
+			case OPCODE_MUL:
+			case OPCODE_DIV:
+			case OPCODE_MOD:
+			case OPCODE_SHL:
+			case OPCODE_SHR:
+			case OPCODE_ASR:
+				use(dataType, destination(index));
+				use(dataType, operand1(index));
+				if (operand2Type(index)==OPERAND_REGISTER) use(dataType, operand2(index));
+				break;
+			case OPCODE_CONVERT:
+				use(dataType, operand1(index));
+				use(operand2Type(index), destination(index));
+				break;
+			case OPCODE_JUMP:
+				fallsThrough = false;
+				target = operand2(index) >> 3;
+				break;
+			case OPCODE_CJUMP:
+				target = operand2(index) >> 3;
+				break;
+			case OPCODE_HALT:
+				if (operand2(index)!=0) throw new Bailout("Halting with an error at 0x"+Integer.toHexString(index*8)+" isn't supported by the compiler");
+				fallsThrough = false;
+				break;
+			case OPCODE_CALL:
+				//The interpreter comes back in just past the call once the callee returns
+				if (index+1 < first+count && !reachable[index+1 - first]) {
+					reachable[index+1 - first] = true;
+					worklist[pending++] = index+1;
+				}
+				//fall through
+			case OPCODE_RETURN:
+				//Left to the interpreter, so as far as compiled code is concerned, these are exits
+				leader[index - first] = true;
+				fallsThrough = false;
+				break;
+			default:
+				throw new Bailout("Opcode 0x"+Integer.toHexString(opcode)+" at 0x"+Integer.toHexString(index*8)+" isn't supported by the compiler");
+			}
+			
+			if (target!=-1) {
+				leader[target - first] = true;
+				if (!reachable[target - first]) {
+					reachable[target - first] = true;
+					worklist[pending++] = target;
+				}
+			}
+			if (!fallsThrough || target!=-1) {
+				//Whatever comes next starts a new block
+				if (index+1 < first+count) leader[index+1 - first] = true;
+			}
+			if (fallsThrough && !reachable[index+1 - first]) {
+				reachable[index+1 - first] = true;
+				worklist[pending++] = index+1;
+			}
+		}
+	}
+	
+	private void use(int dataType, int lvtIndex) throws Bailout {
+		if (KINDS[dataType]==-1) throw new Bailout("float16 values aren't supported by the compiler");
+		if (slots[dataType][lvtIndex]!=0) return;
+		slots[dataType][lvtIndex] = nextSlot;
+		nextSlot += (KINDS[dataType]==KIND_LONG || KINDS[dataType]==KIND_DOUBLE) ? 2 : 1;
+	}
+	
+	private byte[] generate() throws IOException, Bailout {
+		classFile = new ClassFile("blue/endless/junior/esovm/jit/Jitted"+classCounter.incrementAndGet(), "java/lang/Object", "blue/endless/junior/esovm/jit/CompiledFunction");
+		
+		Bytecode init = new Bytecode(classFile);
+		init.local(ALOAD, 0);
+		init.invokeSpecial("java/lang/Object", "<init>", "()V");
+		init.op(RETURN);
+		init.setMaxStack(1);
+		init.setMaxLocals(1);
+		classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", init);
+		
+		code = new Bytecode(classFile);
+		labels = new Bytecode.Label[count];
+		exit = new Bytecode.Label();
+		int exceptionSlot = nextSlot;
+		code.setMaxLocals(nextSlot + 1);
+		code.setMaxStack(8);
+		
+		//Prologue: pull the LVT and interpreter state into locals, then jump to the requested entry point
+		for(int dataType=0; dataType<8; dataType++) {
+			for(int lvtIndex=0; lvtIndex<256; lvtIndex++) {
+				if (slots[dataType][lvtIndex]==0) continue;
+				code.local(ALOAD, SLOT_FRAME);
+				code.iconst(lvtIndex);
+				code.invokeVirtual(FRAME, "get"+ACCESSOR_NAMES[dataType]+"Unchecked", "(I)"+DESCRIPTORS[dataType]);
+				code.local(ISTORE + KINDS[dataType], slots[dataType][lvtIndex]);
+			}
+		}
+		code.local(ALOAD, SLOT_STATE);
+		code.getField(STATE, "flags", "I");
+		code.local(ISTORE, SLOT_FLAGS);
+		code.local(ALOAD, SLOT_STATE);
+		code.getField(STATE, "cycles", "J");
+		code.local(LSTORE, SLOT_CYCLES);
+		code.local(ALOAD, SLOT_STATE);
+		code.getField(STATE, "budget", "J");
+		code.local(LSTORE, SLOT_BUDGET);
+		
+		Bytecode.Label bodyStart = new Bytecode.Label();
+		code.mark(bodyStart);
+		
+		int leaderCount = 0;
+		for(int i=0; i<count; i++) if (leader[i] && reachable[i]) leaderCount++;
+		int[] keys = new int[leaderCount];
+		Bytecode.Label[] targets = new Bytecode.Label[leaderCount];
+		for(int i=0, k=0; i<count; i++) {
+			if (leader[i] && reachable[i]) {
+				labels[i] = new Bytecode.Label();
+				keys[k] = first + i;
+				targets[k] = labels[i];
+				k++;
+			}
+		}
+		Bytecode.Label notAnEntry = new Bytecode.Label();
+		code.local(ILOAD, SLOT_ENTRY);
+		code.lookupSwitch(notAnEntry, keys, targets);
+		code.mark(notAnEntry);
+		code.local(ILOAD, SLOT_ENTRY);
+		code.branch(GOTO, exit);
+		
+		//Body
+		for(int i=0; i<count; i++) {
+			if (!reachable[i]) continue;
+			int index = first + i;
+			if (leader[i]) {
+				code.mark(labels[i]);
+				if (isExit(index)) {
+					//The interpreter counts this instruction when it runs it
+					emit(index);
+					continue;
+				}
+				//Leave at this leader if the budget can't cover the whole block
+				Bytecode.Label fits = new Bytecode.Label();
+				code.local(LLOAD, SLOT_CYCLES);
+				code.lconst(blockLength(i));
+				code.op(LADD);
+				code.local(LLOAD, SLOT_BUDGET);
+				code.op(LCMP);
+				code.branch(IFLE, fits);
+				code.iconst(index);
+				code.branch(GOTO, exit);
+				code.mark(fits);
+				
+				code.local(LLOAD, SLOT_CYCLES);
+				code.lconst(blockLength(i));
+				code.op(LADD);
+				code.local(LSTORE, SLOT_CYCLES);
+			}
+			emit(index);
+		}
+		
+		//Exit: the value to return is already on the operand stack
+		Bytecode.Label bodyEnd = new Bytecode.Label();
+		code.mark(bodyEnd);
+		code.mark(exit);
+		spill();
+		code.op(IRETURN);
+		
+		//Exceptions: write everything back and let the interpreter report the fault
+		Bytecode.Label handler = new Bytecode.Label();
+		code.mark(handler);
+		code.local(ASTORE, exceptionSlot);
+		spill();
+		code.local(ALOAD, exceptionSlot);
+		code.op(ATHROW);
+		code.tryCatch(bodyStart, bodyEnd, handler, "java/lang/Throwable");
+		
+		classFile.addMethod(ClassFile.ACC_PUBLIC, "run", RUN_DESCRIPTOR, code);
+		return classFile.toByteArray();
+	}
+	
+	/** Returns true if the instruction at index is left to the interpreter. */
+	private boolean isExit(int index) {
+		int opcode = opcode(index);
+		return opcode==OPCODE_CALL || opcode==OPCODE_RETURN;
+	}
+	
+	/** Returns the number of instructions in the basic block starting at offset i. */
+	private int blockLength(int i) {
+		int length = 0;
+		while(true) {
+			length++;
+			int opcode = opcode(first + i);
+			if (opcode==OPCODE_JUMP || opcode==OPCODE_CJUMP || opcode==OPCODE_HALT) return length;
+			i++;
+			if (i>=count || leader[i]) return length;
+		}
+	}
+	
+	/** Writes every LVT local back to the frame, and the flags and cycle count back to the JitState. */
+	private void spill() throws IOException {
+		for(int dataType=0; dataType<8; dataType++) {
+			for(int lvtIndex=0; lvtIndex<256; lvtIndex++) {
+				if (slots[dataType][lvtIndex]==0) continue;
+				code.local(ALOAD, SLOT_FRAME);
+				code.iconst(lvtIndex);
+				code.local(ILOAD + KINDS[dataType], slots[dataType][lvtIndex]);
+				code.invokeVirtual(FRAME, "put"+ACCESSOR_NAMES[dataType]+"Unchecked", "(I"+DESCRIPTORS[dataType]+")V");
+			}
+		}
+		code.local(ALOAD, SLOT_STATE);
+		code.local(ILOAD, SLOT_FLAGS);
+		code.putField(STATE, "flags", "I");
+		code.local(ALOAD, SLOT_STATE);
+		code.local(LLOAD, SLOT_CYCLES);
+		code.putField(STATE, "cycles", "J");
+	}
+	
+	private void emit(int index) throws IOException, Bailout {
+		int opcode = opcode(index);
+		int dataType = dataType(index);
+		int kind = KINDS[dataType];
+		
+		switch(opcode) {
+		case OPCODE_LOAD:
+			operand2(index, dataType);
+			store(dataType, operand1(index));
+			break;
+		case OPCODE_STORE:
+			load(dataType, operand1(index));
+			store(dataType, operand2(index));
+			break;
+		case OPCODE_PUSH:
+			code.local(ALOAD, SLOT_STACK);
+			load(dataType, operand1(index));
+			String pushDescriptor = (kind==KIND_INT) ? "I" : DESCRIPTORS[dataType];
+			code.invokeVirtual(STACK, "push"+ACCESSOR_NAMES[dataType], "("+pushDescriptor+")V");
+			break;
+		case OPCODE_POP: {
+			String name = (dataType==DATA_WORD) ? "Int64" : ACCESSOR_NAMES[dataType];
+			code.local(ALOAD, SLOT_STACK);
+			code.invokeVirtual(STACK, "pop"+name, "()"+DESCRIPTORS[dataType]);
+			store(dataType, operand1(index));
+			break;
+		}
+		
+		case OPCODE_ADD:
+		case OPCODE_SUB:
+		case OPCODE_MUL:
+		case OPCODE_DIV:
+		case OPCODE_MOD:
+			load(dataType, operand1(index));
+			operand2(index, dataType);
+			code.op(IADD + (opcode - OPCODE_ADD)*OPERATION_STRIDE + kind*TYPE_STRIDE);
+			narrow(dataType);
+			store(dataType, destination(index));
+			break;
+		case OPCODE_SHL:
+		case OPCODE_SHR:
+		case OPCODE_ASR:
+			load(dataType, operand1(index));
+			if (dataType==DATA_INT8 && opcode==OPCODE_SHR) { code.iconst(0xFF); code.op(IAND); }
+			if (dataType==DATA_INT16 && opcode==OPCODE_SHR) { code.iconst(0xFFFF); code.op(IAND); }
+			if (operand2Type(index)==OPERAND_REGISTER) {
+				load(dataType, operand2(index));
+				if (kind==KIND_LONG) code.op(L2I);
+			} else {
+				code.iconst(operand2(index));
+			}
+			int shift = (opcode==OPCODE_SHL) ? ISHL : (opcode==OPCODE_SHR) ? IUSHR : ISHR;
+			code.op(shift + kind);
+			narrow(dataType);
+			store(dataType, destination(index));
+			break;
+		
+		case OPCODE_CONVERT:
+			convert(dataType, operand2Type(index), operand1(index), destination(index));
+			break;
+		
+		case OPCODE_TEST:
+			load(dataType, operand1(index));
+			switch(kind) {
+			case KIND_INT:    code.op(I2L); break;
+			case KIND_FLOAT:  code.op(F2D); break;
+			default: break;
+			}
+			code.invokeStatic(SUPPORT, "test", (kind==KIND_INT || kind==KIND_LONG) ? "(J)I" : "(D)I");
+			code.local(ISTORE, SLOT_FLAGS);
+			break;
+		
+		case OPCODE_JUMP:
+			jump(operand2(index) >> 3);
+			break;
+		case OPCODE_CJUMP: {
+			Bytecode.Label notTaken = new Bytecode.Label();
+			code.local(ILOAD, SLOT_FLAGS);
+			switch(operand1(index)) {
+			case CONDITION_ZERO:         code.iconst(FLAG_ZERO); code.op(IAND); code.branch(IFEQ, notTaken); break;
+			case CONDITION_NOT_ZERO:     code.iconst(FLAG_ZERO); code.op(IAND); code.branch(IFNE, notTaken); break;
+			case CONDITION_LESS:         code.iconst(FLAG_SIGN); code.branch(IF_ICMPNE, notTaken); break;
+			case CONDITION_GREATER:      code.branch(IFNE, notTaken); break;
+			case CONDITION_NEGATIVE:     code.iconst(FLAG_SIGN); code.op(IAND); code.branch(IFEQ, notTaken); break;
+			case CONDITION_NOT_NEGATIVE: code.iconst(FLAG_SIGN); code.op(IAND); code.branch(IFNE, notTaken); break;
+			default:
+				throw new Bailout("Invalid condition code at 0x"+Integer.toHexString(index*8));
+			}
+			jump(operand2(index) >> 3);
+			code.mark(notTaken);
+			break;
+		}
+		case OPCODE_HALT:
+			code.iconst(-(index+1));
+			code.branch(GOTO, exit);
+			break;
+		case OPCODE_CALL:
+		case OPCODE_RETURN:
+			code.iconst(index);
+			code.branch(GOTO, exit);
+			break;
+		
+		default:
+			throw new Bailout("Opcode 0x"+Integer.toHexString(opcode)+" isn't supported by the compiler");
+		}
+	}
+	
+	/** Jumps to target. There's nothing to check here, since the block at target checks the budget itself. */
+	private void jump(int target) {
+		code.branch(GOTO, labels[target - first]);
+	}
+	
+	private void load(int dataType, int lvtIndex) {
+		code.local(ILOAD + KINDS[dataType], slots[dataType][lvtIndex]);
+	}
+	
+	private void store(int dataType, int lvtIndex) {
+		code.local(ISTORE + KINDS[dataType], slots[dataType][lvtIndex]);
+	}
+	
+	/** Pushes operand2 of a LOAD or ALU instruction, which is a register, an immediate, or a constant. */
+	private void operand2(int index, int dataType) throws IOException {
+		int operand2 = operand2(index);
+		if (operand2Type(index)==OPERAND_REGISTER) {
+			load(dataType, operand2);
+			return;
+		}
+		if (operand2Type(index)==OPERAND_CONSTANT) {
+			//The value becomes a JVM constant, so it costs nothing at run time
+			switch(dataType) {
+			case DATA_INT8:    code.iconst(constants.getInt8(operand2)); break;
+			case DATA_INT16:   code.iconst(constants.getInt16(operand2)); break;
+			case DATA_INT32:   code.iconst(constants.getInt32(operand2)); break;
+			case DATA_INT64:   code.lconst(constants.getInt64(operand2)); break;
+			case DATA_WORD:    code.lconst(constants.getWord(operand2)); break;
+			case DATA_FLOAT32: code.fconst(constants.getFloat32(operand2)); break;
+			case DATA_FLOAT64: code.dconst(constants.getFloat64(operand2)); break;
+			default: break;
+			}
+			return;
+		}
+		//Immediates are converted exactly the way the interpreter's LOAD_IMMEDIATE handlers convert them
+		switch(dataType) {
+		case DATA_INT8:    code.iconst((byte) operand2); break;
+		case DATA_INT16:   code.iconst((short) operand2); break;
+		case DATA_INT32:   code.iconst(operand2); break;
+		case DATA_INT64:
+		case DATA_WORD:    code.lconst(operand2); break;
+		case DATA_FLOAT32: code.fconst(Float.intBitsToFloat(operand2)); break;
+		case DATA_FLOAT64: code.dconst(Float.intBitsToFloat(operand2)); break;
+		default: break;
+		}
+	}
+	
+	/** Truncates an int on the operand stack to the width of an int8 or int16 LVT entry. */
+	private void narrow(int dataType) {
+		if (dataType==DATA_INT8) code.op(I2B);
+		if (dataType==DATA_INT16) code.op(I2S);
+	}
+	
+	/** Same semantics as VMThread.convert: integers go through a long, floats through a double. */
+	private void convert(int sourceType, int destType, int source, int destination) {
+		load(sourceType, source);
+		int sourceKind = KINDS[sourceType];
+		boolean integral = (sourceKind==KIND_INT || sourceKind==KIND_LONG);
+		if (sourceKind==KIND_INT) code.op(I2L);
+		if (sourceKind==KIND_FLOAT) code.op(F2D);
+		
+		switch(KINDS[destType]) {
+		case KIND_INT:
+			if (!integral) code.op(D2L);
+			code.op(L2I);
+			narrow(destType);
+			break;
+		case KIND_LONG:
+			if (!integral) code.op(D2L);
+			break;
+		case KIND_FLOAT:
+			if (integral) code.op(L2D);
+			code.op(D2F);
+			break;
+		case KIND_DOUBLE:
+			if (integral) code.op(L2D);
+			break;
+		default:
+			break;
+		}
+		store(destType, destination);
+	}
+}
@@ -0,0 +1,14 @@
+package blue.endless.junior.esovm.jit;
+
+/**
+ * The bits of interpreter state which compiled code reads and updates, besides the frame and stack. A VMThread keeps one of
+ * these around and reuses it for every transition into compiled code.
+ */
+public final class JitState {
+	/** The VMThread's test flags; see VMThread.FLAG_ZERO and VMThread.FLAG_SIGN. */
+	public int flags;
+	/** Instructions executed so far during this transition. Compiled code adds to this a basic block at a time. */
+	public long cycles;
+	/** Compiled code returns to the interpreter at the first basic block which would take cycles past this. */
+	public long budget;
+}
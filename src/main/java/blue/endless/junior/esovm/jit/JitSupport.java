@@ -0,0 +1,19 @@
+package blue.endless.junior.esovm.jit;
+
+import blue.endless.junior.esovm.VMThread;
+
+/**
+ * Static helpers called from compiled code. These must stay public, since compiled classes live in their own class loader
+ * and can't see package-private members. They're all tiny, so HotSpot inlines them right back into the caller.
+ */
+public final class JitSupport {
+	private JitSupport() {}
+	
+	public static int test(long value) {
+		return (value==0) ? VMThread.FLAG_ZERO : (value<0) ? VMThread.FLAG_SIGN : 0;
+	}
+	
+	public static int test(double value) {
+		return (value==0) ? VMThread.FLAG_ZERO : (value<0) ? VMThread.FLAG_SIGN : 0;
+	}
+}
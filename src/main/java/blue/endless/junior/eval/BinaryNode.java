@@ -0,0 +1,240 @@
+package blue.endless.junior.eval;
+
+import blue.endless.junior.ast.BinaryOperation.Operator;
+import blue.endless.junior.ast.DataType;
+
+/**
+ * An arithmetic operator or comparison. Folds itself into a constant if both operands are constants, and otherwise
+ * specializes for both operands being i32, i64 or f64.
+ */
+abstract class BinaryNode extends Node {
+	final Operator operator;
+	Node left;
+	Node right;
+	
+	BinaryNode(Operator operator, Node left, Node right) {
+		this.operator = operator;
+		this.left = adopt(left);
+		this.right = adopt(right);
+	}
+	
+	@Override
+	protected void replaceChild(Node child, Node replacement) {
+		if (child==left) left = replacement;
+		if (child==right) right = replacement;
+	}
+	
+	/**
+	 * Finishes an operation whose operands weren't the types the specialization expected, and switches to the generic node.
+	 * rightValue is null if the right operand hasn't been evaluated yet.
+	 */
+	protected Object generalize(Frame frame, Object leftValue, Object rightValue) throws EvaluationException {
+		Generic generic = replace(new Generic(operator, left, right));
+		return Values.binary(operator, leftValue, (rightValue==null) ? generic.right.execute(frame) : rightValue);
+	}
+	
+	static final class Uninitialized extends BinaryNode {
+		Uninitialized(Operator operator, Node left, Node right) {
+			super(operator, left, right);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			Object a = left.execute(frame);
+			Object b = right.execute(frame);
+			Object result = Values.binary(operator, a, b);
+			
+			//Operands have had their first run too, so constant subexpressions have already folded themselves
+			if (left instanceof ConstantNode && right instanceof ConstantNode) {
+				replace(new ConstantNode(result));
+				return result;
+			}
+			
+			DataType type = Values.typeOf(a);
+			if (type!=Values.typeOf(b)) {
+				replace(new Generic(operator, left, right));
+			} else if (type==DataType.I32) {
+				replace(new Int32(operator, left, right));
+			} else if (type==DataType.I64) {
+				replace(operator.isComparison() ? new Int64Comparison(operator, left, right) : new Int64(operator, left, right));
+			} else if (type==DataType.F64 && (operator.isComparison() || operator.compareTo(Operator.MOD)<=0)) {
+				replace(operator.isComparison() ? new Float64Comparison(operator, left, right) : new Float64(operator, left, right));
+			} else {
+				replace(new Generic(operator, left, right));
+			}
+			return result;
+		}
+	}
+	
+	/** Both operands i32. Comparisons produce an i32 anyway, so they're here too. */
+	static final class Int32 extends BinaryNode {
+		Int32(Operator operator, Node left, Node right) {
+			super(operator, left, right);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			try {
+				return executeInt32(frame);
+			} catch (UnexpectedResultException ex) {
+				return ex.getResult();
+			}
+		}
+		
+		@Override
+		int executeInt32(Frame frame) throws EvaluationException, UnexpectedResultException {
+			int a;
+			try {
+				a = left.executeInt32(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectInt32(generalize(frame, ex.getResult(), null));
+			}
+			int b;
+			try {
+				b = right.executeInt32(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectInt32(generalize(frame, a, ex.getResult()));
+			}
+			return Values.int32(operator, a, b);
+		}
+	}
+	
+	static final class Int64 extends BinaryNode {
+		Int64(Operator operator, Node left, Node right) {
+			super(operator, left, right);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			try {
+				return executeInt64(frame);
+			} catch (UnexpectedResultException ex) {
+				return ex.getResult();
+			}
+		}
+		
+		@Override
+		long executeInt64(Frame frame) throws EvaluationException, UnexpectedResultException {
+			long a;
+			try {
+				a = left.executeInt64(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectInt64(generalize(frame, ex.getResult(), null));
+			}
+			long b;
+			try {
+				b = right.executeInt64(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectInt64(generalize(frame, a, ex.getResult()));
+			}
+			return Values.int64(operator, a, b);
+		}
+	}
+	
+	static final class Int64Comparison extends BinaryNode {
+		Int64Comparison(Operator operator, Node left, Node right) {
+			super(operator, left, right);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			try {
+				return executeInt32(frame);
+			} catch (UnexpectedResultException ex) {
+				return ex.getResult();
+			}
+		}
+		
+		@Override
+		int executeInt32(Frame frame) throws EvaluationException, UnexpectedResultException {
+			long a;
+			try {
+				a = left.executeInt64(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectInt32(generalize(frame, ex.getResult(), null));
+			}
+			long b;
+			try {
+				b = right.executeInt64(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectInt32(generalize(frame, a, ex.getResult()));
+			}
+			return Values.compare(operator, a, b) ? 1 : 0;
+		}
+	}
+	
+	static final class Float64 extends BinaryNode {
+		Float64(Operator operator, Node left, Node right) {
+			super(operator, left, right);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			try {
+				return executeFloat64(frame);
+			} catch (UnexpectedResultException ex) {
+				return ex.getResult();
+			}
+		}
+		
+		@Override
+		double executeFloat64(Frame frame) throws EvaluationException, UnexpectedResultException {
+			double a;
+			try {
+				a = left.executeFloat64(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectFloat64(generalize(frame, ex.getResult(), null));
+			}
+			double b;
+			try {
+				b = right.executeFloat64(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectFloat64(generalize(frame, a, ex.getResult()));
+			}
+			return Values.float64(operator, a, b);
+		}
+	}
+	
+	static final class Float64Comparison extends BinaryNode {
+		Float64Comparison(Operator operator, Node left, Node right) {
+			super(operator, left, right);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			try {
+				return executeInt32(frame);
+			} catch (UnexpectedResultException ex) {
+				return ex.getResult();
+			}
+		}
+		
+		@Override
+		int executeInt32(Frame frame) throws EvaluationException, UnexpectedResultException {
+			double a;
+			try {
+				a = left.executeFloat64(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectInt32(generalize(frame, ex.getResult(), null));
+			}
+			double b;
+			try {
+				b = right.executeFloat64(frame);
+			} catch (UnexpectedResultException ex) {
+				return Values.expectInt32(generalize(frame, a, ex.getResult()));
+			}
+			return Values.compare(operator, a, b) ? 1 : 0;
+		}
+	}
+	
+	static final class Generic extends BinaryNode {
+		Generic(Operator operator, Node left, Node right) {
+			super(operator, left, right);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			return Values.binary(operator, left.execute(frame), right.execute(frame));
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package blue.endless.junior.eval;
+
+/** Runs statements one after the other. */
+final class BlockNode extends Node {
+	final Node[] statements;
+	
+	BlockNode(Node[] statements) {
+		this.statements = statements;
+		for(Node statement : statements) adopt(statement);
+	}
+	
+	@Override
+	protected void replaceChild(Node child, Node replacement) {
+		for(int i=0; i<statements.length; i++) {
+			if (statements[i]==child) statements[i] = replacement;
+		}
+	}
+	
+	@Override
+	Object execute(Frame frame) throws EvaluationException {
+		for(int i=0; i<statements.length; i++) statements[i].execute(frame);
+		return null;
+	}
+}
@@ -0,0 +1,77 @@
+package blue.endless.junior.eval;
+
+/**
+ * Calls a function by name. The first call looks the function up and specializes to call it directly from then on; if the
+ * function is ever redefined, the node gives up on that and looks the function up on every call instead.
+ */
+abstract class CallNode extends Node {
+	final Evaluator evaluator;
+	final String name;
+	final Node[] arguments;
+	
+	CallNode(Evaluator evaluator, String name, Node[] arguments) {
+		this.evaluator = evaluator;
+		this.name = name;
+		this.arguments = arguments;
+		for(Node argument : arguments) adopt(argument);
+	}
+	
+	@Override
+	protected void replaceChild(Node child, Node replacement) {
+		for(int i=0; i<arguments.length; i++) {
+			if (arguments[i]==child) arguments[i] = replacement;
+		}
+	}
+	
+	protected Object[] evaluateArguments(Frame frame) throws EvaluationException {
+		Object[] values = new Object[arguments.length];
+		for(int i=0; i<arguments.length; i++) values[i] = arguments[i].execute(frame);
+		return values;
+	}
+	
+	static final class Uninitialized extends CallNode {
+		Uninitialized(Evaluator evaluator, String name, Node[] arguments) {
+			super(evaluator, name, arguments);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			int generation = evaluator.generation;
+			return replace(new Direct(evaluator, name, arguments, evaluator.lookup(name), generation)).execute(frame);
+		}
+	}
+	
+	/** Calls the one function this call has ever reached. */
+	static final class Direct extends CallNode {
+		final FunctionTarget target;
+		/** The evaluator's generation when target was last checked to still be the function with this name. */
+		int generation;
+		
+		Direct(Evaluator evaluator, String name, Node[] arguments, FunctionTarget target, int generation) {
+			super(evaluator, name, arguments);
+			this.target = target;
+			this.generation = generation;
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			if (generation!=evaluator.generation) {
+				int current = evaluator.generation;
+				if (evaluator.lookup(name)!=target) return replace(new Generic(evaluator, name, arguments)).execute(frame);
+				generation = current;
+			}
+			return target.call(evaluateArguments(frame));
+		}
+	}
+	
+	static final class Generic extends CallNode {
+		Generic(Evaluator evaluator, String name, Node[] arguments) {
+			super(evaluator, name, arguments);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			return evaluator.lookup(name).call(evaluateArguments(frame));
+		}
+	}
+}
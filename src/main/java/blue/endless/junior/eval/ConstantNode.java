@@ -0,0 +1,30 @@
+package blue.endless.junior.eval;
+
+/** A value which never changes, either written into the program or folded from an expression of them. */
+final class ConstantNode extends Node {
+	final Object value;
+	
+	ConstantNode(Object value) {
+		this.value = value;
+	}
+	
+	@Override
+	Object execute(Frame frame) {
+		return value;
+	}
+	
+	@Override
+	int executeInt32(Frame frame) throws UnexpectedResultException {
+		return Values.expectInt32(value);
+	}
+	
+	@Override
+	long executeInt64(Frame frame) throws UnexpectedResultException {
+		return Values.expectInt64(value);
+	}
+	
+	@Override
+	double executeFloat64(Frame frame) throws UnexpectedResultException {
+		return Values.expectFloat64(value);
+	}
+}
@@ -0,0 +1,47 @@
+package blue.endless.junior.eval;
+
+import blue.endless.junior.ast.DataType;
+
+/** Converts a value to another type. Folds itself into a constant if its operand is one. */
+abstract class ConvertNode extends Node {
+	final DataType type;
+	Node operand;
+	
+	ConvertNode(DataType type, Node operand) {
+		this.type = type;
+		this.operand = adopt(operand);
+	}
+	
+	@Override
+	protected void replaceChild(Node child, Node replacement) {
+		if (child==operand) operand = replacement;
+	}
+	
+	static final class Uninitialized extends ConvertNode {
+		Uninitialized(DataType type, Node operand) {
+			super(type, operand);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			Object result = Values.convert(operand.execute(frame), type);
+			if (operand instanceof ConstantNode) {
+				replace(new ConstantNode(result));
+			} else {
+				replace(new Generic(type, operand));
+			}
+			return result;
+		}
+	}
+	
+	static final class Generic extends ConvertNode {
+		Generic(DataType type, Node operand) {
+			super(type, operand);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			return Values.convert(operand.execute(frame), type);
+		}
+	}
+}
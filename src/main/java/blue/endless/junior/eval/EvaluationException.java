@@ -0,0 +1,16 @@
+package blue.endless.junior.eval;
+
+public class EvaluationException extends Exception {
+	private static final long serialVersionUID = -2618004632411953162L;
+	
+	public EvaluationException() {
+	}
+	
+	public EvaluationException(String message) {
+		super(message);
+	}
+	
+	public EvaluationException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
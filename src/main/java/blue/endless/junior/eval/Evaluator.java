@@ -0,0 +1,68 @@
+package blue.endless.junior.eval;
+
+import java.util.Collections;
+import java.util.HashMap;
+
+import blue.endless.junior.ast.CodeBlock;
+import blue.endless.junior.ast.Function;
+
+/**
+ * Runs ASTs directly, by walking them, without compiling them to anything first. That makes it the quickest way to run code
+ * which only runs a few times.
+ *
+ * <p>Each function is turned into a tree of executable nodes the first time it's called, and the nodes specialize themselves
+ * as they run: operators on the types they actually see, constant subexpressions into their values, and calls to the
+ * function they actually reach. Nodes which see something their specialization doesn't cover fall back to a generic
+ * version, so the results are always the same as if nothing had been specialized.
+ *
+ * <p>Values are passed in and come out boxed, as {@link blue.endless.junior.ast.Constant} describes. Functions can be
+ * redefined at any time; calls pick up the new definition from then on. An evaluator is not thread-safe.
+ */
+public class Evaluator {
+	protected final HashMap<String, FunctionTarget> functions = new HashMap<>();
+	/** Changes whenever a function is defined, so call nodes know when to check whether their function has changed. */
+	int generation = 0;
+	
+	/** Defines a function, replacing any function already defined with the same name. */
+	public void define(Function function) {
+		functions.put(function.getName(), new FunctionTarget(this, function));
+		generation++;
+	}
+	
+	public boolean isDefined(String name) {
+		return functions.containsKey(name);
+	}
+	
+	/** Calls the named function, and returns its result, or null if it doesn't have one. */
+	public Object call(String name, Object... arguments) throws EvaluationException {
+		FunctionTarget target = lookup(name);
+		try {
+			return target.call(arguments.clone());
+		} catch (ArithmeticException ex) {
+			throw new EvaluationException("Arithmetic error in "+name+": "+ex.getMessage(), ex);
+		} catch (StackOverflowError ex) {
+			throw new EvaluationException("Stack overflow in "+name, ex);
+		}
+	}
+	
+	/**
+	 * Runs a block on its own, as if it were the body of a function with no parameters, and returns whatever it returns, or
+	 * null if it doesn't. It can call any function defined so far.
+	 */
+	public Object evaluate(CodeBlock block) throws EvaluationException {
+		FunctionTarget target = new FunctionTarget(this, new Function("<block>", Collections.emptyList(), null, block));
+		try {
+			return target.call(new Object[0]);
+		} catch (ArithmeticException ex) {
+			throw new EvaluationException("Arithmetic error: "+ex.getMessage(), ex);
+		} catch (StackOverflowError ex) {
+			throw new EvaluationException("Stack overflow", ex);
+		}
+	}
+	
+	FunctionTarget lookup(String name) throws EvaluationException {
+		FunctionTarget target = functions.get(name);
+		if (target==null) throw new EvaluationException("No function named \""+name+"\" is defined");
+		return target;
+	}
+}
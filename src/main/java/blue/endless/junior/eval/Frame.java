@@ -0,0 +1,58 @@
+package blue.endless.junior.eval;
+
+import blue.endless.junior.ast.DataType;
+
+/**
+ * The local variables of one call. Values are stored unboxed, each alongside its type, so specialized nodes can read and
+ * write them without allocating; only generic nodes box them.
+ */
+final class Frame {
+	final long[] values;
+	/** The type of the value in each slot, or null if nothing's been stored there yet. */
+	final DataType[] types;
+	
+	Frame(int size) {
+		values = new long[size];
+		types = new DataType[size];
+	}
+	
+	/** Returns the value in slot, boxed, or null if it hasn't been set. */
+	Object get(int slot) {
+		DataType type = types[slot];
+		if (type==null) return null;
+		long value = values[slot];
+		switch(type) {
+		case I8:  return (byte) value;
+		case I16: return (short) value;
+		case I32: return (int) value;
+		case F32: return Float.intBitsToFloat((int) value);
+		case F64: return Double.longBitsToDouble(value);
+		default:  return value;
+		}
+	}
+	
+	void set(int slot, Object value) throws EvaluationException {
+		DataType type = Values.typeOf(value);
+		switch(type) {
+		case F32: values[slot] = Float.floatToRawIntBits((Float) value); break;
+		case F64: values[slot] = Double.doubleToRawLongBits((Double) value); break;
+		default:  values[slot] = ((Number) value).longValue(); break;
+		}
+		types[slot] = type;
+	}
+	
+	void setInt32(int slot, int value) {
+		values[slot] = value;
+		types[slot] = DataType.I32;
+	}
+	
+	void setInt64(int slot, long value) {
+		values[slot] = value;
+		types[slot] = DataType.I64;
+	}
+	
+	void setFloat64(int slot, double value) {
+		values[slot] = Double.doubleToRawLongBits(value);
+		types[slot] = DataType.F64;
+	}
+}
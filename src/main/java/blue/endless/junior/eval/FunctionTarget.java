@@ -0,0 +1,42 @@
+package blue.endless.junior.eval;
+
+import blue.endless.junior.ast.DataType;
+import blue.endless.junior.ast.Function;
+
+/** One definition of a function, as the evaluator runs it. Its tree is only built the first time it's called. */
+final class FunctionTarget {
+	final Evaluator evaluator;
+	final Function function;
+	private BlockNode body;
+	private int frameSize;
+	
+	FunctionTarget(Evaluator evaluator, Function function) {
+		this.evaluator = evaluator;
+		this.function = function;
+	}
+	
+	Object call(Object[] arguments) throws EvaluationException {
+		if (arguments.length!=function.getParameters().size()) {
+			throw new EvaluationException("Function "+function.getName()+" takes "+function.getParameters().size()+" arguments, not "+arguments.length);
+		}
+		if (body==null) {
+			NodeBuilder builder = new NodeBuilder(evaluator, function);
+			body = builder.build();
+			frameSize = builder.getFrameSize();
+		}
+		
+		Frame frame = new Frame(frameSize);
+		for(int i=0; i<arguments.length; i++) {
+			frame.set(i, Values.convert(arguments[i], function.getParameters().get(i).getType()));
+		}
+		
+		DataType resultType = function.getResultType();
+		try {
+			body.execute(frame);
+		} catch (ReturnException ex) {
+			return (resultType==null || ex.getResult()==null) ? ex.getResult() : Values.convert(ex.getResult(), resultType);
+		}
+		if (resultType!=null) throw new EvaluationException("Function "+function.getName()+" ended without returning a result");
+		return null;
+	}
+}
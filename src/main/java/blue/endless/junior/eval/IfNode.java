@@ -0,0 +1,29 @@
+package blue.endless.junior.eval;
+
+final class IfNode extends Node {
+	Node condition;
+	final BlockNode then;
+	/** Null if there's no "else" block. */
+	final BlockNode otherwise;
+	
+	IfNode(Node condition, BlockNode then, BlockNode otherwise) {
+		this.condition = adopt(condition);
+		this.then = adopt(then);
+		this.otherwise = adopt(otherwise);
+	}
+	
+	@Override
+	protected void replaceChild(Node child, Node replacement) {
+		if (child==condition) condition = replacement;
+	}
+	
+	@Override
+	Object execute(Frame frame) throws EvaluationException {
+		if (condition.executeCondition(frame)) {
+			then.execute(frame);
+		} else if (otherwise!=null) {
+			otherwise.execute(frame);
+		}
+		return null;
+	}
+}
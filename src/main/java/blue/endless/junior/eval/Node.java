@@ -0,0 +1,59 @@
+package blue.endless.junior.eval;
+
+/**
+ * One node of an executable tree, built from the AST by {@link NodeBuilder}. Nodes start out generic or uninitialized, and
+ * the first time they run they replace themselves in their parent with a version specialized for what they saw: the types
+ * their operands turned out to have, the function a call turned out to reach, or simply the answer, if it can't change. If
+ * a specialized node later sees something it doesn't handle, it replaces itself with the generic version and carries on.
+ *
+ * <p>Values come out of {@link #execute(Frame)} boxed. Nodes which expect a particular type ask their children for it with
+ * the typed execute methods instead, which nodes specialized for that type override to avoid boxing at all. If the value
+ * turns out to be some other type, those throw an {@link UnexpectedResultException} carrying it.
+ *
+ * <p>Trees rewrite themselves as they run, so a tree must only run on one Java thread at a time.
+ */
+abstract class Node {
+	protected Node parent;
+	
+	/** Runs this node and returns its value, or null if it's a statement. */
+	abstract Object execute(Frame frame) throws EvaluationException;
+	
+	int executeInt32(Frame frame) throws EvaluationException, UnexpectedResultException {
+		return Values.expectInt32(execute(frame));
+	}
+	
+	long executeInt64(Frame frame) throws EvaluationException, UnexpectedResultException {
+		return Values.expectInt64(execute(frame));
+	}
+	
+	double executeFloat64(Frame frame) throws EvaluationException, UnexpectedResultException {
+		return Values.expectFloat64(execute(frame));
+	}
+	
+	/** Runs this node as the condition of an if or while, which holds if the value isn't zero. */
+	boolean executeCondition(Frame frame) throws EvaluationException {
+		try {
+			return executeInt32(frame)!=0;
+		} catch (UnexpectedResultException ex) {
+			return Values.isTrue(ex.getResult());
+		}
+	}
+	
+	/** Makes child a child of this node, and returns it. */
+	protected <T extends Node> T adopt(T child) {
+		if (child!=null) child.parent = this;
+		return child;
+	}
+	
+	/** Puts replacement where this node is in its parent, and returns it. This node must not be run again afterwards. */
+	protected <T extends Node> T replace(T replacement) {
+		parent.replaceChild(this, replacement);
+		replacement.parent = parent;
+		return replacement;
+	}
+	
+	/** Swaps child, one of this node's children, for replacement. */
+	protected void replaceChild(Node child, Node replacement) {
+		throw new IllegalStateException(getClass().getSimpleName()+" has no children to replace");
+	}
+}
@@ -0,0 +1,137 @@
+package blue.endless.junior.eval;
+
+import java.util.HashMap;
+import java.util.List;
+
+import blue.endless.junior.ast.Assignment;
+import blue.endless.junior.ast.BinaryOperation;
+import blue.endless.junior.ast.Call;
+import blue.endless.junior.ast.CodeBlock;
+import blue.endless.junior.ast.Constant;
+import blue.endless.junior.ast.Conversion;
+import blue.endless.junior.ast.DataType;
+import blue.endless.junior.ast.Declaration;
+import blue.endless.junior.ast.Expression;
+import blue.endless.junior.ast.Function;
+import blue.endless.junior.ast.If;
+import blue.endless.junior.ast.Instruction;
+import blue.endless.junior.ast.Return;
+import blue.endless.junior.ast.Statement;
+import blue.endless.junior.ast.Variable;
+import blue.endless.junior.ast.While;
+
+/**
+ * Builds the executable tree for one function. Every local variable gets a slot in the frame, parameters first, in order.
+ * A variable declared anywhere in the function has that type everywhere in it.
+ */
+final class NodeBuilder {
+	private final Evaluator evaluator;
+	private final Function function;
+	private final HashMap<String, Integer> slots = new HashMap<>();
+	private final HashMap<String, DataType> declared = new HashMap<>();
+	
+	NodeBuilder(Evaluator evaluator, Function function) {
+		this.evaluator = evaluator;
+		this.function = function;
+	}
+	
+	BlockNode build() throws EvaluationException {
+		for(Declaration parameter : function.getParameters()) {
+			if (slots.containsKey(parameter.getVariable())) throw new EvaluationException("Function "+function.getName()+" has two parameters named "+parameter.getVariable());
+			declare(parameter);
+			slot(parameter.getVariable());
+		}
+		collectDeclarations(function.getBody());
+		return block(function.getBody());
+	}
+	
+	/** Returns the number of slots the function's frame needs. Only valid after {@link #build()}. */
+	int getFrameSize() {
+		return slots.size();
+	}
+	
+	private int slot(String variable) {
+		Integer slot = slots.get(variable);
+		if (slot==null) {
+			slot = slots.size();
+			slots.put(variable, slot);
+		}
+		return slot;
+	}
+	
+	private void declare(Declaration declaration) throws EvaluationException {
+		DataType previous = declared.put(declaration.getVariable(), declaration.getType());
+		if (previous!=null && previous!=declaration.getType()) {
+			throw new EvaluationException("Variable "+declaration.getVariable()+" is declared as both "+previous+" and "+declaration.getType()+" in "+function.getName());
+		}
+	}
+	
+	private void collectDeclarations(CodeBlock block) throws EvaluationException {
+		for(Statement statement : block) {
+			if (statement instanceof Declaration) {
+				declare((Declaration) statement);
+			} else if (statement instanceof If) {
+				collectDeclarations(((If) statement).getThen());
+				if (((If) statement).getOtherwise()!=null) collectDeclarations(((If) statement).getOtherwise());
+			} else if (statement instanceof While) {
+				collectDeclarations(((While) statement).getBody());
+			}
+		}
+	}
+	
+	private BlockNode block(CodeBlock block) throws EvaluationException {
+		List<Statement> statements = block.getStatements();
+		Node[] nodes = new Node[statements.size()];
+		for(int i=0; i<nodes.length; i++) nodes[i] = statement(statements.get(i));
+		return new BlockNode(nodes);
+	}
+	
+	private Node statement(Statement statement) throws EvaluationException {
+		if (statement instanceof Assignment) {
+			Assignment assignment = (Assignment) statement;
+			String variable = assignment.getVariable();
+			return new WriteLocalNode.Uninitialized(slot(variable), declared.get(variable), expression(assignment.getValue()));
+		} else if (statement instanceof Declaration) {
+			Declaration declaration = (Declaration) statement;
+			return new WriteLocalNode.Uninitialized(slot(declaration.getVariable()), declaration.getType(), new ConstantNode(Values.zero(declaration.getType())));
+		} else if (statement instanceof Call) {
+			return expression((Call) statement);
+		} else if (statement instanceof If) {
+			If branch = (If) statement;
+			return new IfNode(expression(branch.getCondition()), block(branch.getThen()), (branch.getOtherwise()==null) ? null : block(branch.getOtherwise()));
+		} else if (statement instanceof While) {
+			While loop = (While) statement;
+			return new WhileNode(expression(loop.getCondition()), block(loop.getBody()));
+		} else if (statement instanceof Return) {
+			Expression value = ((Return) statement).getValue();
+			if (value==null && function.getResultType()!=null) throw new EvaluationException("Function "+function.getName()+" returns without a result");
+			return new ReturnNode((value==null) ? null : expression(value));
+		} else if (statement instanceof Instruction) {
+			throw new EvaluationException("Assembly instructions can't be evaluated");
+		} else {
+			throw new EvaluationException("Can't evaluate a "+statement.getClass().getSimpleName());
+		}
+	}
+	
+	private Node expression(Expression expression) throws EvaluationException {
+		if (expression instanceof Constant) {
+			return new ConstantNode(((Constant) expression).getValue());
+		} else if (expression instanceof Variable) {
+			String name = ((Variable) expression).getName();
+			return new ReadLocalNode.Uninitialized(slot(name), name);
+		} else if (expression instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) expression;
+			return new BinaryNode.Uninitialized(operation.getOperator(), expression(operation.getLeft()), expression(operation.getRight()));
+		} else if (expression instanceof Conversion) {
+			Conversion conversion = (Conversion) expression;
+			return new ConvertNode.Uninitialized(conversion.getType(), expression(conversion.getOperand()));
+		} else if (expression instanceof Call) {
+			Call call = (Call) expression;
+			Node[] arguments = new Node[call.getArguments().size()];
+			for(int i=0; i<arguments.length; i++) arguments[i] = expression(call.getArguments().get(i));
+			return new CallNode.Uninitialized(evaluator, call.getFunction(), arguments);
+		} else {
+			throw new EvaluationException("Can't evaluate a "+expression.getClass().getSimpleName());
+		}
+	}
+}
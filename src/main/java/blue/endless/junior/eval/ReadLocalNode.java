@@ -0,0 +1,101 @@
+package blue.endless.junior.eval;
+
+import blue.endless.junior.ast.DataType;
+
+/** Reads a local variable. Specializes on the type of value the variable holds. */
+abstract class ReadLocalNode extends Node {
+	final int slot;
+	final String name;
+	
+	ReadLocalNode(int slot, String name) {
+		this.slot = slot;
+		this.name = name;
+	}
+	
+	/** Reads the variable's value boxed, no matter its type, and switches to the generic node to do so from now on. */
+	protected Object generalize(Frame frame) throws EvaluationException {
+		return replace(new Generic(slot, name)).execute(frame);
+	}
+	
+	static final class Uninitialized extends ReadLocalNode {
+		Uninitialized(int slot, String name) {
+			super(slot, name);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			DataType type = frame.types[slot];
+			if (type==DataType.I32) return replace(new Int32(slot, name)).execute(frame);
+			if (type==DataType.I64) return replace(new Int64(slot, name)).execute(frame);
+			if (type==DataType.F64) return replace(new Float64(slot, name)).execute(frame);
+			return generalize(frame);
+		}
+	}
+	
+	static final class Int32 extends ReadLocalNode {
+		Int32(int slot, String name) {
+			super(slot, name);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			if (frame.types[slot]!=DataType.I32) return generalize(frame);
+			return (int) frame.values[slot];
+		}
+		
+		@Override
+		int executeInt32(Frame frame) throws EvaluationException, UnexpectedResultException {
+			if (frame.types[slot]!=DataType.I32) throw new UnexpectedResultException(generalize(frame));
+			return (int) frame.values[slot];
+		}
+	}
+	
+	static final class Int64 extends ReadLocalNode {
+		Int64(int slot, String name) {
+			super(slot, name);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			if (frame.types[slot]!=DataType.I64) return generalize(frame);
+			return frame.values[slot];
+		}
+		
+		@Override
+		long executeInt64(Frame frame) throws EvaluationException, UnexpectedResultException {
+			if (frame.types[slot]!=DataType.I64) throw new UnexpectedResultException(generalize(frame));
+			return frame.values[slot];
+		}
+	}
+	
+	static final class Float64 extends ReadLocalNode {
+		Float64(int slot, String name) {
+			super(slot, name);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			if (frame.types[slot]!=DataType.F64) return generalize(frame);
+			return Double.longBitsToDouble(frame.values[slot]);
+		}
+		
+		@Override
+		double executeFloat64(Frame frame) throws EvaluationException, UnexpectedResultException {
+			if (frame.types[slot]!=DataType.F64) throw new UnexpectedResultException(generalize(frame));
+			return Double.longBitsToDouble(frame.values[slot]);
+		}
+	}
+	
+	static final class Generic extends ReadLocalNode {
+		Generic(int slot, String name) {
+			super(slot, name);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			Object value = frame.get(slot);
+			if (value==null) throw new EvaluationException("Variable "+name+" is read before it's set");
+			return value;
+		}
+	}
+}
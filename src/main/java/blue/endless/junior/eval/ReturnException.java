@@ -0,0 +1,20 @@
+package blue.endless.junior.eval;
+
+/**
+ * Carries a function's result from the return statement out to the call which is waiting for it. It's thrown on every return,
+ * so it has no stack trace.
+ */
+final class ReturnException extends RuntimeException {
+	private static final long serialVersionUID = -1384302418437734871L;
+	
+	private final Object result;
+	
+	ReturnException(Object result) {
+		super(null, null, false, false);
+		this.result = result;
+	}
+	
+	Object getResult() {
+		return result;
+	}
+}
@@ -0,0 +1,20 @@
+package blue.endless.junior.eval;
+
+final class ReturnNode extends Node {
+	/** Null for functions without a result. */
+	Node value;
+	
+	ReturnNode(Node value) {
+		this.value = adopt(value);
+	}
+	
+	@Override
+	protected void replaceChild(Node child, Node replacement) {
+		if (child==value) value = replacement;
+	}
+	
+	@Override
+	Object execute(Frame frame) throws EvaluationException {
+		throw new ReturnException((value==null) ? null : value.execute(frame));
+	}
+}
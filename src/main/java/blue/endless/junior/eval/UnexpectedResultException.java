@@ -0,0 +1,20 @@
+package blue.endless.junior.eval;
+
+/**
+ * Thrown by a node's typed execute method when the value turned out not to be of that type after all. Carries the value, so
+ * the caller can carry on with it after switching to a more general node.
+ */
+final class UnexpectedResultException extends Exception {
+	private static final long serialVersionUID = 6154911417519815446L;
+	
+	private final Object result;
+	
+	UnexpectedResultException(Object result) {
+		super(null, null, false, false);
+		this.result = result;
+	}
+	
+	Object getResult() {
+		return result;
+	}
+}
@@ -0,0 +1,89 @@
+package blue.endless.junior.eval;
+
+import blue.endless.junior.ast.Arithmetic;
+import blue.endless.junior.ast.BinaryOperation.Operator;
+import blue.endless.junior.ast.DataType;
+
+/**
+ * {@link Arithmetic}, with its errors turned into EvaluationExceptions, plus the unboxing the specialized nodes need. Values
+ * are boxed as {@link blue.endless.junior.ast.Constant} describes; words are Longs, so they're indistinguishable from i64s
+ * once evaluated.
+ */
+final class Values {
+	private Values() {}
+	
+	static DataType typeOf(Object value) throws EvaluationException {
+		DataType type = Arithmetic.typeOf(value);
+		if (type==null) throw new EvaluationException((value==null) ? "Missing value" : "Can't use a "+value.getClass().getSimpleName()+" as a value");
+		return type;
+	}
+	
+	static Object binary(Operator operator, Object a, Object b) throws EvaluationException {
+		typeOf(a);
+		typeOf(b);
+		try {
+			return Arithmetic.apply(operator, (Number) a, (Number) b);
+		} catch (IllegalArgumentException ex) {
+			throw new EvaluationException(ex.getMessage(), ex);
+		}
+	}
+	
+	/** Integer division and remainder by zero throw an ArithmeticException, the same as they do in Java. */
+	static int int32(Operator operator, int a, int b) {
+		return Arithmetic.int32(operator, a, b);
+	}
+	
+	static long int64(Operator operator, long a, long b) {
+		return Arithmetic.int64(operator, a, b);
+	}
+	
+	static double float64(Operator operator, double a, double b) throws EvaluationException {
+		try {
+			return Arithmetic.float64(operator, a, b);
+		} catch (IllegalArgumentException ex) {
+			throw new EvaluationException(ex.getMessage(), ex);
+		}
+	}
+	
+	static boolean compare(Operator operator, long a, long b) {
+		return Arithmetic.compare(operator, a, b);
+	}
+	
+	static boolean compare(Operator operator, double a, double b) {
+		return Arithmetic.compare(operator, a, b);
+	}
+	
+	static Object convert(Object value, DataType type) throws EvaluationException {
+		typeOf(value);
+		try {
+			return Arithmetic.convert((Number) value, type);
+		} catch (IllegalArgumentException ex) {
+			throw new EvaluationException(ex.getMessage(), ex);
+		}
+	}
+	
+	static Object zero(DataType type) throws EvaluationException {
+		return convert(0, type);
+	}
+	
+	/** Conditions hold when they're anything but zero. */
+	static boolean isTrue(Object value) throws EvaluationException {
+		typeOf(value);
+		return Arithmetic.isTrue((Number) value);
+	}
+	
+	static int expectInt32(Object value) throws UnexpectedResultException {
+		if (value instanceof Integer) return (Integer) value;
+		throw new UnexpectedResultException(value);
+	}
+	
+	static long expectInt64(Object value) throws UnexpectedResultException {
+		if (value instanceof Long) return (Long) value;
+		throw new UnexpectedResultException(value);
+	}
+	
+	static double expectFloat64(Object value) throws UnexpectedResultException {
+		if (value instanceof Double) return (Double) value;
+		throw new UnexpectedResultException(value);
+	}
+}
@@ -0,0 +1,22 @@
+package blue.endless.junior.eval;
+
+final class WhileNode extends Node {
+	Node condition;
+	final BlockNode body;
+	
+	WhileNode(Node condition, BlockNode body) {
+		this.condition = adopt(condition);
+		this.body = adopt(body);
+	}
+	
+	@Override
+	protected void replaceChild(Node child, Node replacement) {
+		if (child==condition) condition = replacement;
+	}
+	
+	@Override
+	Object execute(Frame frame) throws EvaluationException {
+		while(condition.executeCondition(frame)) body.execute(frame);
+		return null;
+	}
+}
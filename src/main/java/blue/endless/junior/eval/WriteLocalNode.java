@@ -0,0 +1,127 @@
+package blue.endless.junior.eval;
+
+import blue.endless.junior.ast.DataType;
+
+/**
+ * Stores a value in a local variable, converting it to the variable's declared type if it has one. Specializes on the type of
+ * value stored, when that needs no conversion.
+ */
+abstract class WriteLocalNode extends Node {
+	final int slot;
+	/** The variable's declared type, or null if it can hold anything. */
+	final DataType declared;
+	Node value;
+	
+	WriteLocalNode(int slot, DataType declared, Node value) {
+		this.slot = slot;
+		this.declared = declared;
+		this.value = adopt(value);
+	}
+	
+	@Override
+	protected void replaceChild(Node child, Node replacement) {
+		if (child==value) value = replacement;
+	}
+	
+	/** Finishes storing a value whose type the specialization didn't expect, and switches to the generic node. */
+	protected Object generalize(Frame frame, Object result) throws EvaluationException {
+		return replace(new Generic(slot, declared, value)).store(frame, result);
+	}
+	
+	static final class Uninitialized extends WriteLocalNode {
+		Uninitialized(int slot, DataType declared, Node value) {
+			super(slot, declared, value);
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			Object result = value.execute(frame);
+			DataType type = Values.typeOf(result);
+			if (declared==null || declared==type) {
+				if (type==DataType.I32) return replace(new Int32(slot, declared, value)).store(frame, result);
+				if (type==DataType.I64) return replace(new Int64(slot, declared, value)).store(frame, result);
+				if (type==DataType.F64) return replace(new Float64(slot, declared, value)).store(frame, result);
+			}
+			return generalize(frame, result);
+		}
+	}
+	
+	static final class Int32 extends WriteLocalNode {
+		Int32(int slot, DataType declared, Node value) {
+			super(slot, declared, value);
+		}
+		
+		Object store(Frame frame, Object result) {
+			frame.setInt32(slot, (Integer) result);
+			return null;
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			try {
+				frame.setInt32(slot, value.executeInt32(frame));
+			} catch (UnexpectedResultException ex) {
+				generalize(frame, ex.getResult());
+			}
+			return null;
+		}
+	}
+	
+	static final class Int64 extends WriteLocalNode {
+		Int64(int slot, DataType declared, Node value) {
+			super(slot, declared, value);
+		}
+		
+		Object store(Frame frame, Object result) {
+			frame.setInt64(slot, (Long) result);
+			return null;
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			try {
+				frame.setInt64(slot, value.executeInt64(frame));
+			} catch (UnexpectedResultException ex) {
+				generalize(frame, ex.getResult());
+			}
+			return null;
+		}
+	}
+	
+	static final class Float64 extends WriteLocalNode {
+		Float64(int slot, DataType declared, Node value) {
+			super(slot, declared, value);
+		}
+		
+		Object store(Frame frame, Object result) {
+			frame.setFloat64(slot, (Double) result);
+			return null;
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			try {
+				frame.setFloat64(slot, value.executeFloat64(frame));
+			} catch (UnexpectedResultException ex) {
+				generalize(frame, ex.getResult());
+			}
+			return null;
+		}
+	}
+	
+	static final class Generic extends WriteLocalNode {
+		Generic(int slot, DataType declared, Node value) {
+			super(slot, declared, value);
+		}
+		
+		Object store(Frame frame, Object result) throws EvaluationException {
+			frame.set(slot, (declared==null) ? result : Values.convert(result, declared));
+			return null;
+		}
+		
+		@Override
+		Object execute(Frame frame) throws EvaluationException {
+			return store(frame, value.execute(frame));
+		}
+	}
+}
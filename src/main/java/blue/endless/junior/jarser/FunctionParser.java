@@ -0,0 +1,878 @@
+package blue.endless.junior.jarser;
+
+import static blue.endless.junior.esovm.VMThread.*;
+import static blue.endless.junior.jarser.Lexer.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import blue.endless.junior.ast.DataType;
+import blue.endless.junior.esovm.Half;
+import blue.endless.junior.esovm.StackFrame;
+import blue.endless.junior.esovm.VMException;
+
+/**
+ * Parses one function and assembles it as it goes, straight into EsoVM instructions. The function is assembled on its own,
+ * as if it started at address 0 and had a constant pool to itself: jump targets are left relative to the function's start,
+ * and constants and strings are written down rather than added to a pool, so functions can be parsed in parallel and
+ * {@link JarserParser} can put them together afterwards.
+ *
+ * <p>The implicit function, made of every statement outside a function, has no header and no {@code end}, and returns once
+ * its last statement is done.
+ */
+final class FunctionParser {
+	private static final String[] KEYWORDS = {
+		"function", "export", "end", "var",
+		"load", "store", "push", "pop", "allocate", "free",
+		"add", "sub", "mul", "div", "mod", "shl", "shr", "asr",
+		"convert", "call", "return", "test", "jump", "cload", "cstore", "interrupt", "out", "in", "halt",
+		"i8", "i16", "i32", "i64", "f16", "f32", "f64", "word",
+		"zero", "not_zero", "less", "greater", "negative", "not_negative",
+		"nan", "inf",
+		"memcopy", "memfill", "memcompare", "vadd", "vmul", "vmuladd", "vsum", "vdot"
+	};
+	//Ids of the keywords, which are interned first and in order
+	private static final int KEYWORD_FUNCTION  = 0;
+	private static final int KEYWORD_EXPORT    = 1;
+	private static final int KEYWORD_END       = 2;
+	private static final int KEYWORD_VAR       = 3;
+	private static final int KEYWORD_LOAD      = 4;
+	private static final int KEYWORD_STORE     = 5;
+	private static final int KEYWORD_PUSH      = 6;
+	private static final int KEYWORD_POP       = 7;
+	private static final int KEYWORD_ALLOCATE  = 8;
+	private static final int KEYWORD_FREE      = 9;
+	private static final int KEYWORD_ADD       = 10; //through KEYWORD_ADD+7, "asr", in opcode order
+	private static final int KEYWORD_CONVERT   = 18;
+	private static final int KEYWORD_CALL      = 19;
+	private static final int KEYWORD_RETURN    = 20;
+	private static final int KEYWORD_TEST      = 21;
+	private static final int KEYWORD_JUMP      = 22;
+	private static final int KEYWORD_CLOAD     = 23;
+	private static final int KEYWORD_CSTORE    = 24;
+	private static final int KEYWORD_INTERRUPT = 25;
+	private static final int KEYWORD_OUT       = 26;
+	private static final int KEYWORD_IN        = 27;
+	private static final int KEYWORD_HALT      = 28;
+	private static final int KEYWORD_I8        = 29; //through KEYWORD_I8+7, "word", in data type order
+	private static final int KEYWORD_ZERO      = 37; //through KEYWORD_ZERO+5, "not_negative", in condition code order
+	private static final int KEYWORD_NAN       = 43;
+	private static final int KEYWORD_INF       = 44;
+	private static final int KEYWORD_MEMCOPY   = 45; //through KEYWORD_VDOT, in opcode order
+	private static final int KEYWORD_MEMFILL   = 46;
+	private static final int KEYWORD_MEMCOMPARE = 47;
+	private static final int KEYWORD_VADD      = 48;
+	private static final int KEYWORD_VMUL      = 49;
+	private static final int KEYWORD_VMULADD   = 50;
+	private static final int KEYWORD_VSUM      = 51;
+	private static final int KEYWORD_VDOT      = 52;
+	private static final int KEYWORD_COUNT     = 53;
+	
+	/** Every parser's names start from a copy of this, which holds only the keywords and is never changed. */
+	private static final Interner KEYWORD_NAMES = new Interner();
+	static {
+		for(String keyword : KEYWORDS) KEYWORD_NAMES.intern(keyword);
+	}
+	
+	private static final DataType[] TYPES = DataType.values();
+	
+	/** What an operand turned out to be. */
+	private static final int REGISTER_OPERAND = 0;
+	private static final int INTEGER_OPERAND  = 1;
+	private static final int FLOAT_OPERAND    = 2;
+	private static final int MEMORY_OPERAND   = 3;
+	
+	/** One operand, as parsed. There are only ever three at once, so they're reused rather than allocated per statement. */
+	private static final class Operand {
+		int kind;
+		/** For registers, the data type and LVT index. */
+		int type;
+		int index;
+		/** For integer literals, the value, which may be anything up to 64 unsigned bits if negative is false. */
+		long integer;
+		boolean negative;
+		double floating;
+		/** For memory operands, the base register, the addressing mode, and the offset - an LVT index, or a value. */
+		int base;
+		int mode;
+		long offset;
+	}
+	
+	private final Interner names = new Interner(KEYWORD_NAMES);
+	private final Lexer lexer;
+	private final boolean implicit;
+	private final Operand destination = new Operand();
+	private final Operand first = new Operand();
+	private final Operand second = new Operand();
+	
+	/** The type and LVT index of each variable, indexed by name id; the type is -1 for names which aren't variables. */
+	private int[] variableTypes = new int[0];
+	private int[] variableIndices = new int[0];
+	/** Instruction index of each label, indexed by name id, or -1. */
+	private int[] labels = new int[0];
+	private final int[] counts = new int[TYPES.length];
+	/** Jumps waiting for their labels: the instruction, the label's name id, and the line, for errors. */
+	private int[] pendingJumps = new int[16];
+	private int pendingCount = 0;
+	
+	//What the parse produced
+	/** The line the function starts on. */
+	final int line;
+	String name;
+	boolean exported;
+	int argumentBytes = 0;
+	int resultBytes = 0;
+	long lvtInfo;
+	byte[] code = new byte[256];
+	int length = 0;
+	/** Instructions whose operand2 is an address, which is relative to the start of the function until it's placed. */
+	int[] jumps = new int[16];
+	int jumpCount = 0;
+	/** Instructions whose operand2 is a constant: the instruction, its pool's data type, and the value's raw bits. */
+	int[] constantInstructions = new int[16];
+	int[] constantTypes = new int[16];
+	long[] constantBits = new long[16];
+	int constantCount = 0;
+	/** Instructions whose operand2 is a string constant, and the string. */
+	int[] stringInstructions = new int[16];
+	String[] strings = new String[16];
+	int stringCount = 0;
+	/** Set if the function didn't parse; nothing else about it can be trusted then. */
+	ParseException error;
+	
+	FunctionParser(List<Region> regions, boolean implicit) {
+		this.lexer = new Lexer(names, regions);
+		this.implicit = implicit;
+		this.line = regions.get(0).line;
+		if (implicit) {
+			name = "main";
+			exported = true;
+		}
+	}
+	
+	/** Parses the function, leaving any problem in {@link #error} rather than throwing it. */
+	void parse() {
+		try {
+			lexer.next();
+			if (!implicit) header();
+			while(true) {
+				if (lexer.kind==EOF) {
+					if (!implicit) throw new ParseException(lexer.line, "Function "+name+" has no end");
+					break;
+				}
+				if (lexer.kind==NEWLINE) {
+					lexer.next();
+					continue;
+				}
+				if (!implicit && isKeyword(KEYWORD_END)) {
+					lexer.next();
+					endOfLine();
+					break;
+				}
+				statement();
+			}
+			if (implicit) emit(OPCODE_RETURN, 0, 0, 0, 0, 0);
+			
+			for(int i=0; i<pendingCount; i+=3) {
+				int instruction = pendingJumps[i];
+				int label = pendingJumps[i+1];
+				if (label>=labels.length || labels[label]==-1) throw new ParseException(pendingJumps[i+2], "There's no label named "+names.name(label));
+				setOperand2(instruction, labels[label] << 3);
+			}
+			
+			try {
+				lvtInfo = StackFrame.lvtInfo(
+						counts[DATA_WORD], counts[DATA_INT64], counts[DATA_FLOAT64], counts[DATA_INT32],
+						counts[DATA_FLOAT32], counts[DATA_INT16], counts[DATA_FLOAT16], counts[DATA_INT8]);
+			} catch (VMException ex) {
+				throw new ParseException("Function "+name+" has too many registers: "+ex.getMessage(), ex);
+			}
+		} catch (ParseException ex) {
+			error = ex;
+		}
+	}
+	
+	/*
+	 * Declarations
+	 */
+	
+	/** Parses {@code [export] function name(type, ...) [-> type, ...]}. */
+	private void header() throws ParseException {
+		if (isKeyword(KEYWORD_EXPORT)) {
+			exported = true;
+			lexer.next();
+		}
+		if (!isKeyword(KEYWORD_FUNCTION)) throw unexpected("a function");
+		lexer.next();
+		if (lexer.kind!=IDENTIFIER || lexer.symbol<KEYWORD_COUNT) throw unexpected("a function name");
+		name = names.name(lexer.symbol);
+		lexer.next();
+		
+		expect('(');
+		if (!isPunctuation(')')) {
+			argumentBytes += type().getWidth();
+			while(isPunctuation(',')) {
+				lexer.next();
+				argumentBytes += type().getWidth();
+			}
+		}
+		expect(')');
+		if (isPunctuation(ARROW)) {
+			lexer.next();
+			resultBytes += type().getWidth();
+			while(isPunctuation(',')) {
+				lexer.next();
+				resultBytes += type().getWidth();
+			}
+		}
+		endOfLine();
+	}
+	
+	private DataType type() throws ParseException {
+		if (lexer.kind!=IDENTIFIER || lexer.symbol<KEYWORD_I8 || lexer.symbol>KEYWORD_I8+7) throw unexpected("a type");
+		DataType type = TYPES[lexer.symbol-KEYWORD_I8];
+		lexer.next();
+		return type;
+	}
+	
+	/*
+	 * Statements
+	 */
+	
+	private void statement() throws ParseException {
+		if (lexer.kind==PUNCTUATION && lexer.punctuation=='[') {
+			memory(destination);
+			assignment();
+			return;
+		}
+		if (lexer.kind!=IDENTIFIER) throw unexpected("a statement");
+		
+		int symbol = lexer.symbol;
+		if (symbol>=KEYWORD_COUNT) {
+			lexer.next();
+			if (isPunctuation(':')) {
+				lexer.next();
+				label(symbol);
+				if (lexer.kind!=NEWLINE && lexer.kind!=EOF) statement();
+				return;
+			}
+			variable(symbol, destination);
+			assignment();
+			return;
+		}
+		if (symbol>=KEYWORD_I8 && symbol<=KEYWORD_I8+7) {
+			register(destination);
+			assignment();
+			return;
+		}
+		
+		int line = lexer.line;
+		lexer.next();
+		switch(symbol) {
+		case KEYWORD_VAR:
+			variables();
+			return;
+		case KEYWORD_PUSH:
+		case KEYWORD_TEST:
+			register(first);
+			emit((symbol==KEYWORD_PUSH) ? OPCODE_PUSH : OPCODE_TEST, first.type, 0, 0, first.index, 0);
+			break;
+		case KEYWORD_FREE:
+			register(first);
+			requireWord(first, "free");
+			emit(OPCODE_FREE, DATA_WORD, 0, 0, first.index, 0);
+			break;
+		case KEYWORD_CALL: {
+			String target;
+			if (lexer.kind==STRING) {
+				target = lexer.string;
+			} else if (lexer.kind==IDENTIFIER && lexer.symbol>=KEYWORD_COUNT) {
+				target = names.name(lexer.symbol);
+			} else {
+				throw unexpected("a function name");
+			}
+			lexer.next();
+			string(emit(OPCODE_CALL, 0, 0, 0, 0, 0), target);
+			break;
+		}
+		case KEYWORD_RETURN:
+			emit(OPCODE_RETURN, 0, 0, 0, 0, 0);
+			break;
+		case KEYWORD_HALT: {
+			int instruction = emit(OPCODE_HALT, 0, 0, 0, 0, 0);
+			if (lexer.kind==STRING) {
+				string(instruction, lexer.string);
+				lexer.next();
+			}
+			break;
+		}
+		case KEYWORD_JUMP: {
+			int condition = -1;
+			if (lexer.kind==IDENTIFIER && lexer.symbol>=KEYWORD_ZERO && lexer.symbol<=KEYWORD_ZERO+5) {
+				condition = lexer.symbol-KEYWORD_ZERO;
+				lexer.next();
+			}
+			if (lexer.kind!=IDENTIFIER || lexer.symbol<KEYWORD_COUNT) throw unexpected("a label");
+			int instruction = (condition==-1) ?
+					emit(OPCODE_JUMP, 0, 0, 0, 0, 0) :
+					emit(OPCODE_CJUMP, 0, 0, 0, condition, 0);
+			jump(instruction, lexer.symbol, lexer.line);
+			lexer.next();
+			break;
+		}
+		case KEYWORD_INTERRUPT:
+			emit(OPCODE_INTERRUPT, 0, OPERAND_IMMEDIATE, 0, 0, port());
+			break;
+		case KEYWORD_OUT:
+			register(first);
+			if (isPunctuation(',')) lexer.next();
+			emit(OPCODE_OUT, first.type, OPERAND_IMMEDIATE, 0, first.index, port());
+			break;
+		case KEYWORD_MEMFILL: {
+			int address = address("memfill");
+			expect(',');
+			register(second);
+			expect(',');
+			count(OPCODE_MEMFILL, second.type, address, second.index, line);
+			break;
+		}
+		case KEYWORD_MEMCOPY:
+		case KEYWORD_MEMCOMPARE:
+		case KEYWORD_VADD:
+		case KEYWORD_VMUL:
+		case KEYWORD_VMULADD: {
+			int opcode = OPCODE_MEMCOPY + (symbol-KEYWORD_MEMCOPY);
+			int type = type().getId();
+			int address = address(names.name(symbol));
+			expect(',');
+			int source = address(names.name(symbol));
+			if (opcode>=OPCODE_VECTOR_ADD) {
+				expect(',');
+				pair(source, names.name(symbol));
+			}
+			expect(',');
+			count(opcode, type, address, source, line);
+			break;
+		}
+		default:
+			throw new ParseException(line, "A statement can't start with "+names.name(symbol));
+		}
+		endOfLine();
+	}
+	
+	/** Parses {@code var name, ... : type}, giving each variable the next free LVT index of the type. */
+	private void variables() throws ParseException {
+		int line = lexer.line;
+		int[] declared = new int[4];
+		int count = 0;
+		while(true) {
+			if (lexer.kind!=IDENTIFIER || lexer.symbol<KEYWORD_COUNT) throw unexpected("a variable name");
+			if (count==declared.length) declared = Arrays.copyOf(declared, count*2);
+			declared[count++] = lexer.symbol;
+			lexer.next();
+			if (!isPunctuation(',')) break;
+			lexer.next();
+		}
+		expect(':');
+		int type = type().getId();
+		endOfLine();
+		
+		growNames();
+		for(int i=0; i<count; i++) {
+			int symbol = declared[i];
+			if (variableTypes[symbol]!=-1) throw new ParseException(line, "The variable "+names.name(symbol)+" is declared twice");
+			if (counts[type]>0xFF) throw new ParseException(line, "There are only 256 registers of each type");
+			variableTypes[symbol] = type;
+			variableIndices[symbol] = counts[type]++;
+		}
+	}
+	
+	/** Parses whatever follows {@code destination =}. */
+	private void assignment() throws ParseException {
+		expect('=');
+		int line = lexer.line;
+		
+		if (lexer.kind==IDENTIFIER && lexer.symbol<KEYWORD_COUNT && !(lexer.symbol>=KEYWORD_I8 && lexer.symbol<=KEYWORD_I8+7) && lexer.symbol!=KEYWORD_NAN && lexer.symbol!=KEYWORD_INF) {
+			int keyword = lexer.symbol;
+			lexer.next();
+			if (keyword==KEYWORD_STORE) {
+				register(first);
+				store(line);
+			} else if (keyword==KEYWORD_CSTORE) {
+				int condition = condition();
+				register(first);
+				requireRegister(destination, line, "cstore");
+				requireSameType(first, destination, line);
+				emit(OPCODE_CSTORE, first.type, OPERAND_REGISTER, first.index, condition, destination.index);
+			} else {
+				requireRegister(destination, line, names.name(keyword));
+				switch(keyword) {
+				case KEYWORD_LOAD:
+					source(first, true);
+					load(line);
+					break;
+				case KEYWORD_POP:
+					emit(OPCODE_POP, destination.type, 0, 0, destination.index, 0);
+					break;
+				case KEYWORD_CONVERT:
+					register(first);
+					emit(OPCODE_CONVERT, first.type, destination.type, destination.index, first.index, 0);
+					break;
+				case KEYWORD_ALLOCATE:
+					requireWord(destination, "allocate");
+					source(first, false);
+					emitWithSource(OPCODE_ALLOCATE, DATA_WORD, 0, destination.index, first, line);
+					break;
+				case KEYWORD_IN:
+					emit(OPCODE_IN, destination.type, OPERAND_IMMEDIATE, 0, destination.index, port());
+					break;
+				case KEYWORD_CLOAD: {
+					int condition = condition();
+					source(first, false);
+					emitWithSource(OPCODE_CLOAD, destination.type, destination.index, condition, first, line);
+					break;
+				}
+				case KEYWORD_VSUM:
+				case KEYWORD_VDOT: {
+					int source = address(names.name(keyword));
+					if (keyword==KEYWORD_VDOT) {
+						expect(',');
+						pair(source, names.name(keyword));
+					}
+					expect(',');
+					count(OPCODE_MEMCOPY + (keyword-KEYWORD_MEMCOPY), destination.type, destination.index, source, line);
+					break;
+				}
+				default:
+					if (keyword>=KEYWORD_ADD && keyword<=KEYWORD_ADD+7) {
+						register(first);
+						if (isPunctuation(',')) lexer.next();
+						source(second, false);
+						arithmetic(OPCODE_ADD + (keyword-KEYWORD_ADD), line);
+						break;
+					}
+					throw new ParseException(line, "Expected a value, but found "+names.name(keyword));
+				}
+			}
+			endOfLine();
+			return;
+		}
+		
+		source(first, true);
+		int opcode = -1;
+		if (lexer.kind==PUNCTUATION) {
+			switch(lexer.punctuation) {
+			case '+':                  opcode = OPCODE_ADD; break;
+			case '-':                  opcode = OPCODE_SUB; break;
+			case '*':                  opcode = OPCODE_MUL; break;
+			case '/':                  opcode = OPCODE_DIV; break;
+			case '%':                  opcode = OPCODE_MOD; break;
+			case SHIFT_LEFT:           opcode = OPCODE_SHL; break;
+			case SHIFT_RIGHT_UNSIGNED: opcode = OPCODE_SHR; break;
+			case SHIFT_RIGHT:          opcode = OPCODE_ASR; break;
+			}
+		}
+		if (opcode==-1) {
+			if (destination.kind==MEMORY_OPERAND) {
+				store(line);
+			} else {
+				load(line);
+			}
+		} else {
+			lexer.next();
+			requireRegister(destination, line, "arithmetic");
+			if (first.kind!=REGISTER_OPERAND) throw new ParseException(line, "The first operand of arithmetic has to be a register");
+			source(second, false);
+			arithmetic(opcode, line);
+		}
+		endOfLine();
+	}
+	
+	/** Emits a LOAD of first into destination, which is a register. */
+	private void load(int line) throws ParseException {
+		if (first.kind==MEMORY_OPERAND) {
+			emit(OPCODE_LOAD, destination.type, first.mode, first.base, destination.index, memoryOffset(first));
+			if (first.mode==OPERAND_REGISTER_ADDRESS_PLUS_CONSTANT_OFFSET || first.mode==OPERAND_INDIRECT_ADDRESS_WITH_CONSTANT_OFFSET) {
+				constant(length-1, DATA_WORD, first.offset);
+			}
+			return;
+		}
+		emitWithSource(OPCODE_LOAD, destination.type, 0, destination.index, first, line);
+	}
+	
+	/** Emits a STORE of first, which must be a register, into destination. */
+	private void store(int line) throws ParseException {
+		if (first.kind!=REGISTER_OPERAND) throw new ParseException(line, "Only registers can be stored");
+		if (destination.kind==MEMORY_OPERAND) {
+			emit(OPCODE_STORE, first.type, destination.mode, destination.base, first.index, memoryOffset(destination));
+			if (destination.mode==OPERAND_REGISTER_ADDRESS_PLUS_CONSTANT_OFFSET || destination.mode==OPERAND_INDIRECT_ADDRESS_WITH_CONSTANT_OFFSET) {
+				constant(length-1, DATA_WORD, destination.offset);
+			}
+			return;
+		}
+		requireSameType(first, destination, line);
+		emit(OPCODE_STORE, first.type, OPERAND_REGISTER, 0, first.index, destination.index);
+	}
+	
+	/** Emits {@code destination = first (opcode) second}. */
+	private void arithmetic(int opcode, int line) throws ParseException {
+		requireSameType(first, destination, line);
+		int type = destination.type;
+		if (opcode>=OPCODE_SHL && TYPES[type].isFloat()) throw new ParseException(line, "Only integers can be shifted");
+		emitWithSource(opcode, type, destination.index, first.index, second, line);
+	}
+	
+	/** Parses a word register holding an address, and returns its index. */
+	private int address(String what) throws ParseException {
+		register(first);
+		requireWord(first, what);
+		return first.index;
+	}
+	
+	/** Parses the second address of a pair, which has to be in the word register right after the first. */
+	private void pair(int first, String what) throws ParseException {
+		int line = lexer.line;
+		if (address(what)!=first+1) throw new ParseException(line, "The addresses for "+what+" have to be in consecutive word registers");
+	}
+	
+	/** Parses the element count ending a bulk memory or vector statement, a word register or a literal, and emits it. */
+	private void count(int opcode, int dataType, int destinationField, int operand1, int line) throws ParseException {
+		source(second, false);
+		if (second.kind==REGISTER_OPERAND) {
+			requireWord(second, "a count");
+			emit(opcode, dataType, OPERAND_REGISTER, destinationField, operand1, second.index);
+		} else if (second.kind!=INTEGER_OPERAND || second.negative) {
+			throw new ParseException(line, "A count has to be a word register or a number of elements");
+		} else if (second.integer==(int) second.integer) {
+			emit(opcode, dataType, OPERAND_IMMEDIATE, destinationField, operand1, (int) second.integer);
+		} else {
+			constant(emit(opcode, dataType, OPERAND_CONSTANT, destinationField, operand1, 0), DATA_WORD, second.integer);
+		}
+	}
+	
+	private void label(int symbol) throws ParseException {
+		growNames();
+		if (labels[symbol]!=-1) throw new ParseException(lexer.line, "The label "+names.name(symbol)+" is defined twice");
+		labels[symbol] = length >> 3;
+	}
+	
+	private void jump(int instruction, int label, int line) {
+		if (pendingCount+3>pendingJumps.length) pendingJumps = Arrays.copyOf(pendingJumps, pendingJumps.length*2);
+		pendingJumps[pendingCount++] = instruction;
+		pendingJumps[pendingCount++] = label;
+		pendingJumps[pendingCount++] = line;
+		if (jumpCount==jumps.length) jumps = Arrays.copyOf(jumps, jumpCount*2);
+		jumps[jumpCount++] = instruction;
+	}
+	
+	private int condition() throws ParseException {
+		if (lexer.kind!=IDENTIFIER || lexer.symbol<KEYWORD_ZERO || lexer.symbol>KEYWORD_ZERO+5) throw unexpected("a condition");
+		int condition = lexer.symbol-KEYWORD_ZERO;
+		lexer.next();
+		return condition;
+	}
+	
+	private int port() throws ParseException {
+		if (lexer.kind!=INTEGER || lexer.integer>Integer.MAX_VALUE) throw unexpected("a port or interrupt number");
+		int port = (int) lexer.integer;
+		lexer.next();
+		return port;
+	}
+	
+	/*
+	 * Operands
+	 */
+	
+	/** Parses a register: a variable's name, or a type and an LVT index like {@code i32 %0}. */
+	private void register(Operand operand) throws ParseException {
+		if (lexer.kind!=IDENTIFIER) throw unexpected("a register");
+		int symbol = lexer.symbol;
+		if (symbol>=KEYWORD_I8 && symbol<=KEYWORD_I8+7) {
+			lexer.next();
+			if (lexer.kind!=REGISTER) throw unexpected("a register number, like %0,");
+			operand.kind = REGISTER_OPERAND;
+			operand.type = symbol-KEYWORD_I8;
+			operand.index = (int) lexer.integer;
+			counts[operand.type] = Math.max(counts[operand.type], operand.index+1);
+			lexer.next();
+			return;
+		}
+		if (symbol<KEYWORD_COUNT) throw unexpected("a register");
+		lexer.next();
+		variable(symbol, operand);
+	}
+	
+	private void variable(int symbol, Operand operand) throws ParseException {
+		if (symbol>=variableTypes.length || variableTypes[symbol]==-1) throw new ParseException(lexer.line, "There's no variable named "+names.name(symbol));
+		operand.kind = REGISTER_OPERAND;
+		operand.type = variableTypes[symbol];
+		operand.index = variableIndices[symbol];
+	}
+	
+	/** Parses a register, a literal, or if memory is true, a memory operand. */
+	private void source(Operand operand, boolean memory) throws ParseException {
+		if (lexer.kind==PUNCTUATION && lexer.punctuation=='[') {
+			if (!memory) throw new ParseException(lexer.line, "A memory operand can't be used here");
+			memory(operand);
+			return;
+		}
+		boolean negative = false;
+		if (isPunctuation('-')) {
+			negative = true;
+			lexer.next();
+		}
+		if (lexer.kind==INTEGER) {
+			if (negative && Long.compareUnsigned(lexer.integer, Long.MIN_VALUE)>0) throw new ParseException(lexer.line, "The number -"+Long.toUnsignedString(lexer.integer)+" is too small");
+			operand.kind = INTEGER_OPERAND;
+			operand.integer = (negative) ? -lexer.integer : lexer.integer;
+			operand.negative = negative;
+			lexer.next();
+			return;
+		}
+		if (lexer.kind==FLOAT || isKeyword(KEYWORD_NAN) || isKeyword(KEYWORD_INF)) {
+			double value = (lexer.kind==FLOAT) ? lexer.floating : isKeyword(KEYWORD_NAN) ? Double.NaN : Double.POSITIVE_INFINITY;
+			operand.kind = FLOAT_OPERAND;
+			operand.floating = (negative) ? -value : value;
+			lexer.next();
+			return;
+		}
+		if (negative) throw unexpected("a number");
+		register(operand);
+	}
+	
+	/** Parses {@code [base]}, {@code [base + offset]} or {@code [base - offset]}, or any of those in double brackets for indirection. */
+	private void memory(Operand operand) throws ParseException {
+		int line = lexer.line;
+		expect('[');
+		boolean indirect = isPunctuation('[');
+		if (indirect) lexer.next();
+		register(operand);
+		requireWord(operand, "memory addressing");
+		int base = operand.index;
+		
+		int mode = OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET;
+		long offset = 0;
+		if (isPunctuation('+') || isPunctuation('-')) {
+			boolean negative = isPunctuation('-');
+			lexer.next();
+			if (lexer.kind==INTEGER) {
+				offset = (negative) ? -lexer.integer : lexer.integer;
+				if (negative && Long.compareUnsigned(lexer.integer, Long.MIN_VALUE)>0) throw new ParseException(line, "The offset is too small");
+				if (offset!=(int) offset) mode = OPERAND_REGISTER_ADDRESS_PLUS_CONSTANT_OFFSET;
+				lexer.next();
+			} else {
+				if (negative) throw new ParseException(line, "Register offsets can only be added");
+				register(operand);
+				requireWord(operand, "memory addressing");
+				mode = OPERAND_REGISTER_ADDRESS_PLUS_REGISTER_OFFSET;
+				offset = operand.index;
+			}
+		}
+		expect(']');
+		if (indirect) {
+			expect(']');
+			//The indirect modes are the direct ones, three further on
+			mode += OPERAND_INDIRECT_ADDRESS_WITH_IMMEDIATE_OFFSET - OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET;
+		}
+		operand.kind = MEMORY_OPERAND;
+		operand.base = base;
+		operand.mode = mode;
+		operand.offset = offset;
+	}
+	
+	/** Returns what goes in operand2 for a memory operand, with constant offsets left for the pool. */
+	private static int memoryOffset(Operand operand) {
+		switch(operand.mode) {
+		case OPERAND_REGISTER_ADDRESS_PLUS_CONSTANT_OFFSET:
+		case OPERAND_INDIRECT_ADDRESS_WITH_CONSTANT_OFFSET:
+			return 0;
+		default:
+			return (int) operand.offset;
+		}
+	}
+	
+	/**
+	 * Emits an instruction whose operand2 is source, a register or a literal, of the given data type. Literals which fit in
+	 * 32 bits become immediates, the way {@link blue.endless.junior.compiler.EsoCompiler} writes them; others become
+	 * constants.
+	 */
+	private void emitWithSource(int opcode, int dataType, int destinationField, int operand1, Operand source, int line) throws ParseException {
+		switch(source.kind) {
+		case REGISTER_OPERAND:
+			if (source.type!=dataType) throw new ParseException(line, "Expected a "+TYPES[dataType].getName()+" register, but found a "+TYPES[source.type].getName()+" one");
+			emit(opcode, dataType, OPERAND_REGISTER, destinationField, operand1, source.index);
+			return;
+		case INTEGER_OPERAND:
+			if (TYPES[dataType].isFloat()) {
+				double value = (source.negative) ? (double) source.integer : unsignedToDouble(source.integer);
+				floatLiteral(opcode, dataType, destinationField, operand1, value, line);
+				return;
+			}
+			long value = source.integer;
+			long min;
+			long max;
+			switch(dataType) {
+			case DATA_INT8:  min = Byte.MIN_VALUE;    max = 0xFFL;        break;
+			case DATA_INT16: min = Short.MIN_VALUE;   max = 0xFFFFL;      break;
+			case DATA_INT32: min = Integer.MIN_VALUE; max = 0xFFFFFFFFL;  break;
+			default:         min = Long.MIN_VALUE;    max = -1L;          break;
+			}
+			boolean fits = (max==-1L) || (source.negative ? value>=min : Long.compareUnsigned(value, max)<=0);
+			if (!fits) throw new ParseException(line, "The number "+(source.negative ? Long.toString(value) : Long.toUnsignedString(value))+" doesn't fit in a "+TYPES[dataType].getName());
+			if (value==(int) value || max!=-1L) {
+				emit(opcode, dataType, OPERAND_IMMEDIATE, destinationField, operand1, (int) value);
+			} else {
+				constant(emit(opcode, dataType, OPERAND_CONSTANT, destinationField, operand1, 0), dataType, value);
+			}
+			return;
+		case FLOAT_OPERAND:
+			if (!TYPES[dataType].isFloat()) throw new ParseException(line, "A "+TYPES[dataType].getName()+" can't hold a fraction");
+			floatLiteral(opcode, dataType, destinationField, operand1, source.floating, line);
+			return;
+		default:
+			throw new ParseException(line, "A memory operand can't be used here");
+		}
+	}
+	
+	private void floatLiteral(int opcode, int dataType, int destinationField, int operand1, double value, int line) throws ParseException {
+		switch(dataType) {
+		case DATA_FLOAT16:
+			emit(opcode, dataType, OPERAND_IMMEDIATE, destinationField, operand1, Half.fromDouble(value));
+			return;
+		case DATA_FLOAT32:
+			emit(opcode, dataType, OPERAND_IMMEDIATE, destinationField, operand1, Float.floatToRawIntBits((float) value));
+			return;
+		default:
+			if (Double.doubleToRawLongBits(value)==Double.doubleToRawLongBits((double) (float) value)) {
+				emit(opcode, dataType, OPERAND_IMMEDIATE, destinationField, operand1, Float.floatToRawIntBits((float) value));
+			} else {
+				constant(emit(opcode, dataType, OPERAND_CONSTANT, destinationField, operand1, 0), dataType, Double.doubleToRawLongBits(value));
+			}
+		}
+	}
+	
+	private static double unsignedToDouble(long value) {
+		if (value>=0) return value;
+		//Halve it, keeping the low bit so it still rounds the same way, and double it back afterwards
+		return (double) ((value >>> 1) | (value & 1)) * 2.0;
+	}
+	
+	/*
+	 * Output
+	 */
+	
+	/** Appends an instruction and returns its index. */
+	private int emit(int opcode, int dataType, int operand2Type, int destinationField, int operand1, int operand2) {
+		if (length+8>code.length) code = Arrays.copyOf(code, code.length*2);
+		code[length  ] = (byte) opcode;
+		code[length+1] = (byte) ((dataType << 4) | operand2Type);
+		code[length+2] = (byte) destinationField;
+		code[length+3] = (byte) operand1;
+		length += 8;
+		setOperand2((length >> 3) - 1, operand2);
+		return (length >> 3) - 1;
+	}
+	
+	void setOperand2(int instruction, int operand2) {
+		int at = instruction*8 + 4;
+		code[at  ] = (byte) (operand2 >>> 24);
+		code[at+1] = (byte) (operand2 >>> 16);
+		code[at+2] = (byte) (operand2 >>>  8);
+		code[at+3] = (byte)  operand2;
+	}
+	
+	int getOperand2(int instruction) {
+		int at = instruction*8 + 4;
+		return ((code[at] & 0xFF) << 24) | ((code[at+1] & 0xFF) << 16) | ((code[at+2] & 0xFF) << 8) | (code[at+3] & 0xFF);
+	}
+	
+	private void constant(int instruction, int dataType, long bits) {
+		if (constantCount==constantInstructions.length) {
+			constantInstructions = Arrays.copyOf(constantInstructions, constantCount*2);
+			constantTypes = Arrays.copyOf(constantTypes, constantCount*2);
+			constantBits = Arrays.copyOf(constantBits, constantCount*2);
+		}
+		constantInstructions[constantCount] = instruction;
+		constantTypes[constantCount] = dataType;
+		constantBits[constantCount] = bits;
+		constantCount++;
+	}
+	
+	private void string(int instruction, String value) {
+		if (stringCount==stringInstructions.length) {
+			stringInstructions = Arrays.copyOf(stringInstructions, stringCount*2);
+			strings = Arrays.copyOf(strings, stringCount*2);
+		}
+		stringInstructions[stringCount] = instruction;
+		strings[stringCount] = value;
+		stringCount++;
+	}
+	
+	/*
+	 * Helpers
+	 */
+	
+	/** Makes the per-name tables big enough for every name interned so far. */
+	private void growNames() {
+		int size = names.size();
+		if (variableTypes.length>=size) return;
+		int old = variableTypes.length;
+		int grown = Math.max(size, old*2);
+		variableTypes = Arrays.copyOf(variableTypes, grown);
+		variableIndices = Arrays.copyOf(variableIndices, grown);
+		labels = Arrays.copyOf(labels, grown);
+		Arrays.fill(variableTypes, old, grown, -1);
+		Arrays.fill(labels, old, grown, -1);
+	}
+	
+	private boolean isKeyword(int keyword) {
+		return lexer.kind==IDENTIFIER && lexer.symbol==keyword;
+	}
+	
+	private boolean isPunctuation(int punctuation) {
+		return lexer.kind==PUNCTUATION && lexer.punctuation==punctuation;
+	}
+	
+	private void expect(int punctuation) throws ParseException {
+		if (!isPunctuation(punctuation)) throw unexpected("'"+(char) punctuation+"'");
+		lexer.next();
+	}
+	
+	private void endOfLine() throws ParseException {
+		if (lexer.kind!=NEWLINE && lexer.kind!=EOF) throw unexpected("the end of the line");
+	}
+	
+	private void requireRegister(Operand operand, int line, String what) throws ParseException {
+		if (operand.kind!=REGISTER_OPERAND) throw new ParseException(line, "The result of "+what+" has to go in a register");
+	}
+	
+	private void requireWord(Operand operand, String what) throws ParseException {
+		if (operand.type!=DATA_WORD) throw new ParseException(lexer.line, "Only word registers can be used for "+what);
+	}
+	
+	private void requireSameType(Operand a, Operand b, int line) throws ParseException {
+		if (a.type!=b.type) throw new ParseException(line, "Can't mix "+TYPES[a.type].getName()+" and "+TYPES[b.type].getName()+" registers; use convert");
+	}
+	
+	private ParseException unexpected(String expected) {
+		String found;
+		switch(lexer.kind) {
+		case EOF:        found = "the end of the file"; break;
+		case NEWLINE:    found = "the end of the line"; break;
+		case IDENTIFIER: found = names.name(lexer.symbol); break;
+		case INTEGER:    found = Long.toUnsignedString(lexer.integer); break;
+		case FLOAT:      found = Double.toString(lexer.floating); break;
+		case STRING:     found = "a string"; break;
+		case REGISTER:   found = "%"+lexer.integer; break;
+		default:
+			switch(lexer.punctuation) {
+			case SHIFT_LEFT:           found = "'<<'"; break;
+			case SHIFT_RIGHT:          found = "'>>'"; break;
+			case SHIFT_RIGHT_UNSIGNED: found = "'>>>'"; break;
+			case ARROW:                found = "'->'"; break;
+			default:                   found = "'"+(char) lexer.punctuation+"'"; break;
+			}
+		}
+		return new ParseException(lexer.line, "Expected "+expected+", but found "+found);
+	}
+}
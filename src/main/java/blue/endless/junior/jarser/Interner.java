@@ -0,0 +1,126 @@
+package blue.endless.junior.jarser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Numbers identifiers in the order they're first seen, looking them up by their bytes in the source, so the parser can
+ * compare and index names as ints and a name is only turned into a String once, and only if someone asks for it. The table
+ * is open-addressed over a single array of name bytes, so interning a name that's already known allocates nothing.
+ *
+ * <p>Not thread-safe. Each function is parsed with its own, since its names mean nothing outside it anyway.
+ */
+final class Interner {
+	private byte[] bytes = new byte[1024];
+	private int used = 0;
+	private int[] offsets = new int[64];
+	private int[] lengths = new int[64];
+	private int[] hashes = new int[64];
+	private String[] names = new String[64];
+	private int count = 0;
+	/** Open-addressed: each slot holds an id plus one, or zero if it's empty. */
+	private int[] table = new int[128];
+	
+	Interner() {}
+	
+	/** Creates an interner which already knows every name template does, with the same ids. */
+	Interner(Interner template) {
+		bytes = Arrays.copyOf(template.bytes, Math.max(template.bytes.length, 1024));
+		used = template.used;
+		offsets = template.offsets.clone();
+		lengths = template.lengths.clone();
+		hashes = template.hashes.clone();
+		names = template.names.clone();
+		count = template.count;
+		table = template.table.clone();
+	}
+	
+	/** Returns the id of the name in source between start (inclusive) and end (exclusive), adding it if it's new. */
+	int intern(ByteBuffer source, int start, int end) {
+		int hash = 0x811C9DC5;
+		for(int i=start; i<end; i++) hash = (hash ^ source.get(i)) * 0x01000193;
+		hash = spread(hash);
+		
+		int mask = table.length-1;
+		for(int slot=hash & mask; ; slot=(slot+1) & mask) {
+			int id = table[slot]-1;
+			if (id==-1) break;
+			if (hashes[id]==hash && matches(id, source, start, end)) return id;
+		}
+		
+		int length = end-start;
+		if (used+length>bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, used+length));
+		for(int i=0; i<length; i++) bytes[used+i] = source.get(start+i);
+		return add(hash, used, length);
+	}
+	
+	/** Interns an ASCII name given as a String, as the parser does for its keywords. */
+	int intern(String name) {
+		byte[] ascii = name.getBytes(StandardCharsets.US_ASCII);
+		int id = intern(ByteBuffer.wrap(ascii), 0, ascii.length);
+		names[id] = name;
+		return id;
+	}
+	
+	String name(int id) {
+		String name = names[id];
+		if (name==null) {
+			name = new String(bytes, offsets[id], lengths[id], StandardCharsets.UTF_8);
+			names[id] = name;
+		}
+		return name;
+	}
+	
+	int size() {
+		return count;
+	}
+	
+	private boolean matches(int id, ByteBuffer source, int start, int end) {
+		if (lengths[id]!=end-start) return false;
+		int offset = offsets[id];
+		for(int i=start; i<end; i++) {
+			if (bytes[offset++]!=source.get(i)) return false;
+		}
+		return true;
+	}
+	
+	private int add(int hash, int offset, int length) {
+		if (count==offsets.length) {
+			offsets = Arrays.copyOf(offsets, count*2);
+			lengths = Arrays.copyOf(lengths, count*2);
+			hashes = Arrays.copyOf(hashes, count*2);
+			names = Arrays.copyOf(names, count*2);
+		}
+		int id = count++;
+		offsets[id] = offset;
+		lengths[id] = length;
+		hashes[id] = hash;
+		used += length;
+		
+		if (count*2>table.length) {
+			table = new int[table.length*2];
+			for(int i=0; i<count; i++) place(i);
+		} else {
+			place(id);
+		}
+		return id;
+	}
+	
+	/**
+	 * Mixes the high bits of an FNV hash into the low ones, which are all the table looks at. Names that differ only in their
+	 * last character, like generated ones, otherwise land in runs of neighbouring slots.
+	 */
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		return hash ^ (hash >>> 13);
+	}
+	
+	private void place(int id) {
+		int mask = table.length-1;
+		int slot = hashes[id] & mask;
+		while(table[slot]!=0) slot = (slot+1) & mask;
+		table[slot] = id+1;
+	}
+}
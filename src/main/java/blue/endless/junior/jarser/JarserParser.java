@@ -0,0 +1,227 @@
+package blue.endless.junior.jarser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import blue.endless.junior.esovm.ConstantPool;
+import blue.endless.junior.esovm.Module;
+import blue.endless.junior.esovm.VMException;
+import blue.endless.junior.jarser.Lexer.Region;
+
+/**
+ * Parses Jarser, the flat-text form of EsoVM assembly described in docs/ir_isa.md, straight into a {@link Module}.
+ *
+ * <p>Files are mapped rather than read, a window at a time, and never become Strings. A quick pass over the bytes finds
+ * where each function starts and ends, without tokenizing anything; then each function is parsed and assembled on its own,
+ * in parallel, and the functions are placed one after another and share a constant pool. Statements outside any function
+ * are gathered, in order, into an exported function named "main", which is placed last.
+ *
+ * <p>Problems are reported as a {@link ParseException} naming the line. If several functions have problems, the one
+ * reported is the first in the file.
+ */
+public class JarserParser {
+	/** How much of a file is mapped at once. A window is made bigger if a single function doesn't fit in it. */
+	private static final long WINDOW_SIZE = 1L << 28;
+	
+	private final List<FunctionParser> functions = new ArrayList<>();
+	private final List<Region> main = new ArrayList<>();
+	/** The top-level lines not yet added to main, which are put together while they're contiguous. */
+	private ByteBuffer mainSource;
+	private int mainStart;
+	private int mainEnd;
+	private int mainLine;
+	/** The number of the line the next window starts on. */
+	private int line = 1;
+	
+	private JarserParser() {}
+	
+	public static Module parse(Path path) throws IOException, ParseException {
+		JarserParser parser = new JarserParser();
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = 0;
+			long window = WINDOW_SIZE;
+			while(position<size) {
+				long length = Math.min(window, size-position);
+				boolean last = position+length==size;
+				//The mappings stay valid after the channel is closed, which matters for the lines of main
+				int consumed = parser.split(channel.map(FileChannel.MapMode.READ_ONLY, position, length), last);
+				if (consumed==0 && !last) {
+					if (window>=Integer.MAX_VALUE) throw new ParseException(parser.line, "The function starting here is too big");
+					window = Math.min(window*2, Integer.MAX_VALUE);
+					continue;
+				}
+				position += consumed;
+				window = WINDOW_SIZE;
+			}
+		}
+		return parser.link();
+	}
+	
+	/** Parses the source between the buffer's position and limit. The buffer's position isn't changed. */
+	public static Module parse(ByteBuffer source) throws ParseException {
+		JarserParser parser = new JarserParser();
+		parser.split(source.slice(), true);
+		return parser.link();
+	}
+	
+	public static Module parse(String source) throws ParseException {
+		return parse(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	/**
+	 * Finds the functions in one window of source, and parses them. Returns how much of the window was used: everything up
+	 * to the start of the function or line that runs off its end, unless it's the last window.
+	 */
+	private int split(ByteBuffer source, boolean last) {
+		int limit = source.limit();
+		List<FunctionParser> found = new ArrayList<>();
+		int position = 0;
+		int functionStart = -1;
+		int functionLine = 0;
+		int consumed = 0;
+		int consumedLine = line;
+		while(position<limit) {
+			int lineEnd = position;
+			while(lineEnd<limit && source.get(lineEnd)!='\n') lineEnd++;
+			if (lineEnd==limit && !last) break;
+			int next = Math.min(lineEnd+1, limit);
+			
+			int wordStart = position;
+			while(wordStart<lineEnd && (source.get(wordStart)==' ' || source.get(wordStart)=='\t')) wordStart++;
+			if (functionStart==-1) {
+				if (startsWord(source, wordStart, lineEnd, "function") || startsWord(source, wordStart, lineEnd, "export")) {
+					functionStart = position;
+					functionLine = line;
+				} else if (wordStart<lineEnd && source.get(wordStart)!=';' && source.get(wordStart)!='\r') {
+					addToMain(source, position, next, line);
+				}
+			} else if (startsWord(source, wordStart, lineEnd, "end")) {
+				found.add(function(source, functionStart, next, functionLine));
+				functionStart = -1;
+			}
+			position = next;
+			line++;
+			if (functionStart==-1) {
+				consumed = position;
+				consumedLine = line;
+			}
+		}
+		if (functionStart!=-1 && last) {
+			//No end; the function's parser will say so
+			found.add(function(source, functionStart, limit, functionLine));
+			consumed = limit;
+			consumedLine = line;
+		}
+		line = consumedLine;
+		
+		List<RecursiveAction> tasks = new ArrayList<>();
+		for(FunctionParser function : found) {
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected void compute() {
+					function.parse();
+				}
+			});
+		}
+		ForkJoinTask.invokeAll(tasks);
+		functions.addAll(found);
+		return consumed;
+	}
+	
+	private static FunctionParser function(ByteBuffer source, int start, int end, int line) {
+		List<Region> regions = new ArrayList<>(1);
+		regions.add(new Region(source, start, end, line));
+		return new FunctionParser(regions, false);
+	}
+	
+	private void addToMain(ByteBuffer source, int start, int end, int line) {
+		if (source==mainSource && start==mainEnd) {
+			mainEnd = end;
+			return;
+		}
+		flushMain();
+		mainSource = source;
+		mainStart = start;
+		mainEnd = end;
+		mainLine = line;
+	}
+	
+	private void flushMain() {
+		if (mainSource!=null) main.add(new Region(mainSource, mainStart, mainEnd, mainLine));
+		mainSource = null;
+	}
+	
+	/** True if the line has the given word, and not just a word starting with it, at position. */
+	private static boolean startsWord(ByteBuffer source, int position, int lineEnd, String word) {
+		int end = position+word.length();
+		if (end>lineEnd) return false;
+		for(int i=0; i<word.length(); i++) {
+			if (source.get(position+i)!=word.charAt(i)) return false;
+		}
+		if (end==lineEnd) return true;
+		byte after = source.get(end);
+		return !((after>='a' && after<='z') || (after>='A' && after<='Z') || (after>='0' && after<='9') || after=='_' || after=='.' || after=='$');
+	}
+	
+	/**
+	 * Places the functions one after another, in file order, relocating their jumps and moving their constants into one pool.
+	 * This is the only part of a parse that has to be done in order, and it doesn't look at the source again.
+	 */
+	private Module link() throws ParseException {
+		flushMain();
+		if (!main.isEmpty()) {
+			FunctionParser implicit = new FunctionParser(main, true);
+			implicit.parse();
+			functions.add(implicit);
+		}
+		
+		int length = 0;
+		Map<String, FunctionParser> names = new HashMap<>();
+		for(FunctionParser function : functions) {
+			if (function.error!=null) throw function.error;
+			FunctionParser previous = names.putIfAbsent(function.name, function);
+			if (previous!=null) throw new ParseException(function.line, "There's already a function named "+function.name+", on line "+previous.line);
+			length += function.length;
+		}
+		
+		byte[] program = new byte[length];
+		ConstantPool constants = new ConstantPool();
+		List<Module.Function> table = new ArrayList<>(functions.size());
+		int start = 0;
+		for(FunctionParser function : functions) {
+			for(int i=0; i<function.jumpCount; i++) {
+				int instruction = function.jumps[i];
+				function.setOperand2(instruction, function.getOperand2(instruction) + start);
+			}
+			for(int i=0; i<function.constantCount; i++) {
+				function.setOperand2(function.constantInstructions[i], constants.add(function.constantTypes[i], function.constantBits[i]));
+			}
+			for(int i=0; i<function.stringCount; i++) {
+				function.setOperand2(function.stringInstructions[i], constants.addString(function.strings[i]));
+			}
+			System.arraycopy(function.code, 0, program, start, function.length);
+			table.add(new Module.Function(function.name, start, start+function.length, start, function.lvtInfo,
+					function.argumentBytes, function.resultBytes, (function.exported) ? Module.FLAG_EXPORTED : 0));
+			start += function.length;
+		}
+		
+		try {
+			return new Module(program, constants, table);
+		} catch (VMException ex) {
+			throw new ParseException(ex.getMessage(), ex);
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package blue.endless.junior.jarser;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Splits Jarser source into tokens, reading bytes straight out of a ByteBuffer so a mapped file never has to become a
+ * String. Source is UTF-8, but everything outside string literals is ASCII, so only string literals are ever decoded.
+ * Identifiers are interned as they're read, and only their ids are kept.
+ *
+ * <p>There are no token objects: {@link #next()} reads the next token into the lexer's fields, where the parser looks at
+ * it. A lexer reads a list of {@link Region regions} as if they were one stream, with a line break between each.
+ */
+final class Lexer {
+	static final int EOF         = 0;
+	static final int NEWLINE     = 1;
+	static final int IDENTIFIER  = 2;
+	static final int INTEGER     = 3;
+	static final int FLOAT       = 4;
+	static final int STRING      = 5;
+	/** A raw LVT index, like {@code %3}. The index is in {@link #integer}. */
+	static final int REGISTER    = 6;
+	/** An operator or bracket. Which one is in {@link #punctuation}: the character itself, or one of the constants below. */
+	static final int PUNCTUATION = 7;
+	
+	//Punctuation more than one character long
+	static final int SHIFT_LEFT             = 0x100; // <<
+	static final int SHIFT_RIGHT            = 0x101; // >>
+	static final int SHIFT_RIGHT_UNSIGNED   = 0x102; // >>>
+	static final int ARROW                  = 0x103; // ->
+	
+	/** A stretch of source, from start (inclusive) to end (exclusive), whose first line is line number line. */
+	static final class Region {
+		final ByteBuffer source;
+		final int start;
+		final int end;
+		final int line;
+		
+		Region(ByteBuffer source, int start, int end, int line) {
+			this.source = source;
+			this.start = start;
+			this.end = end;
+			this.line = line;
+		}
+	}
+	
+	private final Interner interner;
+	private final List<Region> regions;
+	private int region = 0;
+	private ByteBuffer source;
+	private int position;
+	private int end;
+	/** Set when the current token is a line break, which is still on the line it ends until the next token is read. */
+	private boolean lineEnded;
+	
+	/** The kind of the current token. */
+	int kind = NEWLINE;
+	/** The line the current token is on. */
+	int line;
+	/** The interned id of an IDENTIFIER. */
+	int symbol;
+	/** The value of an INTEGER, which may be anything up to 64 unsigned bits, or the index of a REGISTER. */
+	long integer;
+	/** The value of a FLOAT. */
+	double floating;
+	/** The decoded contents of a STRING. */
+	String string;
+	int punctuation;
+	
+	Lexer(Interner interner, List<Region> regions) {
+		this.interner = interner;
+		this.regions = regions;
+		enter(0);
+	}
+	
+	private void enter(int index) {
+		region = index;
+		if (index<regions.size()) {
+			Region current = regions.get(index);
+			source = current.source;
+			position = current.start;
+			end = current.end;
+			line = current.line;
+		} else {
+			position = end = 0;
+		}
+	}
+	
+	/** Reads the next token. Comments are skipped, and so are line breaks which would only end empty lines. */
+	void next() throws ParseException {
+		if (lineEnded) {
+			line++;
+			lineEnded = false;
+		}
+		int c;
+		while(true) {
+			while(position<end) {
+				byte b = source.get(position);
+				if (b!=' ' && b!='\t' && b!='\r') break;
+				position++;
+			}
+			if (position>=end) {
+				if (region>=regions.size()) {
+					kind = EOF;
+					return;
+				}
+				//The end of a region ends its last line, even if the text didn't
+				if (kind!=NEWLINE) {
+					kind = NEWLINE;
+					return;
+				}
+				enter(region+1);
+				continue;
+			}
+			
+			c = source.get(position);
+			if (c==';') {
+				while(position<end && source.get(position)!='\n') position++;
+				continue;
+			}
+			if (c=='\n') {
+				position++;
+				if (kind==NEWLINE) {
+					line++;
+					continue;
+				}
+				kind = NEWLINE;
+				lineEnded = true;
+				return;
+			}
+			break;
+		}
+		
+		if (isIdentifierStart(c)) {
+			int start = position;
+			while(position<end && isIdentifierPart(source.get(position))) position++;
+			kind = IDENTIFIER;
+			symbol = interner.intern(source, start, position);
+			return;
+		}
+		if (c>='0' && c<='9') {
+			number();
+			return;
+		}
+		if (c=='%' && position+1<end && isDigit(source.get(position+1))) {
+			position++;
+			int start = position;
+			long index = 0;
+			while(position<end && isDigit(source.get(position))) {
+				index = index*10 + (source.get(position++)-'0');
+				if (index>0xFF) throw new ParseException(line, "There are only 256 registers of each type");
+			}
+			if (position<end && isIdentifierPart(source.get(position))) throw new ParseException(line, "Malformed register "+text(start-1));
+			kind = REGISTER;
+			integer = index;
+			return;
+		}
+		if (c=='"') {
+			string();
+			return;
+		}
+		
+		kind = PUNCTUATION;
+		position++;
+		int next = (position<end) ? source.get(position) : -1;
+		switch(c) {
+		case '<':
+			if (next!='<') throw new ParseException(line, "Unexpected character '<'");
+			position++;
+			punctuation = SHIFT_LEFT;
+			return;
+		case '>':
+			if (next!='>') throw new ParseException(line, "Unexpected character '>'");
+			position++;
+			if (position<end && source.get(position)=='>') {
+				position++;
+				punctuation = SHIFT_RIGHT_UNSIGNED;
+			} else {
+				punctuation = SHIFT_RIGHT;
+			}
+			return;
+		case '-':
+			if (next=='>') {
+				position++;
+				punctuation = ARROW;
+			} else {
+				punctuation = '-';
+			}
+			return;
+		case '=': case '+': case '*': case '/': case '%':
+		case '[': case ']': case '(': case ')': case ',': case ':':
+			punctuation = c;
+			return;
+		default:
+			throw new ParseException(line, "Unexpected character '"+(char) (c & 0xFF)+"'");
+		}
+	}
+	
+	private void number() throws ParseException {
+		int start = position;
+		long value = 0;
+		if (source.get(position)=='0' && position+1<end && (source.get(position+1)|0x20)=='x') {
+			position += 2;
+			int digits = 0;
+			while(position<end) {
+				int digit = Character.digit(source.get(position), 16);
+				if (digit<0) break;
+				if (++digits>16) throw new ParseException(line, "The number "+text(start)+" is too big");
+				value = (value << 4) | digit;
+				position++;
+			}
+			if (digits==0) throw new ParseException(line, "Malformed number "+text(start));
+		} else {
+			boolean overflow = false;
+			while(position<end && isDigit(source.get(position))) {
+				int digit = source.get(position++)-'0';
+				//Unsigned 64-bit overflow, which only matters if this turns out not to be a float
+				if (Long.compareUnsigned(value, 0x1999999999999999L)>0 || Long.compareUnsigned(value*10 + digit, value*10)<0) overflow = true;
+				value = value*10 + digit;
+			}
+			boolean fraction = position+1<end && source.get(position)=='.' && isDigit(source.get(position+1));
+			boolean exponent = position<end && (source.get(position)|0x20)=='e';
+			if (fraction || exponent) {
+				if (fraction) {
+					position++;
+					while(position<end && isDigit(source.get(position))) position++;
+				}
+				if (position<end && (source.get(position)|0x20)=='e') {
+					position++;
+					if (position<end && (source.get(position)=='+' || source.get(position)=='-')) position++;
+					if (position>=end || !isDigit(source.get(position))) throw new ParseException(line, "Malformed number "+text(start));
+					while(position<end && isDigit(source.get(position))) position++;
+				}
+				if (position<end && isIdentifierPart(source.get(position))) throw new ParseException(line, "Malformed number "+text(start));
+				kind = FLOAT;
+				floating = Double.parseDouble(ascii(start, position));
+				return;
+			}
+			if (overflow) throw new ParseException(line, "The number "+text(start)+" is too big");
+		}
+		if (position<end && isIdentifierPart(source.get(position))) throw new ParseException(line, "Malformed number "+text(start));
+		kind = INTEGER;
+		integer = value;
+	}
+	
+	private void string() throws ParseException {
+		position++;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		while(true) {
+			if (position>=end || source.get(position)=='\n') throw new ParseException(line, "Unterminated string");
+			byte c = source.get(position++);
+			if (c=='"') break;
+			if (c=='\\') {
+				if (position>=end) throw new ParseException(line, "Unterminated string");
+				byte escaped = source.get(position++);
+				switch(escaped) {
+				case 'n':  c = '\n'; break;
+				case 't':  c = '\t'; break;
+				case 'r':  c = '\r'; break;
+				case '0':  c = 0;    break;
+				case '"':
+				case '\\': c = escaped; break;
+				default: throw new ParseException(line, "Unknown escape \\"+(char) (escaped & 0xFF));
+				}
+			}
+			bytes.write(c);
+		}
+		kind = STRING;
+		string = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/** Returns the ASCII text from start to the current position. */
+	private String ascii(int start, int stop) {
+		char[] chars = new char[stop-start];
+		for(int i=0; i<chars.length; i++) chars[i] = (char) (source.get(start+i) & 0xFF);
+		return new String(chars);
+	}
+	
+	/** Returns the source from start up to the next whitespace, for error messages. */
+	private String text(int start) {
+		int stop = start;
+		while(stop<end && stop-start<40) {
+			byte c = source.get(stop);
+			if (c==' ' || c=='\t' || c=='\r' || c=='\n') break;
+			stop++;
+		}
+		return ascii(start, stop);
+	}
+	
+	private static boolean isDigit(int c) {
+		return c>='0' && c<='9';
+	}
+	
+	private static boolean isIdentifierStart(int c) {
+		return (c>='a' && c<='z') || (c>='A' && c<='Z') || c=='_';
+	}
+	
+	private static boolean isIdentifierPart(int c) {
+		return isIdentifierStart(c) || isDigit(c) || c=='.' || c=='$';
+	}
+}
@@ -0,0 +1,28 @@
+package blue.endless.junior.jarser;
+
+public class ParseException extends Exception {
+	private static final long serialVersionUID = 6062617433563526904L;
+	
+	private final int line;
+	
+	public ParseException(String message) {
+		super(message);
+		this.line = -1;
+	}
+	
+	public ParseException(String message, Throwable cause) {
+		super(message, cause);
+		this.line = -1;
+	}
+	
+	/** Creates an exception for a problem on the given line, counted from 1, which is put in front of the message. */
+	public ParseException(int line, String message) {
+		super("Line "+line+": "+message);
+		this.line = line;
+	}
+	
+	/** Returns the line the problem is on, counted from 1, or -1 if it isn't about one line. */
+	public int getLine() {
+		return line;
+	}
+}
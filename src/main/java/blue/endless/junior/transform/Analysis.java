@@ -0,0 +1,13 @@
+package blue.endless.junior.transform;
+
+import blue.endless.junior.ast.CodeBlock;
+
+/**
+ * Something worth knowing about a code block, which a {@link PassManager} works out once per distinct block and hands to
+ * every pass which asks. Like passes, analyses must give the same result for structurally equal blocks, and their results
+ * must not be modified once they're returned.
+ */
+public interface Analysis<T> {
+	/** Works out the result for block, which mustn't be null. Results for nested blocks can be had from manager, which caches them. */
+	T analyze(CodeBlock block, PassManager manager);
+}
@@ -0,0 +1,42 @@
+package blue.endless.junior.transform;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import blue.endless.junior.ast.CodeBlock;
+import blue.endless.junior.ast.DataType;
+import blue.endless.junior.ast.Declaration;
+import blue.endless.junior.ast.If;
+import blue.endless.junior.ast.Statement;
+import blue.endless.junior.ast.While;
+
+/**
+ * The variables declared in a block, including in the blocks nested inside it, with their types. A variable declared
+ * with different types in different places has the type of its first declaration here; the evaluator and compiler both
+ * reject that anyway.
+ */
+public class DeclaredVariables implements Analysis<Map<String, DataType>> {
+	public static final DeclaredVariables INSTANCE = new DeclaredVariables();
+	
+	@Override
+	public Map<String, DataType> analyze(CodeBlock block, PassManager manager) {
+		HashMap<String, DataType> result = new HashMap<>();
+		for(Statement statement : block) {
+			if (statement instanceof Declaration) {
+				result.putIfAbsent(((Declaration) statement).getVariable(), ((Declaration) statement).getType());
+			} else if (statement instanceof If) {
+				If branch = (If) statement;
+				addAll(result, manager.getAnalysis(this, branch.getThen()));
+				if (branch.getOtherwise()!=null) addAll(result, manager.getAnalysis(this, branch.getOtherwise()));
+			} else if (statement instanceof While) {
+				addAll(result, manager.getAnalysis(this, ((While) statement).getBody()));
+			}
+		}
+		return Collections.unmodifiableMap(result);
+	}
+	
+	private static void addAll(HashMap<String, DataType> result, Map<String, DataType> nested) {
+		for(Map.Entry<String, DataType> entry : nested.entrySet()) result.putIfAbsent(entry.getKey(), entry.getValue());
+	}
+}
@@ -0,0 +1,106 @@
+package blue.endless.junior.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import blue.endless.junior.ast.Arithmetic;
+import blue.endless.junior.ast.Assignment;
+import blue.endless.junior.ast.BinaryOperation;
+import blue.endless.junior.ast.Call;
+import blue.endless.junior.ast.CodeBlock;
+import blue.endless.junior.ast.Constant;
+import blue.endless.junior.ast.Conversion;
+import blue.endless.junior.ast.DataType;
+import blue.endless.junior.ast.Expression;
+import blue.endless.junior.ast.If;
+import blue.endless.junior.ast.Return;
+import blue.endless.junior.ast.Statement;
+import blue.endless.junior.ast.While;
+
+/**
+ * Replaces operators and conversions whose operands are all constants with their results, as worked out by
+ * {@link Arithmetic}. Operations which would fail, like integer division by zero, are left for whatever runs the code to
+ * report. Statements are never added or removed, so the variables declared don't change.
+ */
+public class FoldConstants implements Pass {
+	@Override
+	public CodeBlock apply(CodeBlock block, PassManager manager) {
+		List<Statement> statements = null;
+		for(int i=0; i<block.size(); i++) {
+			Statement statement = block.getStatements().get(i);
+			Statement folded = fold(statement);
+			if (folded!=statement && statements==null) statements = new ArrayList<>(block.getStatements().subList(0, i));
+			if (statements!=null) statements.add(folded);
+		}
+		return (statements==null) ? block : new CodeBlock(statements);
+	}
+	
+	@Override
+	public boolean preserves(Analysis<?> analysis) {
+		return analysis instanceof DeclaredVariables;
+	}
+	
+	private static Statement fold(Statement statement) {
+		if (statement instanceof Call) {
+			return (Call) fold((Expression) statement);
+		} else if (statement instanceof Assignment) {
+			Assignment assignment = (Assignment) statement;
+			Expression value = fold(assignment.getValue());
+			return (value==assignment.getValue()) ? statement : new Assignment(assignment.getVariable(), value);
+		} else if (statement instanceof If) {
+			If branch = (If) statement;
+			Expression condition = fold(branch.getCondition());
+			return (condition==branch.getCondition()) ? statement : new If(condition, branch.getThen(), branch.getOtherwise());
+		} else if (statement instanceof While) {
+			While loop = (While) statement;
+			Expression condition = fold(loop.getCondition());
+			return (condition==loop.getCondition()) ? statement : new While(condition, loop.getBody());
+		} else if (statement instanceof Return) {
+			Expression value = ((Return) statement).getValue();
+			Expression folded = (value==null) ? null : fold(value);
+			return (folded==value) ? statement : new Return(folded);
+		} else {
+			return statement;
+		}
+	}
+	
+	/** Returns the folded expression, or expression itself if nothing in it could be folded. */
+	static Expression fold(Expression expression) {
+		if (expression instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) expression;
+			Expression left = fold(operation.getLeft());
+			Expression right = fold(operation.getRight());
+			if (left instanceof Constant && right instanceof Constant) {
+				DataType leftType = ((Constant) left).getType();
+				DataType rightType = ((Constant) right).getType();
+				try {
+					Number result = Arithmetic.apply(operation.getOperator(), ((Constant) left).getValue(), ((Constant) right).getValue());
+					DataType type = (operation.getOperator().isComparison()) ? DataType.I32 : Arithmetic.wider(leftType, rightType);
+					return new Constant(type, result);
+				} catch (ArithmeticException | IllegalArgumentException ex) {
+					//Left to fail at runtime
+				}
+			}
+			return (left==operation.getLeft() && right==operation.getRight()) ? expression : new BinaryOperation(operation.getOperator(), left, right);
+		} else if (expression instanceof Conversion) {
+			Conversion conversion = (Conversion) expression;
+			Expression operand = fold(conversion.getOperand());
+			if (operand instanceof Constant && conversion.getType()!=DataType.F16) {
+				return new Constant(conversion.getType(), Arithmetic.convert(((Constant) operand).getValue(), conversion.getType()));
+			}
+			return (operand==conversion.getOperand()) ? expression : new Conversion(conversion.getType(), operand);
+		} else if (expression instanceof Call) {
+			Call call = (Call) expression;
+			List<Expression> arguments = null;
+			for(int i=0; i<call.getArguments().size(); i++) {
+				Expression argument = call.getArguments().get(i);
+				Expression folded = fold(argument);
+				if (folded!=argument && arguments==null) arguments = new ArrayList<>(call.getArguments().subList(0, i));
+				if (arguments!=null) arguments.add(folded);
+			}
+			return (arguments==null) ? expression : new Call(call.getFunction(), arguments);
+		} else {
+			return expression;
+		}
+	}
+}
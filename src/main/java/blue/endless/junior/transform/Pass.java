@@ -0,0 +1,21 @@
+package blue.endless.junior.transform;
+
+import blue.endless.junior.ast.CodeBlock;
+
+/**
+ * One transformation a {@link PassManager} runs over code blocks. A pass sees one block at a time, after every block nested
+ * inside it has already been through the whole pipeline, and is responsible for that block's own statements.
+ *
+ * <p>A pass must not modify the block it's given, and must give the same result for blocks which are structurally equal,
+ * since its results are cached by the block's {@link StructuralHash}. It returns the block itself if it has nothing to change.
+ */
+public interface Pass {
+	/** Returns the transformed block. Analyses of it, or of any other block, can be had from manager. */
+	CodeBlock apply(CodeBlock block, PassManager manager);
+	
+	/**
+	 * Returns true if the result of analysis is the same for every block this pass produces as for the block it was given,
+	 * so results from before the pass can be reused for its output rather than computed again.
+	 */
+	boolean preserves(Analysis<?> analysis);
+}
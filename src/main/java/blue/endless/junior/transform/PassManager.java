@@ -0,0 +1,231 @@
+package blue.endless.junior.transform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import blue.endless.junior.ast.CodeBlock;
+import blue.endless.junior.ast.Function;
+import blue.endless.junior.ast.If;
+import blue.endless.junior.ast.Statement;
+import blue.endless.junior.ast.While;
+
+/**
+ * Runs an ordered list of {@link Pass}es over code blocks, innermost blocks first, so each pass sees a block whose nested
+ * blocks are already fully transformed.
+ *
+ * <p>Every result is cached by the {@link StructuralHash} of the block it came from: each pass's output for each block,
+ * each analysis's result for each block, and the pipeline's output for each whole block. Running the pipeline again after
+ * editing one block therefore only runs the passes on that block and, since their contents changed with it, on the blocks
+ * enclosing it; every other block is found in the cache by its hash. A hit is only trusted once the cached block is
+ * confirmed to be {@linkplain StructuralHash#equal(CodeBlock, CodeBlock) structurally equal}, so two different blocks
+ * whose hashes collide are each transformed on their own; the comparison stops early at blocks which are the very same
+ * object, which is the usual case. When a pass
+ * {@linkplain Pass#preserves(Analysis) preserves} an analysis, the analysis's result for the pass's input is reused for
+ * its output.
+ *
+ * <p>The cache holds at most {@link #getCacheLimit()} results, forgetting the least recently used first. Managers aren't
+ * thread-safe.
+ */
+public class PassManager {
+	public static final int DEFAULT_CACHE_LIMIT = 1 << 16;
+	/** The cache slot for whole-pipeline results, as opposed to the results of single passes, which use their index. */
+	private static final int PIPELINE = -1;
+	
+	protected final List<Pass> passes = new ArrayList<>();
+	protected int cacheLimit = DEFAULT_CACHE_LIMIT;
+	private final LinkedHashMap<Key, Cached> cache = new LinkedHashMap<Key, Cached>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+			return size()>cacheLimit;
+		}
+	};
+	/** Analyses are numbered as they're first used, so their results can share the cache with the passes' results. */
+	private final HashMap<Analysis<?>, Integer> analyses = new HashMap<>();
+	/** Hashes for the blocks of the run in progress, or null between runs. */
+	private StructuralHash hashes;
+	protected long passRuns = 0L;
+	protected long cacheHits = 0L;
+	
+	/** Adds a pass to the end of the pipeline. Changing the pipeline forgets everything cached. */
+	public PassManager add(Pass pass) {
+		passes.add(pass);
+		clearCache();
+		return this;
+	}
+	
+	public List<Pass> getPasses() {
+		return Collections.unmodifiableList(passes);
+	}
+	
+	/** Transforms a function's body, returning function itself if nothing changed. */
+	public Function run(Function function) {
+		CodeBlock body = run(function.getBody());
+		return (body==function.getBody()) ? function : new Function(function.getName(), function.getParameters(), function.getResultType(), body);
+	}
+	
+	/** Transforms a block, returning block itself if nothing changed. The block must not be modified while this runs. */
+	public CodeBlock run(CodeBlock block) {
+		boolean outermost = hashes==null;
+		if (outermost) hashes = new StructuralHash();
+		try {
+			Key key = new Key(PIPELINE, hashes.hash(block));
+			CodeBlock cached = (CodeBlock) lookup(key, block);
+			if (cached!=null) return cached;
+			
+			CodeBlock result = nested(block);
+			for(int i=0; i<passes.size(); i++) result = apply(i, result);
+			cache.put(key, new Cached(block, result));
+			return result;
+		} finally {
+			if (outermost) hashes = null;
+		}
+	}
+	
+	/**
+	 * Returns the result of analysis for block, working it out only if no structurally equal block has been analyzed. For
+	 * use by passes and analyses; it can also be called on its own.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getAnalysis(Analysis<T> analysis, CodeBlock block) {
+		boolean outermost = hashes==null;
+		if (outermost) hashes = new StructuralHash();
+		try {
+			Key key = new Key(slot(analysis), hashes.hash(block));
+			Object cached = lookup(key, block);
+			if (cached!=null) return (T) cached;
+			T result = analysis.analyze(block, this);
+			cache.put(key, new Cached(block, result));
+			return result;
+		} finally {
+			if (outermost) hashes = null;
+		}
+	}
+	
+	/** Returns the number of times a pass has been applied to a block, as opposed to its result being found in the cache. */
+	public long getPassRuns() {
+		return passRuns;
+	}
+	
+	/** Returns the number of times a pass's, analysis's or the whole pipeline's result was found in the cache. */
+	public long getCacheHits() {
+		return cacheHits;
+	}
+	
+	public int getCacheLimit() {
+		return cacheLimit;
+	}
+	
+	/** Sets the most results to keep cached. */
+	public void setCacheLimit(int limit) {
+		this.cacheLimit = limit;
+		while(cache.size()>limit) {
+			cache.remove(cache.keySet().iterator().next());
+		}
+	}
+	
+	public void clearCache() {
+		cache.clear();
+	}
+	
+	/** Runs the pipeline over the blocks nested in block's statements, and returns block with them replaced. */
+	private CodeBlock nested(CodeBlock block) {
+		List<Statement> statements = null;
+		for(int i=0; i<block.size(); i++) {
+			Statement statement = block.getStatements().get(i);
+			Statement transformed = statement;
+			if (statement instanceof If) {
+				If branch = (If) statement;
+				CodeBlock then = run(branch.getThen());
+				CodeBlock otherwise = (branch.getOtherwise()==null) ? null : run(branch.getOtherwise());
+				if (then!=branch.getThen() || otherwise!=branch.getOtherwise()) transformed = new If(branch.getCondition(), then, otherwise);
+			} else if (statement instanceof While) {
+				While loop = (While) statement;
+				CodeBlock body = run(loop.getBody());
+				if (body!=loop.getBody()) transformed = new While(loop.getCondition(), body);
+			}
+			
+			if (transformed!=statement && statements==null) statements = new ArrayList<>(block.getStatements().subList(0, i));
+			if (statements!=null) statements.add(transformed);
+		}
+		return (statements==null) ? block : new CodeBlock(statements);
+	}
+	
+	private CodeBlock apply(int index, CodeBlock block) {
+		long hash = hashes.hash(block);
+		Key key = new Key(index, hash);
+		CodeBlock cached = (CodeBlock) lookup(key, block);
+		if (cached!=null) return cached;
+		
+		Pass pass = passes.get(index);
+		CodeBlock result = pass.apply(block, this);
+		passRuns++;
+		cache.put(key, new Cached(block, result));
+		
+		if (result!=block) {
+			long resultHash = hashes.hash(result);
+			for(Map.Entry<Analysis<?>, Integer> analysis : analyses.entrySet()) {
+				if (!pass.preserves(analysis.getKey())) continue;
+				Cached known = cache.get(new Key(analysis.getValue(), hash));
+				if (known!=null && StructuralHash.equal(known.source, block)) {
+					cache.put(new Key(analysis.getValue(), resultHash), new Cached(result, known.result));
+				}
+			}
+		}
+		return result;
+	}
+	
+	/** Returns the result cached under key, if it was worked out for a block structurally equal to block. */
+	private Object lookup(Key key, CodeBlock block) {
+		Cached cached = cache.get(key);
+		if (cached==null || !StructuralHash.equal(cached.source, block)) return null;
+		cacheHits++;
+		return cached.result;
+	}
+	
+	/** Returns the cache slot for an analysis's results, which comes after the passes'. */
+	private int slot(Analysis<?> analysis) {
+		Integer slot = analyses.get(analysis);
+		if (slot==null) {
+			slot = (1 << 20) | analyses.size();
+			analyses.put(analysis, slot);
+		}
+		return slot;
+	}
+	
+	/** A result, along with the block it was worked out for, to tell it apart from blocks with the same hash. */
+	private static final class Cached {
+		final CodeBlock source;
+		final Object result;
+		
+		Cached(CodeBlock source, Object result) {
+			this.source = source;
+			this.result = result;
+		}
+	}
+	
+	private static final class Key {
+		final int slot;
+		final long hash;
+		
+		Key(int slot, long hash) {
+			this.slot = slot;
+			this.hash = hash;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Key && ((Key) other).slot==slot && ((Key) other).hash==hash;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (int) (hash ^ (hash >>> 32)) * 31 + slot;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package blue.endless.junior.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import blue.endless.junior.ast.Arithmetic;
+import blue.endless.junior.ast.CodeBlock;
+import blue.endless.junior.ast.Constant;
+import blue.endless.junior.ast.Declaration;
+import blue.endless.junior.ast.If;
+import blue.endless.junior.ast.Return;
+import blue.endless.junior.ast.Statement;
+import blue.endless.junior.ast.While;
+
+/**
+ * Removes statements which can never run: those after a return in the same block, the branch of an if whose condition is
+ * a constant that isn't taken, and loops whose condition is a constant zero. The branch which is taken replaces the if.
+ * Runs best after {@link FoldConstants}, which turns more conditions into constants.
+ *
+ * <p>Declarations are kept even where they can't be reached, since a variable declared anywhere in a function has that
+ * type everywhere in it.
+ */
+public class RemoveUnreachable implements Pass {
+	@Override
+	public CodeBlock apply(CodeBlock block, PassManager manager) {
+		List<Statement> statements = new ArrayList<>(block.size());
+		boolean changed = false;
+		boolean reachable = true;
+		for(Statement statement : block) {
+			if (!reachable) {
+				if (!(statement instanceof Declaration)) changed = true;
+				declarations(statement, statements);
+				continue;
+			}
+			
+			if (statement instanceof If && ((If) statement).getCondition() instanceof Constant) {
+				If branch = (If) statement;
+				CodeBlock taken = (Arithmetic.isTrue(((Constant) branch.getCondition()).getValue())) ? branch.getThen() : branch.getOtherwise();
+				CodeBlock skipped = (taken==branch.getThen()) ? branch.getOtherwise() : branch.getThen();
+				if (taken!=null) {
+					//The taken block has already been through this pass, so a return in it is its last reachable statement
+					for(Statement inner : taken) {
+						statements.add(inner);
+						if (inner instanceof Return) reachable = false;
+					}
+				}
+				if (skipped!=null) declarations(skipped, statements);
+				changed = true;
+			} else if (statement instanceof While && ((While) statement).getCondition() instanceof Constant
+					&& !Arithmetic.isTrue(((Constant) ((While) statement).getCondition()).getValue())) {
+				declarations(((While) statement).getBody(), statements);
+				changed = true;
+			} else {
+				statements.add(statement);
+				if (statement instanceof Return) reachable = false;
+			}
+		}
+		return (changed) ? new CodeBlock(statements) : block;
+	}
+	
+	@Override
+	public boolean preserves(Analysis<?> analysis) {
+		return analysis instanceof DeclaredVariables;
+	}
+	
+	/** Adds the declarations in block, and in the blocks nested inside it, to statements. */
+	private static void declarations(CodeBlock block, List<Statement> statements) {
+		for(Statement statement : block) declarations(statement, statements);
+	}
+	
+	private static void declarations(Statement statement, List<Statement> statements) {
+		if (statement instanceof Declaration) {
+			statements.add(statement);
+		} else if (statement instanceof If) {
+			declarations(((If) statement).getThen(), statements);
+			if (((If) statement).getOtherwise()!=null) declarations(((If) statement).getOtherwise(), statements);
+		} else if (statement instanceof While) {
+			declarations(((While) statement).getBody(), statements);
+		}
+	}
+}
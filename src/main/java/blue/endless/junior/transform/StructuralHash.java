@@ -0,0 +1,235 @@
+package blue.endless.junior.transform;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+
+import blue.endless.junior.ast.Assignment;
+import blue.endless.junior.ast.BinaryOperation;
+import blue.endless.junior.ast.Call;
+import blue.endless.junior.ast.CodeBlock;
+import blue.endless.junior.ast.Constant;
+import blue.endless.junior.ast.Conversion;
+import blue.endless.junior.ast.Declaration;
+import blue.endless.junior.ast.Expression;
+import blue.endless.junior.ast.Function;
+import blue.endless.junior.ast.If;
+import blue.endless.junior.ast.Instruction;
+import blue.endless.junior.ast.Return;
+import blue.endless.junior.ast.Statement;
+import blue.endless.junior.ast.Variable;
+import blue.endless.junior.ast.While;
+
+/**
+ * 64-bit hashes of AST subtrees which depend only on their structure, so two trees built separately with the same
+ * statements and expressions hash the same, and any edit to a tree changes the hash of every block containing it. They're
+ * meant for caching. Collisions are unlikely at 64 bits, but not impossible, so a cache should confirm a hit with
+ * {@link #equal(CodeBlock, CodeBlock)}, which compares the same structure the hash covers.
+ *
+ * <p>Node types from outside this library are hashed by their class name alone, and are equal if they're of the same class
+ * and {@link Object#equals(Object) equals} says so. A type which doesn't override equals is never equal to a copy of
+ * itself, so blocks holding one are only found in a cache when they're the very same block.
+ *
+ * <p>An instance remembers the hash of each block it has seen, so hashing a tree from the bottom up costs no more than
+ * hashing it once. That's only valid while the blocks aren't modified, so instances should be short-lived.
+ */
+public final class StructuralHash {
+	private final IdentityHashMap<CodeBlock, Long> blocks = new IdentityHashMap<>();
+	
+	public static long of(CodeBlock block) {
+		return new StructuralHash().hash(block);
+	}
+	
+	public static long of(Function function) {
+		return new StructuralHash().hash(function);
+	}
+	
+	public long hash(Function function) {
+		long hash = mix(0x46554E43L, hash(function.getName()));
+		hash = mix(hash, (function.getResultType()==null) ? -1 : function.getResultType().ordinal());
+		for(Declaration parameter : function.getParameters()) hash = mix(hash, hash(parameter));
+		return mix(hash, hash(function.getBody()));
+	}
+	
+	public long hash(CodeBlock block) {
+		if (block==null) return 0x4E554C4CL;
+		Long known = blocks.get(block);
+		if (known!=null) return known;
+		
+		long hash = mix(0x424C4F43L, block.size());
+		for(Statement statement : block) hash = mix(hash, hash(statement));
+		blocks.put(block, hash);
+		return hash;
+	}
+	
+	public long hash(Statement statement) {
+		if (statement instanceof Expression) {
+			//Calls are both
+			return hash((Expression) statement);
+		} else if (statement instanceof Assignment) {
+			Assignment assignment = (Assignment) statement;
+			return mix(mix(0x41535349L, hash(assignment.getVariable())), hash(assignment.getValue()));
+		} else if (statement instanceof Declaration) {
+			Declaration declaration = (Declaration) statement;
+			return mix(mix(0x4445434CL, hash(declaration.getVariable())), declaration.getType().ordinal());
+		} else if (statement instanceof If) {
+			If branch = (If) statement;
+			return mix(mix(mix(0x49460000L, hash(branch.getCondition())), hash(branch.getThen())), hash(branch.getOtherwise()));
+		} else if (statement instanceof While) {
+			While loop = (While) statement;
+			return mix(mix(0x5748494CL, hash(loop.getCondition())), hash(loop.getBody()));
+		} else if (statement instanceof Return) {
+			Expression value = ((Return) statement).getValue();
+			return mix(0x52455455L, (value==null) ? 0 : hash(value));
+		} else if (statement instanceof Instruction) {
+			String mnemonic = ((Instruction) statement).getMnemonic();
+			return mix(0x494E5354L, (mnemonic==null) ? 0 : hash(mnemonic));
+		} else {
+			return foreign(statement);
+		}
+	}
+	
+	public long hash(Expression expression) {
+		if (expression instanceof Constant) {
+			Constant constant = (Constant) expression;
+			Number value = constant.getValue();
+			long bits = (constant.getType().isFloat()) ? Double.doubleToRawLongBits(value.doubleValue()) : value.longValue();
+			return mix(mix(0x434F4E53L, constant.getType().ordinal()), bits);
+		} else if (expression instanceof Variable) {
+			return mix(0x56415249L, hash(((Variable) expression).getName()));
+		} else if (expression instanceof BinaryOperation) {
+			BinaryOperation operation = (BinaryOperation) expression;
+			return mix(mix(mix(0x42494E41L, operation.getOperator().ordinal()), hash(operation.getLeft())), hash(operation.getRight()));
+		} else if (expression instanceof Conversion) {
+			Conversion conversion = (Conversion) expression;
+			return mix(mix(0x434F4E56L, conversion.getType().ordinal()), hash(conversion.getOperand()));
+		} else if (expression instanceof Call) {
+			Call call = (Call) expression;
+			List<Expression> arguments = call.getArguments();
+			long hash = mix(mix(0x43414C4CL, hash(call.getFunction())), arguments.size());
+			for(Expression argument : arguments) hash = mix(hash, hash(argument));
+			return hash;
+		} else {
+			return foreign(expression);
+		}
+	}
+	
+	private static long foreign(Object node) {
+		//Not hashCode: for most classes it's the identity hash, so equal nodes would hash differently
+		return hash(node.getClass().getName());
+	}
+	
+	/** Returns true if the two blocks are structurally the same, which is when {@link #hash(CodeBlock)} is sure to agree. */
+	public static boolean equal(CodeBlock a, CodeBlock b) {
+		if (a==b) return true;
+		if (a==null || b==null || a.size()!=b.size()) return false;
+		List<Statement> as = a.getStatements();
+		List<Statement> bs = b.getStatements();
+		for(int i=0; i<as.size(); i++) {
+			if (!equal(as.get(i), bs.get(i))) return false;
+		}
+		return true;
+	}
+	
+	public static boolean equal(Function a, Function b) {
+		if (!a.getName().equals(b.getName()) || a.getResultType()!=b.getResultType()) return false;
+		List<Declaration> as = a.getParameters();
+		List<Declaration> bs = b.getParameters();
+		if (as.size()!=bs.size()) return false;
+		for(int i=0; i<as.size(); i++) {
+			if (!equal(as.get(i), bs.get(i))) return false;
+		}
+		return equal(a.getBody(), b.getBody());
+	}
+	
+	public static boolean equal(Statement a, Statement b) {
+		if (a==b) return true;
+		if (a instanceof Expression) {
+			return b instanceof Expression && equal((Expression) a, (Expression) b);
+		} else if (a instanceof Assignment) {
+			if (!(b instanceof Assignment)) return false;
+			Assignment x = (Assignment) a;
+			Assignment y = (Assignment) b;
+			return x.getVariable().equals(y.getVariable()) && equal(x.getValue(), y.getValue());
+		} else if (a instanceof Declaration) {
+			if (!(b instanceof Declaration)) return false;
+			Declaration x = (Declaration) a;
+			Declaration y = (Declaration) b;
+			return x.getVariable().equals(y.getVariable()) && x.getType()==y.getType();
+		} else if (a instanceof If) {
+			if (!(b instanceof If)) return false;
+			If x = (If) a;
+			If y = (If) b;
+			return equal(x.getCondition(), y.getCondition()) && equal(x.getThen(), y.getThen()) && equal(x.getOtherwise(), y.getOtherwise());
+		} else if (a instanceof While) {
+			if (!(b instanceof While)) return false;
+			While x = (While) a;
+			While y = (While) b;
+			return equal(x.getCondition(), y.getCondition()) && equal(x.getBody(), y.getBody());
+		} else if (a instanceof Return) {
+			if (!(b instanceof Return)) return false;
+			Expression x = ((Return) a).getValue();
+			Expression y = ((Return) b).getValue();
+			return (x==null) ? y==null : y!=null && equal(x, y);
+		} else if (a instanceof Instruction) {
+			return b instanceof Instruction && Objects.equals(((Instruction) a).getMnemonic(), ((Instruction) b).getMnemonic());
+		} else {
+			return foreignEqual(a, b);
+		}
+	}
+	
+	public static boolean equal(Expression a, Expression b) {
+		if (a==b) return true;
+		if (a instanceof Constant) {
+			if (!(b instanceof Constant)) return false;
+			Constant x = (Constant) a;
+			Constant y = (Constant) b;
+			if (x.getType()!=y.getType()) return false;
+			if (x.getType().isFloat()) return Double.doubleToRawLongBits(x.getValue().doubleValue())==Double.doubleToRawLongBits(y.getValue().doubleValue());
+			return x.getValue().longValue()==y.getValue().longValue();
+		} else if (a instanceof Variable) {
+			return b instanceof Variable && ((Variable) a).getName().equals(((Variable) b).getName());
+		} else if (a instanceof BinaryOperation) {
+			if (!(b instanceof BinaryOperation)) return false;
+			BinaryOperation x = (BinaryOperation) a;
+			BinaryOperation y = (BinaryOperation) b;
+			return x.getOperator()==y.getOperator() && equal(x.getLeft(), y.getLeft()) && equal(x.getRight(), y.getRight());
+		} else if (a instanceof Conversion) {
+			if (!(b instanceof Conversion)) return false;
+			Conversion x = (Conversion) a;
+			Conversion y = (Conversion) b;
+			return x.getType()==y.getType() && equal(x.getOperand(), y.getOperand());
+		} else if (a instanceof Call) {
+			if (!(b instanceof Call)) return false;
+			Call x = (Call) a;
+			Call y = (Call) b;
+			if (!x.getFunction().equals(y.getFunction()) || x.getArguments().size()!=y.getArguments().size()) return false;
+			for(int i=0; i<x.getArguments().size(); i++) {
+				if (!equal(x.getArguments().get(i), y.getArguments().get(i))) return false;
+			}
+			return true;
+		} else {
+			return foreignEqual(a, b);
+		}
+	}
+	
+	private static boolean foreignEqual(Object a, Object b) {
+		return b!=null && a.getClass()==b.getClass() && a.equals(b);
+	}
+	
+	/** FNV-1a over the string's chars, which, unlike String.hashCode, spreads over all 64 bits. */
+	private static long hash(String string) {
+		long hash = 0xCBF29CE484222325L;
+		for(int i=0; i<string.length(); i++) {
+			hash ^= string.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		return hash;
+	}
+	
+	/** Folds value into hash. Order matters, so children in a different order hash differently. */
+	private static long mix(long hash, long value) {
+		hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+		return hash ^ (hash >>> 31);
+	}
+}
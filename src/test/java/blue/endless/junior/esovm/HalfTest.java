@@ -0,0 +1,158 @@
+package blue.endless.junior.esovm;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks Half's conversions against a slow reference: every half is exact in a double, so the nearest one to a value can be
+ * found by scaling the value so a half-ulp is 1 and rounding with {@link Math#rint(double)}, which ties to even.
+ */
+public class HalfTest {
+	private static final int INFINITY = 0x7C00;
+	private static final int MAX_VALUE = 0x7BFF;
+	
+	@Test
+	public void toFloat() {
+		for(int bits=0; bits<65536; bits++) {
+			int exponent = (bits >>> 10) & 0x1F;
+			int mantissa = bits & 0x3FF;
+			float value = Half.toFloat((short) bits);
+			if (exponent==0x1F) {
+				assertTrue(hex(bits), (mantissa==0) ? Float.isInfinite(value) : Float.isNaN(value));
+			} else {
+				float magnitude = (exponent==0) ? Math.scalb((float) mantissa, -24) : Math.scalb((float) (mantissa | 0x400), exponent - 25);
+				assertEquals(hex(bits), Float.floatToRawIntBits((bits & 0x8000)==0 ? magnitude : -magnitude), Float.floatToRawIntBits(value));
+			}
+		}
+	}
+	
+	/** Each half, the midpoints between neighbours, and the closest floats and doubles on either side of each midpoint. */
+	@Test
+	public void aroundEveryHalf() {
+		for(int bits=0; bits<INFINITY; bits++) {
+			double value = Half.toFloat((short) bits);
+			double next = (bits==MAX_VALUE) ? 65536 : Half.toFloat((short) (bits + 1));
+			double midpoint = (value + next) / 2;
+			double[] values = {
+					value, midpoint,
+					Math.nextDown((float) midpoint), Math.nextUp((float) midpoint),
+					Math.nextDown(midpoint), Math.nextUp(midpoint) };
+			for(double v : values) {
+				check(v);
+				check(-v);
+			}
+		}
+	}
+	
+	@Test
+	public void random() {
+		Random random = new Random(1234);
+		for(int i=0; i<1_000_000; i++) {
+			//Exponents from well below the smallest subnormal half to well past the largest half
+			double value = Math.scalb(1 + random.nextDouble(), random.nextInt(50) - 30);
+			if (random.nextBoolean()) value = -value;
+			check(value);
+			check((float) value);
+		}
+	}
+	
+	@Test
+	public void ties() {
+		//Exactly halfway rounds to the even neighbour: 1 + 2^-11 down to 1, 1 + 3*2^-11 up to 1 + 2^-9
+		assertHalf(0x3C00, 1 + 0x1p-11);
+		assertHalf(0x3C02, 1 + 3*0x1p-11);
+		//Half the smallest subnormal rounds to zero, and one and a half of it to two of it
+		assertHalf(0x0000, 0x1p-25);
+		assertHalf(0x0002, 3*0x1p-25);
+		assertHalf(0x8000, -0x1p-25);
+	}
+	
+	@Test
+	public void overflow() {
+		assertHalf(MAX_VALUE, 65504);
+		assertHalf(MAX_VALUE, Math.nextDown(65520f));
+		//65520 is halfway between the largest half and 65536, and ties to the even one, which is infinity
+		assertHalf(INFINITY, 65520);
+		assertHalf(INFINITY, 1e6);
+		assertHalf(INFINITY, Float.MAX_VALUE);
+		assertHalf(INFINITY, Double.MAX_VALUE);
+		assertHalf(INFINITY, Double.POSITIVE_INFINITY);
+		assertHalf(0x8000 | INFINITY, Double.NEGATIVE_INFINITY);
+		assertHalf(0x8000 | INFINITY, -65520);
+	}
+	
+	@Test
+	public void nans() {
+		//The top of the payload is kept, and the result is always quiet, even when all of the payload is in the bits dropped
+		int[] floats = { 0x7FC00000, 0x7F800001, 0x7FA00000, 0x7FFFFFFF, 0xFFC02000 };
+		int[] halves = { 0x7E00,     0x7E00,     0x7F00,     0x7FFF,     0xFE01 };
+		for(int i=0; i<floats.length; i++) {
+			short half = Half.fromFloat(Float.intBitsToFloat(floats[i]));
+			assertEquals(hex(floats[i]), halves[i], half & 0xFFFF);
+			assertTrue(hex(floats[i]), Float.isNaN(Half.toFloat(half)));
+		}
+		assertTrue(Float.isNaN(Half.toFloat(Half.fromDouble(Double.NaN))));
+		assertTrue(Float.isNaN(Half.toFloat(Half.fromDouble(Double.longBitsToDouble(0x7FF0000000000001L)))));
+	}
+	
+	/**
+	 * Doubles a hair away from a tie, which round onto the tie as floats. Rounding the float to a half would then break the
+	 * tie the wrong way, so these only come out right if fromDouble rounds to odd on the way to float.
+	 */
+	@Test
+	public void roundToOdd() {
+		assertHalf(0x3C01, 1 + 0x1p-11 + 0x1p-40);
+		assertHalf(0x3C00, 1 + 0x1p-11 - 0x1p-40);
+		assertHalf(0x3C01, 1 + 3*0x1p-11 - 0x1p-40);
+		assertHalf(0x3C02, 1 + 3*0x1p-11 + 0x1p-40);
+		assertHalf(0x0001, 0x1p-25 + 0x1p-60);
+		assertHalf(0x8001, -0x1p-25 - 0x1p-60);
+		assertHalf(MAX_VALUE, 65520 - 0x1p-30);
+		//Which is not what going through a plain cast to float gives
+		for(double value : new double[] { 1 + 0x1p-11 + 0x1p-40, 0x1p-25 + 0x1p-60, 65520 - 0x1p-30 }) {
+			assertTrue(Double.toString(value), Half.fromFloat((float) value)!=Half.fromDouble(value));
+		}
+	}
+	
+	/** Checks fromDouble, and fromFloat too if value is a float, against the reference. */
+	private static void check(double value) {
+		int expected = reference(value);
+		assertEquals(value+" as a double", expected, Half.fromDouble(value) & 0xFFFF);
+		if ((float) value==value) assertEquals(value+" as a float", expected, Half.fromFloat((float) value) & 0xFFFF);
+	}
+	
+	private static void assertHalf(int expected, double value) {
+		assertEquals(value+" should be "+hex(expected), expected, reference(value));
+		check(value);
+	}
+	
+	/** Rounds a double that isn't NaN to the nearest half, ties to even, the slow way. */
+	private static int reference(double value) {
+		int sign = (Double.doubleToRawLongBits(value) < 0) ? 0x8000 : 0;
+		double magnitude = Math.abs(value);
+		if (magnitude>=65520) return sign | INFINITY;
+		//The gap between adjacent halves around magnitude, which is 2^-24 all the way up to the smallest normal half
+		double ulp = Math.scalb(1.0, Math.max(Math.getExponent(magnitude), -14) - 10);
+		double rounded = Math.rint(magnitude / ulp) * ulp;
+		
+		int low = 0;
+		int high = INFINITY;
+		while(low<high) {
+			int mid = (low + high) >>> 1;
+			if (Half.toFloat((short) mid) < rounded) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		assertTrue("reference for "+value, Half.toFloat((short) low)==rounded);
+		return sign | low;
+	}
+	
+	private static String hex(int bits) {
+		return "0x"+Integer.toHexString(bits);
+	}
+}
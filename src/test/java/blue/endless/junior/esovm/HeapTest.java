@@ -0,0 +1,188 @@
+package blue.endless.junior.esovm;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import blue.endless.junior.jarser.JarserParser;
+
+public class HeapTest {
+	@Test
+	public void sizeClasses() throws Exception {
+		Heap heap = new Heap();
+		long[] sizes    = { 0,  1,  16, 17, 1000, Heap.MAX_SMALL_BLOCK };
+		long[] rounded  = { 16, 16, 16, 32, 1024, Heap.MAX_SMALL_BLOCK };
+		long[] addresses = new long[sizes.length];
+		long allocated = 0;
+		for(int i=0; i<sizes.length; i++) {
+			addresses[i] = heap.allocate(sizes[i]);
+			allocated += rounded[i];
+			assertTrue("address of a "+sizes[i]+"-byte block", addresses[i]!=0 && addresses[i] % 16 == 0);
+			assertEquals("allocated after a "+sizes[i]+"-byte block", allocated, heap.getAllocatedBytes());
+		}
+		
+		//Fill every block right up to its rounded size, and check that none of them overlap
+		for(int i=0; i<sizes.length; i++) {
+			for(long offset=0; offset<rounded[i]; offset+=8) heap.putInt64(addresses[i] + offset, i);
+		}
+		for(int i=0; i<sizes.length; i++) {
+			for(long offset=0; offset<rounded[i]; offset+=8) assertEquals(i, heap.getInt64(addresses[i] + offset));
+		}
+		
+		//A freed block is the next one handed out of its class
+		heap.free(addresses[4]);
+		assertEquals(allocated - 1024, heap.getAllocatedBytes());
+		assertEquals(addresses[4], heap.allocate(1000));
+	}
+	
+	@Test
+	public void largeRuns() throws Exception {
+		Heap heap = new Heap();
+		long mapped = heap.getMappedBytes();
+		long address = heap.allocate(200000);
+		assertEquals(4L * Heap.PAGE_SIZE, heap.getAllocatedBytes());
+		assertEquals(mapped + 4L * Heap.PAGE_SIZE, heap.getMappedBytes());
+		
+		//A run is contiguous, even for accesses which straddle its pages
+		heap.putInt64(address + Heap.PAGE_SIZE - 4, 0x0123456789ABCDEFL);
+		assertEquals(0x0123456789ABCDEFL, heap.getInt64(address + Heap.PAGE_SIZE - 4));
+		heap.putInt8(address + 4L * Heap.PAGE_SIZE - 1, (byte) 7);
+		assertFaults(() -> heap.getInt8(address + 4L * Heap.PAGE_SIZE));
+		
+		heap.free(address);
+		assertEquals(0, heap.getAllocatedBytes());
+		assertEquals(mapped, heap.getMappedBytes());
+		assertFaults(() -> heap.getInt8(address));
+		
+		//Just over the small block limit gets a run of one page
+		long single = heap.allocate(Heap.MAX_SMALL_BLOCK + 1);
+		assertEquals(0, single % Heap.PAGE_SIZE);
+		assertEquals(Heap.PAGE_SIZE, heap.getAllocatedBytes());
+	}
+	
+	@Test
+	public void doubleFree() throws Exception {
+		Heap heap = new Heap();
+		long small = heap.allocate(100);
+		long large = heap.allocate(100000);
+		heap.free(small);
+		heap.free(large);
+		assertFaults(() -> heap.free(small));
+		assertFaults(() -> heap.free(large));
+		assertEquals(0, heap.getAllocatedBytes());
+		
+		//Freeing null is always fine
+		heap.free(0);
+	}
+	
+	@Test
+	public void forgedFree() throws Exception {
+		Heap heap = new Heap();
+		long small = heap.allocate(1000);
+		long large = heap.allocate(200000);
+		long allocated = heap.getAllocatedBytes();
+		
+		//Whatever the blocks hold, only the addresses allocate returned can be freed
+		for(long offset=0; offset<1024; offset+=8) heap.putInt64(small + offset, 0x4C495645FFFE7960L);
+		heap.putInt64(large + Heap.PAGE_SIZE, 0x4C495645FFFE7960L);
+		long[] forged = { small + 8, small + 16, small + 512, large + 8, large + Heap.PAGE_SIZE, large + Heap.PAGE_SIZE + 8,
+				large + 2*Heap.PAGE_SIZE, 0x7FFF0000L, -8 };
+		for(long address : forged) assertFaults(() -> heap.free(address));
+		assertEquals(allocated, heap.getAllocatedBytes());
+		
+		//Both blocks are still whole, and new blocks don't land inside them
+		heap.putInt8(large + 200000 - 1, (byte) 1);
+		for(int i=0; i<100; i++) {
+			long address = heap.allocate(8);
+			assertTrue("new block at 0x"+Long.toHexString(address), address+16 <= small || address >= small + 1024);
+			assertTrue("new block at 0x"+Long.toHexString(address), address+16 <= large || address >= large + 4L * Heap.PAGE_SIZE);
+		}
+		heap.free(small);
+		heap.free(large);
+	}
+	
+	@Test
+	public void overflowBoundary() throws Exception {
+		Heap heap = new Heap();
+		long[] tooBig = { Heap.MAX_BLOCK + 1, Long.MAX_VALUE, Long.MAX_VALUE - 65542, Long.MAX_VALUE - Heap.PAGE_SIZE + 1, -1, Long.MIN_VALUE };
+		for(long size : tooBig) assertFaults(() -> heap.allocate(size));
+		assertEquals(0, heap.getAllocatedBytes());
+		assertEquals(0, heap.getMappedBytes());
+	}
+	
+	@Test
+	public void copyOnWrite() throws Exception {
+		Heap parent = new Heap();
+		long small = parent.allocate(64);
+		long large = parent.allocate(100000);
+		parent.putInt64(small, 1);
+		parent.putInt64(large + Heap.PAGE_SIZE, 2);
+		
+		Heap child = parent.fork();
+		Heap sibling = parent.fork();
+		child.putInt64(small, 10);
+		child.putInt64(large + Heap.PAGE_SIZE, 20);
+		assertEquals(1, parent.getInt64(small));
+		assertEquals(2, parent.getInt64(large + Heap.PAGE_SIZE));
+		assertEquals(1, sibling.getInt64(small));
+		assertEquals(2, sibling.getInt64(large + Heap.PAGE_SIZE));
+		assertEquals(10, child.getInt64(small));
+		assertEquals(20, child.getInt64(large + Heap.PAGE_SIZE));
+		
+		parent.putInt64(small, 100);
+		assertEquals(10, child.getInt64(small));
+		assertEquals(1, sibling.getInt64(small));
+		
+		//Freeing in one heap leaves the block live in the others
+		child.free(small);
+		child.free(large);
+		assertFaults(() -> child.getInt64(large));
+		assertEquals(2, sibling.getInt64(large + Heap.PAGE_SIZE));
+		sibling.free(small);
+		sibling.free(large);
+		parent.free(small);
+		parent.free(large);
+		assertFaults(() -> parent.free(small));
+	}
+	
+	/** A script which forges a block inside one of its own and frees it faults, in both the checked and verified tiers. */
+	@Test
+	public void forgedFreeFromScript() throws Exception {
+		String source =
+				"export function main() -> i64\n" +
+				"var p, q : word\n" +
+				"var v : i64\n" +
+				"p = allocate 200000\n" +
+				"q = p + 65536\n" +
+				"v = 0x4C495645FFFE7960\n" +
+				"[q] = v\n" +
+				"q = q + 8\n" +
+				"free q\n" +
+				"push v\n" +
+				"return\n" +
+				"end\n";
+		for(boolean verify : new boolean[] { false, true }) {
+			Module module = JarserParser.parse(source);
+			VMThread thread = new VMThread(module, module.getExport("main"));
+			if (verify) thread.verify();
+			RunResult result = thread.run(1000);
+			assertEquals(RunResult.Status.FAULTED, result.getStatus());
+			assertTrue(result.getFault().toString(), result.getFault() instanceof VMMemoryException);
+		}
+	}
+	
+	private interface HeapAction {
+		void run() throws VMException;
+	}
+	
+	private static void assertFaults(HeapAction action) {
+		try {
+			action.run();
+		} catch (VMMemoryException ex) {
+			return;
+		} catch (VMException ex) {
+			fail("Expected a VMMemoryException, got "+ex);
+		}
+		fail("Expected a VMMemoryException");
+	}
+}
@@ -0,0 +1,249 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Inlines small functions and checks that every program gives the same result as it did with the calls left in, in both
+ * the checked and verified tiers, and that the calls really were inlined.
+ */
+public class InlinerTest {
+	private static final int I32  = DATA_INT32 << 4;
+	private static final int I64  = DATA_INT64 << 4;
+	private static final int WORD = DATA_WORD << 4;
+	
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final ConstantPool constants = new ConstantPool();
+	
+	/** An entry point past the first instruction becomes a jump into the body, and registers the body reads start at zero. */
+	@Test
+	public void entryPointNotFirst() throws Exception {
+		int abs = constants.addString("abs");
+		int main = out.size();
+		instruction(OPCODE_LOAD,   I32 | OPERAND_IMMEDIATE, 0, 1, 1000);
+		instruction(OPCODE_LOAD,   I32 | OPERAND_IMMEDIATE, 0, 0, -7);
+		instruction(OPCODE_PUSH,   I32, 0, 0, 0);
+		instruction(OPCODE_CALL,   0, 0, 0, abs);
+		instruction(OPCODE_LOAD,   I32 | OPERAND_IMMEDIATE, 0, 0, 7);
+		instruction(OPCODE_PUSH,   I32, 0, 0, 0);
+		instruction(OPCODE_CALL,   0, 0, 0, abs);
+		instruction(OPCODE_POP,    I32, 0, 0, 0);
+		instruction(OPCODE_POP,    I32, 0, 2, 0);
+		instruction(OPCODE_ADD,    I32, 0, 0, 2);
+		instruction(OPCODE_ADD,    I32, 0, 0, 1);
+		instruction(OPCODE_PUSH,   I32, 0, 0, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		
+		//Negates r0 by subtracting it from r1, which nothing writes, so it has to be zero
+		int start = out.size();
+		instruction(OPCODE_SUB,    I32, 0, 1, 0);
+		instruction(OPCODE_JUMP,   0, 0, 0, start + 5*8);
+		instruction(OPCODE_POP,    I32, 0, 0, 0);
+		instruction(OPCODE_TEST,   I32, 0, 0, 0);
+		instruction(OPCODE_CJUMP,  0, 0, CONDITION_NEGATIVE, start);
+		instruction(OPCODE_PUSH,   I32, 0, 0, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		
+		compare(module(
+				new Module.Function("main", main, start, main, StackFrame.lvtInfo(0, 0, 0, 3, 0, 0, 0, 0), 0, 4, Module.FLAG_EXPORTED),
+				new Module.Function("abs", start, out.size(), start + 2*8, StackFrame.lvtInfo(0, 0, 0, 2, 0, 0, 0, 0), 4, 4, 0)),
+				1014);
+	}
+	
+	/** RETURNs in the middle of a body, and jumps to the RETURN at its end, both carry on after the call. */
+	@Test
+	public void returns() throws Exception {
+		int max = constants.addString("max");
+		int clamp = constants.addString("clamp");
+		int main = out.size();
+		int[][] calls = { { max, 3, 9 }, { max, 12, 4 }, { clamp, -5 }, { clamp, 6 } };
+		instruction(OPCODE_LOAD, I32 | OPERAND_IMMEDIATE, 0, 1, 0);
+		for(int[] call : calls) {
+			for(int i=1; i<call.length; i++) {
+				instruction(OPCODE_LOAD, I32 | OPERAND_IMMEDIATE, 0, 0, call[i]);
+				instruction(OPCODE_PUSH, I32, 0, 0, 0);
+			}
+			instruction(OPCODE_CALL, 0, 0, 0, call[0]);
+			instruction(OPCODE_POP,  I32, 0, 0, 0);
+			instruction(OPCODE_MUL,  I32 | OPERAND_IMMEDIATE, 1, 1, 100);
+			instruction(OPCODE_ADD,  I32, 1, 1, 0);
+		}
+		instruction(OPCODE_PUSH,   I32, 0, 1, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		
+		int maxStart = out.size();
+		instruction(OPCODE_POP,    I32, 0, 1, 0);
+		instruction(OPCODE_POP,    I32, 0, 0, 0);
+		instruction(OPCODE_SUB,    I32, 2, 0, 1);
+		instruction(OPCODE_TEST,   I32, 0, 2, 0);
+		instruction(OPCODE_CJUMP,  0, 0, CONDITION_NEGATIVE, maxStart + 7*8);
+		instruction(OPCODE_PUSH,   I32, 0, 0, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		instruction(OPCODE_PUSH,   I32, 0, 1, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		
+		int clampStart = out.size();
+		instruction(OPCODE_POP,    I32, 0, 0, 0);
+		instruction(OPCODE_TEST,   I32, 0, 0, 0);
+		instruction(OPCODE_CJUMP,  0, 0, CONDITION_NEGATIVE, clampStart + 5*8);
+		instruction(OPCODE_PUSH,   I32, 0, 0, 0);
+		instruction(OPCODE_JUMP,   0, 0, 0, clampStart + 7*8);
+		instruction(OPCODE_LOAD,   I32 | OPERAND_IMMEDIATE, 0, 0, 0);
+		instruction(OPCODE_PUSH,   I32, 0, 0, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		
+		//max(3, 9), max(12, 4), clamp(-5) and clamp(6), two digits each
+		compare(module(
+				new Module.Function("main", main, maxStart, main, StackFrame.lvtInfo(0, 0, 0, 2, 0, 0, 0, 0), 0, 4, Module.FLAG_EXPORTED),
+				new Module.Function("max", maxStart, clampStart, maxStart, StackFrame.lvtInfo(0, 0, 0, 3, 0, 0, 0, 0), 8, 4, 0),
+				new Module.Function("clamp", clampStart, out.size(), clampStart, StackFrame.lvtInfo(0, 0, 0, 1, 0, 0, 0, 0), 4, 4, 0)),
+				9120006);
+	}
+	
+	/** The base and offset registers of memory operands are moved up with the rest of the body's registers. */
+	@Test
+	public void memoryOperands() throws Exception {
+		int peek = constants.addString("peek");
+		int main = out.size();
+		//Two blocks, so that reading through the caller's w0 instead of the callee's gives a different answer
+		instruction(OPCODE_ALLOCATE, WORD | OPERAND_IMMEDIATE, 0, 0, 32);
+		instruction(OPCODE_ALLOCATE, WORD | OPERAND_IMMEDIATE, 0, 1, 32);
+		long[][] stores = { { 0, 8, 1 }, { 0, 16, 100 }, { 1, 8, 42 }, { 1, 16, 4200 } };
+		for(long[] store : stores) {
+			instruction(OPCODE_LOAD,  I64 | OPERAND_IMMEDIATE, 0, 0, (int) store[2]);
+			instruction(OPCODE_STORE, I64 | OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET, (int) store[0], 0, (int) store[1]);
+		}
+		instruction(OPCODE_LOAD,   WORD | OPERAND_IMMEDIATE, 0, 2, 16);
+		instruction(OPCODE_PUSH,   WORD, 0, 1, 0);
+		instruction(OPCODE_PUSH,   WORD, 0, 2, 0);
+		instruction(OPCODE_CALL,   0, 0, 0, peek);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		
+		//Adds up [base + 8] and [base + offset]
+		int start = out.size();
+		instruction(OPCODE_POP,    WORD, 0, 1, 0);
+		instruction(OPCODE_POP,    WORD, 0, 0, 0);
+		instruction(OPCODE_LOAD,   I64 | OPERAND_REGISTER_ADDRESS_PLUS_IMMEDIATE_OFFSET, 0, 0, 8);
+		instruction(OPCODE_LOAD,   I64 | OPERAND_REGISTER_ADDRESS_PLUS_REGISTER_OFFSET, 0, 1, 1);
+		instruction(OPCODE_ADD,    I64, 0, 0, 1);
+		instruction(OPCODE_PUSH,   I64, 0, 0, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		
+		compare(module(
+				new Module.Function("main", main, start, main, StackFrame.lvtInfo(3, 1, 0, 0, 0, 0, 0, 0), 0, 8, Module.FLAG_EXPORTED),
+				new Module.Function("peek", start, out.size(), start, StackFrame.lvtInfo(2, 2, 0, 0, 0, 0, 0, 0), 16, 8, 0)),
+				4242);
+	}
+	
+	/** A callee is inlined only if the caller's registers plus its own come to at most 255 of each type. */
+	@Test
+	public void registerLimit() throws Exception {
+		Module fits = increment(245);
+		Module inlined = compare(fits, 42);
+		assertEquals(255, Verifier.lvtCount(inlined.getFunction("main").getLvtInfo(), DATA_INT32));
+		
+		out.reset();
+		Module tooMany = increment(246);
+		assertTrue(Inliner.inline(tooMany, Inliner.DEFAULT_THRESHOLD)==tooMany);
+		assertEquals(42, run(tooMany, true));
+	}
+	
+	/** A module loaded to replace one with inlined calls is inlined all over again, so the new callee is the one that runs. */
+	@Test
+	public void reinlineAfterReplace() throws Exception {
+		Interpreter interpreter = new Interpreter();
+		interpreter.setInlineThreshold(Inliner.DEFAULT_THRESHOLD);
+		
+		interpreter.link(increment(2));
+		assertFalse(hasCalls(interpreter.getModule()));
+		VMThread thread = interpreter.createThread("main");
+		assertEquals(RunResult.Status.HALTED, thread.run(1000).getStatus());
+		assertEquals(42, thread.getStack().popInt32());
+		
+		out.reset();
+		interpreter.link(module(2, OPCODE_MUL, 3));
+		assertFalse(hasCalls(interpreter.getModule()));
+		thread = interpreter.createThread("main");
+		assertEquals(RunResult.Status.HALTED, thread.run(1000).getStatus());
+		assertEquals(123, thread.getStack().popInt32());
+	}
+	
+	/** A module whose main passes 41 to a function which adds one, in a caller with the given number of int32 registers. */
+	private Module increment(int callerRegisters) throws VMException {
+		return module(callerRegisters, OPCODE_ADD, 1);
+	}
+	
+	/** A module whose main passes 41 to a function which applies opcode with an immediate operand to it, using its tenth register. */
+	private Module module(int callerRegisters, int opcode, int operand) throws VMException {
+		int call = constants.addString("apply");
+		int last = callerRegisters - 1;
+		int main = out.size();
+		instruction(OPCODE_LOAD,   I32 | OPERAND_IMMEDIATE, 0, last, 41);
+		instruction(OPCODE_PUSH,   I32, 0, last, 0);
+		instruction(OPCODE_CALL,   0, 0, 0, call);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		
+		int start = out.size();
+		instruction(OPCODE_POP,    I32, 0, 9, 0);
+		instruction(opcode,        I32 | OPERAND_IMMEDIATE, 9, 9, operand);
+		instruction(OPCODE_PUSH,   I32, 0, 9, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0);
+		
+		return module(
+				new Module.Function("main", main, start, main, StackFrame.lvtInfo(0, 0, 0, callerRegisters, 0, 0, 0, 0), 0, 4, Module.FLAG_EXPORTED),
+				new Module.Function("apply", start, out.size(), start, StackFrame.lvtInfo(0, 0, 0, 10, 0, 0, 0, 0), 4, 4, 0));
+	}
+	
+	private Module module(Module.Function... functions) throws VMException {
+		return new Module(out.toByteArray(), constants, Arrays.asList(functions));
+	}
+	
+	/**
+	 * Runs main in module as it is, and again after inlining, in both the checked and verified tiers, checking that they all
+	 * return expected, and that main has no calls left once it's inlined. Returns the inlined module.
+	 */
+	private static Module compare(Module module, long expected) throws VMException {
+		for(boolean verify : new boolean[] { false, true }) assertEquals(expected, run(module, verify));
+		
+		Module inlined = Inliner.inline(module, Inliner.DEFAULT_THRESHOLD);
+		assertTrue(inlined!=module);
+		assertFalse(hasCalls(inlined));
+		for(boolean verify : new boolean[] { false, true }) assertEquals(expected, run(inlined, verify));
+		return inlined;
+	}
+	
+	private static long run(Module module, boolean verify) throws VMException {
+		Module.Function main = module.getExport("main");
+		VMThread thread = new VMThread(module, main);
+		if (verify) thread.verify();
+		RunResult result = thread.run(10000);
+		assertNull(result.getFault());
+		assertEquals(RunResult.Status.HALTED, result.getStatus());
+		return (main.getResultBytes()==8) ? thread.getStack().popInt64() : thread.getStack().popInt32();
+	}
+	
+	private static boolean hasCalls(Module module) {
+		Module.Function main = module.getFunction("main");
+		byte[] program = module.getProgram();
+		for(int pc=main.getStart(); pc<main.getEnd(); pc+=8) {
+			if ((program[pc] & 0xFF)==OPCODE_CALL) return true;
+		}
+		return false;
+	}
+	
+	private void instruction(int opcode, int types, int destination, int operand1, int operand2) {
+		out.write(opcode);
+		out.write(types);
+		out.write(destination);
+		out.write(operand1);
+		out.write(operand2 >>> 24);
+		out.write(operand2 >>> 16);
+		out.write(operand2 >>> 8);
+		out.write(operand2);
+	}
+}
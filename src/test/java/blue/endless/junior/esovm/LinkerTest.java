@@ -0,0 +1,72 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class LinkerTest {
+	/** Set by Probe's static initializer, which nothing should run until Probe.value is actually called. */
+	static boolean probeInitialized = false;
+	
+	public static class Probe {
+		static {
+			probeInitialized = true;
+		}
+		
+		public static int value() {
+			return 42;
+		}
+	}
+	
+	@Test
+	public void javaCallsAreOffByDefault() throws Exception {
+		Linker linker = new Linker();
+		Module module = callAbs();
+		linker.add(module);
+		RunResult result = new VMThread(module, module.getExport("main")).run(100);
+		assertEquals(RunResult.Status.FAULTED, result.getStatus());
+		
+		linker.setJavaCallsAllowed(true);
+		VMThread thread = new VMThread(module, module.getExport("main"));
+		assertEquals(RunResult.Status.HALTED, thread.run(100).getStatus());
+		assertEquals(5, thread.getStack().popInt32());
+	}
+	
+	@Test
+	public void findingAMethodDoesNotInitializeItsClass() throws Throwable {
+		NativeFunction function = NativeFunction.find(Probe.class.getName()+".value", LinkerTest.class.getClassLoader());
+		assertFalse(probeInitialized);
+		assertEquals(42, (int) function.getHandle().invoke());
+		assertTrue(probeInitialized);
+	}
+	
+	/** A module whose main returns java.lang.Math.abs(-5). */
+	private static Module callAbs() throws VMException {
+		ConstantPool constants = new ConstantPool();
+		int abs = constants.addString("java.lang.Math.abs(I)I");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		instruction(out, OPCODE_LOAD,   DATA_INT32, OPERAND_IMMEDIATE, 0, 0, -5);
+		instruction(out, OPCODE_PUSH,   DATA_INT32, 0, 0, 0, 0);
+		instruction(out, OPCODE_CALL,   0, 0, 0, 0, abs);
+		instruction(out, OPCODE_RETURN, 0, 0, 0, 0, 0);
+		byte[] program = out.toByteArray();
+		long lvtInfo = StackFrame.lvtInfo(0, 0, 0, 1, 0, 0, 0, 0);
+		return new Module(program, constants, Arrays.asList(
+				new Module.Function("main", 0, program.length, 0, lvtInfo, 0, 4, Module.FLAG_EXPORTED)));
+	}
+	
+	private static void instruction(ByteArrayOutputStream out, int opcode, int dataType, int operand2Type, int destination, int operand1, int operand2) {
+		out.write(opcode);
+		out.write((dataType << 4) | operand2Type);
+		out.write(destination);
+		out.write(operand1);
+		out.write(operand2 >>> 24);
+		out.write(operand2 >>> 16);
+		out.write(operand2 >>> 8);
+		out.write(operand2);
+	}
+}
@@ -0,0 +1,188 @@
+package blue.endless.junior.esovm;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import blue.endless.junior.jarser.JarserParser;
+
+public class ModuleTest {
+	/** Three functions: main, one it calls, and one nothing calls. */
+	private static final String SOURCE =
+			"export function main() -> i64\n" +
+			"var a : i64\n" +
+			"a = 20\n" +
+			"push a\n" +
+			"call twice\n" +
+			"return\n" +
+			"end\n" +
+			"function twice(i64) -> i64\n" +
+			"var x : i64\n" +
+			"x = pop\n" +
+			"x = x + x\n" +
+			"test x\n" +
+			"jump zero done\n" +
+			"x = x + 2\n" +
+			"done: push x\n" +
+			"return\n" +
+			"end\n" +
+			"export function unused() -> i64\n" +
+			"var y : i64\n" +
+			"y = 7\n" +
+			"push y\n" +
+			"return\n" +
+			"end\n";
+	
+	@Test
+	public void roundTrip() throws Exception {
+		for(boolean includeDecoded : new boolean[] { false, true }) {
+			Module original = JarserParser.parse(SOURCE);
+			byte[] file = write(original, includeDecoded);
+			Module module = Module.read(ByteBuffer.wrap(file));
+			
+			assertEquals(original.getFunctions().size(), module.getFunctions().size());
+			for(int i=0; i<original.getFunctions().size(); i++) {
+				Module.Function expected = original.getFunctions().get(i);
+				Module.Function function = module.getFunctions().get(i);
+				assertEquals(expected.getName(), function.getName());
+				assertEquals(expected.getStart(), function.getStart());
+				assertEquals(expected.getEnd(), function.getEnd());
+				assertEquals(expected.getEntry(), function.getEntry());
+				assertEquals(expected.getLvtInfo(), function.getLvtInfo());
+				assertEquals(expected.getArgumentBytes(), function.getArgumentBytes());
+				assertEquals(expected.getResultBytes(), function.getResultBytes());
+				assertEquals(expected.getFlags(), function.getFlags());
+				module.load(function);
+			}
+			assertTrue(Arrays.equals(original.getProgram(), module.getProgram()));
+			assertEquals(original.getConstants().getStringCount(), module.getConstants().getStringCount());
+			
+			//Writing it back out gives the same file, and it still runs
+			assertTrue(Arrays.equals(file, write(module, includeDecoded)));
+			assertEquals(42, run(module, false));
+			assertEquals(42, run(module, true));
+		}
+	}
+	
+	/** A mapped module only copies and decodes the functions which are called. */
+	@Test
+	public void lazyLoading() throws Exception {
+		Path path = Files.createTempFile("module", ".esom");
+		try {
+			try (OutputStream out = Files.newOutputStream(path)) {
+				JarserParser.parse(SOURCE).write(out, false);
+			}
+			Module module = Module.load(path);
+			for(Module.Function function : module.getFunctions()) assertFalse(function.isLoaded());
+			
+			assertEquals(42, run(module, false));
+			assertTrue(module.getFunction("main").isLoaded());
+			assertTrue(module.getFunction("twice").isLoaded());
+			Module.Function unused = module.getFunction("unused");
+			assertFalse(unused.isLoaded());
+			for(int pc=unused.getStart(); pc<unused.getEnd(); pc++) assertEquals(0, module.getProgram()[pc]);
+			
+			//Writing a partly loaded module still writes every function
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			module.write(out, false);
+			assertTrue(Arrays.equals(Files.readAllBytes(path), out.toByteArray()));
+		} finally {
+			Files.delete(path);
+		}
+	}
+	
+	/** The pre-decoded section is used as it is, but only if this decoder wrote it. */
+	@Test
+	public void preDecoded() throws Exception {
+		Module original = JarserParser.parse(SOURCE);
+		byte[] file = write(original, true);
+		Module module = Module.read(ByteBuffer.wrap(file));
+		assertNotNull("decoded section", module.decodedSource);
+		for(Module.Function function : module.getFunctions()) module.load(function);
+		assertTrue(Arrays.equals(original.getCode(), module.getCode()));
+		
+		//Any other decoder version means the section is ignored, and the code is decoded from scratch
+		file[decodedSection(file)]++;
+		module = Module.read(ByteBuffer.wrap(file));
+		assertNull(module.decodedSource);
+		for(Module.Function function : module.getFunctions()) module.load(function);
+		assertTrue(Arrays.equals(original.getCode(), module.getCode()));
+	}
+	
+	/** Verifying a function decodes it again from its raw code, so a tampered pre-decoded section can't get past the verifier. */
+	@Test
+	public void tamperedDecodedSection() throws Exception {
+		Module original = JarserParser.parse(SOURCE);
+		byte[] file = write(original, true);
+		//Every int of the pre-decoded code, after its version, becomes garbage
+		for(int i=decodedSection(file) + 4; i<file.length; i++) file[i] = (byte) 0x7F;
+		
+		Module module = Module.read(ByteBuffer.wrap(file));
+		Module.Function main = module.getFunction("main");
+		module.load(main);
+		assertEquals(0x7F7F7F7F, module.getCode()[(main.getStart() >> 3) * Decoder.STRIDE]);
+		
+		assertEquals(42, run(module, true));
+		for(Module.Function function : module.getFunctions()) assertTrue(function.getName(), !function.isLoaded() || function.isVerified());
+	}
+	
+	/** Cutting a module short anywhere, or shrinking its function table, is an IOException and never anything else. */
+	@Test
+	public void truncated() throws Exception {
+		byte[] file = write(JarserParser.parse(SOURCE), false);
+		for(int length=0; length<file.length; length++) assertUnreadable(Arrays.copyOf(file, length));
+		
+		int entry = sectionEntry(file, Module.SECTION_FUNCTIONS);
+		int functionsLength = ByteBuffer.wrap(file).getInt(entry + 8);
+		for(int length=0; length<functionsLength; length++) {
+			byte[] shrunk = file.clone();
+			ByteBuffer.wrap(shrunk).putInt(entry + 8, length);
+			assertUnreadable(shrunk);
+		}
+	}
+	
+	private static void assertUnreadable(byte[] file) throws VMException {
+		try {
+			Module.read(ByteBuffer.wrap(file));
+		} catch (IOException ex) {
+			return;
+		}
+		fail("Read a broken module of "+file.length+" bytes");
+	}
+	
+	private static byte[] write(Module module, boolean includeDecoded) throws IOException, VMException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		module.write(out, includeDecoded);
+		return out.toByteArray();
+	}
+	
+	/** Returns the offset of the section table entry for the section of the given type. */
+	private static int sectionEntry(byte[] file, int type) {
+		ByteBuffer buffer = ByteBuffer.wrap(file);
+		for(int i=0; i<buffer.getShort(6); i++) {
+			if (buffer.getInt(8 + i*12)==type) return 8 + i*12;
+		}
+		throw new AssertionError("No section of type "+type);
+	}
+	
+	private static int decodedSection(byte[] file) {
+		return ByteBuffer.wrap(file).getInt(sectionEntry(file, Module.SECTION_DECODED) + 4);
+	}
+	
+	private static long run(Module module, boolean verify) throws VMException {
+		VMThread thread = new VMThread(module, module.getExport("main"));
+		if (verify) thread.verify();
+		RunResult result = thread.run(1000);
+		assertNull(result.getFault());
+		assertEquals(RunResult.Status.HALTED, result.getStatus());
+		return thread.getStack().popInt64();
+	}
+}
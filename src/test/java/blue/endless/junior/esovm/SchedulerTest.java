@@ -0,0 +1,175 @@
+package blue.endless.junior.esovm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import blue.endless.junior.jarser.JarserParser;
+
+public class SchedulerTest {
+	/** Reads a value from port 0 and returns one more than it. */
+	private static final String INCREMENT =
+			"export function main() -> i64\n" +
+			"var k : i64\n" +
+			"k = in 0\n" +
+			"k = k + 1\n" +
+			"push k\n" +
+			"return\n" +
+			"end\n";
+	
+	/** Adds up 1 through n, in a function main calls, with n filled in per thread. */
+	private static String sum(int n) {
+		return
+				"function sum(i64) -> i64\n" +
+				"var n, s : i64\n" +
+				"n = pop\n" +
+				"s = 0\n" +
+				"top:\n" +
+				"s = s + n\n" +
+				"n = n - 1\n" +
+				"test n\n" +
+				"jump not_zero top\n" +
+				"push s\n" +
+				"return\n" +
+				"end\n" +
+				"export function main() -> i64\n" +
+				"i64 %0 = " + n + "\n" +
+				"push i64 %0\n" +
+				"call sum\n" +
+				"return\n" +
+				"end\n";
+	}
+	
+	/** Many threads, sliced finely across several workers, end up exactly where they would have running alone. */
+	@Test
+	public void resultsDontDependOnScheduling() throws Exception {
+		Scheduler scheduler = new Scheduler(4, 7);
+		try {
+			List<VMThread> threads = new ArrayList<>();
+			List<CompletableFuture<RunResult>> futures = new ArrayList<>();
+			for(int i=0; i<64; i++) {
+				VMThread thread = thread(sum(100 + i*37), i % 3);
+				threads.add(thread);
+				futures.add(scheduler.submit(thread));
+			}
+			
+			for(int i=0; i<threads.size(); i++) {
+				VMThread alone = thread(sum(100 + i*37), i % 3);
+				RunResult expected = alone.run(Long.MAX_VALUE);
+				RunResult result = futures.get(i).get(30, TimeUnit.SECONDS);
+				assertEquals("thread "+i, RunResult.Status.HALTED, result.getStatus());
+				//Every slice's cycles are counted, and no more
+				assertEquals("thread "+i, expected.getCycles(), result.getCycles());
+				assertEquals("thread "+i, alone.getTotalCycles(), threads.get(i).getTotalCycles());
+				assertEquals("thread "+i, alone.getStack().popInt64(), threads.get(i).getStack().popInt64());
+			}
+			assertEquals(0, scheduler.getThreadCount());
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+	
+	/** A thread waiting on an empty port parks until it's unparked, and the cycles it spent waiting aren't counted. */
+	@Test
+	public void parkAndUnpark() throws Exception {
+		Scheduler scheduler = new Scheduler(2, 5);
+		try {
+			Module module = JarserParser.parse(INCREMENT);
+			VMThread thread = new VMThread(module, module.getExport("main"));
+			Input input = new Input();
+			thread.attachPort(0, input);
+			CompletableFuture<RunResult> future = scheduler.submit(thread);
+			
+			assertTrue(scheduler.awaitQuiescence(10, TimeUnit.SECONDS));
+			assertFalse(future.isDone());
+			assertEquals(1, scheduler.getThreadCount());
+			assertTrue(thread.isWaiting());
+			
+			input.value = 41;
+			scheduler.unpark(thread);
+			RunResult result = future.get(10, TimeUnit.SECONDS);
+			assertEquals(RunResult.Status.HALTED, result.getStatus());
+			assertEquals(42, thread.getStack().popInt64());
+			
+			//Same as a thread which never had to wait
+			VMThread alone = new VMThread(module, module.getExport("main"));
+			alone.attachPort(0, new Input(41));
+			assertEquals(alone.run(Long.MAX_VALUE).getCycles(), result.getCycles());
+			assertEquals(0, scheduler.getThreadCount());
+			
+			//Unparking a thread the scheduler isn't running does nothing
+			scheduler.unpark(thread);
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+	
+	/**
+	 * An unpark which arrives while the thread is still running its slice, just before it finds its port empty, makes it go
+	 * straight back into the queue instead of parking. Otherwise nothing would ever unpark it again.
+	 */
+	@Test
+	public void unparkWhileRunning() throws Exception {
+		Scheduler scheduler = new Scheduler(2, 1000);
+		try {
+			Module module = JarserParser.parse(INCREMENT);
+			VMThread thread = new VMThread(module, module.getExport("main"));
+			//The data arrives, and the unpark with it, the first time the thread checks the port
+			thread.attachPort(0, new Input() {
+				@Override
+				public boolean available() {
+					if (value!=0) return true;
+					value = 41;
+					scheduler.unpark(thread);
+					return false;
+				}
+			});
+			
+			RunResult result = scheduler.submit(thread).get(10, TimeUnit.SECONDS);
+			assertEquals(RunResult.Status.HALTED, result.getStatus());
+			assertEquals(42, thread.getStack().popInt64());
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+	
+	/** A thread in the given tier: 0 for checked, 1 for verified, 2 for verified and compiled as soon as possible. */
+	private static VMThread thread(String source, int tier) throws Exception {
+		Module module = JarserParser.parse(source);
+		VMThread thread = new VMThread(module, module.getExport("main"));
+		if (tier>0) {
+			thread.verify();
+			thread.setJitThreshold((tier==2) ? 1 : 0);
+		}
+		return thread;
+	}
+	
+	/** A port with a value ready once it's been set to something other than zero. */
+	private static class Input implements Port {
+		volatile long value;
+		
+		Input() {}
+		
+		Input(long value) {
+			this.value = value;
+		}
+		
+		@Override
+		public boolean available() {
+			return value!=0;
+		}
+		
+		@Override
+		public long read() {
+			return value;
+		}
+		
+		@Override
+		public void write(long value) {}
+	}
+}
@@ -0,0 +1,130 @@
+package blue.endless.junior.esovm;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import blue.endless.junior.jarser.JarserParser;
+
+/**
+ * Spawns threads from a snapshot and checks that what each one writes to its heap stays out of the snapshot, the thread it
+ * was taken from, and every other thread spawned from it. The writes hit a small block, a large run spanning several pages,
+ * and both of them through bulk memory instructions as well as plain stores.
+ */
+public class SnapshotTest {
+	private static final int RUN_SIZE = 200000;
+	private static final int COPY_OFFSET = 100000;
+	
+	/**
+	 * Fills a small block and a large run with ones, then waits for a value k on port 0. Once it has one, it stores k at the
+	 * start of the small block, fills the whole run with k, and copies the small block into the middle of the run.
+	 */
+	private static final String SOURCE =
+			"export function main() -> i64\n" +
+			"var s, l, d : word\n" +
+			"var k, v : i64\n" +
+			"s = allocate 64\n" +
+			"l = allocate " + RUN_SIZE + "\n" +
+			"v = 1\n" +
+			"memfill s, v, 8\n" +
+			"memfill l, v, " + RUN_SIZE/8 + "\n" +
+			"k = in 0\n" +
+			"[s] = k\n" +
+			"memfill l, k, " + RUN_SIZE/8 + "\n" +
+			"d = l + " + COPY_OFFSET + "\n" +
+			"memcopy i64 d, s, 8\n" +
+			"push k\n" +
+			"return\n" +
+			"end\n";
+	
+	@Test
+	public void writesStayInTheirOwnThread() throws Exception {
+		for(boolean verify : new boolean[] { false, true }) {
+			Module module = JarserParser.parse(SOURCE);
+			VMThread parent = new VMThread(module, module.getExport("main"));
+			if (verify) parent.verify();
+			parent.attachPort(0, new Input(0));
+			assertEquals(RunResult.Status.WAITING_ON_IO, parent.run(1000).getStatus());
+			long small = parent.getStack().currentStackFrame().getWord(0);
+			long run = parent.getStack().currentStackFrame().getWord(1);
+			
+			Snapshot snapshot = parent.snapshot();
+			VMThread first = spawn(snapshot, 10);
+			VMThread second = spawn(snapshot, 20);
+			assertUnwritten(first.getHeap(), small, run);
+			
+			assertEquals(10, finish(first));
+			assertWritten(first.getHeap(), small, run, 10);
+			assertUnwritten(snapshot.heap, small, run);
+			assertUnwritten(parent.getHeap(), small, run);
+			assertUnwritten(second.getHeap(), small, run);
+			
+			assertEquals(20, finish(second));
+			assertWritten(second.getHeap(), small, run, 20);
+			assertWritten(first.getHeap(), small, run, 10);
+			
+			//The thread the snapshot was taken from carries on by itself too
+			parent.attachPort(0, new Input(30));
+			assertEquals(30, finish(parent));
+			assertWritten(parent.getHeap(), small, run, 30);
+			assertWritten(first.getHeap(), small, run, 10);
+			assertWritten(second.getHeap(), small, run, 20);
+			assertUnwritten(snapshot.heap, small, run);
+			
+			//And a thread spawned afterwards still starts from the snapshot
+			VMThread third = spawn(snapshot, 40);
+			assertUnwritten(third.getHeap(), small, run);
+			assertEquals(40, finish(third));
+			assertWritten(third.getHeap(), small, run, 40);
+		}
+	}
+	
+	private static VMThread spawn(Snapshot snapshot, long k) {
+		VMThread thread = snapshot.spawn();
+		thread.attachPort(0, new Input(k));
+		return thread;
+	}
+	
+	private static long finish(VMThread thread) throws VMException {
+		RunResult result = thread.run(1000);
+		assertNull(result.getFault());
+		assertEquals(RunResult.Status.HALTED, result.getStatus());
+		return thread.getStack().popInt64();
+	}
+	
+	private static void assertUnwritten(Heap heap, long small, long run) throws VMException {
+		for(int offset=0; offset<64; offset+=8) assertEquals(1, heap.getInt64(small + offset));
+		for(int offset=0; offset<RUN_SIZE; offset+=8) assertEquals(1, heap.getInt64(run + offset));
+	}
+	
+	private static void assertWritten(Heap heap, long small, long run, long k) throws VMException {
+		for(int offset=0; offset<64; offset+=8) assertEquals((offset==0) ? k : 1, heap.getInt64(small + offset));
+		for(int offset=0; offset<RUN_SIZE; offset+=8) {
+			int copied = offset - COPY_OFFSET;
+			long expected = (copied<0 || copied>=64) ? k : (copied==0) ? k : 1;
+			assertEquals("offset "+offset, expected, heap.getInt64(run + offset));
+		}
+	}
+	
+	/** A port which has k ready to read, or nothing at all if k is zero. */
+	private static class Input implements Port {
+		private final long k;
+		
+		Input(long k) {
+			this.k = k;
+		}
+		
+		@Override
+		public boolean available() {
+			return k!=0;
+		}
+		
+		@Override
+		public long read() {
+			return k;
+		}
+		
+		@Override
+		public void write(long value) {}
+	}
+}
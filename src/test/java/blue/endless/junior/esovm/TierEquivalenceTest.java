@@ -0,0 +1,183 @@
+package blue.endless.junior.esovm;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import blue.endless.junior.jarser.JarserParser;
+
+/**
+ * Runs the same programs in the checked, verified and compiled tiers, a slice of the cycle budget at a time, and checks
+ * that every tier stops at the same place after each slice: same status, same number of cycles, same program counter and
+ * same registers. Threaded jumps, superinstructions and compiled blocks all have to end a slice exactly where the checked
+ * loop would.
+ */
+public class TierEquivalenceTest {
+	private static final int CHECKED = 0;
+	private static final int VERIFIED = 1;
+	private static final int COMPILED = 2;
+	private static final String[] TIERS = { "checked", "verified", "compiled" };
+	
+	/** Adds 1 through 1000 into s, with a chain of jumps in the middle of the loop for the peephole pass to thread. */
+	private static final String LOOP =
+			"export function main() -> i64\n" +
+			"var s, n : i64\n" +
+			"s = 0\n" +
+			"n = 1000\n" +
+			"top:\n" +
+			"s = s + n\n" +
+			"jump first\n" +
+			"second: jump third\n" +
+			"first: jump second\n" +
+			"third:\n" +
+			"n = n - 1\n" +
+			"test n\n" +
+			"jump not_zero top\n" +
+			"push s\n" +
+			"return\n" +
+			"end\n";
+	
+	/** Works out the 90th Fibonacci number in a loop, in a function main calls. */
+	private static final String FIBONACCI =
+			"export function fib(i64) -> i64\n" +
+			"var n, a, b : i64\n" +
+			"n = pop\n" +
+			"a = 0\n" +
+			"b = 1\n" +
+			"loop:\n" +
+			"test n\n" +
+			"jump zero done\n" +
+			"b = a + b\n" +
+			"a = b - a\n" +
+			"n = n - 1\n" +
+			"jump loop\n" +
+			"done: push a\n" +
+			"return\n" +
+			"end\n" +
+			"export function main() -> i64\n" +
+			"i64 %0 = 90\n" +
+			"push i64 %0\n" +
+			"call fib\n" +
+			"return\n" +
+			"end\n";
+	
+	/** Works out the 15th Fibonacci number the slow way, with two recursive calls and no loops at all. */
+	private static final String RECURSIVE =
+			"export function fib(i64) -> i64\n" +
+			"var n, a, t : i64\n" +
+			"n = pop\n" +
+			"t = n - 2\n" +
+			"test t\n" +
+			"jump negative base\n" +
+			"t = n - 1\n" +
+			"push t\n" +
+			"call fib\n" +
+			"a = pop\n" +
+			"t = n - 2\n" +
+			"push t\n" +
+			"call fib\n" +
+			"t = pop\n" +
+			"a = a + t\n" +
+			"push a\n" +
+			"return\n" +
+			"base: push n\n" +
+			"return\n" +
+			"end\n" +
+			"export function main() -> i64\n" +
+			"i64 %0 = 15\n" +
+			"push i64 %0\n" +
+			"call fib\n" +
+			"return\n" +
+			"end\n";
+	
+	@Test
+	public void loop() throws Exception {
+		for(int slice : new int[] { 1, 2, 3, 7, 13, 1000 }) compare(LOOP, "main", slice);
+	}
+	
+	@Test
+	public void fibonacci() throws Exception {
+		for(int slice : new int[] { 1, 3, 5, 11, 1000 }) compare(FIBONACCI, "fib", slice);
+	}
+	
+	@Test
+	public void recursive() throws Exception {
+		for(int slice : new int[] { 1, 4, 9, 1000 }) compare(RECURSIVE, "fib", slice);
+	}
+	
+	/** A function without loops still gets compiled once it's been called often enough, and gives the same answer. */
+	@Test
+	public void recursiveResult() throws Exception {
+		for(int tier=CHECKED; tier<=COMPILED; tier++) {
+			Module module = JarserParser.parse(RECURSIVE);
+			VMThread thread = thread(module, tier);
+			if (tier==COMPILED) thread.setJitThreshold(10);
+			assertEquals(TIERS[tier], RunResult.Status.HALTED, runToEnd(thread, 1000));
+			assertEquals(TIERS[tier], 610, thread.getStack().popInt64());
+			assertEquals(TIERS[tier], tier==COMPILED, module.getFunction("fib").getCompiled()!=null);
+		}
+	}
+	
+	@Test
+	public void fibonacciResult() throws Exception {
+		for(int tier=CHECKED; tier<=COMPILED; tier++) {
+			VMThread thread = thread(JarserParser.parse(FIBONACCI), tier);
+			assertEquals(TIERS[tier], RunResult.Status.HALTED, runToEnd(thread, 1000));
+			assertEquals(TIERS[tier], 2880067194370816120L, thread.getStack().popInt64());
+		}
+	}
+	
+	/**
+	 * Runs source in every tier, slice cycles at a time, checking that all three agree after every slice, and that the
+	 * function called hot, which has the loop in it or is called over and over, really did get compiled.
+	 */
+	private static void compare(String source, String hot, long slice) throws Exception {
+		VMThread[] threads = new VMThread[TIERS.length];
+		for(int tier=CHECKED; tier<=COMPILED; tier++) threads[tier] = thread(JarserParser.parse(source), tier);
+		
+		for(int step=0; ; step++) {
+			RunResult expected = threads[CHECKED].run(slice);
+			assertNull("fault", expected.getFault());
+			for(int tier=VERIFIED; tier<=COMPILED; tier++) {
+				String where = TIERS[tier]+", slice "+slice+", step "+step;
+				RunResult result = threads[tier].run(slice);
+				assertNull(where, result.getFault());
+				assertEquals(where, expected.getStatus(), result.getStatus());
+				assertEquals(where, expected.getCycles(), result.getCycles());
+				assertEquals(where, threads[CHECKED].getProgramCounter(), threads[tier].getProgramCounter());
+				assertArrayEquals(where, registers(threads[CHECKED]), registers(threads[tier]));
+			}
+			if (expected.getStatus()!=RunResult.Status.BUDGET_EXHAUSTED) break;
+		}
+		//Loops are only compiled at a backward jump with budget to spare, which a small slice can keep just missing
+		if (slice>=1000) assertNotNull("compiled "+hot+", slice "+slice, threads[COMPILED].getModule().getFunction(hot).getCompiled());
+	}
+	
+	private static VMThread thread(Module module, int tier) throws VMException {
+		VMThread thread = new VMThread(module, module.getExport("main"));
+		if (tier!=CHECKED) {
+			thread.verify();
+			thread.setJitThreshold((tier==COMPILED) ? 1 : 0);
+		}
+		return thread;
+	}
+	
+	private static RunResult.Status runToEnd(VMThread thread, long slice) {
+		RunResult result;
+		do {
+			result = thread.run(slice);
+		} while(result.getStatus()==RunResult.Status.BUDGET_EXHAUSTED);
+		return result.getStatus();
+	}
+	
+	/** The int64 and int32 entries of the current frame's LVT, which are the only kinds these programs use. */
+	private static long[] registers(VMThread thread) throws VMException {
+		StackFrame frame = thread.getStack().currentStackFrame();
+		int int64Count = (int) ((frame.getLvtInfo() >>> 48) & 0xFF);
+		int int32Count = (int) ((frame.getLvtInfo() >>> 32) & 0xFF);
+		long[] registers = new long[int64Count + int32Count];
+		for(int i=0; i<int64Count; i++) registers[i] = frame.getInt64(i);
+		for(int i=0; i<int32Count; i++) registers[int64Count + i] = frame.getInt32(i);
+		return registers;
+	}
+}
@@ -0,0 +1,67 @@
+package blue.endless.junior.esovm;
+
+import static blue.endless.junior.esovm.VMThread.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class VMThreadTest {
+	/** A port which throws an unchecked exception from write must fault the thread rather than escape from run. */
+	@Test
+	public void uncheckedExceptionsFault() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		instruction(out, OPCODE_LOAD, DATA_INT32, OPERAND_IMMEDIATE, 0, 0, 7);
+		instruction(out, OPCODE_OUT,  DATA_INT32, OPERAND_IMMEDIATE, 0, 0, 0);
+		instruction(out, OPCODE_HALT, 0, 0, 0, 0, 0);
+		byte[] program = out.toByteArray();
+		IllegalStateException thrown = new IllegalStateException("port is broken");
+		
+		for(boolean verify : new boolean[] { false, true }) {
+			VMThread thread = new VMThread(program, 0, StackFrame.lvtInfo(0, 0, 0, 1, 0, 0, 0, 0));
+			thread.attachPort(0, new Port() {
+				@Override
+				public boolean available() {
+					return false;
+				}
+				
+				@Override
+				public long read() {
+					return 0;
+				}
+				
+				@Override
+				public void write(long value) {
+					throw thrown;
+				}
+			});
+			if (verify) thread.verify();
+			
+			RunResult result = thread.run(100);
+			assertEquals(RunResult.Status.FAULTED, result.getStatus());
+			//The OUT counts, as a faulting instruction always does
+			assertEquals(2, result.getCycles());
+			assertTrue(result.getFault().getCause()==thrown);
+			assertTrue(thread.getFault()==result.getFault());
+			assertFalse(thread.isActive());
+			//Left on the instruction which faulted
+			assertEquals(8, thread.getProgramCounter());
+			
+			//And it stays faulted
+			assertEquals(RunResult.Status.FAULTED, thread.run(100).getStatus());
+			assertEquals(8, thread.getProgramCounter());
+		}
+	}
+	
+	private static void instruction(ByteArrayOutputStream out, int opcode, int dataType, int operand2Type, int destination, int operand1, int operand2) {
+		out.write(opcode);
+		out.write((dataType << 4) | operand2Type);
+		out.write(destination);
+		out.write(operand1);
+		out.write(operand2 >>> 24);
+		out.write(operand2 >>> 16);
+		out.write(operand2 >>> 8);
+		out.write(operand2);
+	}
+}
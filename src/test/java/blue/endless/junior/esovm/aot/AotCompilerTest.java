@@ -0,0 +1,123 @@
+package blue.endless.junior.esovm.aot;
+
+import static blue.endless.junior.esovm.VMThread.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import blue.endless.junior.esovm.ConstantPool;
+import blue.endless.junior.esovm.Module;
+import blue.endless.junior.esovm.StackFrame;
+import blue.endless.junior.esovm.VMException;
+
+/**
+ * Compiles modules to executables and runs them. The executables are x86-64 Linux ones, so this only runs there.
+ */
+public class AotCompilerTest {
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	
+	@Test
+	public void fibonacci() throws Exception {
+		//fib(20) is 6765, and the exit status is its lowest byte
+		assertEquals(6765 & 0xFF, run(fibonacci(20), "main"));
+	}
+	
+	@Test
+	public void loop() throws Exception {
+		//1 + 2 + ... + 100 is 5050
+		instruction(OPCODE_LOAD,   DATA_INT32, OPERAND_IMMEDIATE, 0, 0, 0);
+		instruction(OPCODE_LOAD,   DATA_INT32, OPERAND_IMMEDIATE, 0, 1, 100);
+		int top = out.size();
+		instruction(OPCODE_ADD,    DATA_INT32, OPERAND_REGISTER,  0, 0, 1);
+		instruction(OPCODE_SUB,    DATA_INT32, OPERAND_IMMEDIATE, 1, 1, 1);
+		instruction(OPCODE_TEST,   DATA_INT32, 0, 0, 1, 0);
+		instruction(OPCODE_CJUMP,  0, 0, 0, CONDITION_NOT_ZERO, top);
+		instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 0, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0, 0);
+		byte[] program = out.toByteArray();
+		
+		long lvtInfo = StackFrame.lvtInfo(0, 0, 0, 2, 0, 0, 0, 0);
+		Module module = new Module(program, new ConstantPool(), Arrays.asList(
+				new Module.Function("main", 0, program.length, 0, lvtInfo, 0, 4, Module.FLAG_EXPORTED)));
+		assertEquals(5050 & 0xFF, run(module, "main"));
+	}
+	
+	/** A module whose "main" returns the nth Fibonacci number, which "fib" works out the slow way, by calling itself twice. */
+	private Module fibonacci(int n) throws VMException {
+		ConstantPool constants = new ConstantPool();
+		int fib = constants.addString("fib");
+		
+		instruction(OPCODE_LOAD,   DATA_INT32, OPERAND_IMMEDIATE, 0, 0, n);
+		instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 0, 0);
+		instruction(OPCODE_CALL,   0, 0, 0, 0, fib);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0, 0);
+		int start = out.size();
+		//Where the base case starts, after the 15 instructions of the recursive case
+		int base = start + 15*8;
+		instruction(OPCODE_POP,    DATA_INT32, 0, 0, 0, 0);
+		instruction(OPCODE_SUB,    DATA_INT32, OPERAND_IMMEDIATE, 1, 0, 2);
+		instruction(OPCODE_TEST,   DATA_INT32, 0, 0, 1, 0);
+		instruction(OPCODE_CJUMP,  0, 0, 0, CONDITION_NEGATIVE, base);
+		instruction(OPCODE_SUB,    DATA_INT32, OPERAND_IMMEDIATE, 1, 0, 1);
+		instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 1, 0);
+		instruction(OPCODE_CALL,   0, 0, 0, 0, fib);
+		instruction(OPCODE_SUB,    DATA_INT32, OPERAND_IMMEDIATE, 1, 0, 2);
+		instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 1, 0);
+		instruction(OPCODE_CALL,   0, 0, 0, 0, fib);
+		instruction(OPCODE_POP,    DATA_INT32, 0, 0, 1, 0);
+		instruction(OPCODE_POP,    DATA_INT32, 0, 0, 0, 0);
+		instruction(OPCODE_ADD,    DATA_INT32, OPERAND_REGISTER, 0, 0, 1);
+		instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 0, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0, 0);
+		instruction(OPCODE_PUSH,   DATA_INT32, 0, 0, 0, 0);
+		instruction(OPCODE_RETURN, 0, 0, 0, 0, 0);
+		int end = out.size();
+		
+		long lvtInfo = StackFrame.lvtInfo(0, 0, 0, 2, 0, 0, 0, 0);
+		return new Module(out.toByteArray(), constants, Arrays.asList(
+				new Module.Function("main", 0, start, 0, lvtInfo, 0, 4, Module.FLAG_EXPORTED),
+				new Module.Function("fib", start, end, start, lvtInfo, 4, 4, 0)));
+	}
+	
+	private void instruction(int opcode, int dataType, int operand2Type, int destination, int operand1, int operand2) {
+		out.write(opcode);
+		out.write((dataType << 4) | operand2Type);
+		out.write(destination);
+		out.write(operand1);
+		out.write(operand2 >>> 24);
+		out.write(operand2 >>> 16);
+		out.write(operand2 >>> 8);
+		out.write(operand2);
+	}
+	
+	/** Compiles entryName into an executable, runs it, and returns its exit status. */
+	private static int run(Module module, String entryName) throws Exception {
+		String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+		String arch = System.getProperty("os.arch");
+		assumeTrue("Compiled code only runs on x86-64 Linux", os.contains("linux") && (arch.equals("amd64") || arch.equals("x86_64")));
+		
+		ElfFile executable = AotCompiler.compile(module, entryName, AotCompiler.DEFAULT_STACK_SIZE);
+		Path file = Files.createTempFile("junior", "");
+		try {
+			try (OutputStream stream = Files.newOutputStream(file)) {
+				executable.write(stream);
+			}
+			assumeTrue("Can't make "+file+" executable", file.toFile().setExecutable(true));
+			
+			Process process = new ProcessBuilder(file.toString()).inheritIO().start();
+			assertTrue("The executable didn't exit", process.waitFor(30, TimeUnit.SECONDS));
+			return process.exitValue();
+		} finally {
+			Files.delete(file);
+		}
+	}
+}